@@ -0,0 +1,42 @@
+package org.volity.benchmark;
+
+/**
+ * One micro-benchmark: an operation which BenchmarkRunner times over and over.
+ *
+ * Subclasses implement run(), which performs the operation a given number of
+ * times. Any setup work belongs in the constructor or setUp(), so that it is
+ * not timed. The value run() returns is folded into a result the runner
+ * keeps, so that the JIT can't discard the work as unused; return something
+ * that depends on every repetition (a hash, a length, a count).
+ */
+public abstract class Benchmark
+{
+    protected String mName;
+
+    /**
+     * @param name the benchmark's name, as it appears in the results. By
+     *     convention this is "area.operation" -- "parse.message".
+     */
+    protected Benchmark(String name) {
+        mName = name;
+    }
+
+    /** The benchmark's name. */
+    public String getName() {
+        return mName;
+    }
+
+    /**
+     * Prepare for a run. Called once, before any timing. The default does
+     * nothing.
+     */
+    public void setUp() throws Exception {
+    }
+
+    /**
+     * Perform the operation count times.
+     *
+     * @return a value which depends on the work done.
+     */
+    public abstract int run(int count) throws Exception;
+}
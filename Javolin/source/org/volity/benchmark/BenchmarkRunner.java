@@ -0,0 +1,327 @@
+package org.volity.benchmark;
+
+import java.io.*;
+import java.text.DecimalFormat;
+import java.util.*;
+
+/**
+ * Runs the protocol benchmarks and reports the time per operation. Results
+ * can be saved to a file, and compared against a file saved earlier, so that
+ * one release can be measured against the last.
+ *
+ * Usage:
+ *
+ *   java org.volity.benchmark.BenchmarkRunner [options] [NAME...]
+ *
+ * Each NAME runs only the benchmarks whose names contain it; with none, all
+ * of them run. Options:
+ *
+ *   --time MS        length of each timed iteration (default 1000)
+ *   --warmup N       untimed iterations before measuring (default 3)
+ *   --iterations N   timed iterations (default 5)
+ *   --output FILE    save the results to FILE
+ *   --baseline FILE  compare the results against FILE, saved by an
+ *                    earlier run
+ *   --traffic FILE   parse the inbound stanzas of a traffic log (as
+ *                    written when smack.trafficLogDir is set) in the
+ *                    parse.mix benchmarks, instead of a sample session
+ *   --list           list the benchmarks and exit
+ *
+ * The ant target "benchmark" runs this with the results going to
+ * benchmark-results.txt; set -Dbenchmark.baseline=FILE to compare.
+ *
+ * Timing uses System.currentTimeMillis(), so each iteration runs enough
+ * operations to last --time milliseconds; the count is found by doubling
+ * until one batch takes a tenth of that. The result is the mean time per
+ * operation across the timed iterations, with the spread between the
+ * fastest and slowest. Results from different machines or JVMs are not
+ * comparable.
+ */
+public class BenchmarkRunner
+{
+    private final static String APPNAME = "BenchmarkRunner";
+
+    /** First line of a results file. */
+    public final static String HEADER = "# volity-benchmark 1";
+
+    protected long mIterationTime = 1000;
+    protected int mWarmups = 3;
+    protected int mIterations = 5;
+
+    /**
+     * Sum of everything the benchmarks returned. Kept so that the JIT can't
+     * throw the benchmarked work away.
+     */
+    protected int mSink = 0;
+
+    /**
+     * The main program for the BenchmarkRunner class.
+     *
+     * @param args  The command line arguments.
+     */
+    public static void main(String[] args)
+    {
+        BenchmarkRunner runner = new BenchmarkRunner();
+        String outputName = null;
+        String baselineName = null;
+        String trafficName = null;
+        boolean listOnly = false;
+        List patterns = new ArrayList();
+
+        try {
+            for (int ix=0; ix<args.length; ix++) {
+                if (args[ix].equals("--time") && (ix < args.length-1)) {
+                    ix++;
+                    runner.mIterationTime = Long.parseLong(args[ix]);
+                    continue;
+                }
+                if (args[ix].equals("--warmup") && (ix < args.length-1)) {
+                    ix++;
+                    runner.mWarmups = Integer.parseInt(args[ix]);
+                    continue;
+                }
+                if (args[ix].equals("--iterations") && (ix < args.length-1)) {
+                    ix++;
+                    runner.mIterations = Math.max(1, Integer.parseInt(args[ix]));
+                    continue;
+                }
+                if (args[ix].equals("--output") && (ix < args.length-1)) {
+                    ix++;
+                    outputName = args[ix];
+                    continue;
+                }
+                if (args[ix].equals("--baseline") && (ix < args.length-1)) {
+                    ix++;
+                    // Ant passes an unset property through as an empty string.
+                    if (args[ix].length() > 0)
+                        baselineName = args[ix];
+                    continue;
+                }
+                if (args[ix].equals("--traffic") && (ix < args.length-1)) {
+                    ix++;
+                    trafficName = args[ix];
+                    continue;
+                }
+                if (args[ix].equals("--list")) {
+                    listOnly = true;
+                    continue;
+                }
+                if (args[ix].startsWith("--")) {
+                    System.err.println(APPNAME + ": Unknown option: " + args[ix]);
+                    System.exit(1);
+                }
+                patterns.add(args[ix]);
+            }
+        }
+        catch (NumberFormatException ex) {
+            System.err.println(APPNAME + ": Bad option: " + ex.toString());
+            System.exit(1);
+        }
+
+        List benchmarks = new ArrayList();
+        for (Iterator it = ProtocolBenchmarks.getBenchmarks().iterator(); it.hasNext(); ) {
+            Benchmark bench = (Benchmark)it.next();
+            if (matches(bench.getName(), patterns))
+                benchmarks.add(bench);
+        }
+
+        if (listOnly) {
+            for (Iterator it = benchmarks.iterator(); it.hasNext(); )
+                System.out.println(((Benchmark)it.next()).getName());
+            return;
+        }
+
+        try {
+            Map baseline = null;
+            if (baselineName != null)
+                baseline = readResults(new File(baselineName));
+            if (trafficName != null)
+                ProtocolBenchmarks.setTraffic(new File(trafficName));
+
+            List results = new ArrayList();
+            for (Iterator it = benchmarks.iterator(); it.hasNext(); ) {
+                Result res = runner.measure((Benchmark)it.next());
+                results.add(res);
+                System.out.println(res.format(baseline));
+            }
+
+            if (outputName != null)
+                writeResults(new File(outputName), results);
+        }
+        catch (Exception ex) {
+            System.err.println(APPNAME + ": " + ex.toString());
+            System.exit(1);
+        }
+    }
+
+    /**
+     * The measurements for one benchmark. Times are in nanoseconds per
+     * operation.
+     */
+    public static class Result {
+        public String name;
+        public double mean;
+        public double min;
+        public double max;
+
+        public Result(String name, double mean, double min, double max) {
+            this.name = name;
+            this.mean = mean;
+            this.min = min;
+            this.max = max;
+        }
+
+        /**
+         * Format the result for display, with the change from the baseline
+         * if it has an entry for this benchmark.
+         *
+         * @param baseline map of names to Results, or null.
+         */
+        public String format(Map baseline) {
+            DecimalFormat fmt = new DecimalFormat("0.0");
+            StringBuffer buf = new StringBuffer();
+            buf.append(pad(name, 20));
+            buf.append(pad(fmt.format(mean), -12));
+            buf.append(" ns/op  (");
+            buf.append(fmt.format(min));
+            buf.append(" .. ");
+            buf.append(fmt.format(max));
+            buf.append(")");
+
+            Result base = (baseline == null) ? null : (Result)baseline.get(name);
+            if (base != null && base.mean > 0) {
+                double change = 100.0 * (mean - base.mean) / base.mean;
+                buf.append("  ");
+                buf.append((change >= 0) ? "+" : "");
+                buf.append(fmt.format(change));
+                buf.append("% vs baseline");
+            }
+            return buf.toString();
+        }
+    }
+
+    /**
+     * Calibrate, warm up, and time one benchmark.
+     */
+    public Result measure(Benchmark bench) throws Exception {
+        bench.setUp();
+
+        // One untimed call, so that class loading and static setup don't
+        // throw off the calibration.
+        mSink += bench.run(1);
+
+        // Find a batch size which runs for a noticeable time, then scale it
+        // to the iteration time.
+        int count = 1;
+        long elapsed;
+        while (true) {
+            long start = System.currentTimeMillis();
+            mSink += bench.run(count);
+            elapsed = System.currentTimeMillis() - start;
+            if (elapsed >= mIterationTime / 10 || count >= Integer.MAX_VALUE / 2)
+                break;
+            count *= 2;
+        }
+        if (elapsed > 0) {
+            long scaled = (long)count * mIterationTime / elapsed;
+            count = (int)Math.max(1, Math.min(Integer.MAX_VALUE, scaled));
+        }
+
+        for (int ix=0; ix<mWarmups; ix++)
+            mSink += bench.run(count);
+
+        double total = 0;
+        double min = Double.MAX_VALUE;
+        double max = 0;
+        for (int ix=0; ix<mIterations; ix++) {
+            long start = System.currentTimeMillis();
+            mSink += bench.run(count);
+            elapsed = System.currentTimeMillis() - start;
+            double perOp = (elapsed * 1000000.0) / count;
+            total += perOp;
+            min = Math.min(min, perOp);
+            max = Math.max(max, perOp);
+        }
+
+        return new Result(bench.getName(), total / mIterations, min, max);
+    }
+
+    /**
+     * Save results, one line per benchmark: name, mean, min, max.
+     */
+    public static void writeResults(File file, List results) throws IOException {
+        PrintWriter out = new PrintWriter(new BufferedWriter(new FileWriter(file)));
+        try {
+            out.println(HEADER);
+            out.println("# " + new Date() + "; java " + System.getProperty("java.version")
+                + " (" + System.getProperty("java.vm.name") + ") on "
+                + System.getProperty("os.name") + " " + System.getProperty("os.arch"));
+            for (Iterator it = results.iterator(); it.hasNext(); ) {
+                Result res = (Result)it.next();
+                out.println(res.name + " " + res.mean + " " + res.min + " " + res.max);
+            }
+        }
+        finally {
+            out.close();
+        }
+    }
+
+    /**
+     * Load results saved by writeResults().
+     *
+     * @return a map of benchmark names to Result objects.
+     */
+    public static Map readResults(File file) throws IOException {
+        Map map = new HashMap();
+        BufferedReader in = new BufferedReader(new FileReader(file));
+        try {
+            String line = in.readLine();
+            if (line == null || !line.equals(HEADER))
+                throw new IOException(file + " is not a benchmark results file");
+            while ((line = in.readLine()) != null) {
+                if (line.startsWith("#") || line.trim().length() == 0)
+                    continue;
+                String[] fields = line.trim().split("\\s+");
+                if (fields.length < 4)
+                    throw new IOException(file + ": bad line: " + line);
+                try {
+                    map.put(fields[0], new Result(fields[0],
+                                Double.parseDouble(fields[1]),
+                                Double.parseDouble(fields[2]),
+                                Double.parseDouble(fields[3])));
+                }
+                catch (NumberFormatException ex) {
+                    throw new IOException(file + ": bad line: " + line);
+                }
+            }
+        }
+        finally {
+            in.close();
+        }
+        return map;
+    }
+
+    protected static boolean matches(String name, List patterns) {
+        if (patterns.isEmpty())
+            return true;
+        for (Iterator it = patterns.iterator(); it.hasNext(); ) {
+            if (name.indexOf((String)it.next()) >= 0)
+                return true;
+        }
+        return false;
+    }
+
+    /**
+     * Pad a string with spaces to the given width: on the right if width is
+     * positive, on the left if it is negative.
+     */
+    protected static String pad(String str, int width) {
+        int len = Math.abs(width);
+        if (str.length() >= len)
+            return str;
+        StringBuffer buf = new StringBuffer();
+        for (int ix=str.length(); ix<len; ix++)
+            buf.append(' ');
+        return (width > 0) ? (str + buf) : (buf + str);
+    }
+}
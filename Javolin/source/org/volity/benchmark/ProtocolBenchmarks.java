@@ -0,0 +1,691 @@
+package org.volity.benchmark;
+
+import java.io.*;
+import java.util.*;
+import org.jivesoftware.smack.filter.*;
+import org.jivesoftware.smack.packet.Message;
+import org.jivesoftware.smack.packet.Packet;
+import org.jivesoftware.smack.packet.Presence;
+import org.jivesoftware.smack.provider.IQProvider;
+import org.jivesoftware.smack.provider.ProviderManager;
+import org.jivesoftware.smack.util.Cache;
+import org.jivesoftware.smack.util.InterningParser;
+import org.jivesoftware.smack.util.PacketParserUtils;
+import org.jivesoftware.smack.util.StringUtils;
+import org.jivesoftware.smack.util.TrafficLog;
+import org.jivesoftware.smack.util.TrafficRecorder;
+import org.jivesoftware.smack.util.XMLStanzaFramer;
+import org.volity.jabber.RPCDispatcher;
+import org.volity.jabber.RPCHandler;
+import org.volity.jabber.RPCResponseHandler;
+import org.volity.jabber.packet.RPC;
+import org.volity.jabber.packet.RPCRequest;
+import org.volity.jabber.provider.RPCProvider;
+import org.xmlpull.mxp1.MXParser;
+import org.xmlpull.v1.XmlPullParser;
+
+/**
+ * The standard set of benchmarks: the Smack and Jabber-RPC code that every
+ * stanza of a game passes through. The sample stanzas are typical of a
+ * Volity table -- a groupchat message from a MUC occupant, an occupant's
+ * presence, and a game RPC carrying a seat list and a struct of game state.
+ */
+public class ProtocolBenchmarks
+{
+    public final static String MESSAGE_XML =
+        "<message from='volity-12@conference.volity.net/referee'"
+        + " to='player@volity.net/gamut' type='groupchat' id='m_1234'>"
+        + "<body>White moves e2-e4 &amp; offers a draw</body>"
+        + "<thread>a7c3e8ff</thread>"
+        + "<x xmlns='jabber:x:event'><composing/></x>"
+        + "</message>";
+
+    public final static String PRESENCE_XML =
+        "<presence from='volity-12@conference.volity.net/Player'"
+        + " to='player@volity.net/gamut'>"
+        + "<show>away</show><status>Thinking about my move</status>"
+        + "<priority>5</priority>"
+        + "<x xmlns='http://jabber.org/protocol/muc#user'>"
+        + "<item affiliation='none' role='participant'"
+        + " jid='player2@volity.net/gamut'/></x>"
+        + "</presence>";
+
+    /**
+     * The inbound stanzas the parse.mix benchmarks parse, in order. Null
+     * until setTraffic() or the first benchmark sets it up.
+     */
+    protected static List sTraffic = null;
+
+    /**
+     * Build the list of benchmarks.
+     *
+     * @return a List of Benchmark objects, in a sensible running order.
+     */
+    public static List getBenchmarks() {
+        List ls = new ArrayList();
+        ls.add(new ParseMessage());
+        ls.add(new ParsePresence());
+        ls.add(new ParseMix("parse.mix", true));
+        ls.add(new ParseMix("parse.mix.mxparser", false));
+        ls.add(new RPCParseValue());
+        ls.add(new RPCParseRequest());
+        ls.add(new RPCDispatch());
+        ls.add(new RPCValueXML());
+        ls.add(new RPCRequestToXML());
+        ls.add(new RPCRequestAppendXML());
+        ls.add(new MessageToXML());
+        ls.add(new EscapeForXML("escape.plain",
+                   "An ordinary chat line, with nothing that needs escaping in it."));
+        ls.add(new EscapeForXML("escape.markup",
+                   "<b>\"Bold\"</b> & 'quoted' <i>text</i> & more <markup/>"));
+        ls.add(new EscapeAppend());
+        ls.add(new EncodeBase64());
+        ls.add(new DecodeBase64());
+        ls.add(new Hash());
+        ls.add(new FilterAccept());
+        ls.add(new CacheGetPut());
+        return ls;
+    }
+
+    /**
+     * Sample game state: the sort of arguments a referee sends with a
+     * game.* call.
+     */
+    public static List sampleParams() {
+        Map state = new LinkedHashMap();
+        state.put("turn", new Integer(17));
+        state.put("seat", "white");
+        state.put("clock", new Double(312.5));
+        state.put("check", Boolean.FALSE);
+        state.put("note", "Knight to f3 <forced> & unavoidable");
+        List board = new ArrayList();
+        for (int ix=0; ix<8; ix++)
+            board.add("rnbqkbnr".substring(ix) + "pppp".substring(ix % 4));
+        state.put("board", board);
+
+        List params = new ArrayList();
+        params.add("white");
+        params.add(Arrays.asList(new Object[] { "e2", "e4", new Integer(1) }));
+        params.add(state);
+        return params;
+    }
+
+    /**
+     * Use the inbound stanzas of a traffic log (as written when
+     * smack.trafficLogDir is set) for the parse.mix benchmarks, in place of
+     * the sample session.
+     */
+    public static void setTraffic(File file) throws IOException {
+        TrafficLog log = new TrafficLog(file);
+        XMLStanzaFramer framer = new XMLStanzaFramer();
+        List stanzas = new ArrayList();
+        try {
+            TrafficLog.Record record;
+            while ((record = log.next()) != null) {
+                if (record.type != TrafficRecorder.INBOUND)
+                    continue;
+                framer.append(record.text);
+                String element;
+                while ((element = framer.nextElement()) != null) {
+                    if (framer.getElementType() == XMLStanzaFramer.STANZA)
+                        stanzas.add(element);
+                }
+            }
+        }
+        finally {
+            log.close();
+        }
+        if (stanzas.isEmpty())
+            throw new IOException("No inbound stanzas in " + file);
+        sTraffic = stanzas;
+    }
+
+    /**
+     * The inbound stanzas of a few turns at a Volity table: the referee's
+     * game RPCs and answers to ours, groupchat chatter, and occupants'
+     * presence (with MUC and caps extensions) coming and going.
+     */
+    public static List sampleSession() {
+        String referee = "volity-12@conference.volity.net/referee";
+        String rpcMove = new RPCRequest("game.move", sampleParams())
+            .getChildElementXML();
+        String rpcSeat = new RPCRequest("volity.seat_list",
+            Arrays.asList(new Object[] { "white", "black" }))
+            .getChildElementXML();
+        List stanzas = new ArrayList();
+        for (int turn=0; turn<8; turn++) {
+            stanzas.add("<iq type='set' id='ref" + turn + "' from='" + referee
+                + "' to='player@volity.net/gamut'>" + rpcMove + "</iq>");
+            stanzas.add("<iq type='result' id='req" + turn + "' from='" + referee
+                + "' to='player@volity.net/gamut'>"
+                + "<query xmlns='jabber:iq:rpc'><methodResponse><params><param>"
+                + "<value><boolean>1</boolean></value>"
+                + "</param></params></methodResponse></query></iq>");
+            stanzas.add(MESSAGE_XML);
+            stanzas.add(PRESENCE_XML);
+            stanzas.add("<presence from='volity-12@conference.volity.net/Kibitzer"
+                + turn + "' to='player@volity.net/gamut'"
+                + ((turn % 2 == 0) ? "" : " type='unavailable'") + ">"
+                + "<c xmlns='http://jabber.org/protocol/caps'"
+                + " node='http://volity.org/protocol/caps' ver='1.0' ext='player'/>"
+                + "<x xmlns='http://jabber.org/protocol/muc#user'>"
+                + "<item affiliation='none' role='visitor'/></x>"
+                + "</presence>");
+            if (turn % 4 == 0)
+                stanzas.add("<iq type='set' id='seat" + turn + "' from='"
+                    + referee + "' to='player@volity.net/gamut'>"
+                    + rpcSeat + "</iq>");
+        }
+        return stanzas;
+    }
+
+    /** Make a namespace-aware parser, as PacketReader does. */
+    protected static XmlPullParser newParser() throws Exception {
+        XmlPullParser parser = new InterningParser();
+        parser.setFeature(XmlPullParser.FEATURE_PROCESS_NAMESPACES, true);
+        return parser;
+    }
+
+    /** PacketParserUtils.parseMessage() on a groupchat message. */
+    public static class ParseMessage extends Benchmark {
+        XmlPullParser parser;
+
+        public ParseMessage() {
+            super("parse.message");
+        }
+
+        public void setUp() throws Exception {
+            parser = newParser();
+        }
+
+        public int run(int count) throws Exception {
+            int result = 0;
+            for (int ix=0; ix<count; ix++) {
+                parser.setInput(new StringReader(MESSAGE_XML));
+                parser.next();
+                Packet msg = PacketParserUtils.parseMessage(parser);
+                result += msg.getPacketID().length();
+            }
+            return result;
+        }
+    }
+
+    /**
+     * A stream of inbound stanzas -- the sample session, or a recorded one
+     * (BenchmarkRunner --traffic) -- parsed and dispatched as PacketReader
+     * does: messages and presences by PacketParserUtils, IQ queries by their
+     * ProviderManager provider. One operation is one stanza. The mxparser
+     * variant uses a plain MXParser, to show what InterningParser saves.
+     */
+    public static class ParseMix extends Benchmark {
+        boolean interning;
+        XmlPullParser parser;
+        String[] stanzas;
+        int next = 0;
+
+        public ParseMix(String name, boolean interning) {
+            super(name);
+            this.interning = interning;
+        }
+
+        public void setUp() throws Exception {
+            if (ProviderManager.getIQProvider(RPC.elementName, RPC.namespace) == null)
+                ProviderManager.addIQProvider(RPC.elementName, RPC.namespace,
+                    new RPCProvider());
+            if (interning) {
+                parser = newParser();
+            }
+            else {
+                parser = new MXParser();
+                parser.setFeature(XmlPullParser.FEATURE_PROCESS_NAMESPACES, true);
+            }
+            if (sTraffic == null)
+                sTraffic = sampleSession();
+            stanzas = (String[])sTraffic.toArray(new String[0]);
+        }
+
+        public int run(int count) throws Exception {
+            int result = 0;
+            for (int ix=0; ix<count; ix++) {
+                parser.setInput(new StringReader(stanzas[next]));
+                next = (next + 1) % stanzas.length;
+                parser.next();
+                String name = parser.getName();
+                if (name.equals("message")) {
+                    result += PacketParserUtils.parseMessage(parser)
+                        .getPacketID().length();
+                }
+                else if (name.equals("presence")) {
+                    result += PacketParserUtils.parsePresence(parser)
+                        .getType().toString().length();
+                }
+                else if (name.equals("iq")) {
+                    result += parseIQ(parser);
+                }
+            }
+            return result;
+        }
+
+        /** The provider lookup and parse of PacketReader.parseIQ(). */
+        protected int parseIQ(XmlPullParser parser) throws Exception {
+            int result = 0;
+            while (true) {
+                int eventType = parser.next();
+                if (eventType == XmlPullParser.START_TAG) {
+                    Object provider = ProviderManager.getIQProvider(
+                        parser.getName(), parser.getNamespace());
+                    if (provider instanceof IQProvider) {
+                        ((IQProvider)provider).parseIQ(parser);
+                        result++;
+                    }
+                }
+                else if (eventType == XmlPullParser.END_TAG) {
+                    if (parser.getName().equals("iq"))
+                        return result;
+                }
+                else if (eventType == XmlPullParser.END_DOCUMENT) {
+                    return result;
+                }
+            }
+        }
+    }
+
+    /** PacketParserUtils.parsePresence() on a MUC occupant's presence. */
+    public static class ParsePresence extends Benchmark {
+        XmlPullParser parser;
+
+        public ParsePresence() {
+            super("parse.presence");
+        }
+
+        public void setUp() throws Exception {
+            parser = newParser();
+        }
+
+        public int run(int count) throws Exception {
+            int result = 0;
+            for (int ix=0; ix<count; ix++) {
+                parser.setInput(new StringReader(PRESENCE_XML));
+                parser.next();
+                Presence presence = PacketParserUtils.parsePresence(parser);
+                result += presence.getPriority();
+            }
+            return result;
+        }
+    }
+
+    /** RPCProvider.parseValue() on the sample game state. */
+    public static class RPCParseValue extends Benchmark {
+        XmlPullParser parser;
+        RPCProvider provider = new RPCProvider();
+        String xml;
+
+        public RPCParseValue() {
+            super("rpc.parseValue");
+        }
+
+        public void setUp() throws Exception {
+            parser = newParser();
+            xml = RPC.getValueXML(sampleParams());
+        }
+
+        public int run(int count) throws Exception {
+            int result = 0;
+            for (int ix=0; ix<count; ix++) {
+                parser.setInput(new StringReader(xml));
+                parser.nextTag();
+                List value = (List)provider.parseValue(parser);
+                result += value.size();
+            }
+            return result;
+        }
+    }
+
+    /**
+     * RPCProvider.parseIQ() on a whole game RPC request, as the packet
+     * reader sees it. Only the first parameter is read, as by a handler
+     * which looks at the seat and passes the rest along.
+     */
+    public static class RPCParseRequest extends Benchmark {
+        XmlPullParser parser;
+        RPCProvider provider = new RPCProvider();
+        String xml;
+
+        public RPCParseRequest() {
+            super("rpc.parseRequest");
+        }
+
+        public void setUp() throws Exception {
+            parser = newParser();
+            xml = new RPCRequest("game.move", sampleParams()).getChildElementXML();
+        }
+
+        public int run(int count) throws Exception {
+            int result = 0;
+            for (int ix=0; ix<count; ix++) {
+                parser.setInput(new StringReader(xml));
+                parser.nextTag();
+                RPCRequest req = (RPCRequest)provider.parseIQ(parser);
+                result += ((String)req.getParams().get(0)).length();
+            }
+            return result;
+        }
+    }
+
+    /**
+     * The referee-to-UI path after parsing: a parsed game RPC handed to an
+     * RPCDispatcher with game and volity handlers, as GameUI sets up, and
+     * answered. One call in ten is to a method nobody handles.
+     */
+    public static class RPCDispatch extends Benchmark {
+        RPCDispatcher dispatcher;
+        RPCRequest[] requests;
+        int[] answers = new int[1];
+        RPCResponseHandler reply = new RPCResponseHandler() {
+                public void respondValue(Object value) {
+                    answers[0]++;
+                }
+                public void respondFault(int faultCode, String faultString) {
+                    answers[0] += faultString.length();
+                }
+            };
+
+        public RPCDispatch() {
+            super("rpc.dispatch");
+        }
+
+        public void setUp() throws Exception {
+            RPCHandler handler = new RPCHandler() {
+                    public void handleRPC(String methodName, List params,
+                        RPCResponseHandler k) {
+                        k.respondValue(params.get(0));
+                    }
+                };
+            dispatcher = new RPCDispatcher();
+            dispatcher.setHandler("game", handler);
+            dispatcher.setHandler("volity", handler);
+
+            // Parse the requests, as the packet reader would.
+            XmlPullParser parser = newParser();
+            RPCProvider provider = new RPCProvider();
+            String[] names = { "game.move", "game.board", "volity.seat_list",
+                "game.move", "game.score", "volity.player_ready", "game.move",
+                "game.board", "game.turn", "nosuch.method" };
+            requests = new RPCRequest[names.length];
+            for (int ix=0; ix<names.length; ix++) {
+                parser.setInput(new StringReader(new RPCRequest(names[ix],
+                    sampleParams()).getChildElementXML()));
+                parser.nextTag();
+                requests[ix] = (RPCRequest)provider.parseIQ(parser);
+            }
+        }
+
+        public int run(int count) throws Exception {
+            answers[0] = 0;
+            for (int ix=0; ix<count; ix++) {
+                RPCRequest req = requests[ix % requests.length];
+                dispatcher.handleRPC(req.getMethodName(), req.getParams(),
+                    reply);
+            }
+            return answers[0];
+        }
+    }
+
+    /** RPC.getValueXML() on the sample game state. */
+    public static class RPCValueXML extends Benchmark {
+        List params = sampleParams();
+
+        public RPCValueXML() {
+            super("rpc.getValueXML");
+        }
+
+        public int run(int count) throws Exception {
+            int result = 0;
+            for (int ix=0; ix<count; ix++)
+                result += RPC.getValueXML(params).length();
+            return result;
+        }
+    }
+
+    /** Packet.toXML() on a whole RPC request, as sent to a referee. */
+    public static class RPCRequestToXML extends Benchmark {
+        RPCRequest request;
+
+        public RPCRequestToXML() {
+            super("toXML.rpc");
+        }
+
+        public void setUp() {
+            request = new RPCRequest("game.move", sampleParams());
+            request.setTo("volity-12@conference.volity.net/referee");
+        }
+
+        public int run(int count) throws Exception {
+            int result = 0;
+            for (int ix=0; ix<count; ix++)
+                result += request.toXML().length();
+            return result;
+        }
+    }
+
+    /**
+     * Packet.appendXML() on a whole RPC request, into a reused buffer, as
+     * PacketWriter sends it.
+     */
+    public static class RPCRequestAppendXML extends Benchmark {
+        RPCRequest request;
+        StringBuffer buf = new StringBuffer();
+
+        public RPCRequestAppendXML() {
+            super("appendXML.rpc");
+        }
+
+        public void setUp() {
+            request = new RPCRequest("game.move", sampleParams());
+            request.setTo("volity-12@conference.volity.net/referee");
+        }
+
+        public int run(int count) throws Exception {
+            int result = 0;
+            for (int ix=0; ix<count; ix++) {
+                buf.setLength(0);
+                request.appendXML(buf);
+                result += buf.length();
+            }
+            return result;
+        }
+    }
+
+    /** Packet.toXML() on a groupchat message with a property. */
+    public static class MessageToXML extends Benchmark {
+        Message msg;
+
+        public MessageToXML() {
+            super("toXML.message");
+        }
+
+        public void setUp() {
+            msg = new Message("volity-12@conference.volity.net",
+                Message.Type.GROUP_CHAT);
+            msg.setBody("White moves e2-e4 & offers a draw");
+            msg.setThread("a7c3e8ff");
+            msg.setProperty("seat", "white");
+        }
+
+        public int run(int count) throws Exception {
+            int result = 0;
+            for (int ix=0; ix<count; ix++)
+                result += msg.toXML().length();
+            return result;
+        }
+    }
+
+    /** StringUtils.escapeForXML() on a line of text. */
+    public static class EscapeForXML extends Benchmark {
+        String text;
+
+        public EscapeForXML(String name, String text) {
+            super(name);
+            this.text = text;
+        }
+
+        public int run(int count) throws Exception {
+            int result = 0;
+            for (int ix=0; ix<count; ix++)
+                result += StringUtils.escapeForXML(text).length();
+            return result;
+        }
+    }
+
+    /**
+     * StringUtils.escapeForXML() appending into a reused buffer, as
+     * RPC.appendValueXML() does: one plain line and one with markup.
+     */
+    public static class EscapeAppend extends Benchmark {
+        String plain =
+            "An ordinary chat line, with nothing that needs escaping in it.";
+        String markup =
+            "<b>\"Bold\"</b> & 'quoted' <i>text</i> & more <markup/>";
+        StringBuffer buf = new StringBuffer();
+
+        public EscapeAppend() {
+            super("escape.append");
+        }
+
+        public int run(int count) throws Exception {
+            int result = 0;
+            for (int ix=0; ix<count; ix++) {
+                buf.setLength(0);
+                StringUtils.escapeForXML(plain, buf);
+                StringUtils.escapeForXML(markup, buf);
+                result += buf.length();
+            }
+            return result;
+        }
+    }
+
+    /** StringUtils.encodeBase64() on 1K of binary data. */
+    public static class EncodeBase64 extends Benchmark {
+        byte[] data = new byte[1024];
+
+        public EncodeBase64() {
+            super("base64.encode");
+            for (int ix=0; ix<data.length; ix++)
+                data[ix] = (byte)(ix * 31);
+        }
+
+        public int run(int count) throws Exception {
+            int result = 0;
+            for (int ix=0; ix<count; ix++)
+                result += StringUtils.encodeBase64(data).length();
+            return result;
+        }
+    }
+
+    /** StringUtils.decodeBase64() on 1K of encoded binary data. */
+    public static class DecodeBase64 extends Benchmark {
+        String text;
+
+        public DecodeBase64() {
+            super("base64.decode");
+            byte[] data = new byte[1024];
+            for (int ix=0; ix<data.length; ix++)
+                data[ix] = (byte)(ix * 31);
+            text = StringUtils.encodeBase64(data);
+        }
+
+        public int run(int count) throws Exception {
+            int result = 0;
+            for (int ix=0; ix<count; ix++)
+                result += StringUtils.decodeBase64(text).length;
+            return result;
+        }
+    }
+
+    /** StringUtils.hash() on a short string, as for a digest login. */
+    public static class Hash extends Benchmark {
+        public Hash() {
+            super("hash.sha1");
+        }
+
+        public int run(int count) throws Exception {
+            int result = 0;
+            for (int ix=0; ix<count; ix++)
+                result += StringUtils.hash("3f4b2a1c9e8d7f6a" + "secret").length();
+            return result;
+        }
+    }
+
+    /**
+     * Filter evaluation: the sort of compound filter a GameTable listener
+     * applies to every incoming packet, tried against a packet which passes
+     * and one which doesn't.
+     */
+    public static class FilterAccept extends Benchmark {
+        PacketFilter filter;
+        Packet hit, miss;
+
+        public FilterAccept() {
+            super("filter.accept");
+        }
+
+        public void setUp() throws Exception {
+            filter = new AndFilter(
+                new PacketTypeFilter(Message.class),
+                new AndFilter(
+                    new MessageTypeFilter(Message.Type.GROUP_CHAT),
+                    new FromContainsFilter("volity-12@conference.volity.net")));
+            XmlPullParser parser = newParser();
+            parser.setInput(new StringReader(MESSAGE_XML));
+            parser.next();
+            hit = PacketParserUtils.parseMessage(parser);
+            parser.setInput(new StringReader(PRESENCE_XML));
+            parser.next();
+            miss = PacketParserUtils.parsePresence(parser);
+        }
+
+        public int run(int count) throws Exception {
+            int result = 0;
+            for (int ix=0; ix<count; ix++) {
+                if (filter.accept(hit))
+                    result++;
+                if (filter.accept(miss))
+                    result++;
+            }
+            return result;
+        }
+    }
+
+    /**
+     * Cache: a mix of hits, misses and puts against a cache which is kept
+     * full, so that puts also evict.
+     */
+    public static class CacheGetPut extends Benchmark {
+        Cache cache;
+        String[] keys = new String[2000];
+
+        public CacheGetPut() {
+            super("cache.getput");
+            for (int ix=0; ix<keys.length; ix++)
+                keys[ix] = "player" + ix + "@volity.net";
+        }
+
+        public void setUp() {
+            cache = new Cache(1000, -1);
+            for (int ix=0; ix<1000; ix++)
+                cache.put(keys[ix], keys[ix]);
+        }
+
+        public int run(int count) throws Exception {
+            int result = 0;
+            for (int ix=0; ix<count; ix++) {
+                String key = keys[(ix * 7) % keys.length];
+                if (cache.get(key) == null)
+                    cache.put(key, key);
+                else
+                    result++;
+            }
+            return result;
+        }
+    }
+}
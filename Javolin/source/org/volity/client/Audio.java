@@ -1,9 +1,12 @@
 package org.volity.client;
 
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
+import java.net.MalformedURLException;
 import java.net.URL;
 import java.util.*;
 import javax.sound.sampled.*;
+import org.jivesoftware.smack.util.Metrics;
 
 //### http://www.javazoom.net/vorbisspi/vorbisspi.html
 
@@ -16,6 +19,13 @@ import javax.sound.sampled.*;
  *
  * (Actually making this API available to ECMAScript requires ScriptableObject
  * wrappers. See GameUI.)
+ *
+ * Sounds are decoded once and kept in memory, up to a limit (see
+ * setCacheLimit), so that a sound played on every move doesn't have to be
+ * fetched and decoded on every move. A few Clips which have finished
+ * playing are also kept open, so that playing the same sound again doesn't
+ * have to acquire a new line from the mixer. The audio.play timing measures
+ * the delay between play() and the sound starting.
  */
 public class Audio
 {
@@ -32,6 +42,34 @@ public class Audio
      */
     protected static Map sLiveClips = new HashMap();
 
+    /**
+     * Decoded sounds. The sSamples table maps URL strings to Samples, least
+     * recently played first. The total size of the cached sample data is
+     * kept under sCacheLimit bytes by discarding from the front.
+     */
+    protected static Map sSamples = new LinkedHashMap(16, 0.75f, true);
+    protected static long sCacheBytes = 0;
+    protected static long sCacheLimit = 8 * 1024 * 1024;
+
+    /**
+     * Clips which have finished playing, but were left open so that they can
+     * play their Sample again. This is a list of IdleClips, oldest first. At
+     * most MAX_IDLE_CLIPS are kept; the oldest is closed to make room.
+     */
+    protected static LinkedList sIdleClips = new LinkedList();
+    protected static final int MAX_IDLE_CLIPS = 4;
+
+    protected final static Metrics.Timing PLAY_TIME =
+        Metrics.getTiming("audio.play");
+    protected final static Metrics.Counter SAMPLE_HITS =
+        Metrics.getCounter("audio.sample.hit");
+    protected final static Metrics.Counter SAMPLE_MISSES =
+        Metrics.getCounter("audio.sample.miss");
+    protected final static Metrics.Counter CLIP_REUSES =
+        Metrics.getCounter("audio.clip.reuse");
+    protected final static Metrics.Counter CACHE_BYTES =
+        Metrics.getLevel("audio.cache.bytes");
+
     /**
      * General initialization, run when the first Audio is instantiated.
      */
@@ -67,6 +105,50 @@ public class Audio
         sShowAltTags = val;
     }
 
+    /**
+     * Set the most memory (in bytes) which decoded sounds may occupy. Sounds
+     * which have not been played for the longest time are discarded first. A
+     * sound larger than the limit is decoded each time it is played.
+     */
+    public static void setCacheLimit(long bytes) {
+        synchronized (sSamples) {
+            sCacheLimit = bytes;
+            trimCache();
+        }
+    }
+
+    /**
+     * Fetch and decode some sounds in the background, so that they are ready
+     * when they are first played. Each name is a URL, relative to baseURL. A
+     * sound which cannot be loaded is skipped; the problem will be reported
+     * if the sound is ever played.
+     */
+    public static void preload(URL baseURL, List names) {
+        final List urls = new ArrayList();
+        for (int ix=0; ix<names.size(); ix++) {
+            try {
+                urls.add(new URL(baseURL, (String)names.get(ix)));
+            }
+            catch (MalformedURLException ex) { }
+        }
+        if (urls.isEmpty())
+            return;
+
+        Thread thread = new Thread("Audio preload") {
+                public void run() {
+                    for (int ix=0; ix<urls.size(); ix++) {
+                        try {
+                            getSample((URL)urls.get(ix));
+                        }
+                        catch (Exception ex) { }
+                    }
+                }
+            };
+        thread.setDaemon(true);
+        thread.setPriority(Thread.MIN_PRIORITY);
+        thread.start();
+    }
+
     // Import this constant for our convenience
     public static final int LOOP_CONTINUOUSLY = Clip.LOOP_CONTINUOUSLY;
 
@@ -95,8 +177,13 @@ public class Audio
         setAlt(alt);
 
         /* Make sure it's readable. If it's not, this will throw an
-         * exception. */
-        AudioFileFormat format = AudioSystem.getAudioFileFormat(mURL);
+         * exception. (If it's been decoded already, it's readable.) */
+        boolean cached;
+        synchronized (sSamples) {
+            cached = sSamples.containsKey(mURL.toExternalForm());
+        }
+        if (!cached)
+            AudioSystem.getAudioFileFormat(mURL);
     }
 
     /**
@@ -148,10 +235,10 @@ public class Audio
      */
     public Instance play()
         throws UnsupportedAudioFileException, IOException, LineUnavailableException  {
-        //### it might be nice to cache a Clip (not an Instance) for future
-        //### reuse.
+        long start = System.currentTimeMillis();
         Instance instance = new Instance();
         instance.start();
+        PLAY_TIME.recordSince(start);
         return instance;
     }
 
@@ -217,6 +304,173 @@ public class Audio
         return res;
     }
 
+    /**
+     * Get the decoded form of a sound, from the cache if possible.
+     */
+    protected static Sample getSample(URL url)
+        throws UnsupportedAudioFileException, IOException {
+        String key = url.toExternalForm();
+        synchronized (sSamples) {
+            Sample sample = (Sample)sSamples.get(key);
+            if (sample != null) {
+                SAMPLE_HITS.increment();
+                return sample;
+            }
+        }
+
+        SAMPLE_MISSES.increment();
+        Sample sample = decode(url);
+
+        synchronized (sSamples) {
+            if (sample.length <= sCacheLimit) {
+                Sample old = (Sample)sSamples.put(key, sample);
+                if (old != null) {
+                    sCacheBytes -= old.length;
+                    CACHE_BYTES.add(-old.length);
+                }
+                sCacheBytes += sample.length;
+                CACHE_BYTES.add(sample.length);
+                trimCache();
+            }
+        }
+        return sample;
+    }
+
+    /**
+     * Discard the least recently played Samples until the cache fits its
+     * limit. Call this while synchronized on sSamples.
+     */
+    protected static void trimCache() {
+        Iterator iter = sSamples.values().iterator();
+        while (sCacheBytes > sCacheLimit && iter.hasNext()) {
+            Sample sample = (Sample)iter.next();
+            iter.remove();
+            sCacheBytes -= sample.length;
+            CACHE_BYTES.add(-sample.length);
+        }
+    }
+
+    /**
+     * Read a sound all the way through, decoding it to PCM if necessary.
+     */
+    protected static Sample decode(URL url)
+        throws UnsupportedAudioFileException, IOException {
+        AudioInputStream stream = AudioSystem.getAudioInputStream(url);
+        AudioInputStream origStream = null;
+
+        try {
+            AudioFormat finalformat = decodingFormat(stream.getFormat());
+            if (finalformat != null) {
+                origStream = stream;
+                stream = AudioSystem.getAudioInputStream(finalformat,
+                    origStream);
+            }
+
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            byte[] buf = new byte[8192];
+            int len;
+            while ((len = stream.read(buf)) >= 0)
+                out.write(buf, 0, len);
+
+            Sample sample = new Sample();
+            sample.format = stream.getFormat();
+            sample.data = out.toByteArray();
+            sample.length = sample.data.length;
+            // A Clip only takes whole frames.
+            int framesize = sample.format.getFrameSize();
+            if (framesize > 0)
+                sample.length -= sample.length % framesize;
+            return sample;
+        }
+        finally {
+            stream.close();
+            if (origStream != null)
+                origStream.close();
+        }
+    }
+
+    /**
+     * Get an open Clip holding the given Sample: an idle one if there is one,
+     * or else a new one from the mixer.
+     */
+    protected static Clip acquireClip(Sample sample)
+        throws LineUnavailableException {
+        synchronized (sIdleClips) {
+            for (Iterator iter = sIdleClips.iterator(); iter.hasNext(); ) {
+                IdleClip idle = (IdleClip)iter.next();
+                if (idle.sample == sample) {
+                    iter.remove();
+                    CLIP_REUSES.increment();
+                    return idle.clip;
+                }
+            }
+        }
+
+        Line.Info lineinfo = new DataLine.Info(Clip.class, sample.format);
+        Clip clip;
+        try {
+            clip = (Clip)sMixer.getLine(lineinfo);
+        }
+        catch (LineUnavailableException ex) {
+            // The idle Clips may be holding the lines we need.
+            closeIdleClips();
+            clip = (Clip)sMixer.getLine(lineinfo);
+        }
+        clip.open(sample.format, sample.data, 0, sample.length);
+        return clip;
+    }
+
+    /**
+     * Keep a Clip which has finished playing, closing the oldest idle Clip
+     * if there are too many.
+     */
+    protected static void releaseClip(Sample sample, Clip clip) {
+        IdleClip evicted = null;
+        synchronized (sIdleClips) {
+            sIdleClips.addLast(new IdleClip(sample, clip));
+            if (sIdleClips.size() > MAX_IDLE_CLIPS)
+                evicted = (IdleClip)sIdleClips.removeFirst();
+        }
+        if (evicted != null)
+            evicted.clip.close();
+    }
+
+    /**
+     * Close every idle Clip.
+     */
+    public static void closeIdleClips() {
+        List ls;
+        synchronized (sIdleClips) {
+            ls = new ArrayList(sIdleClips);
+            sIdleClips.clear();
+        }
+        for (int ix=0; ix<ls.size(); ix++) {
+            IdleClip idle = (IdleClip)ls.get(ix);
+            idle.clip.close();
+        }
+    }
+
+    /**
+     * A decoded sound: PCM data ready to be loaded into a Clip.
+     */
+    protected static class Sample {
+        AudioFormat format;
+        byte[] data;
+        int length;
+    }
+
+    /**
+     * An open Clip which is not playing, and the Sample it holds.
+     */
+    protected static class IdleClip {
+        Sample sample;
+        Clip clip;
+        IdleClip(Sample sample, Clip clip) {
+            this.sample = sample;
+            this.clip = clip;
+        }
+    }
+
     /**
      * An audio instance object. One of these is created every time a sound
      * begins playing.
@@ -227,8 +481,6 @@ public class Audio
         protected int mLoop;
 
         protected Clip mClip;
-        protected AudioInputStream mStream;
-        protected AudioInputStream mOrigStream;
 
         protected Instance() {
             // Make local copies of these values, since the Audio fields can
@@ -272,61 +524,39 @@ public class Audio
                 mMessageHandler.print("[sound: " + val + "]");
             }
 
-            mStream = AudioSystem.getAudioInputStream(mURL);
-            mOrigStream = null;
-
-            AudioFormat origformat = mStream.getFormat();
-            AudioFormat finalformat = decodingFormat(origformat);
-            if (finalformat == null) {
-                finalformat = origformat;
+            final Sample sample = getSample(mURL);
+            final Clip clip = acquireClip(sample);
+            synchronized (this) {
+                mClip = clip;
             }
-            else {
-                mOrigStream = mStream;
-                mStream = null;
-                mStream = AudioSystem.getAudioInputStream(finalformat,
-                    mOrigStream);
-            }
-
-            Line.Info lineinfo = new DataLine.Info(Clip.class, finalformat);
-            mClip = (Clip)sMixer.getLine(lineinfo);
 
-            /* As soon as the Instance finishes, or is stopped, it is closed
-             * and discarded. */
-            mClip.addLineListener(new LineListener() {
+            /* As soon as the Instance finishes, or is stopped, its Clip is
+             * given up, to be reused or closed. */
+            clip.addLineListener(new LineListener() {
                     public void update(LineEvent ev) {
                         // Called outside Swing thread!
 
                         if (ev.getType() == LineEvent.Type.STOP) {
+                            clip.removeLineListener(this);
                             // Remove from the table of live Clips.
                             synchronized (sLiveClips) {
                                 Set set = (Set)sLiveClips.get(mOwner);
                                 if (set != null)
-                                    set.remove(mClip);
+                                    set.remove(clip);
                             }
-                            // Always close when the Clip stops.
-                            mClip.close();
-                            mClip = null;
-                            try {
-                                if (mStream != null) {
-                                    mStream.close();
-                                    mStream = null;
-                                }
-                                if (mOrigStream != null) {
-                                    mOrigStream.close();
-                                    mOrigStream = null;
-                                }
+                            synchronized (Instance.this) {
+                                mClip = null;
                             }
-                            catch (IOException ex) { }
+                            releaseClip(sample, clip);
                         }
                     }
                 });
 
-            mClip.open(mStream);
-
-            // If sound is off, we'll start it playing, but muted.
-            if (!sPlayAudio) {
-                BooleanControl mute = (BooleanControl)mClip.getControl(BooleanControl.Type.MUTE);
-                mute.setValue(true);
+            // If sound is off, we'll start it playing, but muted. (A reused
+            // Clip may have been muted before, so always set this.)
+            if (clip.isControlSupported(BooleanControl.Type.MUTE)) {
+                BooleanControl mute = (BooleanControl)clip.getControl(BooleanControl.Type.MUTE);
+                mute.setValue(!sPlayAudio);
             }
 
             // Add this to the table of live Clips.
@@ -336,20 +566,20 @@ public class Audio
                     set = new HashSet();
                     sLiveClips.put(mOwner, set);
                 }
-                set.add(mClip);
+                set.add(clip);
             }
 
-            mClip.setFramePosition(0);
+            clip.setFramePosition(0);
             if (mLoop == 1) {
-                mClip.start();
+                clip.start();
             }
             else if (mLoop == LOOP_CONTINUOUSLY) {
-                mClip.setLoopPoints(0, -1);
-                mClip.loop(LOOP_CONTINUOUSLY);
+                clip.setLoopPoints(0, -1);
+                clip.loop(LOOP_CONTINUOUSLY);
             }
             else {
-                mClip.setLoopPoints(0, -1);
-                mClip.loop(mLoop-1);
+                clip.setLoopPoints(0, -1);
+                clip.loop(mLoop-1);
             }
         }
 
@@ -358,8 +588,12 @@ public class Audio
          * or because of a previous stop() call) then this safely does nothing.
          */
         public void stop() {
-            if (mClip != null)
-                mClip.stop();
+            Clip clip;
+            synchronized (this) {
+                clip = mClip;
+            }
+            if (clip != null)
+                clip.stop();
         }
     }
 }
@@ -15,6 +15,7 @@ import org.mozilla.javascript.Context;
 import org.mozilla.javascript.ContextAction;
 import org.mozilla.javascript.Function;
 import org.mozilla.javascript.NativeArray;
+import org.mozilla.javascript.NativeObject;
 import org.mozilla.javascript.Scriptable;
 import org.mozilla.javascript.ScriptableObject;
 import org.mozilla.javascript.Undefined;
@@ -72,6 +73,8 @@ public abstract class GameUI implements RPCHandler {
         this.messageHandler = messageHandler;
 
         this.metadata = loadMetadata();
+        Audio.preload(baseURL,
+            metadata.getAll(Metadata.VOLITY_PRELOAD_AUDIO));
 
         this.dispatcher = new RPCDispatcherDebug(messageHandler);
         dispatcher.setHandler("game", this);
@@ -79,6 +82,7 @@ public abstract class GameUI implements RPCHandler {
         dispatcher.setHandler("volity", dispatcherVolity);
         filter = new GamePacketFilter(this);
         responder = new RPCResponder(connection, filter, dispatcher);
+        responder.setName("game");
         responder.start();
     }
 
@@ -92,8 +96,10 @@ public abstract class GameUI implements RPCHandler {
     RPCDispatcher dispatcher;
     VolityHandler dispatcherVolity;
     GamePacketFilter filter;
-    Scriptable scope, game, volity, info;
+    Scriptable scope, volity, info;
+    GameObject game;
     GameTable table;
+    StatusListener refereeListener;
     Map seatObjects = new HashMap();
     
     public interface ErrorHandler {
@@ -137,6 +143,9 @@ public abstract class GameUI implements RPCHandler {
     public void stop() {
         Audio.stopGroup(this);
         responder.stop();
+        if (table != null && refereeListener != null)
+            table.removeStatusListener(refereeListener);
+        refereeListener = null;
 
         // Expunge our references to everything, so that garbage collection
         // works.
@@ -178,7 +187,10 @@ public abstract class GameUI implements RPCHandler {
     public void initGameObjects(Context context, ScriptableObject scope) {
         try {
             this.scope = scope;
-            scope.put("game", scope, game = context.newObject(scope));
+            game = new GameObject();
+            game.setPrototype(ScriptableObject.getObjectPrototype(scope));
+            game.setParentScope(scope);
+            scope.put("game", scope, game);
             scope.put("volity", scope, volity = context.newObject(scope));
             scope.put("info", scope, info = new Info());
             scope.put("metadata", scope, new MetadataObj());
@@ -454,6 +466,54 @@ public abstract class GameUI implements RPCHandler {
         }
     }
 
+    /**
+     * The "game" object, whose functions answer game.* RPCs. It remembers
+     * which of its properties are functions, so that each RPC needn't look
+     * the name up through the interpreter. Any assignment or deletion by the
+     * UI script empties the memory.
+     */
+    protected static class GameObject extends NativeObject {
+        // Name -> Function, or NOT_FUNCTION
+        protected Map functions = new HashMap();
+        protected static final Object NOT_FUNCTION = new Object();
+
+        /**
+         * Get the named function, or null if the property is missing or
+         * not a function.
+         */
+        public Function getFunction(String name) {
+            Object method;
+            synchronized (functions) {
+                method = functions.get(name);
+            }
+            if (method == null) {
+                method = get(name, this);
+                if (!(method instanceof Function))
+                    method = NOT_FUNCTION;
+                synchronized (functions) {
+                    functions.put(name, method);
+                }
+            }
+            return (method == NOT_FUNCTION) ? null : (Function)method;
+        }
+
+        public void put(String name, Scriptable start, Object value) {
+            super.put(name, start, value);
+            forget();
+        }
+
+        public void delete(String name) {
+            super.delete(name);
+            forget();
+        }
+
+        protected void forget() {
+            synchronized (functions) {
+                functions.clear();
+            }
+        }
+    }
+
     public class Info extends ScriptableObject {
         private Callable funcVersionMatch;
 
@@ -839,7 +899,28 @@ public abstract class GameUI implements RPCHandler {
      * @param table the table where the game will be played
      */
     public void setTable(GameTable table) {
+        if (this.table != null && refereeListener != null)
+            this.table.removeStatusListener(refereeListener);
         this.table = table;
+
+        /* Once the referee is known, the filter only accepts its requests,
+         * so the RPCService can route them straight here without asking.
+         * If the referee leaves, stop routing by sender until a new one is
+         * found.
+         */
+        Referee ref = table.getReferee();
+        if (ref != null)
+            responder.setSender(ref.getResponderJID());
+        refereeListener = new DefaultStatusListener() {
+                public void playerIsReferee(Player player) {
+                    responder.setSender(player.getJID());
+                }
+                public void playerLeft(Player player) {
+                    if (player.isReferee())
+                        responder.setSender(null);
+                }
+            };
+        table.addStatusListener(refereeListener);
     }
   
     protected static class GamePacketFilter implements PacketFilter {
@@ -884,9 +965,9 @@ public abstract class GameUI implements RPCHandler {
     // Implements RPCHandler interface.
     public void handleRPC(String methodName, List params, 
         final RPCResponseHandler k) {
-        Object method = game.get(methodName, scope);
+        Function method = game.getFunction(methodName);
 
-        if (!(method instanceof Function)) {
+        if (method == null) {
             k.respondFault(603, "No game."+methodName+" function in UI.");
             return;        
         }
@@ -896,7 +977,7 @@ public abstract class GameUI implements RPCHandler {
          * to the RPC.
          */
 
-        callUIMethod((Function) method, params, new Completion() {
+        callUIMethod(method, params, new Completion() {
                 public void result(Object obj) {
                     if (obj == null || obj instanceof Undefined) {
                         // function returned null/void, but RPC result has to
@@ -20,6 +20,8 @@ public class InvitationManager implements PacketFilter, RPCHandler {
    */
   public InvitationManager(XMPPConnection connection) {
     responder = new RPCResponder(connection, this, this);
+    responder.setNamespace("volity");
+    responder.setName("invitation");
   }
 
   RPCResponder responder;
@@ -22,6 +22,7 @@ import org.apache.batik.swing.gvt.GVTTreeRendererEvent;
 import org.apache.batik.swing.svg.SVGUserAgentGUIAdapter;
 import org.apache.batik.util.RunnableQueue;
 import org.jivesoftware.smack.XMPPConnection;
+import org.jivesoftware.smack.util.Metrics;
 import org.mozilla.javascript.Context;
 import org.mozilla.javascript.ContextAction;
 import org.mozilla.javascript.Function;
@@ -32,6 +33,10 @@ import org.volity.client.translate.TranslateToken;
 public class SVGCanvas extends JSVGCanvas 
     implements InterpreterFactory
 {
+    // Time UI calls spend waiting for the Batik thread, and running there.
+    protected static final Metrics.Timing UI_QUEUE_TIME = Metrics.getTiming("ui.queue");
+    protected static final Metrics.Timing UI_CALL_TIME = Metrics.getTiming("ui.call");
+
     URI ruleset;
     URL uiDocument;
     XMPPConnection connection;
@@ -338,9 +343,12 @@ public class SVGCanvas extends JSVGCanvas
             final Completion callback)
         {
             RunnableQueue rq = getUpdateManager().getUpdateRunnableQueue();
+            final long queued = System.currentTimeMillis();
 
             rq.invokeLater(new Runnable() {
                     public void run() {        
+                        long start = System.currentTimeMillis();
+                        UI_QUEUE_TIME.record(start - queued);
                         if (interpreter == null) {
                             callback.error(new NullPointerException("interpreter is stopped."));
                             return;
@@ -356,6 +364,7 @@ public class SVGCanvas extends JSVGCanvas
                                 wrapex = ex;
                             errorHandler.error(wrapex);
                         }
+                        UI_CALL_TIME.recordSince(start);
                     }
                 });
         }
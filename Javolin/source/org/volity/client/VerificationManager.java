@@ -27,6 +27,10 @@ public class VerificationManager implements PacketFilter, RPCHandler {
         Bookkeeper bookkeeper) {
         mResponder = new RPCResponder(connection, this, this);
         mBookkeeper = bookkeeper;
+        if (mBookkeeper != null)
+            mResponder.setSender(mBookkeeper.getJID());
+        mResponder.setNamespace("volity");
+        mResponder.setName("verification");
     }
 
     /** Start listening for invitations. */
@@ -1,11 +1,13 @@
 package org.volity.client.comm;
 
 import org.jivesoftware.smack.packet.DefaultPacketExtension;
+import org.jivesoftware.smack.packet.XMLAppendable;
 
 /** 
  * The extended info for JEP-0115.
  */
 public class CapPacketExtension extends DefaultPacketExtension
+    implements XMLAppendable
 {
     public static final String NAME = "c";
     public static final String NAMESPACE = "http://jabber.org/protocol/caps";
@@ -116,6 +118,12 @@ public class CapPacketExtension extends DefaultPacketExtension
 
     public String toXML() {
         StringBuffer buf = new StringBuffer();
+        appendXML(buf);
+        return buf.toString();
+    }
+
+    /** Append the XML for this extension to a buffer. */
+    public void appendXML(StringBuffer buf) {
         buf.append("<").append(getElementName());
         buf.append(" xmlns=\"").append(getNamespace()).append("\"");
         buf.append(" node=\"").append(mNode).append("\"");
@@ -131,6 +139,5 @@ public class CapPacketExtension extends DefaultPacketExtension
             buf.append("\"");
         }
         buf.append(" />");
-        return buf.toString();
     }
 }
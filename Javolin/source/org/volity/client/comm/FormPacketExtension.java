@@ -2,6 +2,7 @@ package org.volity.client.comm;
 
 import java.util.Iterator;
 import org.jivesoftware.smack.packet.DefaultPacketExtension;
+import org.jivesoftware.smack.packet.XMLAppendable;
 import org.jivesoftware.smackx.packet.DataForm;
 import org.jivesoftware.smackx.FormField;
 
@@ -10,6 +11,7 @@ import org.jivesoftware.smackx.FormField;
  * DataForm, and that's all it does.
  */
 public class FormPacketExtension extends DefaultPacketExtension
+    implements XMLAppendable
 {
     public static final String NAME = "volity";
     public static final String NAMESPACE = "http://volity.org/protocol/form";
@@ -79,13 +81,18 @@ public class FormPacketExtension extends DefaultPacketExtension
     /** Generate XML for this extension. */
     public String toXML() {
         StringBuffer buf = new StringBuffer();
+        appendXML(buf);
+        return buf.toString();
+    }
+
+    /** Append the XML for this extension to a buffer. */
+    public void appendXML(StringBuffer buf) {
         buf.append("<").append(getElementName());
         buf.append(" xmlns=\"").append(getNamespace()).append("\"");
         buf.append(">");
         buf.append(mForm.toXML());
         buf.append("</").append(getElementName());
         buf.append(">");
-        return buf.toString();
     }
 
 }
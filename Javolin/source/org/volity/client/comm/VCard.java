@@ -25,18 +25,22 @@ public class VCard extends IQ {
 
     public String getChildElementXML() {
         StringBuffer buf = new StringBuffer();
+        appendChildElementXML(buf);
+        return buf.toString();
+    }
+
+    protected void appendChildElementXML(StringBuffer buf) {
         buf.append("<vCard xmlns=\"vcard-temp\">");
         if (mName != null) {
             buf.append("<FN>");
-            buf.append(StringUtils.escapeForXML(mName));
+            StringUtils.escapeForXML(mName, buf);
             buf.append("</FN>");
         }
         if (mEmail != null) {
             buf.append("<EMAIL><INTERNET/><PREF/><USERID>");
-            buf.append(StringUtils.escapeForXML(mEmail));
+            StringUtils.escapeForXML(mEmail, buf);
             buf.append("</USERID></EMAIL>");
         }
         buf.append("</vCard>");
-        return buf.toString();
     }
 }
@@ -51,6 +51,7 @@ public class Metadata
     public static final String VOLITY_REQUIRES_RESOURCE = createKey(NS_VOLITY, "requires-resource");
     public static final String VOLITY_PROVIDES_RESOURCE = createKey(NS_VOLITY, "provides-resource");
     public static final String VOLITY_SEAT_COLOR = createKey(NS_VOLITY, "seat-color");
+    public static final String VOLITY_PRELOAD_AUDIO = createKey(NS_VOLITY, "preload-audio");
 
     public static final URI sBlankURI;
     static {
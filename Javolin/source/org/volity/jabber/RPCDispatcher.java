@@ -11,6 +11,27 @@ public class RPCDispatcher implements RPCHandler {
   Map handlers = new HashMap();
   RPCHandler globalHandler = null;
 
+  /**
+   * Where each full method name seen so far goes: the handler and the
+   * method name to pass it. A name with no handler is remembered too, with
+   * the prefix (if any) and method name its fault hook wants. This saves
+   * splitting the name on every call. It is cleared whenever the handlers
+   * change, and when it gets too big (a caller can make up any number of
+   * method names).
+   */
+  protected Map targets = new HashMap();
+  protected static final int MAX_TARGETS = 256;
+  // Bumped when the handlers change, so that a name resolved meanwhile
+  // isn't remembered.
+  protected int generation = 0;
+
+  protected static class Target {
+    RPCHandler handler;
+    // The prefix, or null for a method name with none
+    String handlerName;
+    String methodName;
+  }
+
   public RPCDispatcher() {
   }
 
@@ -38,6 +59,7 @@ public class RPCDispatcher implements RPCHandler {
    */
   public void setHandler(String name, RPCHandler handler) {
     handlers.put(name, handler);
+    clearTargets();
   }
 
   /**
@@ -53,24 +75,56 @@ public class RPCDispatcher implements RPCHandler {
    */
   public void setGlobalHandler(RPCHandler handler) {
     globalHandler = handler;
+    clearTargets();
   }
 
   // Implements RPCHandler interface.
   public void handleRPC(String methodName, List params, RPCResponseHandler k) {
+    Target target;
+    int gen;
+    synchronized (targets) {
+      target = (Target) targets.get(methodName);
+      gen = generation;
+    }
+    if (target == null) {
+      target = resolve(methodName);
+      synchronized (targets) {
+        if (gen == generation) {
+          if (targets.size() >= MAX_TARGETS)
+            targets.clear();
+          targets.put(methodName, target);
+        }
+      }
+    }
+    if (target.handler != null)
+      target.handler.handleRPC(target.methodName, params, k);
+    else if (target.handlerName == null)
+      noSuchMethodFault(target.methodName, k);
+    else
+      noSuchHandlerFault(target.handlerName, target.methodName, k);
+  }
+
+  /**
+   * Work out where a method name goes.
+   */
+  protected Target resolve(String methodName) {
+    Target target = new Target();
     int i = methodName.indexOf('.');
     if (i < 0) {
-      if (globalHandler == null)
-        noSuchMethodFault(methodName, k);
-      else
-        globalHandler.handleRPC(methodName, params, k);
+      target.handler = globalHandler;
+      target.methodName = methodName;
     } else {
-      String handlerName = methodName.substring(0, i);
-      methodName = methodName.substring(i+1);
-      RPCHandler handler = getHandler(handlerName);
-      if (handler == null)
-        noSuchHandlerFault(handlerName, methodName, k);
-      else
-        handler.handleRPC(methodName, params, k);
+      target.handlerName = methodName.substring(0, i);
+      target.handler = getHandler(target.handlerName);
+      target.methodName = methodName.substring(i+1);
+    }
+    return target;
+  }
+
+  protected void clearTargets() {
+    synchronized (targets) {
+      targets.clear();
+      generation++;
     }
   }
 
@@ -80,6 +134,7 @@ public class RPCDispatcher implements RPCHandler {
   public void clear() {
     setGlobalHandler(null);
     handlers.clear();    
+    clearTargets();
   }
 
   /**
@@ -0,0 +1,178 @@
+package org.volity.jabber;
+
+import java.util.*;
+
+/**
+ * A batch of remote method calls sent as one system.multicall request, so
+ * that several calls cost one round trip instead of one each.
+ *
+ * Add calls with add(), send the batch with
+ * RPCRequester.invokeMulticall(), and then read each call's result with
+ * getResult(). A call that faulted throws its own RPCException from
+ * getResult(); the other calls in the batch are unaffected.
+ *
+ * Not every responder understands system.multicall. If the whole batch
+ * comes back as a fault, fall back to sending the calls one at a time.
+ */
+public class RPCMulticall {
+  public static final String METHOD_NAME = "system.multicall";
+
+  protected List calls = new ArrayList();
+  protected List results = null;
+
+  public RPCMulticall() {
+  }
+
+  /**
+   * Add a call with no parameters to the batch.
+   * @param methodName the name of the remote method
+   * @return the index of the call's result
+   */
+  public int add(String methodName) {
+    return add(methodName, null);
+  }
+
+  /**
+   * Add a call to the batch.
+   * @param methodName the name of the remote method
+   * @param params the list of method parameters (may be null)
+   * @return the index of the call's result
+   * @throws IllegalStateException if the batch has already been sent
+   */
+  public int add(String methodName, List params) {
+    if (results != null)
+      throw new IllegalStateException("Multicall has already been invoked.");
+    Map call = new HashMap();
+    call.put("methodName", methodName);
+    call.put("params", (params == null) ? new ArrayList() : params);
+    calls.add(call);
+    return calls.size() - 1;
+  }
+
+  /**
+   * @return the number of calls in the batch
+   */
+  public int size() {
+    return calls.size();
+  }
+
+  /**
+   * @return the name of the method of the indexed call
+   */
+  public String getMethodName(int index) {
+    return (String) ((Map) calls.get(index)).get("methodName");
+  }
+
+  /**
+   * @return the parameter list of the system.multicall request itself:
+   *         one array of call structs
+   */
+  public List getParams() {
+    return Collections.singletonList(calls);
+  }
+
+  /**
+   * Store the value returned by system.multicall.
+   * @throws RPCException if the value is not one result per call
+   */
+  void setResponse(Object value) throws RPCException {
+    if (!(value instanceof List))
+      throw new RPCException(605, METHOD_NAME + " did not return an array");
+    List list = (List) value;
+    if (list.size() != calls.size())
+      throw new RPCException(604, METHOD_NAME + " returned " + list.size()
+                             + " results for " + calls.size() + " calls");
+    results = list;
+  }
+
+  /**
+   * @return the result of the indexed call
+   * @throws RPCException if the call resulted in a fault
+   * @throws IllegalStateException if the batch has not been sent
+   */
+  public Object getResult(int index) throws RPCException {
+    if (results == null)
+      throw new IllegalStateException("Multicall has not been invoked.");
+    Object result = results.get(index);
+    if (result instanceof List && ((List) result).size() == 1)
+      return ((List) result).get(0);
+    if (result instanceof Map) {
+      Map fault = (Map) result;
+      Object code = fault.get("faultCode");
+      Object string = fault.get("faultString");
+      if (code instanceof Number && string instanceof String)
+        throw new RPCException(((Number) code).intValue(), (String) string);
+    }
+    throw new RPCException(605, "Malformed result for "
+                           + getMethodName(index) + " in " + METHOD_NAME);
+  }
+
+  /**
+   * Respond to a system.multicall request by passing each call in it to a
+   * handler. The response is sent once every call has been answered;
+   * handlers may answer in any order, from any thread.
+   * @param params the parameters of the system.multicall request
+   * @param handler the handler for the individual calls
+   * @param k the response handler for the system.multicall request
+   */
+  public static void dispatch(List params, RPCHandler handler,
+                              final RPCResponseHandler k)
+  {
+    if (params == null || params.size() != 1) {
+      k.respondFault(604, "Wrong number of arguments: " + METHOD_NAME);
+      return;
+    }
+    if (!(params.get(0) instanceof List)) {
+      k.respondFault(605, "Argument to " + METHOD_NAME + " is not an array");
+      return;
+    }
+    List calls = (List) params.get(0);
+    if (calls.isEmpty()) {
+      k.respondValue(new ArrayList());
+      return;
+    }
+
+    final Object[] results = new Object[calls.size()];
+    final int[] remaining = { calls.size() };
+
+    for (int ix = 0; ix < calls.size(); ix++) {
+      final int slot = ix;
+      RPCResponseHandler slotk = new RPCResponseHandler() {
+          public void respondValue(Object value) {
+            fill(Collections.singletonList(value));
+          }
+          public void respondFault(int faultCode, String faultString) {
+            Map fault = new HashMap();
+            fault.put("faultCode", new Integer(faultCode));
+            fault.put("faultString", faultString);
+            fill(fault);
+          }
+          private void fill(Object result) {
+            boolean done;
+            synchronized (results) {
+              assert (results[slot] == null);
+              results[slot] = result;
+              done = (--remaining[0] == 0);
+            }
+            if (done)
+              k.respondValue(Arrays.asList(results));
+          }
+        };
+
+      Object call = calls.get(ix);
+      Object methodName = null;
+      Object callParams = null;
+      if (call instanceof Map) {
+        methodName = ((Map) call).get("methodName");
+        callParams = ((Map) call).get("params");
+      }
+      if (!(methodName instanceof String) || !(callParams instanceof List))
+        slotk.respondFault(605, "Call " + ix + " in " + METHOD_NAME
+                           + " is not a methodName/params struct");
+      else if (methodName.equals(METHOD_NAME))
+        slotk.respondFault(603, METHOD_NAME + " may not be nested");
+      else
+        handler.handleRPC((String) methodName, (List) callParams, slotk);
+    }
+  }
+}
@@ -7,9 +7,12 @@ import org.jivesoftware.smack.filter.PacketFilter;
 import org.jivesoftware.smack.packet.Packet;
 import org.jivesoftware.smack.packet.XMPPError;
 import org.jivesoftware.smack.provider.ProviderManager;
+import org.jivesoftware.smack.util.Metrics;
 import org.volity.jabber.packet.*;
 import org.volity.jabber.provider.RPCProvider;
+import java.util.Hashtable;
 import java.util.List;
+import java.util.Map;
 
 /**
  * A class for making Jabber-RPC requests.
@@ -20,6 +23,25 @@ public class RPCRequester {
 
   public static int DEFAULT_RPC_TIMEOUT = 30;
 
+  protected static final Metrics.Counter TIMEOUTS =
+    Metrics.getCounter("rpc.call.timeouts");
+
+  // Method name -> rpc.call.METHOD timing, so that a call doesn't have to
+  // build the metric name and look it up.
+  protected static final Map callTimings = new Hashtable();
+
+  /**
+   * The round-trip timing for calls to a method.
+   */
+  protected static Metrics.Timing getCallTiming(String methodName) {
+    Metrics.Timing timing = (Metrics.Timing) callTimings.get(methodName);
+    if (timing == null) {
+      timing = Metrics.getTiming("rpc.call." + methodName);
+      callTimings.put(methodName, timing);
+    }
+    return timing;
+  }
+
   static {
     // Register the provider so that response packets get parsed correctly.
     ProviderManager.addIQProvider(RPC.elementName,
@@ -120,12 +142,17 @@ public class RPCRequester {
             return false;
           }
         });
+    long start = System.currentTimeMillis();
     connection.sendPacket(request);
 
     Packet response = collector.nextResult(1000*timeout);
     collector.cancel();
-    if (response == null)
+    if (response == null) {
+      TIMEOUTS.increment();
       throw new XMPPException("Timed out waiting for response.");
+    }
+    // Round-trip time per method, faults and errors included.
+    getCallTiming(methodName).recordSince(start);
     XMPPError error = response.getError();
     if (error != null)
       throw new XMPPException(error);
@@ -135,4 +162,39 @@ public class RPCRequester {
       throw new AssertionError("RPC response was of a strange class");
     return ((RPCResult) response).getValue();
   }
+
+  /**
+   * Send a batch of calls as one system.multicall request and wait (up to
+   * 30 seconds) for the response. Afterwards, read each call's result from
+   * the batch.
+   * @param calls the batch of calls
+   * @throws XMPPException if there was an XMPP error, or the batch timed out
+   * @throws RPCException if the system.multicall request itself resulted in
+   *                      a fault (for example, the responder doesn't
+   *                      support it)
+   */
+  public void invokeMulticall(RPCMulticall calls)
+    throws XMPPException, RPCException
+  {
+    invokeMulticallTimeout(calls, DEFAULT_RPC_TIMEOUT);
+  }
+
+  /**
+   * Send a batch of calls as one system.multicall request and wait (up to a
+   * limit) for the response. Afterwards, read each call's result from the
+   * batch.
+   * @param calls the batch of calls
+   * @param timeout the time (in seconds) to wait for a response
+   * @throws XMPPException if there was an XMPP error, or the batch timed out
+   * @throws RPCException if the system.multicall request itself resulted in
+   *                      a fault (for example, the responder doesn't
+   *                      support it)
+   */
+  public void invokeMulticallTimeout(RPCMulticall calls, int timeout)
+    throws XMPPException, RPCException
+  {
+    Object value = invokeTimeout(RPCMulticall.METHOD_NAME,
+                                 calls.getParams(), timeout);
+    calls.setResponse(value);
+  }
 }
@@ -2,11 +2,18 @@ package org.volity.jabber;
 
 import org.jivesoftware.smack.XMPPConnection;
 import org.jivesoftware.smack.filter.PacketFilter;
+import org.jivesoftware.smack.util.Metrics;
 
 /**
  * A class for responding to Jabber-RPC requests. This must be added to an
  * RPCService, which is attached to an XMPPConnection.
  *
+ * A responder may also declare the one sender it answers, or the one method
+ * namespace (the part of the method name before the first period), or both.
+ * The service then only offers it requests which match, without running its
+ * filter on every request to every responder. The filter is still checked
+ * for the requests which do match.
+ *
  * @author Doug Orleans (dougo@place.org)
  */
 public class RPCResponder {
@@ -52,6 +59,61 @@ public class RPCResponder {
     protected RPCHandler handler;
     public RPCHandler getHandler() { return handler; }
 
+    // Order of starting, set by the service
+    int seq;
+
+    protected String sender = null;
+    public String getSender() { return sender; }
+
+    /**
+     * Declare that this responder only handles requests from the given JID.
+     * Pass null (the default) for any sender. This may be changed while the
+     * responder is running.
+     */
+    public void setSender(String jid) {
+        service.updateResponder(this, jid, namespace);
+    }
+
+    protected String namespace = null;
+    public String getNamespace() { return namespace; }
+
+    /**
+     * Declare that this responder only handles requests whose method names
+     * start with the given namespace and a period (for example, "volity").
+     * Pass null (the default) for any method. Requests in the "system"
+     * namespace, such as system.multicall, are offered to it either way.
+     */
+    public void setNamespace(String namespace) {
+        service.updateResponder(this, sender, namespace);
+    }
+
+    protected String name = null;
+    protected Metrics.Timing timing = null;
+
+    /**
+     * Name this responder in the metrics. Its requests are counted and timed
+     * as rpc.responder.NAME; the default name is the class of the handler.
+     */
+    public synchronized void setName(String name) {
+        this.name = name;
+        this.timing = null;
+    }
+
+    /**
+     * The count and response times of the requests this responder has
+     * handled, shared with any other responder of the same name.
+     */
+    public synchronized Metrics.Timing getTiming() {
+        if (timing == null) {
+            if (name == null) {
+                name = handler.getClass().getName();
+                name = name.substring(name.lastIndexOf('.') + 1);
+            }
+            timing = Metrics.getTiming("rpc.responder." + name);
+        }
+        return timing;
+    }
+
     /**
      * Start listening for requests.
      */
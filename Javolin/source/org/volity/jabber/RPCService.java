@@ -6,6 +6,7 @@ import org.jivesoftware.smack.filter.PacketFilter;
 import org.jivesoftware.smack.filter.PacketTypeFilter;
 import org.jivesoftware.smack.packet.Packet;
 import org.jivesoftware.smack.provider.ProviderManager;
+import org.jivesoftware.smack.util.Metrics;
 import org.volity.jabber.packet.*;
 import org.volity.jabber.provider.RPCProvider;
 import java.util.*;
@@ -22,6 +23,11 @@ public class RPCService implements PacketListener {
     protected static Map services = new HashMap();
     protected static RPCProvider globalProvider;
 
+    // Requests no responder took, or whose handler had no such method. The
+    // method names come from the sender, so they are not timed separately.
+    protected static final Metrics.Timing REJECTED =
+        Metrics.getTiming("rpc.handle.rejected");
+
     /**
      * Find the RPCService attached to a given XMPPConnection. There can be at
      * most one. (If there is none, returns null.)
@@ -33,7 +39,21 @@ public class RPCService implements PacketListener {
     }
 
     protected XMPPConnection mConnection;
+    // All running responders, in the order they started. This is also the
+    // lock for the indexes below.
     protected List mResponders = new ArrayList();
+    protected int mNextSeq = 0;
+
+    // Running responders by the sender and namespace they declared. Each
+    // list is in the order the responders started.
+    protected List mUnrouted = new ArrayList();
+    protected Map mBySender = new HashMap();
+    protected Map mByNamespace = new HashMap();
+    // Sender -> (namespace -> list)
+    protected Map mBySenderNamespace = new HashMap();
+
+    // Requests in this namespace go to responders of every namespace.
+    protected static final String SYSTEM_NAMESPACE = "system";
 
     public RPCService(XMPPConnection connection) {
 
@@ -67,6 +87,10 @@ public class RPCService implements PacketListener {
     public void stop() {
         synchronized (mResponders) {
             mResponders.clear();
+            mUnrouted.clear();
+            mBySender.clear();
+            mByNamespace.clear();
+            mBySenderNamespace.clear();
         }
 
         mConnection.removePacketListener(this);
@@ -83,7 +107,9 @@ public class RPCService implements PacketListener {
      */
     void addResponder(RPCResponder responder) {
         synchronized (mResponders) {
+            responder.seq = mNextSeq++;
             mResponders.add(responder);
+            routeList(responder, true).add(responder);
         }
     }
 
@@ -92,8 +118,176 @@ public class RPCService implements PacketListener {
      */
     void removeResponder(RPCResponder responder) {
         synchronized (mResponders) {
-            mResponders.remove(responder);
+            if (mResponders.remove(responder))
+                unroute(responder);
+        }
+    }
+
+    /**
+     * Change the sender and namespace a RPCResponder declares, moving it
+     * between indexes if it is running. It keeps its place in the order.
+     */
+    void updateResponder(RPCResponder responder, String sender,
+        String namespace) {
+        synchronized (mResponders) {
+            boolean running = mResponders.contains(responder);
+            if (running)
+                unroute(responder);
+            responder.sender = sender;
+            responder.namespace = namespace;
+            if (running) {
+                List list = routeList(responder, true);
+                int pos = list.size();
+                while (pos > 0
+                    && ((RPCResponder)list.get(pos-1)).seq > responder.seq)
+                    pos--;
+                list.add(pos, responder);
+            }
+        }
+    }
+
+    /**
+     * Find the index list for a responder's sender and namespace, creating
+     * it if asked. Call this with mResponders locked.
+     */
+    protected List routeList(RPCResponder responder, boolean create) {
+        String sender = responder.sender;
+        String namespace = responder.namespace;
+        if (sender == null && namespace == null)
+            return mUnrouted;
+
+        Map map;
+        Object key;
+        if (sender == null) {
+            map = mByNamespace;
+            key = namespace;
+        }
+        else if (namespace == null) {
+            map = mBySender;
+            key = sender;
+        }
+        else {
+            map = (Map)mBySenderNamespace.get(sender);
+            if (map == null) {
+                if (!create)
+                    return null;
+                map = new HashMap();
+                mBySenderNamespace.put(sender, map);
+            }
+            key = namespace;
         }
+
+        List list = (List)map.get(key);
+        if (list == null && create) {
+            list = new ArrayList();
+            map.put(key, list);
+        }
+        return list;
+    }
+
+    /**
+     * Take a responder out of its index list, dropping the list if it is
+     * now empty. Call this with mResponders locked.
+     */
+    protected void unroute(RPCResponder responder) {
+        List list = routeList(responder, false);
+        if (list == null)
+            return;
+        list.remove(responder);
+        if (!list.isEmpty() || list == mUnrouted)
+            return;
+        if (responder.sender == null) {
+            mByNamespace.remove(responder.namespace);
+        }
+        else if (responder.namespace == null) {
+            mBySender.remove(responder.sender);
+        }
+        else {
+            Map map = (Map)mBySenderNamespace.get(responder.sender);
+            map.remove(responder.namespace);
+            if (map.isEmpty())
+                mBySenderNamespace.remove(responder.sender);
+        }
+    }
+
+    /**
+     * Find the responder for a request: the first, in the order they
+     * started, whose declared sender and namespace match and whose filter
+     * accepts the packet. Only the index lists which can match are looked
+     * at.
+     *
+     * Requests in the "system" namespace (such as system.multicall) are
+     * about the RPC layer, not any one namespace, so they are offered to
+     * every responder whose sender matches, whatever namespace it declared.
+     */
+    protected RPCResponder findResponder(RPCRequest req) {
+        String sender = req.getFrom();
+        String methodName = req.getMethodName();
+        int dot = (methodName == null) ? -1 : methodName.indexOf('.');
+        String namespace = (dot < 0) ? null : methodName.substring(0, dot);
+
+        synchronized (mResponders) {
+            List lists = new ArrayList(4);
+            lists.add(mUnrouted);
+            Map senderMap = null;
+            if (sender != null) {
+                List bySender = (List)mBySender.get(sender);
+                if (bySender != null)
+                    lists.add(bySender);
+                senderMap = (Map)mBySenderNamespace.get(sender);
+            }
+            if (SYSTEM_NAMESPACE.equals(namespace)) {
+                lists.addAll(mByNamespace.values());
+                if (senderMap != null)
+                    lists.addAll(senderMap.values());
+            }
+            else if (namespace != null) {
+                List byNamespace = (List)mByNamespace.get(namespace);
+                if (byNamespace != null)
+                    lists.add(byNamespace);
+                if (senderMap != null) {
+                    List byBoth = (List)senderMap.get(namespace);
+                    if (byBoth != null)
+                        lists.add(byBoth);
+                }
+            }
+
+            if (lists.size() == 1)
+                return firstAccepting(mUnrouted, req);
+
+            // Merge the lists by starting order, as one scan would see them.
+            int[] pos = new int[lists.size()];
+            while (true) {
+                RPCResponder next = null;
+                int nextList = -1;
+                for (int ix=0; ix<pos.length; ix++) {
+                    List list = (List)lists.get(ix);
+                    if (pos[ix] >= list.size())
+                        continue;
+                    RPCResponder resp = (RPCResponder)list.get(pos[ix]);
+                    if (next == null || resp.seq < next.seq) {
+                        next = resp;
+                        nextList = ix;
+                    }
+                }
+                if (next == null)
+                    return null;
+                pos[nextList]++;
+                PacketFilter filter = next.getFilter();
+                if (filter == null || filter.accept(req))
+                    return next;
+            }
+        }
+    }
+
+    protected static RPCResponder firstAccepting(List list, Packet packet) {
+        for (int ix=0; ix<list.size(); ix++) {
+            RPCResponder resp = (RPCResponder)list.get(ix);
+            PacketFilter filter = resp.getFilter();
+            if (filter == null || filter.accept(packet))
+                return resp;
+        }
+        return null;
     }
 
     /**
@@ -108,52 +302,78 @@ public class RPCService implements PacketListener {
 
     // Implements PacketListener interface.
     public void processPacket(Packet packet) {
-        final RPCRequest req = (RPCRequest) packet;
-
-        RPCResponseHandler callback = new RPCResponseHandler() {
-                private boolean in_progress = true;
-                public void respondValue(Object value) {
-                    respond(new RPCResult(value));
-                }
-                public void respondFault(int faultCode, String faultString) {
-                    respond(new RPCFault(faultCode, faultString));
-                }
-                private void respond(RPCResponse resp) {
-                    assert (in_progress);
-                    in_progress = false;
-                    resp.setTo(req.getFrom());
-                    String id = req.getPacketID();
-                    if (id != null)
-                        resp.setPacketID(id);
-                    if (mConnection != null)
-                        mConnection.sendPacket(resp);
-                }
-            };
+        RPCRequest req = (RPCRequest) packet;
 
         /* See which responder wants this packet. Note that, unlike Smack's
          * packet-response system, we run our filter in the listening
          * thread.
          */
-
-        RPCResponder responder = null;
-
-        synchronized (mResponders) {
-            for (int ix=0; ix<mResponders.size(); ix++) {
-                RPCResponder resp = (RPCResponder)mResponders.get(ix);
-                PacketFilter filter = resp.getFilter();
-                if (filter == null || filter.accept(packet)) {
-                    responder = resp;
-                    break;
-                }
-            }
-        }
+        RPCResponder responder = findResponder(req);
+        RPCResponseHandler callback = new Reply(req, responder);
 
         if (responder != null) {
+            if (RPCMulticall.METHOD_NAME.equals(req.getMethodName())) {
+                // Each call in the batch goes to the same handler, as if it
+                // had arrived on its own.
+                RPCMulticall.dispatch(req.getParams(), responder.getHandler(), callback);
+                return;
+            }
             responder.getHandler().handleRPC(req.getMethodName(), req.getParams(), callback);
             return;
         }
 
         rejectPacket(packet, callback);
     }
-    
+
+    /**
+     * Sends the response to one request, and records how long it took.
+     */
+    protected class Reply implements RPCResponseHandler {
+        protected RPCRequest req;
+        protected RPCResponder responder;
+        protected long start = System.currentTimeMillis();
+        protected boolean in_progress = true;
+
+        protected Reply(RPCRequest req, RPCResponder responder) {
+            this.req = req;
+            this.responder = responder;
+        }
+
+        public void respondValue(Object value) {
+            respond(new RPCResult(value));
+        }
+
+        public void respondFault(int faultCode, String faultString) {
+            respond(new RPCFault(faultCode, faultString));
+        }
+
+        protected void respond(RPCResponse resp) {
+            assert (in_progress);
+            in_progress = false;
+            resp.setTo(req.getFrom());
+            String id = req.getPacketID();
+            if (id != null)
+                resp.setPacketID(id);
+            if (mConnection != null)
+                mConnection.sendPacket(resp);
+            // Handlers may respond later, from another thread; this is the
+            // time until they did.
+            long elapsed = System.currentTimeMillis() - start;
+            if (responder != null && !isRejection(resp))
+                responder.getTiming().record(elapsed);
+            else
+                REJECTED.record(elapsed);
+        }
+    }
+
+    /**
+     * Is this response a refusal to handle the request at all -- fault 609
+     * (no responder) or 404 (no such handler or method)?
+     */
+    protected static boolean isRejection(RPCResponse resp) {
+        if (!(resp instanceof RPCFault))
+            return false;
+        int code = ((RPCFault)resp).getCode();
+        return (code == 609 || code == 404);
+    }
 }
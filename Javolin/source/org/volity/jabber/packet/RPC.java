@@ -6,70 +6,106 @@ import java.text.SimpleDateFormat;
 import java.util.*;
 
 /** A remote procedure call packet conforming to JEP-0009 (Jabber-RPC). */
-//### This kind of string-appending really should be converted to a
-//### StringBuffer.
 public abstract class RPC extends IQ {
   public static final String elementName = "query", namespace = "jabber:iq:rpc";
 
   // Inherited from IQ.
   public String getChildElementXML() {
-    return
-      "<" + elementName + " xmlns='" + namespace + "'>" +
-      getPayloadXML() +
-      "</" + elementName + ">";
+    StringBuffer buf = new StringBuffer();
+    appendChildElementXML(buf);
+    return buf.toString();
+  }
+
+  // Inherited from IQ.
+  protected void appendChildElementXML(StringBuffer buf) {
+    buf.append("<").append(elementName)
+      .append(" xmlns='").append(namespace).append("'>");
+    appendPayloadXML(buf);
+    buf.append("</").append(elementName).append(">");
   }
 
   /** XML string representing the RPC payload (method call or response). */
   public abstract String getPayloadXML();
 
+  /**
+   * Append the RPC payload to a buffer. By default this appends
+   * getPayloadXML(); subclasses override it to append the payload
+   * directly, which is how packets are sent.
+   */
+  protected void appendPayloadXML(StringBuffer buf) {
+    buf.append(getPayloadXML());
+  }
+
   /** Serialize a list of parameters to XML. */
   public static String getParamsXML(List params) {
     if (params == null || params.isEmpty()) return "";
-    String xml = "<params>";
-    for (Iterator it = params.iterator(); it.hasNext();)
-      xml += "<param>" + getValueXML(it.next()) + "</param>";
-    return xml + "</params>";
+    StringBuffer buf = new StringBuffer();
+    appendParamsXML(params, buf);
+    return buf.toString();
+  }
+
+  /** Serialize a list of parameters to XML, appending it to a buffer. */
+  public static void appendParamsXML(List params, StringBuffer buf) {
+    if (params == null || params.isEmpty()) return;
+    buf.append("<params>");
+    for (Iterator it = params.iterator(); it.hasNext();) {
+      buf.append("<param>");
+      appendValueXML(it.next(), buf);
+      buf.append("</param>");
+    }
+    buf.append("</params>");
   }
 
   /** Serialize a Java value to XML. */
   public static String getValueXML(Object v) {
-    String xml = "<value>";
+    StringBuffer buf = new StringBuffer();
+    appendValueXML(v, buf);
+    return buf.toString();
+  }
+
+  /** Serialize a Java value to XML, appending it to a buffer. */
+  public static void appendValueXML(Object v, StringBuffer buf) {
+    buf.append("<value>");
     if (v instanceof Double || v instanceof Float)
-      xml += "<double>" + v + "</double>";
+      buf.append("<double>").append(v).append("</double>");
     else if (v instanceof Number)
-      xml += "<int>" + v + "</int>";
+      buf.append("<int>").append(v).append("</int>");
     else if (v instanceof Boolean)
-      xml += "<boolean>" + (((Boolean) v).booleanValue() ? "1" : "0") +
-        "</boolean>";
-    else if (v instanceof String)
-      xml += "<string>" + StringUtils.escapeForXML((String) v) + "</string>";
-    else if (v instanceof Date)
-      xml += "<dateTime.iso8601>" + 
-        date.format((Date) v) + "</dateTime.iso8601>";
-    else if (v instanceof byte[])
-      xml += "<base64>" + StringUtils.encodeBase64((byte[]) v) + "</base64>";
-    else if (v instanceof Map) {
-      xml += "<struct>";
+      buf.append("<boolean>")
+        .append(((Boolean) v).booleanValue() ? "1" : "0")
+        .append("</boolean>");
+    else if (v instanceof String) {
+      buf.append("<string>");
+      StringUtils.escapeForXML((String) v, buf);
+      buf.append("</string>");
+    } else if (v instanceof Date)
+      buf.append("<dateTime.iso8601>")
+        .append(date.format((Date) v))
+        .append("</dateTime.iso8601>");
+    else if (v instanceof byte[]) {
+      buf.append("<base64>");
+      StringUtils.encodeBase64((byte[]) v, buf);
+      buf.append("</base64>");
+    } else if (v instanceof Map) {
+      buf.append("<struct>");
       for (Iterator it = ((Map) v).entrySet().iterator(); it.hasNext();) {
         Map.Entry entry = (Map.Entry) it.next();
-        xml += "<member>";
-        xml += "<name>" + StringUtils.escapeForXML(entry.getKey().toString()) +
-          "</name>";
-        xml += getValueXML(entry.getValue());
-        xml += "</member>";
+        buf.append("<member><name>");
+        StringUtils.escapeForXML(entry.getKey().toString(), buf);
+        buf.append("</name>");
+        appendValueXML(entry.getValue(), buf);
+        buf.append("</member>");
       }
-      xml += "</struct>";
+      buf.append("</struct>");
     } else if (v instanceof Collection) {
-      xml += "<array>";
-      xml += "<data>";
+      buf.append("<array><data>");
       for (Iterator it = ((Collection) v).iterator(); it.hasNext();)
-        xml += getValueXML(it.next());
-      xml += "</data>";
-      xml += "</array>";
+        appendValueXML(it.next(), buf);
+      buf.append("</data></array>");
     } else
       throw new RuntimeException("Don't know how to serialize " 
         + v.getClass() + " to Jabber-RPC.");
-    return xml + "</value>";
+    buf.append("</value>");
   }
 
   /** ISO 8601 date format. */
@@ -20,10 +20,19 @@ public class RPCFault extends RPCResponse {
 
   // Inherited from RPCResponse.
   public String getResponseXML() {
+    StringBuffer buf = new StringBuffer();
+    appendResponseXML(buf);
+    return buf.toString();
+  }
+
+  // Inherited from RPCResponse.
+  protected void appendResponseXML(StringBuffer buf) {
     Map struct = new LinkedHashMap(2);
     struct.put("faultCode", new Integer(code));
     struct.put("faultString", string);
-    return "<fault>" + getValueXML(struct) + "</fault>";
+    buf.append("<fault>");
+    appendValueXML(struct, buf);
+    buf.append("</fault>");
   }
 
   public String toString() {
@@ -0,0 +1,283 @@
+package org.volity.jabber.packet;
+
+import org.jivesoftware.smack.util.StringUtils;
+import java.text.ParsePosition;
+import java.util.*;
+
+/**
+ * A parsed Jabber-RPC payload, held compactly until somebody asks for it.
+ *
+ * RPCProvider parses each incoming payload into one of these on the packet
+ * reader thread. Values are kept in a flat table, in document order: ints
+ * and booleans in an int array, doubles in a double array, and strings in
+ * an object array. Dates and base64 are kept as text and only decoded when
+ * they are read. An array or struct entry is followed by its members, and
+ * records the index just past its last one, so whole values can be
+ * skipped.
+ *
+ * getValue() turns an entry into the usual Java form (Integer, Double,
+ * Boolean, String, Date, byte[], Map, List). Arrays come back as read-only
+ * Lists which convert each element the first time it is fetched, so a
+ * handler which only looks at its first argument never pays for the rest.
+ * toObject() converts a whole value at once, into ArrayList and
+ * LinkedHashMap.
+ *
+ * A parser can build into one payload over and over, calling clear()
+ * between uses, and keep a copy() of each result; the copy's tables are
+ * exactly the size they need to be.
+ */
+public class RPCPayload {
+  public static final byte INT = 1, BOOLEAN = 2, DOUBLE = 3, STRING = 4,
+    DATE = 5, BASE64 = 6, ARRAY = 7, STRUCT = 8;
+
+  protected int size = 0;
+  protected byte[] kinds;
+  // The value of an int or boolean; for an array or struct, the index just
+  // past its last member.
+  protected int[] ints;
+  // These are only allocated when a value needs them.
+  protected double[] doubles = null;
+  protected Object[] objects = null;
+  protected String[] names = null;
+  // Whether the current contents use them, if they are allocated.
+  protected boolean hasDoubles = false, hasObjects = false, hasNames = false;
+
+  public RPCPayload() {
+    this(16);
+  }
+
+  protected RPCPayload(int capacity) {
+    kinds = new byte[capacity];
+    ints = new int[capacity];
+  }
+
+  /** Empty the table, keeping its storage. */
+  public void clear() {
+    if (objects != null)
+      Arrays.fill(objects, 0, size, null);
+    if (names != null)
+      Arrays.fill(names, 0, size, null);
+    size = 0;
+    hasDoubles = hasObjects = hasNames = false;
+  }
+
+  /** A copy of the table, with no room to spare. */
+  public RPCPayload copy() {
+    RPCPayload copy = new RPCPayload(size);
+    copy.size = size;
+    System.arraycopy(kinds, 0, copy.kinds, 0, size);
+    System.arraycopy(ints, 0, copy.ints, 0, size);
+    if (hasDoubles) {
+      copy.doubles = new double[size];
+      System.arraycopy(doubles, 0, copy.doubles, 0, size);
+      copy.hasDoubles = true;
+    }
+    if (hasObjects) {
+      copy.objects = new Object[size];
+      System.arraycopy(objects, 0, copy.objects, 0, size);
+      copy.hasObjects = true;
+    }
+    if (hasNames) {
+      copy.names = new String[size];
+      System.arraycopy(names, 0, copy.names, 0, size);
+      copy.hasNames = true;
+    }
+    return copy;
+  }
+
+  /** The number of entries in the table. */
+  public int size() { return size; }
+
+  /** The kind of the indexed entry (INT, BOOLEAN, and so on). */
+  public byte getKind(int index) { return kinds[index]; }
+
+  /** The name of the indexed struct member, or null if it is not one. */
+  public String getName(int index) {
+    return (names == null) ? null : names[index];
+  }
+
+  /** The index of the entry after the indexed value and all its members. */
+  public int next(int index) {
+    byte kind = kinds[index];
+    return (kind == ARRAY || kind == STRUCT) ? ints[index] : index+1;
+  }
+
+  /** The number of members of the indexed array or struct. */
+  public int getLength(int index) {
+    int count = 0;
+    for (int ix = index+1; ix < ints[index]; ix = next(ix))
+      count++;
+    return count;
+  }
+
+  public void addInt(int value) {
+    int index = add(INT); // May grow the tables
+    ints[index] = value;
+  }
+
+  public void addBoolean(boolean value) {
+    int index = add(BOOLEAN);
+    ints[index] = value ? 1 : 0;
+  }
+
+  public void addDouble(double value) {
+    int index = add(DOUBLE);
+    if (doubles == null)
+      doubles = new double[kinds.length];
+    doubles[index] = value;
+    hasDoubles = true;
+  }
+
+  public void addString(String value) { setObject(add(STRING), value); }
+
+  /** Add a dateTime.iso8601 value, as text. */
+  public void addDate(String text) { setObject(add(DATE), text); }
+
+  /** Add a base64 value, as text. */
+  public void addBase64(String text) { setObject(add(BASE64), text); }
+
+  /**
+   * Start an array. Add its members, then call end() with the index this
+   * returns.
+   */
+  public int startArray() { return add(ARRAY); }
+
+  /**
+   * Start a struct. Add its members, naming each with setName(), then call
+   * end() with the index this returns.
+   */
+  public int startStruct() { return add(STRUCT); }
+
+  /** Finish the array or struct started at the given index. */
+  public void end(int index) { ints[index] = size; }
+
+  /** Name the indexed value as a struct member. */
+  public void setName(int index, String name) {
+    if (names == null)
+      names = new String[kinds.length];
+    names[index] = name;
+    hasNames = true;
+  }
+
+  protected int add(byte kind) {
+    if (size == kinds.length) {
+      int capacity = Math.max(size * 2, 16);
+      byte[] newKinds = new byte[capacity];
+      System.arraycopy(kinds, 0, newKinds, 0, size);
+      kinds = newKinds;
+      int[] newInts = new int[capacity];
+      System.arraycopy(ints, 0, newInts, 0, size);
+      ints = newInts;
+      if (doubles != null) {
+        double[] newDoubles = new double[capacity];
+        System.arraycopy(doubles, 0, newDoubles, 0, size);
+        doubles = newDoubles;
+      }
+      if (objects != null) {
+        Object[] newObjects = new Object[capacity];
+        System.arraycopy(objects, 0, newObjects, 0, size);
+        objects = newObjects;
+      }
+      if (names != null) {
+        String[] newNames = new String[capacity];
+        System.arraycopy(names, 0, newNames, 0, size);
+        names = newNames;
+      }
+    }
+    kinds[size] = kind;
+    return size++;
+  }
+
+  protected void setObject(int index, Object value) {
+    if (objects == null)
+      objects = new Object[kinds.length];
+    objects[index] = value;
+    hasObjects = true;
+  }
+
+  /**
+   * Convert the indexed value. Arrays become Lists which convert their
+   * elements as they are fetched.
+   */
+  public Object getValue(int index) {
+    switch (kinds[index]) {
+    case ARRAY:
+      return new LazyList(index);
+    case STRUCT: {
+      Map map = new LinkedHashMap();
+      for (int ix = index+1; ix < ints[index]; ix = next(ix))
+        map.put(names[ix], getValue(ix));
+      return map;
+    }
+    default:
+      return getScalar(index);
+    }
+  }
+
+  /**
+   * Convert the indexed value and everything in it, into ArrayLists and
+   * LinkedHashMaps.
+   */
+  public Object toObject(int index) {
+    switch (kinds[index]) {
+    case ARRAY: {
+      List list = new ArrayList();
+      for (int ix = index+1; ix < ints[index]; ix = next(ix))
+        list.add(toObject(ix));
+      return list;
+    }
+    case STRUCT: {
+      Map map = new LinkedHashMap();
+      for (int ix = index+1; ix < ints[index]; ix = next(ix))
+        map.put(names[ix], toObject(ix));
+      return map;
+    }
+    default:
+      return getScalar(index);
+    }
+  }
+
+  protected Object getScalar(int index) {
+    switch (kinds[index]) {
+    case INT: return new Integer(ints[index]);
+    case BOOLEAN: return (ints[index] == 0) ? Boolean.FALSE : Boolean.TRUE;
+    case DOUBLE: return new Double(doubles[index]);
+    case STRING: return objects[index];
+    case DATE:
+      return RPC.date.parse((String) objects[index], new ParsePosition(0));
+    case BASE64: return StringUtils.decodeBase64((String) objects[index]);
+    default:
+      throw new IllegalArgumentException("Not a value: " + index);
+    }
+  }
+
+  /**
+   * A read-only view of an array, converting each element the first time
+   * it is fetched.
+   */
+  protected class LazyList extends AbstractList {
+    protected int[] indexes;
+    protected Object[] values;
+
+    protected LazyList(int index) {
+      indexes = new int[getLength(index)];
+      int ix = index+1;
+      for (int el = 0; el < indexes.length; el++) {
+        indexes[el] = ix;
+        ix = next(ix);
+      }
+      values = new Object[indexes.length];
+    }
+
+    public int size() { return indexes.length; }
+
+    public synchronized Object get(int el) {
+      Object value = values[el];
+      if (value == null) {
+        value = getValue(indexes[el]);
+        values[el] = value;
+      }
+      return value;
+    }
+  }
+}
@@ -13,6 +13,19 @@ public class RPCRequest extends RPC {
     setType(IQ.Type.SET);
   }
 
+  /**
+   * A request as parsed by RPCProvider. The parameters are converted from
+   * the payload when they are first asked for.
+   * @param payload the parsed payload
+   * @param index the index of the array of parameters in the payload
+   */
+  public RPCRequest(String methodName, RPCPayload payload, int index) {
+    this.methodName = methodName;
+    this.payload = payload;
+    this.payloadIndex = index;
+    setType(IQ.Type.SET);
+  }
+
   protected String methodName;
   public String getMethodName() { return methodName; }
   public String getMethodNameXML() {
@@ -20,14 +33,29 @@ public class RPCRequest extends RPC {
   }
 
   protected List params;
-  public List getParams() { return params; }
-  public String getParamsXML() { return getParamsXML(params); }
+  protected RPCPayload payload;
+  protected int payloadIndex;
+  public synchronized List getParams() {
+    if (payload != null) {
+      params = (List) payload.getValue(payloadIndex);
+      payload = null;
+    }
+    return params;
+  }
+  public String getParamsXML() { return getParamsXML(getParams()); }
 
   // Inherited from RPC.
   public String getPayloadXML() {
-    return ("<methodCall>" +
-	    getMethodNameXML() +
-	    getParamsXML() +
-	    "</methodCall>");
+    StringBuffer buf = new StringBuffer();
+    appendPayloadXML(buf);
+    return buf.toString();
+  }
+
+  // Inherited from RPC.
+  protected void appendPayloadXML(StringBuffer buf) {
+    buf.append("<methodCall><methodName>").append(methodName)
+      .append("</methodName>");
+    appendParamsXML(getParams(), buf);
+    buf.append("</methodCall>");
   }
 }
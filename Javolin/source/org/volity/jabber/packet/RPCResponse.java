@@ -13,11 +13,26 @@ public abstract class RPCResponse extends RPC {
 
   // Inherited from RPC.
   public String getPayloadXML() {
-    return ("<methodResponse>" +
-	    getResponseXML() +
-	    "</methodResponse>");
+    StringBuffer buf = new StringBuffer();
+    appendPayloadXML(buf);
+    return buf.toString();
+  }
+
+  // Inherited from RPC.
+  protected void appendPayloadXML(StringBuffer buf) {
+    buf.append("<methodResponse>");
+    appendResponseXML(buf);
+    buf.append("</methodResponse>");
   }
 
   /** XML string representing the response value (result or fault). */
   public abstract String getResponseXML();
+
+  /**
+   * Append the response value to a buffer. By default this appends
+   * getResponseXML().
+   */
+  protected void appendResponseXML(StringBuffer buf) {
+    buf.append(getResponseXML());
+  }
 }
@@ -11,11 +11,35 @@ public class RPCResult extends RPCResponse {
     this.value = value;
   }
 
+  /**
+   * A result as parsed by RPCProvider. The value is converted from the
+   * payload when it is first asked for.
+   * @param payload the parsed payload
+   * @param index the index of the value in the payload
+   */
+  public RPCResult(RPCPayload payload, int index) {
+    this.payload = payload;
+    this.payloadIndex = index;
+  }
+
   protected Object value;
-  public Object getValue() { return value; }
+  protected RPCPayload payload;
+  protected int payloadIndex;
+  public synchronized Object getValue() {
+    if (payload != null) {
+      value = payload.getValue(payloadIndex);
+      payload = null;
+    }
+    return value;
+  }
 
   // Inherited from RPCResponse.
   public String getResponseXML() {
-    return getParamsXML(Collections.singletonList(value));
+    return getParamsXML(Collections.singletonList(getValue()));
+  }
+
+  // Inherited from RPCResponse.
+  protected void appendResponseXML(StringBuffer buf) {
+    appendParamsXML(Collections.singletonList(getValue()), buf);
   }
 }
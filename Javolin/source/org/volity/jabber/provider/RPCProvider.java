@@ -2,10 +2,8 @@ package org.volity.jabber.provider;
 
 import java.io.IOException;
 import java.util.*;
-import java.text.ParsePosition;
 import org.jivesoftware.smack.packet.IQ;
 import org.jivesoftware.smack.provider.IQProvider;
-import org.jivesoftware.smack.util.StringUtils;
 import org.xmlpull.v1.XmlPullParser;
 import org.xmlpull.v1.XmlPullParserException;
 import org.volity.jabber.packet.*;
@@ -28,6 +26,54 @@ public class RPCProvider implements IQProvider {
     return packet;
   }
 
+  /**
+   * Parsing state for one thread. A thread parses one packet at a time
+   * (even a selector thread which reads for many connections), so the
+   * state needs no locking. A payload begun while the scratch one is in use
+   * gets a fresh RPCPayload instead; see startPayload().
+   */
+  protected static class ParseState {
+    // The payload being built. Each packet's payload is copied out of it
+    // at the end, at its exact size.
+    RPCPayload scratch = new RPCPayload();
+    boolean busy = false;
+    // Start and length of the parser's current text
+    int[] range = new int[2];
+    // Struct member names seen recently, by hash
+    String[] names = new String[NAME_SLOTS];
+  }
+
+  protected static final int NAME_SLOTS = 256;
+
+  protected static ThreadLocal states = new ThreadLocal() {
+      protected Object initialValue() {
+        return new ParseState();
+      }
+    };
+
+  /**
+   * Start building a payload. Call endPayload() when it is done.
+   */
+  protected RPCPayload startPayload(ParseState state) {
+    if (state.busy)
+      return new RPCPayload();
+    state.busy = true;
+    return state.scratch;
+  }
+
+  /**
+   * Finish building a payload started by startPayload().
+   * @return a compact copy of the payload
+   */
+  protected RPCPayload endPayload(ParseState state, RPCPayload payload) {
+    if (payload != state.scratch)
+      return payload;
+    RPCPayload copy = payload.copy();
+    payload.clear();
+    state.busy = false;
+    return copy;
+  }
+
   /** Parse a RPC request. */
   public RPCRequest parseRequest(XmlPullParser parser)
     throws XmlPullParserException, IOException
@@ -37,18 +83,26 @@ public class RPCProvider implements IQProvider {
     String methodName = parser.nextText();
     parser.require(parser.END_TAG, null, "methodName");
 
-    List params;
-    if (parser.nextTag() == parser.START_TAG) {
-      parser.require(parser.START_TAG, null, "params");
-      params = parseParams(parser);
-      parser.require(parser.END_TAG, null, "params");
-      parser.nextTag();
+    ParseState state = (ParseState) states.get();
+    RPCPayload payload = startPayload(state);
+    int index;
+    try {
+      if (parser.nextTag() == parser.START_TAG) {
+        parser.require(parser.START_TAG, null, "params");
+        index = parseParams(parser, payload);
+        parser.require(parser.END_TAG, null, "params");
+        parser.nextTag();
+      }
+      else {
+        index = payload.startArray();
+        payload.end(index);
+      }
     }
-    else {
-      params = new ArrayList();
+    finally {
+      payload = endPayload(state, payload);
     }
 
-    return new RPCRequest(methodName, params);
+    return new RPCRequest(methodName, payload, index);
   }
 
   /** Parse a RPC response. */
@@ -73,10 +127,18 @@ public class RPCProvider implements IQProvider {
   public RPCResult parseResult(XmlPullParser parser)
     throws XmlPullParserException, IOException
   {
-    List params = parseParams(parser);
-    if (params.size() != 1)
+    ParseState state = (ParseState) states.get();
+    RPCPayload payload = startPayload(state);
+    int index;
+    try {
+      index = parseParams(parser, payload);
+    }
+    finally {
+      payload = endPayload(state, payload);
+    }
+    if (payload.getLength(index) != 1)
       throw error(parser, "RPC result did not have exactly one param.");
-    return new RPCResult(params.get(0));
+    return new RPCResult(payload, index+1);
   }
 
   /** Parse a RPC fault response. */
@@ -108,49 +170,101 @@ public class RPCProvider implements IQProvider {
   public List parseParams(XmlPullParser parser)
     throws XmlPullParserException, IOException
   {
-    List params = new ArrayList();
+    RPCPayload payload = new RPCPayload();
+    return (List) payload.toObject(parseParams(parser, payload));
+  }
+
+  /**
+   * Parse a value.  The parser must be positioned at the <value>
+   * start tag, and afterwards will be positioned at the </value> end
+   * tag.
+   */
+  public Object parseValue(XmlPullParser parser)
+    throws XmlPullParserException, IOException
+  {
+    RPCPayload payload = new RPCPayload();
+    return payload.toObject(parseValue(parser, payload));
+  }
+
+  /**
+   * Parse a struct value.  The parser must be positioned at the <struct>
+   * start tag, and afterwards will be positioned at the </struct> end
+   * tag.
+   */
+  public Map parseStruct(XmlPullParser parser)
+    throws XmlPullParserException, IOException
+  {
+    RPCPayload payload = new RPCPayload();
+    return (Map) payload.toObject(parseStruct(parser, payload));
+  }
+
+  /**
+   * Parse an array value.  The parser must be positioned at the <array>
+   * start tag, and afterwards will be positioned at the </array> end
+   * tag.
+   */
+  public List parseArray(XmlPullParser parser)
+    throws XmlPullParserException, IOException
+  {
+    RPCPayload payload = new RPCPayload();
+    return (List) payload.toObject(parseArray(parser, payload));
+  }
+
+  /**
+   * Parse a list of parameters into a payload, as an array.  The parser
+   * must be positioned at the <params> start tag, and afterwards will be
+   * positioned at the </params> end tag.
+   * @return the index of the array in the payload
+   */
+  public int parseParams(XmlPullParser parser, RPCPayload payload)
+    throws XmlPullParserException, IOException
+  {
+    int index = payload.startArray();
     while (parser.nextTag() == parser.START_TAG) {
       parser.require(parser.START_TAG, null, "param");
       parser.nextTag();
       parser.require(parser.START_TAG, null, "value");
-      params.add(parseValue(parser));
+      parseValue(parser, payload);
       parser.require(parser.END_TAG, null, "value");
       parser.nextTag();
       parser.require(parser.END_TAG, null, "param");
     }
-    return params;
+    payload.end(index);
+    return index;
   }
 
   /**
-   * Parse a value.  The parser must be positioned at the <value>
-   * start tag, and afterwards will be positioned at the </value> end
-   * tag.
+   * Parse a value into a payload.  The parser must be positioned at the
+   * <value> start tag, and afterwards will be positioned at the </value>
+   * end tag.
+   * @return the index of the value in the payload
    */
-  public Object parseValue(XmlPullParser parser)
+  public int parseValue(XmlPullParser parser, RPCPayload payload)
     throws XmlPullParserException, IOException
   {
-    Object value;
+    int index = payload.size();
     switch (parser.next()) {
-    case XmlPullParser.TEXT: value = parser.getText(); parser.nextTag(); break;
-    case XmlPullParser.END_TAG: value = ""; break;
+    case XmlPullParser.TEXT:
+      payload.addString(parser.getText()); parser.nextTag(); break;
+    case XmlPullParser.END_TAG: payload.addString(""); break;
     case XmlPullParser.START_TAG:
       String elementName = parser.getName();
       if (elementName.equals("i4") || elementName.equals("int"))
-	value = Integer.valueOf(parser.nextText());
+	payload.addInt(nextInt(parser));
       else if (elementName.equals("boolean"))
-	value = (parser.nextText().equals("0") ? Boolean.FALSE : Boolean.TRUE);
+	payload.addBoolean(nextBoolean(parser));
       else if (elementName.equals("string"))
-	value = parser.nextText();
+	payload.addString(parser.nextText());
       else if (elementName.equals("double"))
-	value = Double.valueOf(parser.nextText());
+	payload.addDouble(Double.parseDouble(parser.nextText()));
       else if (elementName.equals("dateTime.iso8601"))
-	value = RPC.date.parse(parser.nextText(), new ParsePosition(0));
+	payload.addDate(parser.nextText());
       else if (elementName.equals("base64"))
-	value = StringUtils.decodeBase64(parser.nextText());
+	payload.addBase64(parser.nextText());
       else if (elementName.equals("struct"))
-	value = parseStruct(parser);
+	parseStruct(parser, payload);
       else if (elementName.equals("array"))
-	value = parseArray(parser);
+	parseArray(parser, payload);
       else throw error(parser, "Unknown RPC value.");
       parser.require(parser.END_TAG, null, elementName);
       parser.nextTag();
@@ -158,57 +272,151 @@ public class RPCProvider implements IQProvider {
     case XmlPullParser.END_DOCUMENT:
     default: throw error(parser, "Premature document end.");
     }
-    return value;
+    return index;
   }
 
   /**
-   * Parse a struct value.  The parser must be positioned at the <struct>
-   * start tag, and afterwards will be positioned at the </struct> end
-   * tag.
+   * Parse a struct value into a payload.  The parser must be positioned
+   * at the <struct> start tag, and afterwards will be positioned at the
+   * </struct> end tag.
+   * @return the index of the struct in the payload
    */
-  public Map parseStruct(XmlPullParser parser)
+  public int parseStruct(XmlPullParser parser, RPCPayload payload)
     throws XmlPullParserException, IOException
   {
-    Map map = new LinkedHashMap();
+    int index = payload.startStruct();
     while (parser.nextTag() == parser.START_TAG) {
       parser.require(parser.START_TAG, null, "member");
 
       parser.nextTag();
       parser.require(parser.START_TAG, null, "name");
-      Object key = parser.nextText();
+      String name = nextName(parser);
       parser.require(parser.END_TAG, null, "name");
 
       parser.nextTag();
       parser.require(parser.START_TAG, null, "value");
-      Object value = parseValue(parser);
+      payload.setName(parseValue(parser, payload), name);
       parser.require(parser.END_TAG, null, "value");
-      map.put(key, value);
 
       parser.nextTag();
       parser.require(parser.END_TAG, null, "member");
     }
-    return map;
+    payload.end(index);
+    return index;
   }
 
   /**
-   * Parse an array value.  The parser must be positioned at the <array>
-   * start tag, and afterwards will be positioned at the </array> end
-   * tag.
+   * Parse an array value into a payload.  The parser must be positioned
+   * at the <array> start tag, and afterwards will be positioned at the
+   * </array> end tag.
+   * @return the index of the array in the payload
    */
-  public List parseArray(XmlPullParser parser)
+  public int parseArray(XmlPullParser parser, RPCPayload payload)
     throws XmlPullParserException, IOException
   {
-    List list = new ArrayList();
+    int index = payload.startArray();
     parser.nextTag();
     parser.require(parser.START_TAG, null, "data");
     while (parser.nextTag() == parser.START_TAG) {
       parser.require(parser.START_TAG, null, "value");
-      list.add(parseValue(parser));
+      parseValue(parser, payload);
       parser.require(parser.END_TAG, null, "value");
     }
     parser.require(parser.END_TAG, null, "data");
     parser.nextTag();
-    return list;
+    payload.end(index);
+    return index;
+  }
+
+  /**
+   * Read the text of the current element as an int, leaving the parser at
+   * the end tag, like nextText() but without making a string of it.
+   */
+  protected int nextInt(XmlPullParser parser)
+    throws XmlPullParserException, IOException
+  {
+    if (parser.next() != parser.TEXT)
+      return Integer.parseInt(""); // Throws, as nextText() would.
+    int[] range = ((ParseState) states.get()).range;
+    char[] text = parser.getTextCharacters(range);
+    int start = range[0], end = range[0] + range[1];
+    int pos = start;
+    boolean negative = false;
+    if (pos < end && (text[pos] == '-' || text[pos] == '+')) {
+      negative = (text[pos] == '-');
+      pos++;
+    }
+    // Ten digits always fit in a long.
+    boolean ok = (pos < end && end - pos <= 10);
+    long value = 0;
+    for (; ok && pos < end; pos++) {
+      char ch = text[pos];
+      if (ch >= '0' && ch <= '9')
+        value = value * 10 + (ch - '0');
+      else
+        ok = false;
+    }
+    if (negative)
+      value = -value;
+    if (!ok || value < Integer.MIN_VALUE || value > Integer.MAX_VALUE) {
+      // Let the library decide, and complain.
+      value = Integer.parseInt(new String(text, start, end - start));
+    }
+    parser.next();
+    return (int) value;
+  }
+
+  /**
+   * Read the text of the current element as a boolean, leaving the parser
+   * at the end tag. As ever, anything but "0" is true.
+   */
+  protected boolean nextBoolean(XmlPullParser parser)
+    throws XmlPullParserException, IOException
+  {
+    if (parser.next() != parser.TEXT)
+      return true;
+    int[] range = ((ParseState) states.get()).range;
+    char[] text = parser.getTextCharacters(range);
+    boolean value = !(range[1] == 1 && text[range[0]] == '0');
+    parser.next();
+    return value;
+  }
+
+  /**
+   * Read the text of the current element as a struct member name, leaving
+   * the parser at the end tag. Names seen recently on this thread are
+   * shared rather than made again.
+   */
+  protected String nextName(XmlPullParser parser)
+    throws XmlPullParserException, IOException
+  {
+    if (parser.next() != parser.TEXT)
+      return "";
+    ParseState state = (ParseState) states.get();
+    char[] text = parser.getTextCharacters(state.range);
+    int start = state.range[0], length = state.range[1];
+    int hash = 0;
+    for (int ix = 0; ix < length; ix++)
+      hash = 31 * hash + text[start + ix];
+    int slot = (hash ^ (hash >>> 16)) & (NAME_SLOTS - 1);
+    String name = state.names[slot];
+    if (name == null || !sameChars(name, text, start, length)) {
+      name = new String(text, start, length);
+      state.names[slot] = name;
+    }
+    parser.next();
+    return name;
+  }
+
+  protected static boolean sameChars(String str, char[] text, int start,
+                                     int length)
+  {
+    if (str.length() != length)
+      return false;
+    for (int ix = 0; ix < length; ix++)
+      if (str.charAt(ix) != text[start + ix])
+        return false;
+    return true;
   }
 
   protected XmlPullParserException error(XmlPullParser parser, String msg) {
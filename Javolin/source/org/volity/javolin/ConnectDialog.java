@@ -181,6 +181,7 @@ public class ConnectDialog extends BaseDialog implements ActionListener
         {
             mConnection = new XMPPConnection(jidhost);
             mConnection.setPresenceFactory(new CapPresenceFactory());
+            mConnection.setPresenceCoalescing(true);
             ServiceDiscoveryManager.getInstanceFor(mConnection).addFeature(CapPacketExtension.NAMESPACE);
 
             mConnection.login(jidname,
@@ -296,6 +297,7 @@ public class ConnectDialog extends BaseDialog implements ActionListener
         try {
             mConnection = new XMPPConnection(jidhost);
             mConnection.setPresenceFactory(new CapPresenceFactory());
+            mConnection.setPresenceCoalescing(true);
             ServiceDiscoveryManager.getInstanceFor(mConnection).addFeature(CapPacketExtension.NAMESPACE);
 
             AccountManager manager = mConnection.getAccountManager();
@@ -0,0 +1,109 @@
+package org.volity.javolin;
+
+import java.awt.event.ActionEvent;
+import java.awt.event.ActionListener;
+import java.util.ArrayList;
+import java.util.List;
+import javax.swing.Timer;
+import org.jivesoftware.smack.util.Metrics;
+
+/**
+ * Carries events (usually packets) from other threads into the Swing thread,
+ * in batches.
+ *
+ * Calling SwingUtilities.invokeLater() once per packet works, but when a
+ * MUC room replays its history, or somebody floods it, the Swing thread gets
+ * hundreds of tiny tasks, each of which updates the window and scrolls it.
+ * Instead, post() the events here. The first event of a batch starts a
+ * timer; everything posted before it goes off (one frame later) is handed to
+ * the Receiver as a single list, in order. So the window does its work --
+ * layout, scrolling, rebuilding the user list -- once per batch.
+ *
+ * The metrics ui.batches and ui.batch.events show how well this is working.
+ */
+public class EventBatcher
+{
+    /**
+     * The delay between the first event of a batch and its delivery, in
+     * milliseconds.
+     */
+    protected final static int FRAME_DELAY = 20;
+
+    protected final static Metrics.Counter BATCHES =
+        Metrics.getCounter("ui.batches");
+    protected final static Metrics.Counter EVENTS =
+        Metrics.getCounter("ui.batch.events");
+
+    /**
+     * Receives batches of events.
+     */
+    public interface Receiver {
+        /**
+         * Handle a batch of events, in the order they were posted. Called in
+         * the Swing thread.
+         */
+        public void receiveBatch(List events);
+    }
+
+    private Receiver mReceiver;
+    private List mPending = new ArrayList();
+    private Timer mTimer;
+
+    /**
+     * Constructor.
+     */
+    public EventBatcher(Receiver receiver) {
+        mReceiver = receiver;
+        mTimer = new Timer(FRAME_DELAY, new ActionListener() {
+                public void actionPerformed(ActionEvent ev) {
+                    deliver();
+                }
+            });
+        mTimer.setRepeats(false);
+    }
+
+    /**
+     * Add an event to the current batch. May be called from any thread.
+     */
+    public void post(Object event) {
+        synchronized (this) {
+            if (mReceiver == null)
+                return;
+            mPending.add(event);
+            if (mPending.size() > 1)
+                return; // The timer is already going.
+        }
+        mTimer.start();
+    }
+
+    /**
+     * Discard any pending events, and stop delivering them. Call this when
+     * the window closes.
+     */
+    public void dispose() {
+        synchronized (this) {
+            mReceiver = null;
+            mPending.clear();
+        }
+        mTimer.stop();
+    }
+
+    /**
+     * Hand the current batch to the receiver.
+     */
+    protected void deliver() {
+        List events;
+        Receiver receiver;
+        synchronized (this) {
+            if (mReceiver == null || mPending.isEmpty())
+                return;
+            events = mPending;
+            mPending = new ArrayList();
+            receiver = mReceiver;
+        }
+
+        BATCHES.increment();
+        EVENTS.add(events.size());
+        receiver.receiveBatch(events);
+    }
+}
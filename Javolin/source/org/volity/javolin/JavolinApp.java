@@ -90,6 +90,8 @@ public class JavolinApp extends JFrame
 
     private static URI sClientTypeUri = URI.create("http://volity.org/protocol/ui/svg");
     private static UIFileCache sUIFileCache = new UIFileCache();
+    private static TranscriptStore sTranscriptStore = new TranscriptStore(
+        new File(PlatformWrapper.getCacheDir(), "Transcripts"));
 
     private static JavolinApp soleJavolinApp = null;
     public static Locale localeApp = null;
@@ -520,6 +522,16 @@ public class JavolinApp extends JFrame
         return sUIFileCache;
     }
 
+    /**
+     * Gets the store of chat transcripts belonging to the application.
+     *
+     * @return   The TranscriptStore belonging to the application.
+     */
+    public static TranscriptStore getTranscriptStore()
+    {
+        return sTranscriptStore;
+    }
+
     /**
      * Gets the URI indicating the client type.
      *
@@ -932,6 +944,7 @@ public class JavolinApp extends JFrame
             doDisconnect();
             if (mCommandWatcher != null) 
                 mCommandWatcher.stop();
+            sTranscriptStore.close();
 
             System.exit(0);
         }
@@ -44,6 +44,7 @@ public class PrefsDialog extends JFrame
 
     public final static String CHATNAMESHADE_KEY = "NameShade";
     public final static String CHATBODYSHADE_KEY = "BodyShade";
+    public final static String CHATKEEPTRANSCRIPTS_KEY = "KeepTranscripts";
 
     public final static String ROSTERSHOWOFFLINE_KEY = "ShowOffline";
     public final static String ROSTERSHOWREVERSE_KEY = "ShowReverse";
@@ -87,6 +88,7 @@ public class PrefsDialog extends JFrame
     private static int prefGameFinderStartup;
     private static int prefChatBodyShade;
     private static int prefChatNameShade;
+    private static boolean prefChatKeepTranscripts;
     private static boolean prefRosterShowOffline;
     private static boolean prefRosterShowReverse;
     private static boolean prefRosterNotifySubscriptions;
@@ -119,6 +121,7 @@ public class PrefsDialog extends JFrame
         prefs = Preferences.userNodeForPackage(PrefsDialog.class).node(CHAT_COLOR_OPTIONS);
         prefChatBodyShade = prefs.getInt(CHATBODYSHADE_KEY, 30);
         prefChatNameShade = prefs.getInt(CHATNAMESHADE_KEY, 0);
+        prefChatKeepTranscripts = prefs.getBoolean(CHATKEEPTRANSCRIPTS_KEY, false);
 
         prefs = Preferences.userNodeForPackage(PrefsDialog.class).node(ROSTER_DISPLAY_OPTIONS);
         prefRosterShowOffline = prefs.getBoolean(ROSTERSHOWOFFLINE_KEY, true);
@@ -179,6 +182,7 @@ public class PrefsDialog extends JFrame
     public static int getGameFinderStartup() { return prefGameFinderStartup; }
     public static int getChatBodyShade() { return prefChatBodyShade; }
     public static int getChatNameShade() { return prefChatNameShade; }
+    public static boolean getChatKeepTranscripts() { return prefChatKeepTranscripts; }
     public static boolean getRosterShowOffline() { return prefRosterShowOffline; }
     public static boolean getRosterShowReverse() { return prefRosterShowReverse; }
     public static boolean getRosterNotifySubscriptions() { return prefRosterNotifySubscriptions; }
@@ -294,6 +298,7 @@ public class PrefsDialog extends JFrame
     private JSlider mChatBodyShade;
     private JSlider mChatNameShade;
     private JTextPane mChatSampleText;
+    private JCheckBox mChatKeepTranscripts;
     private JCheckBox mSoundPlayAudio;
     private JCheckBox mSoundShowAltTags;
     private JCheckBox mSoundUseBuddySounds;
@@ -472,6 +477,15 @@ public class PrefsDialog extends JFrame
                 }
             });
 
+        mChatKeepTranscripts.addActionListener(new ActionListener() {
+                public void actionPerformed(ActionEvent ev) {
+                    prefChatKeepTranscripts = mChatKeepTranscripts.isSelected();
+                    Preferences prefs = Preferences.userNodeForPackage(getClass()).node(CHAT_COLOR_OPTIONS);
+                    prefs.putBoolean(CHATKEEPTRANSCRIPTS_KEY, prefChatKeepTranscripts);
+                    noticeChange(CHAT_COLOR_OPTIONS, CHATKEEPTRANSCRIPTS_KEY);
+                }
+            });
+
         mSoundPlayAudio.addActionListener(new ActionListener() {
                 public void actionPerformed(ActionEvent ev) {
                     prefSoundPlayAudio = mSoundPlayAudio.isSelected();
@@ -939,6 +953,19 @@ public class PrefsDialog extends JFrame
             c.insets = new Insets(MARGIN, MARGIN, 0, MARGIN);
             pane.add(mChatSampleText, c);
 
+            mChatKeepTranscripts = new JCheckBox(
+                localize("ChatKeepTranscripts"),
+                prefChatKeepTranscripts);
+            c = new GridBagConstraints();
+            c.gridx = 0;
+            c.gridy = row++;
+            c.weightx = 1;
+            c.weighty = 0;
+            c.gridwidth = GridBagConstraints.REMAINDER;
+            c.fill = GridBagConstraints.HORIZONTAL;
+            c.insets = new Insets(MARGIN, MARGIN, 0, MARGIN);
+            pane.add(mChatKeepTranscripts, c);
+
             // Blank stretchy spacer
             label = new JLabel(" ");
             c = new GridBagConstraints();
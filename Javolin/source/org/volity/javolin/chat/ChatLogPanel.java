@@ -4,6 +4,7 @@ import java.awt.*;
 import java.awt.event.MouseEvent;
 import java.text.*;
 import java.util.*;
+import java.util.List;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 import javax.swing.*;
@@ -20,6 +21,9 @@ import org.volity.javolin.PlatformWrapper;
  *
  * This is also capable of recoloring all the messages in the log, if the
  * color-name associations (or the preferences) change.
+ *
+ * The log keeps only the most recent lines (see setMaxLines). When it grows
+ * a tenth past the limit, the oldest lines are removed in one edit.
  */
 public class ChatLogPanel extends LogTextPanel
 {
@@ -43,7 +47,28 @@ public class ChatLogPanel extends LogTextPanel
     public final static String ATTR_TYPE_ABOUT = "VolityJID:About";
     public final static String ATTR_TYPE_HYPERLINK = "VolityJID:Link";
 
-    private StyledDocument mDocument;
+    /* Scrollback limit, in lines. Zero means no limit. */
+    private static int sMaxLines = 2000;
+
+    static {
+        String val = System.getProperty("org.volity.chatScrollback");
+        if (val != null) {
+            try {
+                sMaxLines = Integer.parseInt(val);
+            }
+            catch (NumberFormatException ex) { }
+        }
+    }
+
+    /* Number of messages shown from the transcript when a log opens. */
+    private final static int HISTORY_COUNT = 20;
+
+    private LogDocument mDocument;
+    private TranscriptStore.Transcript mTranscript = null;
+    private boolean mReplaying = false;
+    private List mPending = null;
+    private long mHistoryTime = 0;
+    private int mBatchDepth = 0;
     private UserColorMap mColorMap;
     private Map mUserMap = new HashMap();
     private ChangeListener mColorChangeListener;
@@ -65,7 +90,8 @@ public class ChatLogPanel extends LogTextPanel
 
         mPopupMenu = new UserContextMenu();
 
-        mDocument = mTextPane.getStyledDocument();
+        mDocument = new LogDocument();
+        mTextPane.setStyledDocument(mDocument);
 
         mStyleBase = mTextPane.addStyle("base", null);
         StyleConstants.setFontFamily(mStyleBase, "SansSerif");
@@ -102,9 +128,146 @@ public class ChatLogPanel extends LogTextPanel
 
         mColorMap.removeListener(mColorChangeListener);
         // Don't dispose of the colormap; we don't own it.
+
+        // If the history never arrived, still record what came in.
+        if (mTranscript != null && mPending != null) {
+            for (int ix=0; ix<mPending.size(); ix++) {
+                Object[] args = (Object[])mPending.get(ix);
+                Date date = (Date)args[4];
+                long time = (date != null) ? date.getTime()
+                    : System.currentTimeMillis();
+                mTranscript.record(time, (String)args[0],
+                    ((Boolean)args[1]).booleanValue(), (String)args[2],
+                    (String)args[3]);
+            }
+        }
+        mTranscript = null;
+        mPending = null;
         super.dispose();
     }
 
+    /**
+     * Get the number of lines which a chat log keeps.
+     */
+    public static int getMaxLines() {
+        return sMaxLines;
+    }
+
+    /**
+     * Set the number of lines which a chat log keeps. Zero means no limit.
+     * (The default is 2000, or the value of the org.volity.chatScrollback
+     * system property.) This affects logs as they next grow.
+     */
+    public static void setMaxLines(int val) {
+        sMaxLines = Math.max(0, val);
+    }
+
+    /**
+     * Keep a transcript of this log. The most recent messages in the
+     * transcript are read in the background and shown first; after that,
+     * every message is recorded. Messages which arrive while the history is
+     * being read are held back until it is shown.
+     *
+     * Delayed messages from no later than the last recorded one are taken to
+     * be copies of what is already in the transcript (a MUC room's history,
+     * say). They are shown, but not recorded again.
+     */
+    public void setTranscript(final TranscriptStore.Transcript transcript) {
+        assert (SwingUtilities.isEventDispatchThread()) : "not in UI thread";
+        mTranscript = transcript;
+        if (mTranscript == null) {
+            showPending();
+            return;
+        }
+
+        if (mPending == null)
+            mPending = new ArrayList();
+        Thread reader = new Thread("Transcript reader") {
+                public void run() {
+                    final List ls = transcript.readRecent(HISTORY_COUNT);
+                    SwingUtilities.invokeLater(new Runnable() {
+                            public void run() {
+                                showHistory(transcript, ls);
+                            }
+                        });
+                }
+            };
+        reader.setDaemon(true);
+        reader.start();
+    }
+
+    /**
+     * Show the messages read from a transcript, and then any which arrived
+     * in the meantime.
+     */
+    protected void showHistory(TranscriptStore.Transcript transcript,
+        List ls) {
+        if (mTranscript != transcript)
+            return; // Disposed, or given another transcript meanwhile
+
+        mReplaying = true;
+        startBatch();
+        try {
+            for (int ix=0; ix<ls.size(); ix++) {
+                TranscriptStore.Entry ent = (TranscriptStore.Entry)ls.get(ix);
+                display(ent.getJID(), ent.isRealJID(), ent.getNick(),
+                    ent.getText(), new Date(ent.getTime()));
+                mHistoryTime = Math.max(mHistoryTime, ent.getTime());
+            }
+        }
+        finally {
+            mReplaying = false;
+            endBatch();
+        }
+        showPending();
+    }
+
+    /**
+     * Show (and record) the messages held back while the history was read.
+     */
+    protected void showPending() {
+        List pending = mPending;
+        mPending = null;
+        if (pending == null || pending.isEmpty())
+            return;
+
+        startBatch();
+        try {
+            for (int ix=0; ix<pending.size(); ix++) {
+                Object[] args = (Object[])pending.get(ix);
+                message((String)args[0], ((Boolean)args[1]).booleanValue(),
+                    (String)args[2], (String)args[3], (Date)args[4]);
+            }
+        }
+        finally {
+            endBatch();
+        }
+    }
+
+    /**
+     * Begin a batch of messages. Until the matching endBatch(), messages are
+     * collected but not added to the document; endBatch() adds them all in
+     * one edit, and trims the scrollback once. Batches may nest.
+     */
+    public void startBatch() {
+        assert (SwingUtilities.isEventDispatchThread()) : "not in UI thread";
+        mBatchDepth++;
+    }
+
+    /**
+     * End a batch of messages begun with startBatch().
+     */
+    public void endBatch() {
+        assert (SwingUtilities.isEventDispatchThread()) : "not in UI thread";
+        if (mBatchDepth == 0)
+            return;
+        mBatchDepth--;
+        if (mBatchDepth == 0) {
+            mDocument.flush();
+            mDocument.trimLines(sMaxLines);
+        }
+    }
+
     /** Create a JTextPane subclass. */
     protected JTextPane buildTextPane() {
         return new JTextPanePopup(this);
@@ -162,7 +325,29 @@ public class ChatLogPanel extends LogTextPanel
     public void message(String jid, boolean realjid, String nick,
         String text, Date date) {
         assert (SwingUtilities.isEventDispatchThread()) : "not in UI thread";
-        
+
+        if (mPending != null) {
+            // The history hasn't been shown yet; this goes after it.
+            mPending.add(new Object[] {
+                jid, Boolean.valueOf(realjid), nick, text, date });
+            return;
+        }
+
+        if (mTranscript != null && !mReplaying
+            && (date == null || date.getTime() > mHistoryTime)) {
+            long time = (date != null) ? date.getTime()
+                : System.currentTimeMillis();
+            mTranscript.record(time, jid, realjid, nick, text);
+        }
+
+        display(jid, realjid, nick, text, date);
+    }
+
+    /**
+     * Add a message to the document, without recording it.
+     */
+    protected void display(String jid, boolean realjid, String nick,
+        String text, Date date) {
         // Get today's date sans time
         Calendar today = new GregorianCalendar();
         today.set(Calendar.HOUR_OF_DAY, 0);
@@ -182,53 +367,61 @@ public class ChatLogPanel extends LogTextPanel
         DateFormat formatter = 
             date.before(today.getTime()) ? dateTimeStampFormat : timeStampFormat;
             
-        append("[" + formatter.format(date) + "] ", dateStyle);
+        mDocument.addRun("[" + formatter.format(date) + "] ", dateStyle);
 
         Entry ent = null;
         if (jid != null)
             ent = getEntry(jid, realjid);
 
         String nickText;
-        Style nameStyle = mStyleBase;
-        Style textStyle = mStyleBase;
+        AttributeSet nameStyle = mStyleBase;
+        AttributeSet textStyle = mStyleBase;
 
         if (nick == null || nick.equals("")) {
             nickText = "***";
             if (ent != null)
-                textStyle = ent.styleAbout;
+                textStyle = ent.attrsAbout;
         }
         else {
             nickText = nick + ":";
             if (ent != null) {
-                nameStyle = ent.styleName;
-                textStyle = ent.styleText;
+                nameStyle = ent.attrsName;
+                textStyle = ent.attrsText;
             }
         }
 
-        append(nickText + " ", nameStyle);
+        mDocument.addRun(nickText + " ", nameStyle);
 
         text = text+"\n";
 
-        Matcher matcher = sURLPattern.matcher(text);
         int pos = 0;
         String seq;
 
-        while (matcher.find()) {
-            int start = matcher.start();
-            if (pos < start) {
-                seq = text.substring(pos, start);
-                append(seq, textStyle);
+        // Every URL has a colon, so most lines can skip the scan.
+        if (text.indexOf(':') >= 0) {
+            Matcher matcher = sURLPattern.matcher(text);
+            while (matcher.find()) {
+                int start = matcher.start();
+                if (pos < start) {
+                    seq = text.substring(pos, start);
+                    mDocument.addRun(seq, textStyle);
+                }
+                seq = matcher.group();
+                mDocument.addRun(seq, mStyleHyperlink);
+                pos = matcher.end();
             }
-            seq = matcher.group();
-            append(seq, mStyleHyperlink);
-            pos = matcher.end();
         }
         if (pos == 0) {
-            append(text, textStyle);
+            mDocument.addRun(text, textStyle);
         }
         else {
             seq = text.substring(pos);
-            append(seq, textStyle);            
+            mDocument.addRun(seq, textStyle);
+        }
+
+        if (mBatchDepth == 0) {
+            mDocument.flush();
+            mDocument.trimLines(sMaxLines);
         }
 
         scrollToBottom();
@@ -240,6 +433,7 @@ public class ChatLogPanel extends LogTextPanel
      */
     public void append(String text, Style style)
     {
+        mDocument.flush(); // In case a batch is under way
         try {
             mDocument.insertString(mDocument.getLength(), text, style);
         }
@@ -264,56 +458,18 @@ public class ChatLogPanel extends LogTextPanel
     /**
      * Recolor all the text. This is called when we notice that the colormap
      * has changed.
-     * 
-     * It turns out that logical styles in Swing are a filthy trap and an
-     * unusable snare, so we have to go through the document and apply color
-     * attributes to each chunk which is a user name or message.
+     *
+     * Each user's text carries no color of its own; its attributes resolve
+     * to the user's named styles, which hold the colors. So it is enough to
+     * change the styles. The document notices, and has the views repaint.
+     * (Logical paragraph styles in Swing are a filthy trap and an unusable
+     * snare, but resolving character attributes works fine.)
      */
     protected void adjustAllColors() {
         for (Iterator it = mUserMap.values().iterator(); it.hasNext(); ) {
             Entry ent = (Entry)it.next();
             ent.adjustColors();
         }
-
-        Element el = mDocument.getDefaultRootElement();
-        recurseElements(el);
-    }
-
-    /**
-     * Work function -- used to iterate through Element tree in
-     * adjustAllColors().
-     */
-    protected void recurseElements(Element el) {
-        if (!el.isLeaf()) {
-            int count = el.getElementCount();
-            for (int ix=0; ix<count; ix++) {
-                Element subel = el.getElement(ix);
-                recurseElements(subel);
-            }
-            return;
-        }
-
-        AttributeSet attrs = el.getAttributes();
-        String jid = (String)attrs.getAttribute(ATTR_JID);
-        Object type = attrs.getAttribute(ATTR_TYPE);
-        Boolean realjid = (Boolean)attrs.getAttribute(ATTR_REALJID);
-
-        if (jid != null && type != null && realjid != null 
-            && type != ATTR_TYPE_ABOUT) {
-            int start = el.getStartOffset();
-            int end = el.getEndOffset();
-
-            Entry ent = getEntry(jid, realjid.booleanValue());
-
-            Style style = null;
-            if (type == ATTR_TYPE_NAME)
-                style = ent.styleName;
-            if (type == ATTR_TYPE_TEXT)
-                style = ent.styleText;
-
-            mDocument.setCharacterAttributes(start, end-start,
-                style, true);
-        }
     }
 
     /**
@@ -383,43 +539,49 @@ public class ChatLogPanel extends LogTextPanel
      *
      * styleName: name (displayed before message)
      * styleText: a message from the user
-     * styleAbout: used for "... has joined the chat" messages
      *
-     * Each of these styles has an ATTR_JID attribute (whose value is the JID).
-     * This is very handy when it comes time to pop up a contextual menu.
+     * These are named styles, so that the document notices when they change.
+     * The text itself is given the attribute sets attrsName, attrsText, and
+     * attrsAbout (used for "... has joined the chat" messages). Each of these
+     * has an ATTR_JID attribute (whose value is the JID), which is very handy
+     * when it comes time to pop up a contextual menu; and each resolves to
+     * the matching style for its color.
      */
     protected class Entry {
         String mJID;
         boolean mReal;
         Style styleName;
         Style styleText;
-        Style styleAbout;
+        AttributeSet attrsName;
+        AttributeSet attrsText;
+        AttributeSet attrsAbout;
 
         public Entry(String jid, boolean real) {
             mJID = jid;
             mReal = real;
 
-            styleName = mTextPane.addStyle(null, mStyleBase);
-            styleText = mTextPane.addStyle(null, mStyleBase);
-            styleAbout = mTextPane.addStyle(null, mStyleBase);
-
-            styleName.addAttribute(ATTR_JID, mJID);
-            styleText.addAttribute(ATTR_JID, mJID);
-            styleAbout.addAttribute(ATTR_JID, mJID);
-
-            Boolean val = Boolean.valueOf(mReal);
-
-            styleName.addAttribute(ATTR_REALJID, val);
-            styleText.addAttribute(ATTR_REALJID, val);
-            styleAbout.addAttribute(ATTR_REALJID, val);
+            styleName = mTextPane.addStyle("name:" + mJID, mStyleBase);
+            styleText = mTextPane.addStyle("text:" + mJID, mStyleBase);
 
-            styleName.addAttribute(ATTR_TYPE, ATTR_TYPE_NAME);
-            styleText.addAttribute(ATTR_TYPE, ATTR_TYPE_TEXT);
-            styleAbout.addAttribute(ATTR_TYPE, ATTR_TYPE_ABOUT);
+            attrsName = makeAttributes(ATTR_TYPE_NAME, styleName);
+            attrsText = makeAttributes(ATTR_TYPE_TEXT, styleText);
+            attrsAbout = makeAttributes(ATTR_TYPE_ABOUT, mStyleBase);
 
             adjustColors();
         }
 
+        /**
+         * Create the attributes for one kind of text from this user.
+         */
+        protected AttributeSet makeAttributes(String type, Style parent) {
+            SimpleAttributeSet attrs = new SimpleAttributeSet();
+            attrs.addAttribute(ATTR_JID, mJID);
+            attrs.addAttribute(ATTR_REALJID, Boolean.valueOf(mReal));
+            attrs.addAttribute(ATTR_TYPE, type);
+            attrs.setResolveParent(parent);
+            return attrs;
+        }
+
         /**
          * Re-fetch the colors from the colormap, and modify the "name" and
          * "text" styles to use them.
@@ -436,6 +598,113 @@ public class ChatLogPanel extends LogTextPanel
         }
     }
 
+    /**
+     * The document of a chat log. Text is added with addRun() and then
+     * appended all at once, as a single edit, by flush(). This means one
+     * round of element-tree surgery and one insert event per message, rather
+     * than one per run of text.
+     */
+    protected static class LogDocument extends DefaultStyledDocument {
+        // Alternating Strings and AttributeSets
+        private ArrayList mPending = new ArrayList();
+
+        /**
+         * Add a run of text to the pending edit.
+         */
+        public void addRun(String text, AttributeSet attrs) {
+            mPending.add(text);
+            mPending.add(attrs);
+        }
+
+        /**
+         * Append the pending text to the document. It must end with a
+         * newline.
+         */
+        public void flush() {
+            if (mPending.isEmpty())
+                return;
+
+            int offset = getLength();
+            if (offset > 0 && !endsWithNewline()) {
+                // Somebody used append(); do it the slow way.
+                try {
+                    for (int ix=0; ix<mPending.size(); ix += 2)
+                        insertString(getLength(), (String)mPending.get(ix),
+                            (AttributeSet)mPending.get(ix+1));
+                }
+                catch (BadLocationException ex) { }
+                mPending.clear();
+                return;
+            }
+
+            AttributeSet paraAttrs =
+                getParagraphElement(offset).getAttributes();
+            ArrayList specs = new ArrayList();
+
+            // Close off the paragraph which the previous message ended.
+            if (offset > 0) {
+                specs.add(new ElementSpec(paraAttrs, ElementSpec.EndTagType));
+                specs.add(new ElementSpec(paraAttrs, ElementSpec.StartTagType));
+            }
+
+            for (int ix=0; ix<mPending.size(); ix += 2) {
+                char[] chars = ((String)mPending.get(ix)).toCharArray();
+                AttributeSet attrs = (AttributeSet)mPending.get(ix+1);
+                int start = 0;
+                for (int pos=0; pos<chars.length; pos++) {
+                    if (chars[pos] != '\n')
+                        continue;
+                    specs.add(new ElementSpec(attrs, ElementSpec.ContentType,
+                                  chars, start, pos+1-start));
+                    specs.add(new ElementSpec(null, ElementSpec.EndTagType));
+                    specs.add(new ElementSpec(paraAttrs, ElementSpec.StartTagType));
+                    start = pos+1;
+                }
+                if (start < chars.length)
+                    specs.add(new ElementSpec(attrs, ElementSpec.ContentType,
+                                  chars, start, chars.length-start));
+            }
+            mPending.clear();
+
+            ElementSpec[] data = new ElementSpec[specs.size()];
+            specs.toArray(data);
+            try {
+                insert(offset, data);
+            }
+            catch (BadLocationException ex) { }
+        }
+
+        private boolean endsWithNewline() {
+            try {
+                return getText(getLength()-1, 1).equals("\n");
+            }
+            catch (BadLocationException ex) {
+                return false;
+            }
+        }
+
+        /**
+         * If the document has grown a tenth past the given number of lines,
+         * remove the oldest lines, leaving that many. Zero means no limit.
+         */
+        public void trimLines(int maxLines) {
+            if (maxLines <= 0)
+                return;
+
+            // The last paragraph is the empty one after the final newline.
+            Element root = getDefaultRootElement();
+            int lines = root.getElementCount() - 1;
+            if (lines <= maxLines + maxLines / 10)
+                return;
+
+            int end = root.getElement(lines - maxLines).getStartOffset();
+            try {
+                remove(0, end);
+            }
+            catch (BadLocationException ex) { }
+        }
+    }
+
     /**
      * Subclass of JTextPane that has a pop-up menu.
      */
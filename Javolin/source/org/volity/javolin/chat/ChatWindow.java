@@ -19,6 +19,7 @@ import java.awt.*;
 import java.awt.event.*;
 import java.util.Date;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.prefs.Preferences;
 import javax.swing.*;
@@ -90,6 +91,7 @@ public class ChatWindow extends JFrame
     private AbstractAction mSendMessageAction;
 
     private UserColorMap mColorMap;
+    private EventBatcher mBatcher;
 
     private SizeAndPositionSaver mSizePosSaver;
     private XMPPConnection mConnection;
@@ -119,6 +121,13 @@ public class ChatWindow extends JFrame
     {
         mConnection = connection;
         mRemoteIdFull = remoteId;
+
+        // Packets are delivered to the Swing thread in batches.
+        mBatcher = new EventBatcher(new EventBatcher.Receiver() {
+                public void receiveBatch(List events) {
+                    doPacketsReceived(events);
+                }
+            });
         mRemoteIdBare = StringUtils.parseBareAddress(remoteId);
 
         if (!mRemoteIdFull.equals(mRemoteIdBare))
@@ -149,6 +158,9 @@ public class ChatWindow extends JFrame
 
         // Set up UI
         buildUI();
+        if (PrefsDialog.getChatKeepTranscripts())
+            mLog.setTranscript(JavolinApp.getTranscriptStore().getTranscript(
+                                   "chat", mRemoteIdBare));
 
         setSize(500, 400);
         mSizePosSaver = new SizeAndPositionSaver(this, NODENAME);
@@ -176,6 +188,7 @@ public class ChatWindow extends JFrame
                 public void windowClosed(WindowEvent we)
                 {
                     saveWindowState();
+                    mBatcher.dispose();
                     if (mLog != null) {
                         mLog.dispose();
                     }
@@ -232,15 +245,34 @@ public class ChatWindow extends JFrame
      */
     public void processPacket(final Packet packet)
     {
-        // Invoke into the Swing thread.
-        SwingUtilities.invokeLater(new Runnable() {
-                public void run() {
-                    if (packet instanceof Message)
-                    {
-                        doMessageReceived((Message)packet);
-                    }
+        // The batcher passes it into the Swing thread.
+        mBatcher.post(packet);
+    }
+
+    /**
+     * Handle a batch of packets, which have been passed into the Swing
+     * thread. The messages all go into the log in a single edit.
+     *
+     * @param packets  The packets received, in order.
+     */
+    private void doPacketsReceived(List packets)
+    {
+        mLog.startBatch();
+        try
+        {
+            for (int ix=0; ix<packets.size(); ix++)
+            {
+                Packet packet = (Packet)packets.get(ix);
+                if (packet instanceof Message)
+                {
+                    doMessageReceived((Message)packet);
                 }
-            });
+            }
+        }
+        finally
+        {
+            mLog.endBatch();
+        }
     }
 
     // Implements GetWindowName.
@@ -22,7 +22,10 @@ import java.awt.datatransfer.*;
 import java.awt.dnd.*;
 import java.awt.event.*;
 import java.util.Date;
+import java.util.HashMap;
 import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
 import java.util.prefs.Preferences;
 import javax.swing.*;
 import javax.swing.event.ChangeEvent;
@@ -49,6 +52,10 @@ public class MUCWindow extends JFrame
     private final static String CHAT_SPLIT_POS = "ChatSplitPos";
     private final static String USERLIST_SPLIT_POS = "UserListSplitPos";
 
+    /* Sounds to play at the end of a batch of presence packets. */
+    private final static int PRESENCE_IN = 1;
+    private final static int PRESENCE_OUT = 2;
+
     private JSplitPane mChatSplitter;
     private JSplitPane mUserListSplitter;
     private ChatLogPanel mLog;
@@ -64,6 +71,7 @@ public class MUCWindow extends JFrame
     private MultiUserChat mMucObject;
 
     private ChangeListener mColorChangeListener;
+    private EventBatcher mBatcher;
 
     /**
      * Constructor.
@@ -82,11 +90,21 @@ public class MUCWindow extends JFrame
         mConnection = connection;
         mMucObject = new MultiUserChat(connection, mucId);
 
+        // Packets are delivered to the Swing thread in batches.
+        mBatcher = new EventBatcher(new EventBatcher.Receiver() {
+                public void receiveBatch(List events) {
+                    doPacketsReceived(events);
+                }
+            });
+
         mColorMap = new UserColorMap();
         // Give user first color
         mColorMap.getUserNameColor(mConnection.getUser());
 
         buildUI();
+        if (PrefsDialog.getChatKeepTranscripts())
+            mLog.setTranscript(JavolinApp.getTranscriptStore().getTranscript(
+                                   "muc", mMucObject.getRoom()));
 
         setSize(500, 400);
         mSizePosSaver = new SizeAndPositionSaver(this, NODENAME);
@@ -154,6 +172,8 @@ public class MUCWindow extends JFrame
      */
     protected void leave()
     {
+        mBatcher.dispose();
+
         if (mLog != null) {
             mLog.dispose();
         }
@@ -336,67 +356,122 @@ public class MUCWindow extends JFrame
      */
     public void processPacket(final Packet packet)
     {
-        // Invoke into the Swing thread.
-        SwingUtilities.invokeLater(new Runnable() {
-                public void run() {
-                    if (packet instanceof Message)
-                    {
-                        doMessageReceived((Message)packet);
-                    }
-                    else if (packet instanceof Presence)
-                    {
-                        Presence pres = (Presence)packet;
-
-                        String from = pres.getFrom();
-
-                        String nick = null;
-                        String realAddr = null;
-                        boolean realjid = false;
-
-                        PacketExtension ext = pres.getExtension("x",
-                            "http://jabber.org/protocol/muc#user");
-                        if (ext != null && ext instanceof MUCUser) {
-                            MUCUser userext = (MUCUser)ext;
-                            MUCUser.Item item = userext.getItem();
-                            if (item != null) {
-                                realAddr = item.getJid();
-                                realjid = true;
-                                nick = item.getNick();
-                            }
-                        }
-
-                        if (realAddr == null && from != null) {
-                            realAddr = from;
-                            realjid = false;
-                        }
-
-                        if (nick == null && from != null) {
-                            nick = StringUtils.parseResource(from);
-                        }
-
-                        if (realAddr != null && nick != null) {
-                            Presence.Type typ = pres.getType();
-                            if (typ == Presence.Type.AVAILABLE) {
-                                boolean already = mUserList.isJIDPresent(realAddr);
-                                if (!already) {
-                                    mLog.message(realAddr, realjid, null,
-                                        nick+" has joined the chat.");
-                                    Audio.playPresenceIn();
-                                }
-                            }
-                            if (typ == Presence.Type.UNAVAILABLE) {
-                                mLog.message(realAddr, realjid, null,
-                                    nick+" has left the chat.");
-                                Audio.playPresenceOut();
-                            }
-                        }
-
-                        /* Do this last, because otherwise it would mess up the
-                         * "is user already present?" computation above. */
-                        updateUserList();
-                    }
+        // The batcher passes it into the Swing thread.
+        mBatcher.post(packet);
+    }
+
+    /**
+     * Handle a batch of packets, which have been passed into the Swing
+     * thread. The messages all go into the log in a single edit, and the
+     * user list is rebuilt once, at the end.
+     *
+     * @param packets  The packets received, in order.
+     */
+    private void doPacketsReceived(List packets)
+    {
+        if (mUserList == null)
+            return;
+
+        // Maps real JIDs to Boolean presence, as changed in this batch.
+        Map present = new HashMap();
+        boolean anyPresence = false;
+        int presenceSounds = 0;
+
+        mLog.startBatch();
+        try
+        {
+            for (int ix=0; ix<packets.size(); ix++)
+            {
+                Packet packet = (Packet)packets.get(ix);
+                if (packet instanceof Message)
+                {
+                    doMessageReceived((Message)packet);
                 }
-            });
+                else if (packet instanceof Presence)
+                {
+                    anyPresence = true;
+                    presenceSounds |= doPresenceReceived((Presence)packet,
+                        present);
+                }
+            }
+        }
+        finally
+        {
+            mLog.endBatch();
+        }
+
+        // One of each sound is plenty.
+        if ((presenceSounds & PRESENCE_IN) != 0)
+            Audio.playPresenceIn();
+        if ((presenceSounds & PRESENCE_OUT) != 0)
+            Audio.playPresenceOut();
+
+        /* Do this last, because otherwise it would mess up the "is user
+         * already present?" computation. */
+        if (anyPresence)
+            updateUserList();
+    }
+
+    /**
+     * Handles a presence packet received from the MUC, reporting arrivals
+     * and departures in the log. The user list is not updated.
+     *
+     * @param pres     The Presence object that was received.
+     * @param present  Arrivals and departures seen earlier in the same
+     *     batch (which the user list does not yet show). This is updated.
+     * @return         PRESENCE_IN, PRESENCE_OUT, or 0: the sound to play.
+     */
+    private int doPresenceReceived(Presence pres, Map present)
+    {
+        String from = pres.getFrom();
+
+        String nick = null;
+        String realAddr = null;
+        boolean realjid = false;
+
+        PacketExtension ext = pres.getExtension("x",
+            "http://jabber.org/protocol/muc#user");
+        if (ext != null && ext instanceof MUCUser) {
+            MUCUser userext = (MUCUser)ext;
+            MUCUser.Item item = userext.getItem();
+            if (item != null) {
+                realAddr = item.getJid();
+                realjid = true;
+                nick = item.getNick();
+            }
+        }
+
+        if (realAddr == null && from != null) {
+            realAddr = from;
+            realjid = false;
+        }
+
+        if (nick == null && from != null) {
+            nick = StringUtils.parseResource(from);
+        }
+
+        if (realAddr == null || nick == null)
+            return 0;
+
+        Presence.Type typ = pres.getType();
+        if (typ == Presence.Type.AVAILABLE) {
+            Boolean val = (Boolean)present.get(realAddr);
+            boolean already = (val != null) ? val.booleanValue()
+                : mUserList.isJIDPresent(realAddr);
+            present.put(realAddr, Boolean.TRUE);
+            if (!already) {
+                mLog.message(realAddr, realjid, null,
+                    nick+" has joined the chat.");
+                return PRESENCE_IN;
+            }
+        }
+        if (typ == Presence.Type.UNAVAILABLE) {
+            present.put(realAddr, Boolean.FALSE);
+            mLog.message(realAddr, realjid, null,
+                nick+" has left the chat.");
+            return PRESENCE_OUT;
+        }
+        return 0;
     }
 
     /**
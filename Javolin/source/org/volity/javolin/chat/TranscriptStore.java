@@ -0,0 +1,916 @@
+package org.volity.javolin.chat;
+
+import java.io.*;
+import java.util.*;
+import org.jivesoftware.smack.util.Metrics;
+
+/**
+ * An on-disk store of chat transcripts: one Transcript for each one-on-one
+ * chat, MUC room, or game table. Messages are appended by a background
+ * thread, so the Swing thread never waits for the disk.
+ *
+ * Each transcript is a directory under the store's directory. It contains
+ * numbered segment files ("000001.log" and so on), each holding up to
+ * SEGMENT_SIZE bytes of messages, one per line. When a segment fills up, it
+ * is sealed: a word filter of everything in it is written beside it
+ * ("000001.words"), and later messages go into a new segment.
+ *
+ * The "index" file holds a 16-byte entry (time, segment, offset) for the
+ * first message of every segment and every INDEX_INTERVAL'th message after
+ * that. The time is the latest message time seen so far, so the index is
+ * always in order, even if delayed messages aren't. This lets
+ * readBefore() find a page of older messages by reading just a block or two
+ * of a segment.
+ *
+ * search() reads segments one line at a time, newest first, and skips any
+ * sealed segment whose word filter rules out a match.
+ *
+ * The writer thread collects messages for BATCH_INTERVAL milliseconds at a
+ * time, writes them out, and then syncs each file it wrote to once. So a
+ * message may take a second or so to reach the disk, and a crash loses at
+ * most that much.
+ */
+public class TranscriptStore
+{
+    protected final static int SEGMENT_SIZE = 256 * 1024;
+    protected final static int INDEX_INTERVAL = 32;
+    protected final static int INDEX_ENTRY_SIZE = 16;
+    protected final static long BATCH_INTERVAL = 1000;
+
+    // Word filter size, in bytes, and number of hashes per word.
+    protected final static int FILTER_SIZE = 4096;
+    protected final static int FILTER_HASHES = 3;
+
+    protected final static Metrics.Counter MESSAGES =
+        Metrics.getCounter("transcript.messages");
+    protected final static Metrics.Counter SYNCS =
+        Metrics.getCounter("transcript.syncs");
+    protected final static Metrics.Counter SEGMENTS_SKIPPED =
+        Metrics.getCounter("transcript.search.skipped");
+    protected final static Metrics.Timing SEARCH_TIME =
+        Metrics.getTiming("transcript.search");
+
+    protected File mDir;
+    protected Map mTranscripts = new HashMap();
+
+    // Pending Entries, each knowing its Transcript
+    protected LinkedList mQueue = new LinkedList();
+    protected Thread mWriter = null;
+    protected boolean mClosing = false;
+
+    /**
+     * Constructor. The directory is created when the first message is
+     * written.
+     */
+    public TranscriptStore(File dir) {
+        mDir = dir;
+    }
+
+    /**
+     * Get the transcript of a conversation. The kind is "chat", "muc", or
+     * "table"; the name is the bare JID of the other party, or of the room.
+     */
+    public synchronized Transcript getTranscript(String kind, String name) {
+        String key = kind + "/" + name.toLowerCase();
+        Transcript transcript = (Transcript)mTranscripts.get(key);
+        if (transcript == null) {
+            File dir = new File(new File(mDir, kind),
+                nameToDirName(name.toLowerCase()));
+            transcript = new Transcript(dir);
+            mTranscripts.put(key, transcript);
+        }
+        return transcript;
+    }
+
+    /**
+     * Search every transcript in the store for messages containing all the
+     * words of the query. Returns up to max Entries, newest first within
+     * each transcript.
+     */
+    public List search(String query, int max) {
+        List res = new ArrayList();
+        String[] kinds = mDir.list();
+        if (kinds == null)
+            return res;
+        Arrays.sort(kinds);
+
+        for (int ix=0; ix<kinds.length && res.size() < max; ix++) {
+            String[] names = new File(mDir, kinds[ix]).list();
+            if (names == null)
+                continue;
+            Arrays.sort(names);
+            for (int jx=0; jx<names.length && res.size() < max; jx++) {
+                Transcript transcript = getTranscript(kinds[ix],
+                    dirNameToName(names[jx]));
+                res.addAll(transcript.search(query, max - res.size()));
+            }
+        }
+        return res;
+    }
+
+    /**
+     * Write out everything pending, stop the writer thread, and close all
+     * the files. Call this when the application exits.
+     */
+    public void close() {
+        Thread writer;
+        synchronized (mQueue) {
+            mClosing = true;
+            mQueue.notifyAll();
+            writer = mWriter;
+        }
+        if (writer != null) {
+            try {
+                writer.join(5000);
+            }
+            catch (InterruptedException ex) { }
+        }
+
+        synchronized (this) {
+            for (Iterator it = mTranscripts.values().iterator(); it.hasNext(); ) {
+                Transcript transcript = (Transcript)it.next();
+                transcript.closeFile();
+            }
+        }
+    }
+
+    /**
+     * Hand an entry to the writer thread, starting it if need be.
+     */
+    protected void enqueue(Entry entry) {
+        synchronized (mQueue) {
+            if (mClosing)
+                return;
+            mQueue.addLast(entry);
+            if (mWriter == null) {
+                mWriter = new Thread("Transcript writer") {
+                        public void run() {
+                            writeLoop();
+                        }
+                    };
+                mWriter.setDaemon(true);
+                mWriter.start();
+            }
+            mQueue.notifyAll();
+        }
+    }
+
+    /**
+     * The body of the writer thread.
+     */
+    protected void writeLoop() {
+        while (true) {
+            List batch;
+            synchronized (mQueue) {
+                while (mQueue.isEmpty() && !mClosing) {
+                    try {
+                        mQueue.wait();
+                    }
+                    catch (InterruptedException ex) { }
+                }
+                if (mQueue.isEmpty())
+                    break;
+                batch = new ArrayList(mQueue);
+                mQueue.clear();
+            }
+
+            // Write the batch, remembering which transcripts it touched.
+            List dirty = new ArrayList();
+            for (int ix=0; ix<batch.size(); ix++) {
+                Entry entry = (Entry)batch.get(ix);
+                try {
+                    entry.mTranscript.write(entry);
+                    if (!dirty.contains(entry.mTranscript))
+                        dirty.add(entry.mTranscript);
+                }
+                catch (IOException ex) {
+                    // Drop the message; the chat itself is still on screen.
+                }
+            }
+            for (int ix=0; ix<dirty.size(); ix++) {
+                Transcript transcript = (Transcript)dirty.get(ix);
+                transcript.sync();
+                SYNCS.increment();
+            }
+
+            // Let more messages gather before the next batch.
+            synchronized (mQueue) {
+                if (!mClosing) {
+                    try {
+                        mQueue.wait(BATCH_INTERVAL);
+                    }
+                    catch (InterruptedException ex) { }
+                }
+            }
+        }
+    }
+
+    /**
+     * Turn a JID into a directory name, in the manner of UIFileCache: keep
+     * alphanumerics, ".", "-", and "@", and turn anything else into "$HH".
+     */
+    protected static String nameToDirName(String name) {
+        StringBuffer res = new StringBuffer();
+        for (int ix=0; ix<name.length(); ix++) {
+            char ch = name.charAt(ix);
+            if ((ch >= 'a' && ch <= 'z')
+                || (ch >= 'A' && ch <= 'Z')
+                || (ch >= '0' && ch <= '9')
+                || ch == '.' || ch == '-' || ch == '@') {
+                res.append(ch);
+            }
+            else {
+                res.append('$');
+                res.append(Integer.toHexString((int)ch));
+                res.append(';');
+            }
+        }
+        return res.toString();
+    }
+
+    /**
+     * Undo nameToDirName().
+     */
+    protected static String dirNameToName(String dirName) {
+        StringBuffer res = new StringBuffer();
+        for (int ix=0; ix<dirName.length(); ix++) {
+            char ch = dirName.charAt(ix);
+            int end;
+            if (ch == '$' && (end = dirName.indexOf(';', ix)) > ix) {
+                try {
+                    res.append((char)Integer.parseInt(
+                                   dirName.substring(ix+1, end), 16));
+                    ix = end;
+                    continue;
+                }
+                catch (NumberFormatException ex) { }
+            }
+            res.append(ch);
+        }
+        return res.toString();
+    }
+
+    /**
+     * Split text into lower-case words, for searching.
+     */
+    protected static List words(String text) {
+        List res = new ArrayList();
+        if (text == null)
+            return res;
+        int start = -1;
+        for (int ix=0; ix<=text.length(); ix++) {
+            boolean inWord = (ix < text.length()
+                && Character.isLetterOrDigit(text.charAt(ix)));
+            if (inWord && start < 0) {
+                start = ix;
+            }
+            else if (!inWord && start >= 0) {
+                res.add(text.substring(start, ix).toLowerCase());
+                start = -1;
+            }
+        }
+        return res;
+    }
+
+    /**
+     * Set the bits of a word in a word filter.
+     */
+    protected static void addToFilter(byte[] filter, String word) {
+        int hash = word.hashCode();
+        int step = (hash >>> 16) | (hash << 16) | 1;
+        for (int ix=0; ix<FILTER_HASHES; ix++) {
+            int bit = ((hash + ix * step) & 0x7fffffff) % (filter.length * 8);
+            filter[bit >> 3] |= (1 << (bit & 7));
+        }
+    }
+
+    /**
+     * Check whether a word may be in a word filter.
+     */
+    protected static boolean mayContain(byte[] filter, String word) {
+        int hash = word.hashCode();
+        int step = (hash >>> 16) | (hash << 16) | 1;
+        for (int ix=0; ix<FILTER_HASHES; ix++) {
+            int bit = ((hash + ix * step) & 0x7fffffff) % (filter.length * 8);
+            if ((filter[bit >> 3] & (1 << (bit & 7))) == 0)
+                return false;
+        }
+        return true;
+    }
+
+    /**
+     * One message in a transcript.
+     */
+    public static class Entry {
+        protected final static String NULL_FIELD = "\\0";
+
+        long mTime;
+        boolean mRealJID;
+        String mJID;
+        String mNick;
+        String mText;
+        Transcript mTranscript;
+        // Where the entry was read from: segment (0 if it wasn't read
+        // from a transcript) and byte offset of its line.
+        int mSegment = 0;
+        int mOffset = 0;
+
+        public Entry(long time, String jid, boolean realjid, String nick,
+            String text) {
+            mTime = time;
+            mJID = jid;
+            mRealJID = realjid;
+            mNick = nick;
+            mText = text;
+        }
+
+        /** The time of the message, in milliseconds. */
+        public long getTime() { return mTime; }
+        /** The JID of the sender, or null. */
+        public String getJID() { return mJID; }
+        /** Whether the JID is a real one, or a MUC identifier. */
+        public boolean isRealJID() { return mRealJID; }
+        /** The nickname shown with the message, or null. */
+        public String getNick() { return mNick; }
+        /** The message text. */
+        public String getText() { return mText; }
+
+        /**
+         * Encode the entry as one line: time, flag, JID, nick, and text,
+         * separated by tabs. Backslashes, tabs, and line breaks in the
+         * fields are escaped. A null field is written as a backslash and a
+         * zero, which escaping never produces, so that it reads back as null
+         * rather than as an empty string.
+         */
+        protected String toLine() {
+            StringBuffer buf = new StringBuffer();
+            buf.append(mTime);
+            buf.append('\t');
+            buf.append(mRealJID ? '1' : '0');
+            buf.append('\t');
+            escape(buf, mJID);
+            buf.append('\t');
+            escape(buf, mNick);
+            buf.append('\t');
+            escape(buf, mText);
+            buf.append('\n');
+            return buf.toString();
+        }
+
+        /**
+         * Decode a line written by toLine(). Returns null if the line is
+         * damaged (as the last line may be, after a crash).
+         */
+        protected static Entry fromLine(String line) {
+            String[] fields = new String[5];
+            int start = 0;
+            for (int ix=0; ix<4; ix++) {
+                int end = line.indexOf('\t', start);
+                if (end < 0)
+                    return null;
+                fields[ix] = line.substring(start, end);
+                start = end+1;
+            }
+            fields[4] = line.substring(start);
+
+            try {
+                long time = Long.parseLong(fields[0]);
+                return new Entry(time, unescape(fields[2]),
+                    fields[1].equals("1"), unescape(fields[3]),
+                    unescape(fields[4]));
+            }
+            catch (NumberFormatException ex) {
+                return null;
+            }
+        }
+
+        protected static void escape(StringBuffer buf, String val) {
+            if (val == null) {
+                buf.append(NULL_FIELD);
+                return;
+            }
+            for (int ix=0; ix<val.length(); ix++) {
+                char ch = val.charAt(ix);
+                switch (ch) {
+                case '\\': buf.append("\\\\"); break;
+                case '\t': buf.append("\\t"); break;
+                case '\n': buf.append("\\n"); break;
+                case '\r': buf.append("\\r"); break;
+                default: buf.append(ch);
+                }
+            }
+        }
+
+        protected static String unescape(String val) {
+            if (val.equals(NULL_FIELD))
+                return null;
+            if (val.indexOf('\\') < 0)
+                return val;
+            StringBuffer buf = new StringBuffer();
+            for (int ix=0; ix<val.length(); ix++) {
+                char ch = val.charAt(ix);
+                if (ch == '\\' && ix+1 < val.length()) {
+                    ch = val.charAt(++ix);
+                    if (ch == 't')
+                        ch = '\t';
+                    else if (ch == 'n')
+                        ch = '\n';
+                    else if (ch == 'r')
+                        ch = '\r';
+                }
+                buf.append(ch);
+            }
+            return buf.toString();
+        }
+    }
+
+    /**
+     * The transcript of one conversation. Messages are added with
+     * record(), which returns at once; reading and searching happen on the
+     * caller's thread.
+     */
+    public class Transcript {
+        protected File mDir;
+        protected boolean mOpened = false;
+
+        // The time index, in memory
+        protected long[] mIndexTimes = new long[16];
+        protected int[] mIndexSegments = new int[16];
+        protected int[] mIndexOffsets = new int[16];
+        protected int mIndexCount = 0;
+        protected long mLatestTime = 0;
+
+        // The segment being written
+        protected int mSegment = 0;
+        protected int mSegmentLength = 0;
+        protected int mSinceIndexed = 0;
+        protected FileOutputStream mOut = null;
+        protected FileOutputStream mIndexOut = null;
+
+        protected Transcript(File dir) {
+            mDir = dir;
+        }
+
+        /**
+         * Add a message to the transcript. It is written in the background.
+         */
+        public void record(long time, String jid, boolean realjid,
+            String nick, String text) {
+            Entry entry = new Entry(time, jid, realjid, nick, text);
+            entry.mTranscript = this;
+            enqueue(entry);
+        }
+
+        /**
+         * Get the most recent messages, oldest first.
+         */
+        public List readRecent(int count) {
+            return readBefore(Long.MAX_VALUE, count);
+        }
+
+        /**
+         * Get up to count messages from before the given time, oldest first.
+         * To page back through a transcript, use readBefore(Entry, int)
+         * instead; messages which share a time would be skipped here.
+         */
+        public synchronized List readBefore(long time, int count) {
+            LinkedList res = new LinkedList();
+            try {
+                open();
+            }
+            catch (IOException ex) {
+                return res;
+            }
+
+            // Find the first block which starts at or after the time; the
+            // messages we want are in the blocks before it.
+            int lo = 0, hi = mIndexCount;
+            while (lo < hi) {
+                int mid = (lo + hi) >>> 1;
+                if (mIndexTimes[mid] < time)
+                    lo = mid+1;
+                else
+                    hi = mid;
+            }
+
+            for (int block = lo-1; block >= 0 && res.size() < count; block--) {
+                List entries = readBlock(block);
+                for (int ix=entries.size()-1; ix>=0 && res.size() < count; ix--) {
+                    Entry entry = (Entry)entries.get(ix);
+                    if (entry.mTime < time)
+                        res.addFirst(entry);
+                }
+            }
+            return res;
+        }
+
+        /**
+         * Get up to count messages which were recorded before the given
+         * one, oldest first. To page back through a transcript, pass the
+         * oldest message already shown. Messages are found by their place
+         * in the transcript, so none are skipped when several share a
+         * time. An entry which didn't come from this transcript is paged
+         * from by its time.
+         */
+        public synchronized List readBefore(Entry before, int count) {
+            if (before.mSegment == 0)
+                return readBefore(before.mTime, count);
+
+            LinkedList res = new LinkedList();
+            try {
+                open();
+            }
+            catch (IOException ex) {
+                return res;
+            }
+
+            // Find the first block which starts after the entry; the
+            // messages we want are in the blocks before it.
+            int lo = 0, hi = mIndexCount;
+            while (lo < hi) {
+                int mid = (lo + hi) >>> 1;
+                if (mIndexSegments[mid] < before.mSegment
+                    || (mIndexSegments[mid] == before.mSegment
+                        && mIndexOffsets[mid] <= before.mOffset))
+                    lo = mid+1;
+                else
+                    hi = mid;
+            }
+
+            for (int block = lo-1; block >= 0 && res.size() < count; block--) {
+                List entries = readBlock(block);
+                for (int ix=entries.size()-1; ix>=0 && res.size() < count; ix--) {
+                    Entry entry = (Entry)entries.get(ix);
+                    if (entry.mSegment < before.mSegment
+                        || (entry.mSegment == before.mSegment
+                            && entry.mOffset < before.mOffset))
+                        res.addFirst(entry);
+                }
+            }
+            return res;
+        }
+
+        /**
+         * Find messages containing all the words of the query. Returns up
+         * to max Entries, newest first.
+         */
+        public synchronized List search(String query, int max) {
+            long start = System.currentTimeMillis();
+            List res = new ArrayList();
+            List words = words(query);
+            if (words.isEmpty())
+                return res;
+            try {
+                open();
+            }
+            catch (IOException ex) {
+                return res;
+            }
+
+            for (int seg = mSegment; seg >= 1 && res.size() < max; seg--) {
+                byte[] filter = readFilter(seg);
+                if (filter != null) {
+                    boolean possible = true;
+                    for (int ix=0; ix<words.size() && possible; ix++)
+                        possible = mayContain(filter, (String)words.get(ix));
+                    if (!possible) {
+                        SEGMENTS_SKIPPED.increment();
+                        continue;
+                    }
+                }
+
+                // Matches come out oldest first; we want the newest.
+                LinkedList found = new LinkedList();
+                try {
+                    BufferedReader reader = openSegmentReader(seg);
+                    try {
+                        String line;
+                        while ((line = reader.readLine()) != null) {
+                            Entry entry = Entry.fromLine(line);
+                            if (entry == null || !matches(entry, words))
+                                continue;
+                            found.addFirst(entry);
+                            if (found.size() > max - res.size())
+                                found.removeLast();
+                        }
+                    }
+                    finally {
+                        reader.close();
+                    }
+                }
+                catch (IOException ex) { }
+                res.addAll(found);
+            }
+            SEARCH_TIME.recordSince(start);
+            return res;
+        }
+
+        protected boolean matches(Entry entry, List words) {
+            List have = words(entry.mText);
+            have.addAll(words(entry.mNick));
+            return have.containsAll(words);
+        }
+
+        /**
+         * Write one message to the current segment. Called on the writer
+         * thread.
+         */
+        protected synchronized void write(Entry entry) throws IOException {
+            open();
+            byte[] data = entry.toLine().getBytes("UTF-8");
+
+            if (mOut == null) {
+                // Carry on with the last segment, if there is one.
+                if (mSegment > 0 && mSegmentLength < SEGMENT_SIZE)
+                    startSegment(mSegment);
+                else
+                    startSegment(mSegment + 1);
+            }
+            if (mSegmentLength > 0
+                && mSegmentLength + data.length > SEGMENT_SIZE) {
+                seal();
+                startSegment(mSegment + 1);
+            }
+
+            mLatestTime = Math.max(mLatestTime, entry.mTime);
+            if (mSegmentLength == 0 || mSinceIndexed >= INDEX_INTERVAL)
+                addIndexEntry(mLatestTime, mSegment, mSegmentLength);
+
+            mOut.write(data);
+            mSegmentLength += data.length;
+            mSinceIndexed++;
+            MESSAGES.increment();
+        }
+
+        /**
+         * Force what has been written out to the disk.
+         */
+        protected synchronized void sync() {
+            try {
+                if (mOut != null)
+                    mOut.getFD().sync();
+                if (mIndexOut != null)
+                    mIndexOut.getFD().sync();
+            }
+            catch (IOException ex) { }
+        }
+
+        protected synchronized void closeFile() {
+            try {
+                if (mOut != null)
+                    mOut.close();
+                if (mIndexOut != null)
+                    mIndexOut.close();
+            }
+            catch (IOException ex) { }
+            mOut = null;
+            mIndexOut = null;
+            mOpened = false;
+            mIndexCount = 0;
+        }
+
+        /**
+         * Load the index, if that hasn't been done yet, and find where
+         * writing should continue.
+         */
+        protected void open() throws IOException {
+            if (mOpened)
+                return;
+            mOpened = true;
+            mIndexCount = 0;
+            mSegment = 0;
+            mSegmentLength = 0;
+            mSinceIndexed = 0;
+
+            File indexFile = new File(mDir, "index");
+            if (indexFile.exists()) {
+                int count = (int)(indexFile.length() / INDEX_ENTRY_SIZE);
+                DataInputStream in = new DataInputStream(
+                    new BufferedInputStream(new FileInputStream(indexFile)));
+                try {
+                    for (int ix=0; ix<count; ix++) {
+                        long time = in.readLong();
+                        int seg = in.readInt();
+                        int offset = in.readInt();
+                        storeIndexEntry(time, seg, offset);
+                    }
+                }
+                finally {
+                    in.close();
+                }
+
+                // A partial last entry (left by a crash) is cut off, so
+                // that entries appended later line up.
+                if (indexFile.length() != count * INDEX_ENTRY_SIZE) {
+                    RandomAccessFile raf = new RandomAccessFile(indexFile, "rw");
+                    try {
+                        raf.setLength(count * INDEX_ENTRY_SIZE);
+                    }
+                    finally {
+                        raf.close();
+                    }
+                }
+            }
+
+            if (mIndexCount > 0) {
+                mLatestTime = mIndexTimes[mIndexCount-1];
+                mSegment = mIndexSegments[mIndexCount-1];
+                mSegmentLength = (int)segmentFile(mSegment).length();
+                // Count the messages since the last index entry, so that
+                // the next one goes in the right place.
+                List tail = readBlock(mIndexCount-1);
+                mSinceIndexed = tail.size();
+                for (int ix=0; ix<tail.size(); ix++)
+                    mLatestTime = Math.max(mLatestTime,
+                        ((Entry)tail.get(ix)).mTime);
+            }
+        }
+
+        /**
+         * Start writing to a new segment. (Or continue writing to the last
+         * segment, when the transcript has been reopened.)
+         */
+        protected void startSegment(int seg) throws IOException {
+            mDir.mkdirs();
+            File file = segmentFile(seg);
+            boolean damaged = false;
+            if (file.length() > 0) {
+                // If the last line was cut off, end it, so that the next
+                // one starts cleanly.
+                RandomAccessFile raf = new RandomAccessFile(file, "r");
+                try {
+                    raf.seek(raf.length() - 1);
+                    damaged = (raf.read() != '\n');
+                }
+                finally {
+                    raf.close();
+                }
+            }
+
+            mOut = new FileOutputStream(file.getPath(), true);
+            if (mIndexOut == null)
+                mIndexOut = new FileOutputStream(
+                    new File(mDir, "index").getPath(), true);
+            if (mSegment != seg) {
+                mSegment = seg;
+                mSinceIndexed = 0;
+            }
+            mSegmentLength = (int)file.length();
+            if (damaged) {
+                mOut.write('\n');
+                mSegmentLength++;
+            }
+        }
+
+        /**
+         * Close the current segment and write its word filter.
+         */
+        protected void seal() throws IOException {
+            mOut.close();
+            mOut = null;
+
+            byte[] filter = new byte[FILTER_SIZE];
+            BufferedReader reader = openSegmentReader(mSegment);
+            try {
+                String line;
+                while ((line = reader.readLine()) != null) {
+                    Entry entry = Entry.fromLine(line);
+                    if (entry == null)
+                        continue;
+                    List words = words(entry.mText);
+                    words.addAll(words(entry.mNick));
+                    for (int ix=0; ix<words.size(); ix++)
+                        addToFilter(filter, (String)words.get(ix));
+                }
+            }
+            finally {
+                reader.close();
+            }
+
+            File tmp = new File(mDir, segmentName(mSegment) + ".tmp");
+            FileOutputStream out = new FileOutputStream(tmp);
+            try {
+                out.write(filter);
+                out.getFD().sync();
+            }
+            finally {
+                out.close();
+            }
+            tmp.renameTo(filterFile(mSegment));
+        }
+
+        protected void addIndexEntry(long time, int seg, int offset)
+            throws IOException {
+            ByteArrayOutputStream buf = new ByteArrayOutputStream(INDEX_ENTRY_SIZE);
+            DataOutputStream out = new DataOutputStream(buf);
+            out.writeLong(time);
+            out.writeInt(seg);
+            out.writeInt(offset);
+            mIndexOut.write(buf.toByteArray());
+            storeIndexEntry(time, seg, offset);
+            mSinceIndexed = 0;
+        }
+
+        protected void storeIndexEntry(long time, int seg, int offset) {
+            if (mIndexCount == mIndexTimes.length) {
+                int size = mIndexCount * 2;
+                long[] times = new long[size];
+                int[] segs = new int[size];
+                int[] offsets = new int[size];
+                System.arraycopy(mIndexTimes, 0, times, 0, mIndexCount);
+                System.arraycopy(mIndexSegments, 0, segs, 0, mIndexCount);
+                System.arraycopy(mIndexOffsets, 0, offsets, 0, mIndexCount);
+                mIndexTimes = times;
+                mIndexSegments = segs;
+                mIndexOffsets = offsets;
+            }
+            mIndexTimes[mIndexCount] = time;
+            mIndexSegments[mIndexCount] = seg;
+            mIndexOffsets[mIndexCount] = offset;
+            mIndexCount++;
+        }
+
+        /**
+         * Read the messages of one block: from one index entry up to the
+         * next (or the end of the segment).
+         */
+        protected List readBlock(int block) {
+            List res = new ArrayList();
+            int seg = mIndexSegments[block];
+            int start = mIndexOffsets[block];
+            int end = -1;
+            if (block+1 < mIndexCount && mIndexSegments[block+1] == seg)
+                end = mIndexOffsets[block+1];
+
+            try {
+                RandomAccessFile raf = new RandomAccessFile(segmentFile(seg), "r");
+                try {
+                    if (end < 0 || end > raf.length())
+                        end = (int)raf.length();
+                    if (end <= start)
+                        return res;
+                    byte[] data = new byte[end - start];
+                    raf.seek(start);
+                    raf.readFully(data);
+
+                    int pos = 0;
+                    for (int ix=0; ix<data.length; ix++) {
+                        if (data[ix] != '\n')
+                            continue;
+                        Entry entry = Entry.fromLine(
+                            new String(data, pos, ix-pos, "UTF-8"));
+                        if (entry != null) {
+                            entry.mSegment = seg;
+                            entry.mOffset = start + pos;
+                            res.add(entry);
+                        }
+                        pos = ix+1;
+                    }
+                }
+                finally {
+                    raf.close();
+                }
+            }
+            catch (IOException ex) { }
+            return res;
+        }
+
+        protected byte[] readFilter(int seg) {
+            File file = filterFile(seg);
+            if (file.length() != FILTER_SIZE)
+                return null;
+            byte[] filter = new byte[FILTER_SIZE];
+            try {
+                DataInputStream in = new DataInputStream(new FileInputStream(file));
+                try {
+                    in.readFully(filter);
+                }
+                finally {
+                    in.close();
+                }
+            }
+            catch (IOException ex) {
+                return null;
+            }
+            return filter;
+        }
+
+        protected BufferedReader openSegmentReader(int seg) throws IOException {
+            return new BufferedReader(new InputStreamReader(
+                new FileInputStream(segmentFile(seg)), "UTF-8"));
+        }
+
+        protected String segmentName(int seg) {
+            String val = "00000" + seg;
+            return val.substring(val.length() - 6);
+        }
+
+        protected File segmentFile(int seg) {
+            return new File(mDir, segmentName(seg) + ".log");
+        }
+
+        protected File filterFile(int seg) {
+            return new File(mDir, segmentName(seg) + ".words");
+        }
+    }
+}
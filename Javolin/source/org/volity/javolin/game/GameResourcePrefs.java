@@ -4,26 +4,75 @@ import java.io.File;
 import java.io.IOException;
 import java.net.URI;
 import java.net.URL;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Timer;
+import java.util.TimerTask;
 import java.util.prefs.Preferences;
+import org.jivesoftware.smack.util.Metrics;
 import org.volity.client.protocols.volresp.ResourcePrefs;
 import org.volity.javolin.ErrorWrapper;
 
 /**
  * Provides access to the game-resource preferences.
+ *
+ * Finding a resource's main file means asking the server whether the cached
+ * copy is current, so the answer is remembered. For a while (the freshness
+ * window) the remembered file is returned with no checking at all; after
+ * that, it is still returned at once, and checked again in the background.
+ * The window is ten minutes, or the number of seconds in the
+ * org.volity.resourceFreshness system property. The metrics volresp.hit,
+ * volresp.miss and volresp.refresh count how this goes.
  */
 public class GameResourcePrefs implements ResourcePrefs
 {
     public final static String NODENAME = "GameResourcePrefs";
     // keys are URIs
 
+    protected final static Metrics.Counter HITS =
+        Metrics.getCounter("volresp.hit");
+    protected final static Metrics.Counter MISSES =
+        Metrics.getCounter("volresp.miss");
+    protected final static Metrics.Counter REFRESHES =
+        Metrics.getCounter("volresp.refresh");
+    protected final static Metrics.Timing RESOLVE_TIME =
+        Metrics.getTiming("volresp.resolve");
+
+    protected static long sFreshness = 10 * 60 * 1000;
+
+    static {
+        String val = System.getProperty("org.volity.resourceFreshness");
+        if (val != null) {
+            try {
+                sFreshness = Long.parseLong(val) * 1000;
+            }
+            catch (NumberFormatException ex) { }
+        }
+    }
+
     UIFileCache mCache;
 
+    // Resource URI string -> Resolution
+    Map mResolved = new HashMap();
+    Timer mRefresher = null;
+
+    /**
+     * What a resource URI was last found to mean.
+     */
+    protected static class Resolution {
+        String urlstr;    // the preference it was resolved from
+        File mainFile;
+        int generation;   // of the UIFileCache, when resolved
+        long checked;     // when resolved, or last refreshed
+        boolean refreshing = false;
+    }
+
     /** Constructor. */
     public GameResourcePrefs(UIFileCache cache) {
         mCache = cache;
     }
 
-    /** 
+    /**
      * Set the resource URL for the given resource URI. Pass null to specify
      * the default as the preference.
      */
@@ -33,9 +82,13 @@ public class GameResourcePrefs implements ResourcePrefs
             prefs.put(uri.toString(), url.toString());
         else
             prefs.remove(uri.toString());
+
+        synchronized (mResolved) {
+            mResolved.remove(uri.toString());
+        }
     }
 
-    /** 
+    /**
      * Get the resource URL for the given resource URI. If the preference is
      * for the default resource, returns null.
      */
@@ -62,24 +115,102 @@ public class GameResourcePrefs implements ResourcePrefs
      */
     public File getResource(URI uri) {
         Preferences prefs = Preferences.userNodeForPackage(getClass()).node(NODENAME);
-        String urlstr = prefs.get(uri.toString(), null);
+        String key = uri.toString();
+        String urlstr = prefs.get(key, null);
         if (urlstr == null)
             return null;
 
-        try {
-            URL url = new URL(urlstr);
-            File uiDir = mCache.getUIDir(url);
-            uiDir = UIFileCache.locateTopDirectory(uiDir);
+        synchronized (mResolved) {
+            Resolution res = (Resolution)mResolved.get(key);
+            if (res != null && res.urlstr.equals(urlstr)
+                && res.generation == mCache.getGeneration()) {
+                HITS.increment();
+                if (!res.refreshing
+                    && System.currentTimeMillis() - res.checked >= sFreshness) {
+                    res.refreshing = true;
+                    scheduleRefresh(key, res);
+                }
+                return res.mainFile;
+            }
+        }
 
-            // If there's exactly one file, that's it. Otherwise, look for
-            // main.svg or MAIN.SVG.
-            File uiMainFile = UIFileCache.locateMainFile(uiDir);
-            return uiMainFile;
+        MISSES.increment();
+        try {
+            File mainFile = resolve(urlstr);
+            remember(key, urlstr, mainFile);
+            return mainFile;
         }
         catch (Exception ex) {
             new ErrorWrapper(ex);
-            return null;            
+            return null;
+        }
+    }
+
+    /**
+     * Forget every resolved resource, so that the next request for each
+     * checks the server.
+     */
+    public void forgetResources() {
+        synchronized (mResolved) {
+            mResolved.clear();
+        }
+    }
+
+    /**
+     * Find the main file of a resource, downloading it if need be.
+     */
+    protected File resolve(String urlstr) throws IOException {
+        long start = System.currentTimeMillis();
+        URL url = new URL(urlstr);
+        File uiDir = mCache.getUIDir(url);
+        uiDir = UIFileCache.locateTopDirectory(uiDir);
+
+        // If there's exactly one file, that's it. Otherwise, look for
+        // main.svg or MAIN.SVG.
+        File uiMainFile = UIFileCache.locateMainFile(uiDir);
+        RESOLVE_TIME.recordSince(start);
+        return uiMainFile;
+    }
+
+    protected void remember(String key, String urlstr, File mainFile) {
+        Resolution res = new Resolution();
+        res.urlstr = urlstr;
+        res.mainFile = mainFile;
+        res.generation = mCache.getGeneration();
+        res.checked = System.currentTimeMillis();
+        synchronized (mResolved) {
+            mResolved.put(key, res);
         }
     }
 
+    /**
+     * Check a resolved resource again, on the background thread. If that
+     * fails, keep the old answer until the window runs out again.
+     */
+    protected void scheduleRefresh(final String key, final Resolution old) {
+        synchronized (mResolved) {
+            if (mRefresher == null)
+                mRefresher = new Timer(true);
+        }
+        mRefresher.schedule(new TimerTask() {
+                public void run() {
+                    REFRESHES.increment();
+                    try {
+                        File mainFile = resolve(old.urlstr);
+                        synchronized (mResolved) {
+                            // Unless the preference changed meanwhile
+                            if (mResolved.get(key) != old)
+                                return;
+                        }
+                        remember(key, old.urlstr, mainFile);
+                    }
+                    catch (Exception ex) {
+                        synchronized (mResolved) {
+                            old.checked = System.currentTimeMillis();
+                            old.refreshing = false;
+                        }
+                    }
+                }
+            }, 0);
+    }
 }
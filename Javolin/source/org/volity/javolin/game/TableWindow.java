@@ -133,6 +133,9 @@ public class TableWindow extends JFrame
     private UserColorMap mColorMap;
     private SimpleDateFormat mTimeStampFormat;
 
+    private EventBatcher mBatcher;
+    private boolean mAdjustPending = false;
+
     private SizeAndPositionSaver mSizePosSaver;
     private GameServer mParlor;
     private GameTable mGameTable;
@@ -183,6 +186,14 @@ public class TableWindow extends JFrame
         mNickname = nickname;
         mUIUrl = uiUrl;    // We save this only for the sake of the info dialog
 
+        // Packets and table-status changes are delivered to the Swing thread
+        // in batches.
+        mBatcher = new EventBatcher(new EventBatcher.Receiver() {
+                public void receiveBatch(List events) {
+                    doEventsReceived(events);
+                }
+            });
+
         // We must now locate the "main" files in the UI directory. First, find
         // the directory which actually contains the significant files.
         uiDir = UIFileCache.locateTopDirectory(uiDir);
@@ -275,6 +286,9 @@ public class TableWindow extends JFrame
         mPayPanel = new PayPanel(mParlor, mGameTable);
 
         buildUI();
+        if (PrefsDialog.getChatKeepTranscripts())
+            mLog.setTranscript(JavolinApp.getTranscriptStore().getTranscript(
+                                   "table", mGameTable.getRoom()));
 
         setSize(600, 600);
         mSizePosSaver = new SizeAndPositionSaver(this, NODENAME);
@@ -383,22 +397,22 @@ public class TableWindow extends JFrame
                         break;
                     }
                     final String label = str;
-                    // Invoke into the Swing thread.
-                    SwingUtilities.invokeLater(new Runnable() {
+                    // The batcher passes it into the Swing thread.
+                    mBatcher.post(new Runnable() {
                             public void run() {
                                 mRefereeStatusLabel.setText(label);
-                                adjustButtons();
+                                mAdjustPending = true;
                             }
                         });
                 }
                 public void playerSeatChanged(final Player player, 
                     Seat oldseat, Seat newseat) {
                     // Called outside Swing thread!
-                    // Invoke into the Swing thread.
-                    SwingUtilities.invokeLater(new Runnable() {
+                    // The batcher passes it into the Swing thread.
+                    mBatcher.post(new Runnable() {
                             public void run() {
                                 if (player == mGameTable.getSelfPlayer()) {
-                                    adjustButtons();
+                                    mAdjustPending = true;
                                     setRecentReady(false);
                                 }
                             }
@@ -406,11 +420,11 @@ public class TableWindow extends JFrame
                 }
                 public void playerReady(final Player player, boolean flag) {
                     // Called outside Swing thread!
-                    // Invoke into the Swing thread.
-                    SwingUtilities.invokeLater(new Runnable() {
+                    // The batcher passes it into the Swing thread.
+                    mBatcher.post(new Runnable() {
                             public void run() {
                                 if (player == mGameTable.getSelfPlayer()) {
-                                    adjustButtons();
+                                    mAdjustPending = true;
                                     setRecentReady(false);
                                 }
                             }
@@ -664,6 +678,10 @@ public class TableWindow extends JFrame
      */
     public void leave() 
     {
+        if (mBatcher != null) {
+            mBatcher.dispose();
+        }
+
         if (mGameName != null) {
             releaseGameNameNumber(mGameName, mGameNameNumber);
             mGameName = null;
@@ -1273,58 +1291,110 @@ public class TableWindow extends JFrame
      */
     public void processPacket(final Packet packet)
     {
-        // Invoke into the Swing thread.
-        SwingUtilities.invokeLater(new Runnable() {
-                public void run() {
-                    if (packet instanceof Message) {
-                        doMessageReceived((Message)packet);
-                    }
-                    if (packet instanceof Presence) {
-                        Presence pres = (Presence)packet;
-
-                        String from = pres.getFrom();
-
-                        String nick = null;
-                        String realAddr = null;
-                        boolean realjid = false;
-
-                        PacketExtension ext = pres.getExtension("x",
-                            "http://jabber.org/protocol/muc#user");
-                        if (ext != null && ext instanceof MUCUser) {
-                            MUCUser userext = (MUCUser)ext;
-                            MUCUser.Item item = userext.getItem();
-                            if (item != null) {
-                                realAddr = item.getJid();
-                                realjid = true;
-                                nick = item.getNick();
-                            }
-                        }
-
-                        if (realAddr == null && from != null) {
-                            realAddr = from;
-                            realjid = false;
-                        }
+        // The batcher passes it into the Swing thread.
+        mBatcher.post(packet);
+    }
 
-                        if (nick == null && from != null) {
-                            nick = StringUtils.parseResource(from);
-                        }
+    /**
+     * Handle a batch of events, which have been passed into the Swing
+     * thread. These are packets, and Runnables from the table status
+     * listener. The messages all go into the log in a single edit, and the
+     * toolbar buttons are adjusted once, at the end.
+     *
+     * @param events  The events, in order.
+     */
+    private void doEventsReceived(List events)
+    {
+        boolean presenceIn = false;
+        boolean presenceOut = false;
 
-                        if (realAddr != null && nick != null) {
-                            Presence.Type typ = pres.getType();
-                            if (typ == Presence.Type.AVAILABLE) {
-                                mLog.message(realAddr, null,
-                                    nick+" "+localize("PlayerHasJoined"));
-                                Audio.playPresenceIn();
-                            }
-                            if (typ == Presence.Type.UNAVAILABLE) {
-                                mLog.message(realAddr, null,
-                                    nick+" "+localize("PlayerHasLeft"));
-                                Audio.playPresenceOut();
-                            }
-                        }
-                    }
+        mLog.startBatch();
+        try {
+            for (int ix=0; ix<events.size(); ix++) {
+                Object obj = events.get(ix);
+                if (obj instanceof Runnable) {
+                    ((Runnable)obj).run();
                 }
-            });
+                else if (obj instanceof Message) {
+                    doMessageReceived((Message)obj);
+                }
+                else if (obj instanceof Presence) {
+                    Presence.Type typ = doPresenceReceived((Presence)obj);
+                    if (typ == Presence.Type.AVAILABLE)
+                        presenceIn = true;
+                    else if (typ == Presence.Type.UNAVAILABLE)
+                        presenceOut = true;
+                }
+            }
+        }
+        finally {
+            mLog.endBatch();
+        }
+
+        // One of each sound is plenty.
+        if (presenceIn)
+            Audio.playPresenceIn();
+        if (presenceOut)
+            Audio.playPresenceOut();
+
+        if (mAdjustPending) {
+            mAdjustPending = false;
+            adjustButtons();
+        }
+    }
+
+    /**
+     * Handles a presence packet received from the MUC, reporting arrivals
+     * and departures in the log.
+     *
+     * @param pres  The Presence object that was received.
+     * @return      The type of presence reported (AVAILABLE or UNAVAILABLE),
+     *     or null if nothing was.
+     */
+    private Presence.Type doPresenceReceived(Presence pres)
+    {
+        String from = pres.getFrom();
+
+        String nick = null;
+        String realAddr = null;
+        boolean realjid = false;
+
+        PacketExtension ext = pres.getExtension("x",
+            "http://jabber.org/protocol/muc#user");
+        if (ext != null && ext instanceof MUCUser) {
+            MUCUser userext = (MUCUser)ext;
+            MUCUser.Item item = userext.getItem();
+            if (item != null) {
+                realAddr = item.getJid();
+                realjid = true;
+                nick = item.getNick();
+            }
+        }
+
+        if (realAddr == null && from != null) {
+            realAddr = from;
+            realjid = false;
+        }
+
+        if (nick == null && from != null) {
+            nick = StringUtils.parseResource(from);
+        }
+
+        if (realAddr == null || nick == null)
+            return null;
+
+        Presence.Type typ = pres.getType();
+        if (typ == Presence.Type.AVAILABLE) {
+            mLog.message(realAddr, null,
+                nick+" "+localize("PlayerHasJoined"));
+            return typ;
+        }
+        if (typ == Presence.Type.UNAVAILABLE) {
+            mLog.message(realAddr, null,
+                nick+" "+localize("PlayerHasLeft"));
+            return typ;
+        }
+        return null;
     }
 
     /**
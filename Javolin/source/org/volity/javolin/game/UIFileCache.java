@@ -39,12 +39,29 @@ import org.volity.javolin.PlatformWrapper;
  * out from under it. This will, in general, crash things. Possible solution:
  * don't update the cache if there are any existing windows with the same UI
  * URL.
+ *
+ * Requests for different UIs proceed in parallel: getUIDir() and the
+ * one-UI clearCache() only lock the UI they work on, so a slow download (or
+ * a background check) doesn't hold up the others. Clearing the whole cache
+ * waits for them all to finish.
  */
 public class UIFileCache
 {
     private Set mDownloadedFiles; // URLs of files downloaded during current session
     private File mFileCacheDir; // Cache of downloaded UI files
     private File mDirCacheDir; // Cache of unzipped UI directories
+    private volatile int mGeneration = 0; // Bumped whenever cache contents change
+
+    // Cache name -> UILock, for UIs being worked on. This is also the
+    // lock for the fields below.
+    private Map mLocks = new HashMap();
+    private int mActive = 0; // Number of UIs being worked on
+    private boolean mClearing = false; // Whole cache being cleared
+
+    /** The lock for one UI, and how many threads are using it. */
+    private static class UILock {
+        int users = 0;
+    }
 
     /**
      * Constructor.
@@ -55,7 +72,7 @@ public class UIFileCache
         mFileCacheDir = new File(cacheDirName, "UIFileCache");
         mDirCacheDir = new File(cacheDirName, "UIDirCache");
 
-        mDownloadedFiles = new HashSet();
+        mDownloadedFiles = Collections.synchronizedSet(new HashSet());
 
         // Create the cache dirs
         ensureCacheDirsExist();
@@ -124,6 +141,17 @@ public class UIFileCache
         return res.toString();            
     }
 
+    /**
+     * Return a number which changes whenever the contents of the cache
+     * change: a UI is downloaded or unpacked, or the cache is cleared. Callers
+     * who remember what they found in the cache can use this to tell when to
+     * forget it. (This doesn't wait for a download in progress.)
+     */
+    public int getGeneration()
+    {
+        return mGeneration;
+    }
+
     /**
      * Gets a File object corresponding to the package found at the
      * specified URL. The actual file at the URL is downloaded and
@@ -141,13 +169,31 @@ public class UIFileCache
      *                         item.
      * @exception ZipException If a ZIP file could not be unpacked.
      */
-    public File getUIDir(URL uiURL) throws IOException, ZipException
+    public File getUIDir(URL uiURL)
+        throws IOException, ZipException
+    {
+        String name = urlToCacheName(uiURL);
+        UILock lock = lockUI(name);
+        try {
+            synchronized (lock) {
+                return fetchUIDir(uiURL, name);
+            }
+        }
+        finally {
+            unlockUI(name, lock);
+        }
+    }
+
+    /**
+     * The body of getUIDir(), called with the UI's lock held.
+     */
+    private File fetchUIDir(URL uiURL, String name)
+        throws IOException, ZipException
     {
         // First, double-check that the cache dirs exist.
         ensureCacheDirsExist();
 
         // Figure out all the pathnames we'll be using.
-        String name = urlToCacheName(uiURL);
         File cacheFile = new File(mFileCacheDir, name);
         File cacheDir = new File(mDirCacheDir, name+".d");
 
@@ -207,6 +253,7 @@ public class UIFileCache
         }
 
         if (unzip) {
+            bumpGeneration();
             if (cacheDir.exists()) {
                 boolean success = deleteRecursively(cacheDir);
                 if (!success) 
@@ -266,10 +313,30 @@ public class UIFileCache
      */
     public void clearCache(boolean includeDirs)
     {
-        deleteRecursively(mFileCacheDir);
-        if (includeDirs)
-            deleteRecursively(mDirCacheDir);
-        ensureCacheDirsExist();
+        // Wait for any work on single UIs to finish, and hold off more.
+        synchronized (mLocks) {
+            while (mClearing || mActive > 0) {
+                try {
+                    mLocks.wait();
+                }
+                catch (InterruptedException ex) { }
+            }
+            mClearing = true;
+        }
+
+        try {
+            bumpGeneration();
+            deleteRecursively(mFileCacheDir);
+            if (includeDirs)
+                deleteRecursively(mDirCacheDir);
+            ensureCacheDirsExist();
+        }
+        finally {
+            synchronized (mLocks) {
+                mClearing = false;
+                mLocks.notifyAll();
+            }
+        }
     }
 
     /** 
@@ -285,19 +352,74 @@ public class UIFileCache
      */
     public void clearCache(URL uiURL, boolean includeDirs)
     {
-        ensureCacheDirsExist();
-
-        // Figure out all the pathnames we'll be using.
         String name = urlToCacheName(uiURL);
-        File cacheFile = new File(mFileCacheDir, name);
-        File cacheDir = new File(mDirCacheDir, name+".d");
+        UILock lock = lockUI(name);
+        try {
+            synchronized (lock) {
+                bumpGeneration();
+                ensureCacheDirsExist();
+
+                // Figure out all the pathnames we'll be using.
+                File cacheFile = new File(mFileCacheDir, name);
+                File cacheDir = new File(mDirCacheDir, name+".d");
+
+                if (cacheFile.exists())
+                    cacheFile.delete();
+
+                if (includeDirs) {
+                    if (cacheDir.exists())
+                        deleteRecursively(cacheDir);
+                }
+            }
+        }
+        finally {
+            unlockUI(name, lock);
+        }
+    }
 
-        if (cacheFile.exists())
-            cacheFile.delete();
+    /**
+     * Get the lock for one UI, waiting first if the whole cache is being
+     * cleared. The caller must synchronize on the lock, and pass it to
+     * unlockUI() when done.
+     */
+    private UILock lockUI(String name)
+    {
+        synchronized (mLocks) {
+            while (mClearing) {
+                try {
+                    mLocks.wait();
+                }
+                catch (InterruptedException ex) { }
+            }
+            UILock lock = (UILock)mLocks.get(name);
+            if (lock == null) {
+                lock = new UILock();
+                mLocks.put(name, lock);
+            }
+            lock.users++;
+            mActive++;
+            return lock;
+        }
+    }
 
-        if (includeDirs) {
-            if (cacheDir.exists())
-                deleteRecursively(cacheDir);
+    /**
+     * Release a lock got from lockUI().
+     */
+    private void unlockUI(String name, UILock lock)
+    {
+        synchronized (mLocks) {
+            lock.users--;
+            if (lock.users == 0)
+                mLocks.remove(name);
+            mActive--;
+            mLocks.notifyAll();
+        }
+    }
+
+    private void bumpGeneration()
+    {
+        synchronized (mLocks) {
+            mGeneration++;
         }
     }
 
@@ -0,0 +1,618 @@
+package org.volity.testbench;
+
+import java.awt.Dimension;
+import java.awt.Rectangle;
+import java.awt.geom.AffineTransform;
+import java.awt.geom.Dimension2D;
+import java.awt.image.BufferedImage;
+import java.io.*;
+import java.net.URL;
+import java.util.*;
+import javax.imageio.ImageIO;
+import org.apache.batik.bridge.BridgeContext;
+import org.apache.batik.bridge.DocumentLoader;
+import org.apache.batik.bridge.GVTBuilder;
+import org.apache.batik.bridge.NoRepaintRunnable;
+import org.apache.batik.bridge.UpdateManager;
+import org.apache.batik.bridge.UpdateManagerAdapter;
+import org.apache.batik.bridge.UpdateManagerEvent;
+import org.apache.batik.bridge.UserAgentAdapter;
+import org.apache.batik.bridge.ViewBox;
+import org.apache.batik.bridge.svg12.SVG12BridgeContext;
+import org.apache.batik.dom.svg.SAXSVGDocumentFactory;
+import org.apache.batik.dom.svg.SVGOMDocument;
+import org.apache.batik.gvt.GraphicsNode;
+import org.apache.batik.gvt.renderer.ConcreteImageRendererFactory;
+import org.apache.batik.gvt.renderer.ImageRenderer;
+import org.apache.batik.script.Interpreter;
+import org.apache.batik.script.InterpreterFactory;
+import org.apache.batik.script.InterpreterPool;
+import org.apache.batik.script.rhino.RhinoInterpreter;
+import org.apache.batik.script.rhino.svg12.SVG12RhinoInterpreter;
+import org.apache.batik.util.RunnableQueue;
+import org.apache.batik.util.XMLResourceDescriptor;
+import org.mozilla.javascript.Context;
+import org.mozilla.javascript.ContextAction;
+import org.mozilla.javascript.Function;
+import org.mozilla.javascript.Scriptable;
+import org.mozilla.javascript.ScriptableObject;
+import org.volity.client.GameUI;
+import org.volity.client.data.Metadata;
+import org.volity.client.translate.TranslateToken;
+import org.volity.javolin.ErrorWrapper;
+import org.volity.javolin.game.UIFileCache;
+import org.w3c.dom.events.Event;
+import org.w3c.dom.events.EventListener;
+import org.w3c.dom.events.EventTarget;
+
+/**
+ * Runs a UI package without a display, replays a script of RPC calls into
+ * it, and reports how long each call took. This is Testbench with the window
+ * taken away: the UI is loaded the same way, and calls go through the same
+ * TestUI machinery, but the SVG is rendered into an offscreen image.
+ *
+ * Usage:
+ *
+ *   java org.volity.testbench.HeadlessRunner [options] UI SCRIPT
+ *
+ * UI is a UI directory, .zip, or .svg file, as for Testbench. SCRIPT is a
+ * file of calls, in the format described by RPCScript. Options:
+ *
+ *   --lang LANG      set the locale, as for Testbench
+ *   --size WxH       size of the offscreen canvas (default 500x500)
+ *   --repeat N       run the script N times (default 1)
+ *   --report FILE    write the report to FILE (default standard output)
+ *   --snapshot FILE  write the final rendering to FILE as a PNG
+ *
+ * The report is tab-separated text, one row per call, with a header row:
+ *
+ *   pass line call script_ms update_ms render_ms mutations error
+ *
+ * script_ms is the time spent running the UI's handler. mutations is the
+ * number of DOM mutation events it caused. update_ms is the time from the
+ * end of the handler until Batik started repainting -- mostly working out
+ * what the DOM changes did to the GVT tree. render_ms is the time spent
+ * repainting the offscreen image. (update_ms and render_ms are zero if the
+ * call changed nothing visible.) A summary by call goes to standard error.
+ *
+ * All times are in milliseconds, and millisecond-granular, so use --repeat
+ * to get useful numbers from fast calls.
+ */
+public class HeadlessRunner
+    implements InterpreterFactory
+{
+    private static UIFileCache sUIFileCache = new UIFileCache();
+
+    private final static String APPNAME = "HeadlessRunner";
+
+    URL uiDocument;
+    DebugInfo debugInfo;
+    TranslateToken translator;
+    GameUI.MessageHandler messageHandler;
+    TestUI.ErrorHandler errorHandler;
+    int width, height;
+
+    BridgeContext bridgeContext;
+    UpdateManager updateManager;
+    ImageRenderer renderer;
+    SVGOMDocument document;
+
+    HeadlessUI ui;
+    ScriptableObject uiGlobalObject;
+    RhinoInterpreter interpreter;
+
+    // Timing state. The update times are written by the update manager's
+    // thread, and read by the main thread once that thread has gone idle.
+    long scriptStart, scriptEnd;
+    long updateStart, updateEnd;
+    int mutationCount;
+    Throwable lastError;
+
+    /**
+     * The main program for the HeadlessRunner class.
+     *
+     * @param args  The command line arguments.
+     */
+    public static void main(String[] args)
+    {
+        // No display is needed, and none should be looked for.
+        System.setProperty("java.awt.headless", "true");
+
+        String uiName = null;
+        String scriptName = null;
+        String reportName = null;
+        String snapshotName = null;
+        int width = 500, height = 500;
+        int repeat = 1;
+
+        try {
+            for (int ix=0; ix<args.length; ix++) {
+                if (args[ix].equals("--lang") && (ix < args.length-1)) {
+                    ix++;
+                    Locale.setDefault(new Locale(args[ix]));
+                    continue;
+                }
+                if (args[ix].equals("--size") && (ix < args.length-1)) {
+                    ix++;
+                    int pos = args[ix].indexOf('x');
+                    width = Integer.parseInt(args[ix].substring(0, pos));
+                    height = Integer.parseInt(args[ix].substring(pos+1));
+                    continue;
+                }
+                if (args[ix].equals("--repeat") && (ix < args.length-1)) {
+                    ix++;
+                    repeat = Integer.parseInt(args[ix]);
+                    continue;
+                }
+                if (args[ix].equals("--report") && (ix < args.length-1)) {
+                    ix++;
+                    reportName = args[ix];
+                    continue;
+                }
+                if (args[ix].equals("--snapshot") && (ix < args.length-1)) {
+                    ix++;
+                    snapshotName = args[ix];
+                    continue;
+                }
+                if (args[ix].startsWith("--")) {
+                    System.err.println(APPNAME + ": Unknown option: " + args[ix]);
+                    System.exit(1);
+                }
+                if (uiName == null)
+                    uiName = args[ix];
+                else
+                    scriptName = args[ix];
+            }
+        }
+        catch (Exception ex) {
+            System.err.println(APPNAME + ": Bad option: " + ex.toString());
+            System.exit(1);
+        }
+
+        if (uiName == null || scriptName == null) {
+            System.err.println("Usage: " + APPNAME + " [--lang LANG] [--size WxH] "
+                + "[--repeat N] [--report FILE] [--snapshot FILE] UI SCRIPT");
+            System.exit(1);
+        }
+
+        Locale localeApp = Locale.getDefault();
+        TranslateToken.setLocale(localeApp);
+
+        // Make sure we can reach the handlers for our special Volity URLs,
+        // as TestbenchApp does.
+        String val = System.getProperty("java.protocol.handler.pkgs");
+        if (val == null)
+            val = "org.volity.client.protocols";
+        else
+            val = val + "|org.volity.client.protocols";
+        System.setProperty("java.protocol.handler.pkgs", val);
+
+        int status = 0;
+        try {
+            RPCScript script = new RPCScript(new File(scriptName));
+
+            HeadlessRunner runner = new HeadlessRunner(new File(uiName),
+                width, height);
+
+            PrintStream report = System.out;
+            if (reportName != null)
+                report = new PrintStream(new FileOutputStream(reportName));
+            status = runner.run(script, repeat, report);
+            if (reportName != null)
+                report.close();
+
+            if (snapshotName != null)
+                runner.writeSnapshot(new File(snapshotName));
+
+            runner.stop();
+        }
+        catch (Exception ex) {
+            System.err.println(APPNAME + ": " + ex.toString());
+            System.exit(1);
+        }
+
+        System.exit(status);
+    }
+
+    /**
+     * Load a UI and render it once. When the constructor returns, the
+     * document's load event has been dispatched and the update manager is
+     * running.
+     *
+     * @param ui a UI directory, .zip, or .svg file.
+     * @param width the width of the offscreen canvas.
+     * @param height the height of the offscreen canvas.
+     */
+    public HeadlessRunner(File ui, int width, int height)
+        throws Exception
+    {
+        this.width = width;
+        this.height = height;
+
+        // Locate the UI exactly as TestbenchApp does.
+        File uiDir, uiFile;
+
+        if (!ui.exists())
+            throw new FileNotFoundException(ui.getPath() + " does not exist");
+
+        if (ui.isDirectory()) {
+            uiDir = ui;
+            uiFile = null;
+        }
+        else {
+            boolean iszip = ui.toString().toLowerCase().endsWith(".zip");
+            if (iszip) {
+                uiDir = sUIFileCache.getUIDir(ui.toURI().toURL());
+                uiFile = null;
+            }
+            else {
+                uiFile = ui;
+                uiDir = uiFile.getParentFile();
+            }
+        }
+
+        if (uiFile == null) {
+            uiDir = UIFileCache.locateTopDirectory(uiDir);
+            uiFile = UIFileCache.locateMainFile(uiDir);
+        }
+
+        uiDocument = uiFile.toURI().toURL();
+        translator = new TranslateToken(UIFileCache.findFileCaseless(uiDir, "locale"));
+        debugInfo = new DebugInfo(uiDir);
+
+        messageHandler = new GameUI.MessageHandler() {
+                public void print(String msg) {
+                    System.err.println(msg);
+                }
+            };
+        errorHandler = new TestUI.ErrorHandler() {
+                public void error(Throwable ex) {
+                    error(ex, null);
+                }
+                public void error(Throwable ex, String prefix) {
+                    lastError = ex;
+                    String msg = ex.toString();
+                    msg = ErrorWrapper.fixLineNumbers(msg);
+                    if (prefix != null)
+                        msg = prefix + ": " + msg;
+                    System.err.println(msg);
+                }
+            };
+
+        UserAgentAdapter agent = new UserAgentAdapter() {
+                public Dimension2D getViewportSize() {
+                    return new Dimension(HeadlessRunner.this.width,
+                        HeadlessRunner.this.height);
+                }
+                public void displayError(Exception ex) {
+                    errorHandler.error(ex);
+                }
+                public void displayMessage(String msg) {
+                    messageHandler.print(msg);
+                }
+            };
+
+        String parserName = XMLResourceDescriptor.getXMLParserClassName();
+        SAXSVGDocumentFactory factory = new SAXSVGDocumentFactory(parserName);
+        document = (SVGOMDocument)factory.createDocument(uiDocument.toString());
+
+        // Use our interpreter factory, so that the script environment gets
+        // the game objects. (See SVGTestCanvas.createBridgeContext.)
+        InterpreterPool pool = new InterpreterPool();
+        pool.putInterpreterFactory("text/ecmascript", this);
+        DocumentLoader loader = new DocumentLoader(agent);
+        if (document.isSVG12())
+            bridgeContext = new SVG12BridgeContext(agent, pool, loader);
+        else
+            bridgeContext = new BridgeContext(agent, pool, loader);
+        bridgeContext.setDynamic(true);
+
+        GraphicsNode root = new GVTBuilder().build(bridgeContext, document);
+
+        renderer = new ConcreteImageRendererFactory().createDynamicImageRenderer();
+        renderer.setTree(root);
+        renderer.updateOffScreen(width, height);
+        renderer.setTransform(ViewBox.getViewTransform(null,
+            document.getRootElement(), width, height, bridgeContext));
+        renderer.repaint(new Rectangle(0, 0, width, height));
+
+        // Count DOM mutations, so the report can show how much each call
+        // changed.
+        EventListener counter = new EventListener() {
+                public void handleEvent(Event ev) {
+                    mutationCount++;
+                }
+            };
+        EventTarget target = (EventTarget)document;
+        target.addEventListener("DOMNodeInserted", counter, true);
+        target.addEventListener("DOMNodeRemoved", counter, true);
+        target.addEventListener("DOMAttrModified", counter, true);
+        target.addEventListener("DOMCharacterDataModified", counter, true);
+
+        updateManager = new UpdateManager(bridgeContext, root, document);
+        updateManager.addUpdateManagerListener(new UpdateManagerAdapter() {
+                public void updateStarted(UpdateManagerEvent ev) {
+                    updateStart = System.currentTimeMillis();
+                }
+                public void updateCompleted(UpdateManagerEvent ev) {
+                    updateEnd = System.currentTimeMillis();
+                }
+            });
+        updateManager.dispatchSVGLoadEvent();
+        updateManager.manageUpdates(renderer);
+
+        if (ui == null)
+            throw new Exception("UI document has no ECMAScript");
+    }
+
+    /**
+     * Run every command in the script, the given number of times, and write
+     * the report.
+     *
+     * @return 0 if every call succeeded, 2 if any call failed.
+     */
+    public int run(RPCScript script, int repeat, PrintStream report)
+        throws InterruptedException
+    {
+        Map totals = new TreeMap();
+        boolean anyFailed = false;
+
+        report.println("pass\tline\tcall\tscript_ms\tupdate_ms\trender_ms\tmutations\terror");
+
+        for (int pass=1; pass<=repeat; pass++) {
+            for (Iterator it = script.getCommands().iterator(); it.hasNext(); ) {
+                RPCScript.Command cmd = (RPCScript.Command)it.next();
+
+                if (cmd.type == RPCScript.CMD_SEAT) {
+                    ui.setCurrentSeat(cmd.seat);
+                    continue;
+                }
+
+                runCall(cmd);
+
+                long scriptMs = scriptEnd - scriptStart;
+                long updateMs = 0, renderMs = 0;
+                if (updateStart >= scriptEnd && updateEnd >= updateStart) {
+                    updateMs = updateStart - scriptEnd;
+                    renderMs = updateEnd - updateStart;
+                }
+                String error = "";
+                if (lastError != null) {
+                    error = lastError.toString().replace('\t', ' ').replace('\n', ' ');
+                    anyFailed = true;
+                }
+
+                report.println(pass + "\t" + cmd.line + "\t" + cmd.getLabel()
+                    + "\t" + scriptMs + "\t" + updateMs + "\t" + renderMs
+                    + "\t" + mutationCount + "\t" + error);
+
+                CallTotals tot = (CallTotals)totals.get(cmd.getLabel());
+                if (tot == null) {
+                    tot = new CallTotals();
+                    totals.put(cmd.getLabel(), tot);
+                }
+                tot.add(scriptMs, updateMs + renderMs);
+            }
+        }
+        report.flush();
+
+        System.err.println("call\tcount\tmean_script_ms\tmax_script_ms"
+            + "\tmean_paint_ms\tmax_paint_ms");
+        for (Iterator it = totals.entrySet().iterator(); it.hasNext(); ) {
+            Map.Entry ent = (Map.Entry)it.next();
+            System.err.println(ent.getKey() + "\t" + ent.getValue());
+        }
+
+        return (anyFailed ? 2 : 0);
+    }
+
+    /**
+     * Make one call, and wait until Batik has finished repainting for it.
+     */
+    protected void runCall(RPCScript.Command cmd)
+        throws InterruptedException
+    {
+        scriptStart = scriptEnd = 0;
+        updateStart = updateEnd = 0;
+        mutationCount = 0;
+        lastError = null;
+
+        Scriptable namespace = (cmd.namespace.equals("volity") ? ui.volity : ui.game);
+        Object method = namespace.get(cmd.method, ui.scope);
+        if (!(method instanceof Function)) {
+            lastError = new Exception("No such UI handler: " + cmd.getLabel());
+            return;
+        }
+
+        // callUIMethod blocks until the handler has run.
+        ui.callUIMethod((Function)method, cmd.params, null);
+
+        // The update manager repaints after each runnable it runs, before it
+        // starts the next. So once a do-nothing runnable has run, the repaint
+        // for the call is finished.
+        updateManager.getUpdateRunnableQueue().invokeAndWait(
+            new NoRepaintRunnable() {
+                public void run() { }
+            });
+    }
+
+    /**
+     * Write the current offscreen image as a PNG file.
+     */
+    public void writeSnapshot(File file) throws IOException {
+        BufferedImage image = renderer.getOffScreen();
+        if (image == null)
+            throw new IOException("Nothing has been rendered");
+        ImageIO.write(image, "png", file);
+    }
+
+    /**
+     * Shut down the UI and the update manager.
+     */
+    public void stop() {
+        if (ui != null)
+            ui.stop();
+        updateManager.interrupt();
+        bridgeContext.dispose();
+    }
+
+    // Inherited from InterpreterFactory.
+    public Interpreter createInterpreter(final URL documentURL, boolean isSVG12) {
+        // As in SVGTestCanvas: we need to add our game objects to the
+        // interpreter's global object, which means a subclass.
+
+        if (!isSVG12) {
+            class HeadlessInterpreter extends RhinoInterpreter {
+                HeadlessInterpreter() {
+                    super(documentURL);
+                    ui = new HeadlessUI(documentURL);
+                    uiGlobalObject = getGlobalObject();
+                    contextFactory.call(new ContextAction() {
+                            public Object run(Context cx) {
+                                ui.initGameObjects(cx, uiGlobalObject);
+                                return null;
+                            }
+                        });
+                }
+            }
+            interpreter = new HeadlessInterpreter();
+        }
+        else {
+            class Headless12Interpreter extends SVG12RhinoInterpreter {
+                Headless12Interpreter() {
+                    super(documentURL);
+                    ui = new HeadlessUI(documentURL);
+                    uiGlobalObject = getGlobalObject();
+                    contextFactory.call(new ContextAction() {
+                            public Object run(Context cx) {
+                                ui.initGameObjects(cx, uiGlobalObject);
+                                return null;
+                            }
+                        });
+                }
+            }
+            interpreter = new Headless12Interpreter();
+        }
+
+        return interpreter;
+    }
+
+    // Inherited from InterpreterFactory.
+    public String getMimeType() {
+        return "image/svg+xml";
+    }
+
+    // Inherited from InterpreterFactory.
+    public String[] getMimeTypes() {
+        String[] mimeTypes = {"image/svg+xml"};
+        return mimeTypes;
+    }
+
+    /**
+     * The TestUI for a headless run. Unlike SVGTestCanvas.SVGUI, its methods
+     * wait for the script to finish, and it records how long the script ran.
+     */
+    class HeadlessUI extends TestUI {
+        HeadlessUI(URL baseurl) {
+            super(baseurl,
+                HeadlessRunner.this.translator,
+                HeadlessRunner.this.messageHandler,
+                HeadlessRunner.this.errorHandler);
+        }
+
+        public Metadata loadMetadata() {
+            try {
+                return Metadata.parseSVGMetadata(baseURL);
+            }
+            catch (Exception ex) {
+                // Called from the TestUI constructor, before TestUI has set
+                // up its own errorHandler.
+                HeadlessRunner.this.errorHandler.error(ex);
+                return new Metadata();
+            }
+        }
+
+        public DebugInfo getDebugInfo() {
+            return HeadlessRunner.this.debugInfo;
+        }
+
+        public void loadString(final String uiScript, final String scriptLabel) {
+            invokeAndWait(new Runnable() {
+                    public void run() {
+                        try {
+                            beginScriptCode();
+                            scriptStart = System.currentTimeMillis();
+                            interpreter.evaluate(uiScript);
+                        }
+                        catch (Exception ex) {
+                            errorHandler.error(ex, scriptLabel + " failed");
+                        }
+                        finally {
+                            scriptEnd = System.currentTimeMillis();
+                            endScriptCode();
+                        }
+                    }
+                });
+        }
+
+        public void callUIMethod(final Function method, final List params,
+            final Completion callback) {
+            invokeAndWait(new Runnable() {
+                    public void run() {
+                        ContextAction action = uiMethodAction(uiGlobalObject,
+                            method, params, callback);
+                        try {
+                            beginScriptCode();
+                            scriptStart = System.currentTimeMillis();
+                            interpreter.getContextFactory().call(action);
+                        }
+                        catch (Exception ex) {
+                            errorHandler.error(ex);
+                            if (callback != null)
+                                callback.error(ex);
+                        }
+                        finally {
+                            scriptEnd = System.currentTimeMillis();
+                            endScriptCode();
+                        }
+                    }
+                });
+        }
+
+        /**
+         * Run the given code in the update manager's thread, as Batik
+         * requires, and wait for it to finish.
+         */
+        protected void invokeAndWait(Runnable runnable) {
+            RunnableQueue rq = updateManager.getUpdateRunnableQueue();
+            try {
+                rq.invokeAndWait(runnable);
+            }
+            catch (InterruptedException ex) {
+                errorHandler.error(ex);
+            }
+        }
+    }
+
+    /**
+     * Running totals for one kind of call, for the summary.
+     */
+    static class CallTotals {
+        int count = 0;
+        long scriptTotal = 0, scriptMax = 0;
+        long paintTotal = 0, paintMax = 0;
+
+        void add(long scriptMs, long paintMs) {
+            count++;
+            scriptTotal += scriptMs;
+            paintTotal += paintMs;
+            scriptMax = Math.max(scriptMax, scriptMs);
+            paintMax = Math.max(paintMax, paintMs);
+        }
+
+        public String toString() {
+            return count + "\t" + (scriptTotal / count) + "\t" + scriptMax
+                + "\t" + (paintTotal / count) + "\t" + paintMax;
+        }
+    }
+}
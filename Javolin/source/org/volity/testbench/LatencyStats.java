@@ -0,0 +1,119 @@
+package org.volity.testbench;
+
+import java.io.PrintStream;
+import java.util.Arrays;
+
+/**
+ * Collects latency samples (in milliseconds) and reports them as a summary
+ * line and a histogram. Thread-safe; many players record into one instance.
+ */
+public class LatencyStats
+{
+    /** Upper bounds of the histogram buckets, in ms. The last is open. */
+    protected final static long[] BUCKETS = {
+        1, 2, 5, 10, 20, 50, 100, 200, 500, 1000, 2000, 5000
+    };
+    protected final static int BAR_WIDTH = 40;
+
+    protected String mName;
+    protected long[] mSamples = new long[256];
+    protected int mCount = 0;
+    protected int mFailures = 0;
+
+    public LatencyStats(String name) {
+        mName = name;
+    }
+
+    public String getName() {
+        return mName;
+    }
+
+    /** Record one successful operation which took the given time. */
+    public synchronized void record(long ms) {
+        if (mCount == mSamples.length) {
+            long[] grown = new long[mSamples.length * 2];
+            System.arraycopy(mSamples, 0, grown, 0, mCount);
+            mSamples = grown;
+        }
+        mSamples[mCount++] = ms;
+    }
+
+    /** Record one operation which failed (timed out or was refused). */
+    public synchronized void recordFailure() {
+        mFailures++;
+    }
+
+    public synchronized int getCount() {
+        return mCount;
+    }
+
+    public synchronized int getFailures() {
+        return mFailures;
+    }
+
+    /**
+     * Print a one-line summary, then the histogram. Prints only the summary
+     * if there are no samples.
+     */
+    public synchronized void print(PrintStream out) {
+        long[] sorted = new long[mCount];
+        System.arraycopy(mSamples, 0, sorted, 0, mCount);
+        Arrays.sort(sorted);
+
+        StringBuffer buf = new StringBuffer();
+        buf.append(mName).append(": ").append(mCount).append(" ok");
+        if (mFailures > 0)
+            buf.append(", ").append(mFailures).append(" failed");
+        if (mCount > 0) {
+            long total = 0;
+            for (int ix=0; ix<mCount; ix++)
+                total += sorted[ix];
+            buf.append("; mean ").append(total / mCount);
+            buf.append(" ms, p50 ").append(percentile(sorted, 50));
+            buf.append(", p90 ").append(percentile(sorted, 90));
+            buf.append(", p99 ").append(percentile(sorted, 99));
+            buf.append(", max ").append(sorted[mCount-1]).append(" ms");
+        }
+        out.println(buf.toString());
+        if (mCount == 0)
+            return;
+
+        int[] counts = new int[BUCKETS.length+1];
+        for (int ix=0; ix<mCount; ix++) {
+            int bucket = 0;
+            while (bucket < BUCKETS.length && sorted[ix] >= BUCKETS[bucket])
+                bucket++;
+            counts[bucket]++;
+        }
+        int most = 0;
+        for (int ix=0; ix<counts.length; ix++)
+            most = Math.max(most, counts[ix]);
+
+        for (int ix=0; ix<counts.length; ix++) {
+            if (counts[ix] == 0)
+                continue;
+            String label = (ix < BUCKETS.length)
+                ? ("< " + BUCKETS[ix] + " ms")
+                : (">= " + BUCKETS[BUCKETS.length-1] + " ms");
+            buf.setLength(0);
+            buf.append("    ");
+            for (int jx=label.length(); jx<10; jx++)
+                buf.append(' ');
+            buf.append(label).append(' ');
+            String num = String.valueOf(counts[ix]);
+            for (int jx=num.length(); jx<7; jx++)
+                buf.append(' ');
+            buf.append(num).append(' ');
+            int bar = (int)((long)counts[ix] * BAR_WIDTH / most);
+            for (int jx=0; jx<Math.max(bar, 1); jx++)
+                buf.append('#');
+            out.println(buf.toString());
+        }
+    }
+
+    /** Return the pct'th percentile of a sorted, non-empty array. */
+    protected static long percentile(long[] sorted, int pct) {
+        int index = (int)((long)(sorted.length - 1) * pct / 100);
+        return sorted[index];
+    }
+}
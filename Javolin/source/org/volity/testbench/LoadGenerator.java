@@ -0,0 +1,394 @@
+package org.volity.testbench;
+
+import java.util.*;
+import org.jivesoftware.smack.AccountManager;
+import org.jivesoftware.smack.XMPPConnection;
+import org.jivesoftware.smack.XMPPException;
+import org.jivesoftware.smack.provider.ProviderManager;
+import org.volity.client.GameTable;
+import org.volity.client.Referee;
+import org.volity.client.comm.CapExtensionProvider;
+import org.volity.client.comm.CapPacketExtension;
+import org.volity.jabber.RPCHandler;
+import org.volity.jabber.RPCResponder;
+import org.volity.jabber.RPCResponseHandler;
+import org.volity.jabber.RPCService;
+
+/**
+ * Drives many simulated players and referees against a local stand-in
+ * server, to see where the client (or the server) chokes.
+ *
+ * Usage:
+ *
+ *   java org.volity.testbench.LoadGenerator [options]
+ *
+ * Start the stand-in server first. It lives in the Smack test tree:
+ *
+ *   java -cp smack.jar:smack-test.jar:smackx.jar:xpp.jar
+ *       org.jivesoftware.smack.test.StandInServer 5222 localhost
+ *
+ * The generator always connects to 127.0.0.1, so it can't be pointed at a
+ * real server by accident. Options:
+ *
+ *   --port N         the stand-in server's port (default 5222)
+ *   --players N      number of simulated players (default 20)
+ *   --seats N        players per table; each table has its own
+ *                    ScriptedReferee (default 4)
+ *   --moves N        game.move calls each player makes (default 10)
+ *   --think MS       pause between a player's moves (default 100)
+ *   --ramp MS        pause between starting players (default 20)
+ *   --timeout S      how long to wait for any one step (default 30)
+ *
+ * Each player is a real GameTable on its own XMPPConnection. It logs in,
+ * joins its table, waits for the table to find the referee, then calls
+ * volity.send_state, volity.sit and volity.ready through the table's
+ * Referee, waits for volity.start_game, and makes its moves. The referee
+ * relays each move to the other players at the table.
+ *
+ * At the end the generator prints: login and join latency (join is from
+ * GameTable.join() until the referee is found); round-trip histograms for
+ * volity.* and game.* calls to the referee, and for the referee's calls to
+ * players; and the heap used per connection, measured once everyone has
+ * joined.
+ */
+public class LoadGenerator
+{
+    private final static String APPNAME = "LoadGenerator";
+
+    protected String mHost = "127.0.0.1";
+    protected int mPort = 5222;
+    protected int mPlayerCount = 20;
+    protected int mSeats = 4;
+    protected int mMoves = 10;
+    protected long mThinkTime = 100;
+    protected long mRampTime = 20;
+    protected int mTimeout = 30;
+
+    protected LatencyStats mLoginStats = new LatencyStats("login");
+    protected LatencyStats mJoinStats = new LatencyStats("table join");
+    protected LatencyStats mVolityStats = new LatencyStats("volity.* calls to referee");
+    protected LatencyStats mGameStats = new LatencyStats("game.* calls to referee");
+    protected LatencyStats mRefereeStats = new LatencyStats("referee calls to players");
+
+    protected List mReferees = new ArrayList();
+    protected List mRefereeConnections = new ArrayList();
+
+    // Counts of players who have joined their table, and who failed to
+    protected int mJoinedCount = 0;
+    protected int mGaveUpCount = 0;
+    protected Object mCountLock = new Object();
+
+    /**
+     * The main program for the LoadGenerator class.
+     *
+     * @param args  The command line arguments.
+     */
+    public static void main(String[] args)
+    {
+        LoadGenerator gen = new LoadGenerator();
+
+        try {
+            for (int ix=0; ix<args.length; ix++) {
+                if (ix == args.length-1 || !args[ix].startsWith("--")) {
+                    System.err.println(APPNAME + ": Bad option: " + args[ix]);
+                    System.exit(1);
+                }
+                String opt = args[ix];
+                String val = args[++ix];
+                if (opt.equals("--port"))
+                    gen.mPort = Integer.parseInt(val);
+                else if (opt.equals("--players"))
+                    gen.mPlayerCount = Integer.parseInt(val);
+                else if (opt.equals("--seats"))
+                    gen.mSeats = Math.max(1, Integer.parseInt(val));
+                else if (opt.equals("--moves"))
+                    gen.mMoves = Integer.parseInt(val);
+                else if (opt.equals("--think"))
+                    gen.mThinkTime = Long.parseLong(val);
+                else if (opt.equals("--ramp"))
+                    gen.mRampTime = Long.parseLong(val);
+                else if (opt.equals("--timeout"))
+                    gen.mTimeout = Integer.parseInt(val);
+                else {
+                    System.err.println(APPNAME + ": Unknown option: " + opt);
+                    System.exit(1);
+                }
+            }
+        }
+        catch (NumberFormatException ex) {
+            System.err.println(APPNAME + ": Bad option: " + ex.toString());
+            System.exit(1);
+        }
+
+        // GameTable hands some work to the Swing thread, but we have no
+        // windows.
+        if (System.getProperty("java.awt.headless") == null)
+            System.setProperty("java.awt.headless", "true");
+
+        // As JavolinApp does, so that tables can spot their referee.
+        ProviderManager.addExtensionProvider(
+            CapPacketExtension.NAME, CapPacketExtension.NAMESPACE,
+            new CapExtensionProvider());
+
+        try {
+            gen.run();
+        }
+        catch (Exception ex) {
+            System.err.println(APPNAME + ": " + ex.toString());
+            System.exit(1);
+        }
+        System.exit(0);
+    }
+
+    /**
+     * Set up the referees, run all the players, and print the report.
+     */
+    public void run() throws Exception {
+        Runtime runtime = Runtime.getRuntime();
+        long heapBefore = usedHeap(runtime);
+        long start = System.currentTimeMillis();
+
+        int tableCount = (mPlayerCount + mSeats - 1) / mSeats;
+        String mucDomain = null;
+        for (int ix=0; ix<tableCount; ix++) {
+            XMPPConnection conn = login("loadref" + ix, mLoginStats);
+            mRefereeConnections.add(conn);
+            if (mucDomain == null)
+                mucDomain = "conference." + conn.getServiceName();
+            int expected = Math.min(mSeats, mPlayerCount - ix * mSeats);
+            ScriptedReferee ref = new ScriptedReferee(conn,
+                "loadtable" + ix + "@" + mucDomain, expected, mRefereeStats);
+            ref.open();
+            mReferees.add(ref);
+        }
+
+        List threads = new ArrayList();
+        for (int ix=0; ix<mPlayerCount; ix++) {
+            ScriptedReferee ref = (ScriptedReferee)mReferees.get(ix / mSeats);
+            Thread thread = new PlayerThread(ix, ref.getRoom());
+            thread.start();
+            threads.add(thread);
+            if (mRampTime > 0)
+                Thread.sleep(mRampTime);
+        }
+
+        // Measure memory once everyone is in (or has given up), while all
+        // the connections are still open.
+        long heapAfter;
+        synchronized (mCountLock) {
+            while (mJoinedCount + mGaveUpCount < mPlayerCount)
+                mCountLock.wait();
+            heapAfter = usedHeap(runtime);
+        }
+
+        for (Iterator it = threads.iterator(); it.hasNext(); )
+            ((Thread)it.next()).join();
+        long elapsed = System.currentTimeMillis() - start;
+
+        int pending = 0;
+        for (Iterator it = mReferees.iterator(); it.hasNext(); ) {
+            ScriptedReferee ref = (ScriptedReferee)it.next();
+            pending += ref.getPendingCount();
+            ref.close();
+        }
+        for (Iterator it = mRefereeConnections.iterator(); it.hasNext(); )
+            ((XMPPConnection)it.next()).close();
+
+        int connCount = mPlayerCount + tableCount;
+        System.out.println(APPNAME + ": " + mPlayerCount + " players at "
+            + tableCount + " tables, " + mMoves + " moves each, in "
+            + elapsed + " ms");
+        mLoginStats.print(System.out);
+        mJoinStats.print(System.out);
+        mVolityStats.print(System.out);
+        mGameStats.print(System.out);
+        mRefereeStats.print(System.out);
+        if (pending > 0)
+            System.out.println("    (" + pending + " referee calls never answered)");
+        System.out.println("heap: " + ((heapAfter - heapBefore) / connCount / 1024)
+            + " KB per connection (" + connCount + " connections, "
+            + ((heapAfter - heapBefore) / 1024) + " KB in all)");
+    }
+
+    /**
+     * Connect to the stand-in server, and log in, creating the account if
+     * need be.
+     */
+    protected XMPPConnection login(String username, LatencyStats stats)
+        throws XMPPException
+    {
+        long start = System.currentTimeMillis();
+        XMPPConnection conn = new XMPPConnection(mHost, mPort);
+        try {
+            AccountManager accounts = conn.getAccountManager();
+            accounts.createAccount(username, username);
+        }
+        catch (XMPPException ex) {
+            // 409 means the account is left over from an earlier run.
+            if (ex.getXMPPError() == null || ex.getXMPPError().getCode() != 409) {
+                conn.close();
+                throw ex;
+            }
+        }
+        conn.login(username, username, "load");
+        stats.record(System.currentTimeMillis() - start);
+        return conn;
+    }
+
+    protected static long usedHeap(Runtime runtime) {
+        for (int ix=0; ix<3; ix++) {
+            System.gc();
+            try {
+                Thread.sleep(50);
+            }
+            catch (InterruptedException ex) { }
+        }
+        return runtime.totalMemory() - runtime.freeMemory();
+    }
+
+    protected void countJoined() {
+        synchronized (mCountLock) {
+            mJoinedCount++;
+            mCountLock.notifyAll();
+        }
+    }
+
+    protected void countGaveUp() {
+        synchronized (mCountLock) {
+            mGaveUpCount++;
+            mCountLock.notifyAll();
+        }
+    }
+
+    /**
+     * One simulated player.
+     */
+    protected class PlayerThread extends Thread {
+        int mIndex;
+        String mRoom;
+        boolean mTableReady = false;
+        boolean mGameStarted = false;
+
+        PlayerThread(int index, String room) {
+            super(APPNAME + " player " + index);
+            mIndex = index;
+            mRoom = room;
+        }
+
+        public void run() {
+            boolean joined = false;
+            XMPPConnection conn = null;
+            GameTable table = null;
+            RPCService service = null;
+
+            try {
+                conn = login("loadplayer" + mIndex, mLoginStats);
+
+                // Answer the referee's calls, as GameUI would.
+                service = new RPCService(conn);
+                RPCResponder responder = new RPCResponder(service, null,
+                    new RPCHandler() {
+                        public void handleRPC(String methodName, List params,
+                            RPCResponseHandler k) {
+                            if (methodName.equals("volity.start_game")) {
+                                synchronized (PlayerThread.this) {
+                                    mGameStarted = true;
+                                    PlayerThread.this.notifyAll();
+                                }
+                            }
+                            k.respondValue(Boolean.TRUE);
+                        }
+                    });
+                responder.start();
+
+                table = new GameTable(conn, mRoom);
+                table.addReadyListener(new GameTable.ReadyListener() {
+                        public void ready() {
+                            synchronized (PlayerThread.this) {
+                                mTableReady = true;
+                                PlayerThread.this.notifyAll();
+                            }
+                        }
+                    });
+
+                long start = System.currentTimeMillis();
+                table.join("player" + mIndex);
+                if (!waitFor(true)) {
+                    mJoinStats.recordFailure();
+                    return;
+                }
+                mJoinStats.record(System.currentTimeMillis() - start);
+                joined = true;
+                countJoined();
+
+                Referee ref = table.getReferee();
+                String self = conn.getUser();
+                call(ref, mVolityStats, "volity.send_state", new ArrayList());
+                call(ref, mVolityStats, "volity.sit",
+                    Arrays.asList(new Object[] { self }));
+                call(ref, mVolityStats, "volity.ready", new ArrayList());
+
+                if (!waitFor(false)) {
+                    mGameStats.recordFailure();
+                    return;
+                }
+
+                for (int ix=0; ix<mMoves; ix++) {
+                    if (mThinkTime > 0)
+                        Thread.sleep(mThinkTime);
+                    call(ref, mGameStats, "game.move",
+                        Arrays.asList(new Object[] { new Integer(ix), "e2e4" }));
+                }
+            }
+            catch (Exception ex) {
+                System.err.println(getName() + ": " + ex.toString());
+            }
+            finally {
+                if (!joined)
+                    countGaveUp();
+                if (table != null)
+                    table.leave();
+                if (service != null)
+                    service.stop();
+                if (conn != null)
+                    conn.close();
+            }
+        }
+
+        /**
+         * Wait for the table to find its referee (if forReady) or for the
+         * game to start.
+         *
+         * @return false on timeout.
+         */
+        protected synchronized boolean waitFor(boolean forReady)
+            throws InterruptedException
+        {
+            long end = System.currentTimeMillis() + 1000L * mTimeout;
+            while (forReady ? !mTableReady : !mGameStarted) {
+                long remaining = end - System.currentTimeMillis();
+                if (remaining <= 0)
+                    return false;
+                wait(remaining);
+            }
+            return true;
+        }
+
+        /**
+         * Make one timed call to the referee. Failures are counted, not
+         * thrown.
+         */
+        protected void call(Referee ref, LatencyStats stats, String method,
+            List params)
+        {
+            long start = System.currentTimeMillis();
+            try {
+                ref.invokeTimeout(method, params, mTimeout);
+                stats.record(System.currentTimeMillis() - start);
+            }
+            catch (Exception ex) {
+                stats.recordFailure();
+            }
+        }
+    }
+}
@@ -0,0 +1,192 @@
+package org.volity.testbench;
+
+import java.util.*;
+import org.jivesoftware.smack.AccountManager;
+import org.jivesoftware.smack.XMPPConnection;
+import org.jivesoftware.smack.XMPPException;
+import org.volity.jabber.RPCDispatcher;
+import org.volity.jabber.RPCHandler;
+import org.volity.jabber.RPCMulticall;
+import org.volity.jabber.RPCRequester;
+import org.volity.jabber.RPCResponder;
+import org.volity.jabber.RPCResponseHandler;
+import org.volity.jabber.RPCService;
+
+/**
+ * Compares Jabber-RPC calls made one at a time with the same calls batched
+ * into system.multicall requests, against a local stand-in server.
+ *
+ * Usage:
+ *
+ *   java org.volity.testbench.MulticallBenchmark [options]
+ *
+ * Start the stand-in server first, as for LoadGenerator. Options:
+ *
+ *   --port N         the stand-in server's port (default 5222)
+ *   --calls N        calls to make each way (default 2000)
+ *   --batch N        calls per system.multicall request (default 20)
+ *
+ * Two connections log in: a responder, whose RPCService answers bench.echo
+ * by returning its argument, and a requester. The requester makes the
+ * calls one at a time, waiting for each reply, and then again in batches.
+ * It prints the calls per second each way, and the round-trip times of
+ * single calls and of whole batches.
+ */
+public class MulticallBenchmark
+{
+    private final static String APPNAME = "MulticallBenchmark";
+
+    protected String mHost = "127.0.0.1";
+    protected int mPort = 5222;
+    protected int mCalls = 2000;
+    protected int mBatch = 20;
+
+    /**
+     * The main program for the MulticallBenchmark class.
+     *
+     * @param args  The command line arguments.
+     */
+    public static void main(String[] args)
+    {
+        MulticallBenchmark bench = new MulticallBenchmark();
+
+        try {
+            for (int ix=0; ix<args.length; ix++) {
+                if (ix == args.length-1 || !args[ix].startsWith("--")) {
+                    System.err.println(APPNAME + ": Bad option: " + args[ix]);
+                    System.exit(1);
+                }
+                String opt = args[ix];
+                String val = args[++ix];
+                if (opt.equals("--port"))
+                    bench.mPort = Integer.parseInt(val);
+                else if (opt.equals("--calls"))
+                    bench.mCalls = Integer.parseInt(val);
+                else if (opt.equals("--batch"))
+                    bench.mBatch = Math.max(1, Integer.parseInt(val));
+                else {
+                    System.err.println(APPNAME + ": Unknown option: " + opt);
+                    System.exit(1);
+                }
+            }
+        }
+        catch (NumberFormatException ex) {
+            System.err.println(APPNAME + ": Bad option: " + ex.toString());
+            System.exit(1);
+        }
+
+        try {
+            bench.run();
+        }
+        catch (Exception ex) {
+            System.err.println(APPNAME + ": " + ex.toString());
+            System.exit(1);
+        }
+        System.exit(0);
+    }
+
+    /**
+     * Set up both ends, make the calls both ways, and print the report.
+     */
+    public void run() throws Exception {
+        XMPPConnection responderConn = login("benchresponder");
+        XMPPConnection requesterConn = login("benchrequester");
+
+        RPCDispatcher dispatcher = new RPCDispatcher();
+        dispatcher.setHandler("bench", new RPCHandler() {
+                public void handleRPC(String methodName, List params,
+                    RPCResponseHandler k) {
+                    if (methodName.equals("echo") && params.size() == 1)
+                        k.respondValue(params.get(0));
+                    else
+                        k.respondFault(603, "No such method: bench." + methodName);
+                }
+            });
+        RPCService service = new RPCService(responderConn);
+        RPCResponder responder = new RPCResponder(service, null, dispatcher);
+        responder.start();
+
+        RPCRequester requester = new RPCRequester(requesterConn,
+            responderConn.getUser());
+
+        LatencyStats singleStats = new LatencyStats("single calls");
+        LatencyStats batchStats = new LatencyStats("batches of " + mBatch);
+
+        // Warm up both paths, so that class loading isn't timed.
+        requester.invoke("bench.echo", Collections.singletonList("warm"));
+        RPCMulticall warm = new RPCMulticall();
+        warm.add("bench.echo", Collections.singletonList("warm"));
+        requester.invokeMulticall(warm);
+
+        long start = System.currentTimeMillis();
+        for (int ix=0; ix<mCalls; ix++) {
+            long callStart = System.currentTimeMillis();
+            Object value = requester.invoke("bench.echo",
+                Collections.singletonList(new Integer(ix)));
+            singleStats.record(System.currentTimeMillis() - callStart);
+            check(value, ix);
+        }
+        long singleElapsed = System.currentTimeMillis() - start;
+
+        start = System.currentTimeMillis();
+        for (int ix=0; ix<mCalls; ix += mBatch) {
+            RPCMulticall calls = new RPCMulticall();
+            for (int jx=ix; jx<ix+mBatch && jx<mCalls; jx++)
+                calls.add("bench.echo",
+                    Collections.singletonList(new Integer(jx)));
+            long callStart = System.currentTimeMillis();
+            requester.invokeMulticall(calls);
+            batchStats.record(System.currentTimeMillis() - callStart);
+            for (int jx=0; jx<calls.size(); jx++)
+                check(calls.getResult(jx), ix+jx);
+        }
+        long batchElapsed = System.currentTimeMillis() - start;
+
+        responder.stop();
+        service.stop();
+        requesterConn.close();
+        responderConn.close();
+
+        System.out.println(APPNAME + ": " + mCalls + " calls each way");
+        System.out.println("one at a time: " + singleElapsed + " ms, "
+            + rate(mCalls, singleElapsed) + " calls/sec");
+        System.out.println("batched by " + mBatch + ": " + batchElapsed
+            + " ms, " + rate(mCalls, batchElapsed) + " calls/sec");
+        singleStats.print(System.out);
+        batchStats.print(System.out);
+    }
+
+    protected static void check(Object value, int expected) {
+        if (!(value instanceof Number)
+            || ((Number)value).intValue() != expected)
+            throw new RuntimeException("Expected " + expected + ", got "
+                + value);
+    }
+
+    protected static long rate(int count, long elapsed) {
+        return (elapsed <= 0) ? 0 : (count * 1000L / elapsed);
+    }
+
+    /**
+     * Connect to the stand-in server, and log in, creating the account if
+     * need be.
+     */
+    protected XMPPConnection login(String username)
+        throws XMPPException
+    {
+        XMPPConnection conn = new XMPPConnection(mHost, mPort);
+        try {
+            AccountManager accounts = conn.getAccountManager();
+            accounts.createAccount(username, username);
+        }
+        catch (XMPPException ex) {
+            // 409 means the account is left over from an earlier run.
+            if (ex.getXMPPError() == null || ex.getXMPPError().getCode() != 409) {
+                conn.close();
+                throw ex;
+            }
+        }
+        conn.login(username, username, "bench");
+        return conn;
+    }
+}
@@ -0,0 +1,257 @@
+package org.volity.testbench;
+
+import java.io.*;
+import java.util.*;
+
+/**
+ * A sequence of UI calls read from a text file, for the headless runner. The
+ * file has one command per line:
+ *
+ *   game.move("e2", "e4")      call a game RPC handler
+ *   volity.start_game()        call a volity RPC handler
+ *   seat white                 set the notional player's seat
+ *   seat                       stand up (no seat)
+ *
+ * Blank lines and lines beginning with "#" are ignored. RPC arguments are
+ * written as literals: integers, decimals, "strings" (with backslash
+ * escapes), true, false, [arrays] and {"struct": members}. They become the
+ * same Java objects (Integer, Double, String, Boolean, List, Map) that a
+ * Jabber-RPC call would deliver to the UI.
+ */
+public class RPCScript
+{
+    public final static int CMD_CALL = 1;
+    public final static int CMD_SEAT = 2;
+
+    /**
+     * One command from the file. A simple bag of public fields, like
+     * DebugInfo.Command.
+     *
+     * Type is CMD_CALL or CMD_SEAT. Line is the line number in the file. For
+     * calls, namespace is "game" or "volity", method is the handler name, and
+     * params is the argument list. For seat commands, seat is the seat ID (or
+     * null).
+     */
+    public static class Command {
+        public int type;
+        public int line;
+        public String namespace;
+        public String method;
+        public List params;
+        public String seat;
+        public Command(int type, int line) {
+            this.type = type;
+            this.line = line;
+        }
+
+        /** The call as written, minus arguments -- "game.move". */
+        public String getLabel() {
+            if (type == CMD_SEAT)
+                return "seat";
+            return namespace + "." + method;
+        }
+    }
+
+    List commands = new ArrayList();
+
+    /**
+     * Read and parse a script file.
+     *
+     * @throws IOException if the file can't be read.
+     * @throws ParseException if a line can't be parsed. The message includes
+     *     the line number.
+     */
+    public RPCScript(File file) throws IOException, ParseException {
+        BufferedReader reader = new BufferedReader(new FileReader(file));
+        try {
+            int lineNum = 0;
+            String line;
+            while ((line = reader.readLine()) != null) {
+                lineNum++;
+                line = line.trim();
+                if (line.length() == 0 || line.startsWith("#"))
+                    continue;
+                commands.add(parseLine(line, lineNum));
+            }
+        }
+        finally {
+            reader.close();
+        }
+    }
+
+    /**
+     * Return the list of Command objects, in file order.
+     */
+    public List getCommands() {
+        return commands;
+    }
+
+    protected Command parseLine(String line, int lineNum) throws ParseException {
+        if (line.equals("seat") || line.startsWith("seat ")) {
+            Command cmd = new Command(CMD_SEAT, lineNum);
+            String id = line.substring(4).trim();
+            cmd.seat = (id.length() == 0) ? null : id;
+            return cmd;
+        }
+
+        int dot = line.indexOf('.');
+        int paren = line.indexOf('(');
+        if (dot < 0 || paren < dot || !line.endsWith(")"))
+            throw new ParseException(lineNum, "expected namespace.method(args)");
+
+        Command cmd = new Command(CMD_CALL, lineNum);
+        cmd.namespace = line.substring(0, dot).trim();
+        cmd.method = line.substring(dot+1, paren).trim();
+        if (!cmd.namespace.equals("game") && !cmd.namespace.equals("volity"))
+            throw new ParseException(lineNum, "namespace must be game or volity");
+        if (cmd.method.length() == 0)
+            throw new ParseException(lineNum, "missing method name");
+
+        ArgParser parser = new ArgParser(line.substring(paren+1, line.length()-1), lineNum);
+        cmd.params = parser.parseList(-1);
+        return cmd;
+    }
+
+    /**
+     * Exception thrown for a malformed script line.
+     */
+    public static class ParseException extends Exception {
+        public ParseException(int line, String msg) {
+            super("line " + line + ": " + msg);
+        }
+    }
+
+    /**
+     * Recursive-descent parser for an argument list.
+     */
+    protected static class ArgParser {
+        String text;
+        int pos = 0;
+        int lineNum;
+
+        ArgParser(String text, int lineNum) {
+            this.text = text;
+            this.lineNum = lineNum;
+        }
+
+        /**
+         * Parse comma-separated values up to the given closing character, or
+         * to the end of the text if close is -1.
+         */
+        List parseList(int close) throws ParseException {
+            List ls = new ArrayList();
+            skipSpace();
+            if (atClose(close))
+                return ls;
+            while (true) {
+                ls.add(parseValue());
+                skipSpace();
+                if (atClose(close))
+                    return ls;
+                expect(',');
+            }
+        }
+
+        Map parseStruct() throws ParseException {
+            Map map = new HashMap();
+            skipSpace();
+            if (atClose('}'))
+                return map;
+            while (true) {
+                skipSpace();
+                Object key = parseValue();
+                if (!(key instanceof String))
+                    throw error("struct keys must be strings");
+                skipSpace();
+                expect(':');
+                map.put(key, parseValue());
+                skipSpace();
+                if (atClose('}'))
+                    return map;
+                expect(',');
+            }
+        }
+
+        Object parseValue() throws ParseException {
+            skipSpace();
+            if (pos >= text.length())
+                throw error("missing value");
+            char ch = text.charAt(pos);
+            if (ch == '"') {
+                pos++;
+                return parseString();
+            }
+            if (ch == '[') {
+                pos++;
+                List ls = parseList(']');
+                pos++;
+                return ls;
+            }
+            if (ch == '{') {
+                pos++;
+                Map map = parseStruct();
+                pos++;
+                return map;
+            }
+
+            int start = pos;
+            while (pos < text.length() && ",]}: \t".indexOf(text.charAt(pos)) < 0)
+                pos++;
+            String word = text.substring(start, pos);
+            if (word.equals("true"))
+                return Boolean.TRUE;
+            if (word.equals("false"))
+                return Boolean.FALSE;
+            try {
+                if (word.indexOf('.') >= 0 || word.indexOf('e') >= 0
+                    || word.indexOf('E') >= 0)
+                    return new Double(word);
+                return new Integer(word);
+            }
+            catch (NumberFormatException ex) {
+                throw error("bad value \"" + word + "\"");
+            }
+        }
+
+        String parseString() throws ParseException {
+            StringBuffer buf = new StringBuffer();
+            while (pos < text.length()) {
+                char ch = text.charAt(pos++);
+                if (ch == '"')
+                    return buf.toString();
+                if (ch == '\\' && pos < text.length()) {
+                    ch = text.charAt(pos++);
+                    if (ch == 'n')
+                        ch = '\n';
+                    else if (ch == 't')
+                        ch = '\t';
+                }
+                buf.append(ch);
+            }
+            throw error("unterminated string");
+        }
+
+        boolean atClose(int close) throws ParseException {
+            if (close == -1)
+                return (pos >= text.length());
+            if (pos >= text.length())
+                throw error("missing '" + (char)close + "'");
+            return (text.charAt(pos) == close);
+        }
+
+        void expect(char ch) throws ParseException {
+            if (pos >= text.length() || text.charAt(pos) != ch)
+                throw error("expected '" + ch + "'");
+            pos++;
+        }
+
+        void skipSpace() {
+            while (pos < text.length() && Character.isWhitespace(text.charAt(pos)))
+                pos++;
+        }
+
+        ParseException error(String msg) {
+            return new ParseException(lineNum, msg + " at column " + (pos+1));
+        }
+    }
+}
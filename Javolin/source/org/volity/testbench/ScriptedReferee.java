@@ -0,0 +1,255 @@
+package org.volity.testbench;
+
+import java.util.*;
+import org.jivesoftware.smack.PacketListener;
+import org.jivesoftware.smack.XMPPConnection;
+import org.jivesoftware.smack.XMPPException;
+import org.jivesoftware.smack.filter.PacketTypeFilter;
+import org.jivesoftware.smack.packet.Packet;
+import org.jivesoftware.smack.packet.Presence;
+import org.jivesoftware.smackx.packet.MUCInitialPresence;
+import org.volity.client.comm.CapPacketExtension;
+import org.volity.jabber.RPCDispatcher;
+import org.volity.jabber.RPCHandler;
+import org.volity.jabber.RPCResponder;
+import org.volity.jabber.RPCResponseHandler;
+import org.volity.jabber.RPCService;
+import org.volity.jabber.packet.RPCFault;
+import org.volity.jabber.packet.RPCRequest;
+import org.volity.jabber.packet.RPCResponse;
+import org.volity.javolin.CapPresenceFactory;
+
+/**
+ * A stand-in referee for load testing. It creates a table (a MUC room),
+ * announces itself there as a referee, and plays a fixed script: it seats
+ * players as they ask, starts the game when the expected number of players
+ * are ready, and answers every game.* call with volity.ok, relaying the call
+ * to the other seated players. It knows nothing about any real game.
+ *
+ * Calls the referee makes to players (volity.player_sat, game.* relays, and
+ * so on) are sent without waiting; their round-trip times are recorded in
+ * the LatencyStats given to the constructor as the replies come in.
+ */
+public class ScriptedReferee
+{
+    protected XMPPConnection mConnection;
+    protected String mRoom;
+    protected int mExpectedPlayers;
+    protected LatencyStats mCallStats;
+
+    protected RPCService mService;
+    // The sender of the call being handled. Calls arrive one at a time, on
+    // the RPCService's listener thread.
+    protected String mCaller;
+    protected RPCResponder mResponder;
+    protected PacketListener mResponseListener;
+
+    // Seated players: real JID -> seat ID, in order of sitting
+    protected Map mSeats = new LinkedHashMap();
+    protected Set mReady = new HashSet();
+    protected boolean mStarted = false;
+    // Outstanding calls to players: packet ID -> Long send time
+    protected Map mPending = new HashMap();
+
+    /**
+     * @param connection an authenticated connection for the referee.
+     * @param room the JID of the table to create.
+     * @param expectedPlayers the number of players who will sit; the game
+     *     starts when this many are ready.
+     * @param callStats where to record the round-trip time of calls to
+     *     players.
+     */
+    public ScriptedReferee(XMPPConnection connection, String room,
+        int expectedPlayers, LatencyStats callStats)
+    {
+        mConnection = connection;
+        mRoom = room;
+        mExpectedPlayers = expectedPlayers;
+        mCallStats = callStats;
+
+        RPCDispatcher dispatcher = new RPCDispatcher();
+        dispatcher.setHandler("volity", new RPCHandler() {
+                public void handleRPC(String methodName, List params,
+                    RPCResponseHandler k) {
+                    handleVolityRPC(methodName, params, k);
+                }
+            });
+        dispatcher.setHandler("game", new RPCHandler() {
+                public void handleRPC(String methodName, List params,
+                    RPCResponseHandler k) {
+                    handleGameRPC(methodName, params, k);
+                }
+            });
+
+        // RPCHandlers aren't told who is calling, so note it on the way in.
+        // An error reply to one of our calls echoes the call, so it parses
+        // as a request; it must not be answered, or relayed again.
+        mService = new RPCService(mConnection) {
+                public void processPacket(Packet packet) {
+                    if (packet.getError() != null) {
+                        callAnswered(packet);
+                        return;
+                    }
+                    mCaller = packet.getFrom();
+                    super.processPacket(packet);
+                }
+            };
+        mResponder = new RPCResponder(mService, null, dispatcher);
+        mResponder.start();
+
+        mResponseListener = new PacketListener() {
+                public void processPacket(Packet packet) {
+                    callAnswered(packet);
+                }
+            };
+        mConnection.addPacketListener(mResponseListener,
+            new PacketTypeFilter(RPCResponse.class));
+    }
+
+    /**
+     * Create the table by joining it, with a presence which marks us as the
+     * referee. (A real referee configures the room too; the stand-in server
+     * doesn't need that.)
+     */
+    public void open() throws XMPPException {
+        Presence presence = new Presence(Presence.Type.AVAILABLE);
+        presence.setTo(mRoom + "/referee");
+        presence.addExtension(new MUCInitialPresence());
+        presence.addExtension(new CapPacketExtension(
+                                  CapPresenceFactory.VOLITY_NODE_URI, "1.0",
+                                  CapPresenceFactory.VOLITY_ROLE_REFEREE));
+        mConnection.sendPacket(presence);
+    }
+
+    /** Leave the table and stop answering calls. */
+    public void close() {
+        mConnection.removePacketListener(mResponseListener);
+        mResponder.stop();
+        mService.stop();
+        Presence presence = new Presence(Presence.Type.UNAVAILABLE);
+        presence.setTo(mRoom + "/referee");
+        mConnection.sendPacket(presence);
+    }
+
+    public String getRoom() {
+        return mRoom;
+    }
+
+    /**
+     * The number of calls to players which have had no reply.
+     */
+    public int getPendingCount() {
+        synchronized (mPending) {
+            return mPending.size();
+        }
+    }
+
+    /**
+     * A reply (or error) has come back for one of our calls to a player.
+     */
+    protected void callAnswered(Packet packet) {
+        Long sent;
+        synchronized (mPending) {
+            sent = (Long)mPending.remove(packet.getPacketID());
+        }
+        if (sent == null)
+            return;
+        if (packet instanceof RPCFault || packet.getError() != null)
+            mCallStats.recordFailure();
+        else
+            mCallStats.record(System.currentTimeMillis() - sent.longValue());
+    }
+
+    protected void handleVolityRPC(String methodName, List params,
+        RPCResponseHandler k)
+    {
+        if (methodName.equals("sit")) {
+            String jid = (String)params.get(0);
+            String seat;
+            synchronized (this) {
+                seat = (String)mSeats.get(jid);
+                if (seat == null) {
+                    seat = "seat" + (mSeats.size() + 1);
+                    mSeats.put(jid, seat);
+                }
+            }
+            k.respondValue(Arrays.asList(new Object[] { "volity.ok", seat }));
+            broadcast("volity.player_sat", Arrays.asList(new Object[] { jid, seat }));
+        }
+        else if (methodName.equals("ready")) {
+            k.respondValue(Arrays.asList(new Object[] { "volity.ok" }));
+            playerReady(mCaller);
+        }
+        else if (methodName.equals("send_state") || methodName.equals("unready")
+            || methodName.equals("stand")) {
+            k.respondValue(Arrays.asList(new Object[] { "volity.ok" }));
+        }
+        else {
+            k.respondFault(603, "No such method: volity." + methodName);
+        }
+    }
+
+    protected void handleGameRPC(String methodName, List params,
+        RPCResponseHandler k)
+    {
+        boolean started;
+        synchronized (this) {
+            started = mStarted;
+        }
+        if (!started) {
+            k.respondValue(Arrays.asList(new Object[] { "volity.referee_not_ready" }));
+            return;
+        }
+        k.respondValue(Arrays.asList(new Object[] { "volity.ok" }));
+        broadcast("game." + methodName, params, mCaller);
+    }
+
+    /**
+     * A player has said it is ready. Start the game when everyone is.
+     */
+    protected void playerReady(String jid) {
+        boolean start = false;
+        synchronized (this) {
+            mReady.add(jid);
+            if (!mStarted && mReady.size() >= mExpectedPlayers) {
+                mStarted = true;
+                start = true;
+            }
+        }
+        broadcast("volity.player_ready", Arrays.asList(new Object[] { jid }));
+        if (start)
+            broadcast("volity.start_game", new ArrayList());
+    }
+
+    /**
+     * Send a call to every seated player, without waiting for replies.
+     */
+    protected void broadcast(String methodName, List params) {
+        broadcast(methodName, params, null);
+    }
+
+    /**
+     * Send a call to every seated player except one (which may be null),
+     * without waiting for replies.
+     */
+    protected void broadcast(String methodName, List params, String except) {
+        List jids;
+        synchronized (this) {
+            jids = new ArrayList(mSeats.keySet());
+        }
+        for (Iterator it = jids.iterator(); it.hasNext(); ) {
+            String jid = (String)it.next();
+            if (!jid.equals(except))
+                send(jid, methodName, params);
+        }
+    }
+
+    protected void send(String jid, String methodName, List params) {
+        RPCRequest req = new RPCRequest(methodName, params);
+        req.setTo(jid);
+        synchronized (mPending) {
+            mPending.put(req.getPacketID(), new Long(System.currentTimeMillis()));
+        }
+        mConnection.sendPacket(req);
+    }
+}
@@ -0,0 +1,266 @@
+package org.volity.testbench;
+
+import java.awt.BorderLayout;
+import java.io.*;
+import java.net.URI;
+import java.net.URL;
+import java.util.Locale;
+import javax.swing.JFrame;
+import javax.swing.SwingUtilities;
+import org.apache.batik.bridge.UpdateManagerAdapter;
+import org.apache.batik.bridge.UpdateManagerEvent;
+import org.jivesoftware.smack.ReplayConnection;
+import org.volity.client.GameTable;
+import org.volity.client.GameUI;
+import org.volity.client.SVGCanvas;
+import org.volity.client.translate.TokenFailure;
+import org.volity.client.translate.TranslateToken;
+import org.volity.javolin.game.UIFileCache;
+
+/**
+ * Plays a recorded game session back into a real game UI. The session is a
+ * traffic log, recorded by running Gamut (or any Smack client) with
+ * -Dsmack.trafficLogDir=DIR. The log is fed through a ReplayConnection into a
+ * GameTable and an SVGCanvas, exactly as the live traffic was, so the
+ * referee's RPCs drive the UI just as they did in the real game.
+ *
+ * Usage:
+ *
+ *   java org.volity.testbench.TableReplay [options] LOG TABLE RULESET UI
+ *
+ * LOG is the traffic log. TABLE is the JID of the table (the MUC room) the
+ * game was played at. RULESET is the game's ruleset URI. UI is a UI
+ * directory, .zip, or .svg file, as for Testbench. Options:
+ *
+ *   --lang LANG      set the locale, as for Testbench
+ *   --speed N        replay N times faster than recorded; 0 means as fast
+ *                    as possible (default 1)
+ *   --exit           exit when the replay is finished, instead of leaving
+ *                    the window open
+ *
+ * When the replay finishes, the number of stanzas replayed and the total
+ * time are printed to standard error. (The time includes the final repaint.)
+ *
+ * The table is not joined -- the join request would go nowhere -- but the
+ * recorded room presence and messages arrive anyway, so the table sees its
+ * occupants and referee as they were. Anything the UI sends is thrown away,
+ * and replies to it are never matched; see ReplayConnection.
+ */
+public class TableReplay
+{
+    private static UIFileCache sUIFileCache = new UIFileCache();
+
+    private final static String APPNAME = "TableReplay";
+
+    ReplayConnection connection;
+    GameTable table;
+    SVGCanvas canvas;
+    JFrame frame;
+    boolean canvasStarted = false;
+
+    /**
+     * The main program for the TableReplay class.
+     *
+     * @param args  The command line arguments.
+     */
+    public static void main(String[] args)
+    {
+        String logName = null;
+        String tableJID = null;
+        String rulesetName = null;
+        String uiName = null;
+        double speed = 1.0;
+        boolean exitWhenDone = false;
+
+        try {
+            for (int ix=0; ix<args.length; ix++) {
+                if (args[ix].equals("--lang") && (ix < args.length-1)) {
+                    ix++;
+                    Locale.setDefault(new Locale(args[ix]));
+                    continue;
+                }
+                if (args[ix].equals("--speed") && (ix < args.length-1)) {
+                    ix++;
+                    speed = Double.parseDouble(args[ix]);
+                    continue;
+                }
+                if (args[ix].equals("--exit")) {
+                    exitWhenDone = true;
+                    continue;
+                }
+                if (args[ix].startsWith("--")) {
+                    System.err.println(APPNAME + ": Unknown option: " + args[ix]);
+                    System.exit(1);
+                }
+                if (logName == null)
+                    logName = args[ix];
+                else if (tableJID == null)
+                    tableJID = args[ix];
+                else if (rulesetName == null)
+                    rulesetName = args[ix];
+                else
+                    uiName = args[ix];
+            }
+        }
+        catch (Exception ex) {
+            System.err.println(APPNAME + ": Bad option: " + ex.toString());
+            System.exit(1);
+        }
+
+        if (uiName == null) {
+            System.err.println("Usage: " + APPNAME + " [--lang LANG] [--speed N] "
+                + "[--exit] LOG TABLE RULESET UI");
+            System.exit(1);
+        }
+
+        Locale localeApp = Locale.getDefault();
+        TranslateToken.setLocale(localeApp);
+
+        // Make sure we can reach the handlers for our special Volity URLs,
+        // as TestbenchApp does.
+        String val = System.getProperty("java.protocol.handler.pkgs");
+        if (val == null)
+            val = "org.volity.client.protocols";
+        else
+            val = val + "|org.volity.client.protocols";
+        System.setProperty("java.protocol.handler.pkgs", val);
+
+        try {
+            TableReplay replay = new TableReplay(new File(logName), speed,
+                tableJID, new URI(rulesetName), new File(uiName));
+            replay.run();
+            if (exitWhenDone) {
+                replay.stop();
+                System.exit(0);
+            }
+        }
+        catch (Exception ex) {
+            System.err.println(APPNAME + ": " + ex.toString());
+            System.exit(1);
+        }
+    }
+
+    /**
+     * Open the log, and display the UI in a window, ready to replay.
+     *
+     * @param log the traffic log.
+     * @param speed the replay speed factor; 0 for as fast as possible.
+     * @param tableJID the JID of the table the game was played at.
+     * @param ruleset the game's ruleset URI.
+     * @param ui a UI directory, .zip, or .svg file.
+     */
+    public TableReplay(File log, double speed, String tableJID, URI ruleset,
+        File ui)
+        throws Exception
+    {
+        // Locate the UI exactly as TestbenchApp does.
+        File uiDir, uiFile;
+
+        if (!ui.exists())
+            throw new FileNotFoundException(ui.getPath() + " does not exist");
+
+        if (ui.isDirectory()) {
+            uiDir = ui;
+            uiFile = null;
+        }
+        else {
+            boolean iszip = ui.toString().toLowerCase().endsWith(".zip");
+            if (iszip) {
+                uiDir = sUIFileCache.getUIDir(ui.toURI().toURL());
+                uiFile = null;
+            }
+            else {
+                uiFile = ui;
+                uiDir = uiFile.getParentFile();
+            }
+        }
+
+        if (uiFile == null) {
+            uiDir = UIFileCache.locateTopDirectory(uiDir);
+            uiFile = UIFileCache.locateMainFile(uiDir);
+        }
+
+        URL uiDocument = uiFile.toURI().toURL();
+        final TranslateToken translator = new TranslateToken(
+            UIFileCache.findFileCaseless(uiDir, "locale"));
+
+        connection = new ReplayConnection(log, speed);
+        table = new GameTable(connection, tableJID);
+
+        GameUI.MessageHandler messageHandler = new GameUI.MessageHandler() {
+                public void print(String msg) {
+                    System.out.println(msg);
+                }
+            };
+        GameUI.ErrorHandler errorHandler = new GameUI.ErrorHandler() {
+                public void error(Exception ex) {
+                    if (ex instanceof TokenFailure) {
+                        System.err.println(translator.translate((TokenFailure)ex));
+                    }
+                    else {
+                        System.err.println(ex.toString());
+                    }
+                }
+            };
+
+        canvas = new SVGCanvas(table, ruleset, uiDocument, translator,
+            messageHandler, errorHandler, null);
+        canvas.addUpdateManagerListener(new UpdateManagerAdapter() {
+                public void managerStarted(UpdateManagerEvent evt) {
+                    synchronized (TableReplay.this) {
+                        canvasStarted = true;
+                        TableReplay.this.notifyAll();
+                    }
+                }
+            });
+
+        frame = new JFrame(APPNAME + ": " + tableJID);
+        frame.getContentPane().add(canvas, BorderLayout.CENTER);
+        frame.setSize(600, 600);
+        frame.setDefaultCloseOperation(JFrame.EXIT_ON_CLOSE);
+        frame.setVisible(true);
+    }
+
+    /**
+     * Wait for the UI to load, replay the whole log into it, and report how
+     * long that took.
+     */
+    public void run()
+        throws Exception
+    {
+        synchronized (this) {
+            while (!canvasStarted)
+                wait();
+        }
+
+        long start = System.currentTimeMillis();
+        connection.startReplay();
+        connection.waitForFinish(0);
+
+        // Wait for the UI to catch up: first the Swing queue, then the
+        // canvas's own update queue.
+        SwingUtilities.invokeAndWait(new Runnable() {
+                public void run() { }
+            });
+        if (canvas.getUpdateManager() != null) {
+            canvas.getUpdateManager().getUpdateRunnableQueue().invokeAndWait(
+                new Runnable() {
+                    public void run() { }
+                });
+        }
+        long elapsed = System.currentTimeMillis() - start;
+
+        System.err.println(APPNAME + ": replayed " + connection.getReplayedCount()
+            + " stanzas in " + elapsed + " ms");
+    }
+
+    /**
+     * Shut down the UI and the connection.
+     */
+    public void stop() {
+        canvas.stop();
+        table.leave();
+        connection.close();
+        frame.dispose();
+    }
+}
@@ -79,6 +79,8 @@ public abstract class TestUI
         this.parentErrorHandler = parentErrorHandler;
 
         this.metadata = loadMetadata();
+        Audio.preload(baseURL,
+            metadata.getAll(Metadata.VOLITY_PRELOAD_AUDIO));
 
         // This is not super-necessary, since nothing in Testbench can
         // *raise* a TokenFailure.
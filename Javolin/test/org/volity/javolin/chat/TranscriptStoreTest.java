@@ -0,0 +1,271 @@
+package org.volity.javolin.chat;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.List;
+import junit.framework.TestCase;
+
+/**
+ * Tests for TranscriptStore: writing and reading back, seeking through the
+ * time index, searching, and the line format.
+ */
+public class TranscriptStoreTest extends TestCase
+{
+    private File mDir;
+
+    protected void setUp() throws IOException {
+        mDir = File.createTempFile("transcripts", "");
+        mDir.delete();
+        mDir.mkdirs();
+    }
+
+    protected void tearDown() {
+        deleteAll(mDir);
+    }
+
+    /**
+     * Messages written by one store are read back by another, fields
+     * intact.
+     */
+    public void testRoundTrip() {
+        TranscriptStore store = new TranscriptStore(mDir);
+        TranscriptStore.Transcript transcript =
+            store.getTranscript("chat", "Friend@Example.com");
+        transcript.record(1000, "friend@example.com/home", true, "Friend",
+            "Hello there");
+        transcript.record(2000, null, false, null, "Friend is away");
+        transcript.record(3000, "room@conf/nick", false, "", "");
+        store.close();
+
+        store = new TranscriptStore(mDir);
+        List ls = store.getTranscript("chat", "friend@example.com")
+            .readRecent(10);
+        assertEquals(3, ls.size());
+
+        TranscriptStore.Entry ent = (TranscriptStore.Entry)ls.get(0);
+        assertEquals(1000, ent.getTime());
+        assertEquals("friend@example.com/home", ent.getJID());
+        assertTrue(ent.isRealJID());
+        assertEquals("Friend", ent.getNick());
+        assertEquals("Hello there", ent.getText());
+
+        ent = (TranscriptStore.Entry)ls.get(1);
+        assertNull(ent.getJID());
+        assertFalse(ent.isRealJID());
+        assertNull(ent.getNick());
+        assertEquals("Friend is away", ent.getText());
+
+        ent = (TranscriptStore.Entry)ls.get(2);
+        assertEquals("room@conf/nick", ent.getJID());
+        assertEquals("", ent.getNick());
+        assertEquals("", ent.getText());
+        store.close();
+    }
+
+    /**
+     * readBefore() pages back through a transcript of several segments,
+     * and messages written after reopening carry on where they left off.
+     */
+    public void testIndexSeek() {
+        int count = 3000;
+        String padding = "";
+        for (int ix=0; ix<20; ix++)
+            padding += " padding";
+
+        TranscriptStore store = new TranscriptStore(mDir);
+        TranscriptStore.Transcript transcript =
+            store.getTranscript("muc", "room@conference.example.com");
+        for (int ix=0; ix<count/2; ix++)
+            transcript.record(ix*10, "a@b", true, "a", "message " + ix + padding);
+        store.close();
+
+        // Reopen and append the rest.
+        store = new TranscriptStore(mDir);
+        transcript = store.getTranscript("muc", "room@conference.example.com");
+        for (int ix=count/2; ix<count; ix++)
+            transcript.record(ix*10, "a@b", true, "a", "message " + ix + padding);
+        store.close();
+
+        File dir = new File(new File(mDir, "muc"), "room@conference.example.com");
+        assertTrue(new File(dir, "000002.log").exists());
+        assertTrue(new File(dir, "000001.words").exists());
+
+        store = new TranscriptStore(mDir);
+        transcript = store.getTranscript("muc", "room@conference.example.com");
+
+        List ls = transcript.readRecent(5);
+        assertEquals(5, ls.size());
+        assertEquals((count-5)*10, ((TranscriptStore.Entry)ls.get(0)).getTime());
+        assertEquals((count-1)*10, ((TranscriptStore.Entry)ls.get(4)).getTime());
+
+        // A page which crosses both block and segment boundaries
+        for (int start=0; start<count; start+=97) {
+            ls = transcript.readBefore(start*10, 50);
+            int expect = Math.min(50, start);
+            assertEquals(expect, ls.size());
+            for (int ix=0; ix<expect; ix++) {
+                TranscriptStore.Entry ent = (TranscriptStore.Entry)ls.get(ix);
+                int num = start - expect + ix;
+                assertEquals(num*10, ent.getTime());
+                assertEquals("message " + num + padding, ent.getText());
+            }
+        }
+        store.close();
+    }
+
+    /**
+     * Paging back with readBefore(Entry, int) returns every message once,
+     * even when many share a time and the shared times span blocks.
+     */
+    public void testSameTime() {
+        int count = 3000;
+        TranscriptStore store = new TranscriptStore(mDir);
+        TranscriptStore.Transcript transcript =
+            store.getTranscript("muc", "room@conference.example.com");
+        for (int ix=0; ix<count; ix++)
+            transcript.record((ix/100)*10, "a@b", true, "a", "message " + ix);
+        store.close();
+
+        store = new TranscriptStore(mDir);
+        transcript = store.getTranscript("muc", "room@conference.example.com");
+        assertEquals(count, pageAll(transcript, 37));
+        store.close();
+    }
+
+    /**
+     * An index left with a partial last entry (as by a crash) is cut back
+     * on reopening, so that entries appended afterwards still line up.
+     */
+    public void testTruncatedIndex() throws IOException {
+        int count = 3000;
+        TranscriptStore store = new TranscriptStore(mDir);
+        TranscriptStore.Transcript transcript =
+            store.getTranscript("chat", "friend@example.com");
+        for (int ix=0; ix<count/2; ix++)
+            transcript.record(ix*10, "a@b", true, "a", "message " + ix);
+        store.close();
+
+        File index = new File(new File(new File(mDir, "chat"),
+            "friend@example.com"), "index");
+        assertEquals(0, index.length() % TranscriptStore.INDEX_ENTRY_SIZE);
+        FileOutputStream out = new FileOutputStream(index.getPath(), true);
+        out.write(new byte[] { 0, 0, 0, 0, 0, 0, 1 });
+        out.close();
+
+        store = new TranscriptStore(mDir);
+        transcript = store.getTranscript("chat", "friend@example.com");
+        for (int ix=count/2; ix<count; ix++)
+            transcript.record(ix*10, "a@b", true, "a", "message " + ix);
+        store.close();
+        assertEquals(0, index.length() % TranscriptStore.INDEX_ENTRY_SIZE);
+
+        store = new TranscriptStore(mDir);
+        transcript = store.getTranscript("chat", "friend@example.com");
+        assertEquals(count, pageAll(transcript, 50));
+        List ls = transcript.readBefore(1000*10, 5);
+        assertEquals(5, ls.size());
+        assertEquals("message 995", ((TranscriptStore.Entry)ls.get(0)).getText());
+        store.close();
+    }
+
+    /**
+     * search() finds messages by word, newest first, in sealed segments and
+     * the open one.
+     */
+    public void testSearch() {
+        TranscriptStore store = new TranscriptStore(mDir);
+        TranscriptStore.Transcript transcript =
+            store.getTranscript("table", "table@conference.example.com");
+        for (int ix=0; ix<3000; ix++) {
+            String text = "move " + ix + " of a long and uneventful game";
+            if (ix == 10 || ix == 2990)
+                text = "Checkmate, " + text;
+            transcript.record(ix, "a@b", true, "a", text);
+        }
+        store.close();
+
+        store = new TranscriptStore(mDir);
+        List ls = store.search("checkmate", 10);
+        assertEquals(2, ls.size());
+        assertEquals(2990, ((TranscriptStore.Entry)ls.get(0)).getTime());
+        assertEquals(10, ((TranscriptStore.Entry)ls.get(1)).getTime());
+
+        ls = store.search("checkmate 10", 10);
+        assertEquals(1, ls.size());
+        assertTrue(store.search("stalemate", 10).isEmpty());
+        store.close();
+    }
+
+    /**
+     * Tabs, line breaks, and backslashes survive the line format, and null
+     * is told apart from the empty string.
+     */
+    public void testEscaping() {
+        String[] texts = {
+            "", "plain", "tab\there", "line\nbreak", "cr\rlf\r\n",
+            "back\\slash", "\\", "\\0", "\\t", "trailing\\", "\t\n\\"
+        };
+        for (int ix=0; ix<texts.length; ix++) {
+            TranscriptStore.Entry ent = new TranscriptStore.Entry(
+                ix, texts[ix], true, texts[ix], texts[ix]);
+            String line = ent.toLine();
+            assertEquals(line.length()-1, line.indexOf('\n'));
+            assertEquals(4, line.split("\t", -1).length - 1);
+
+            ent = TranscriptStore.Entry.fromLine(
+                line.substring(0, line.length()-1));
+            assertEquals(ix, ent.getTime());
+            assertEquals(texts[ix], ent.getJID());
+            assertEquals(texts[ix], ent.getNick());
+            assertEquals(texts[ix], ent.getText());
+        }
+
+        TranscriptStore.Entry ent = new TranscriptStore.Entry(
+            5, null, false, null, null);
+        String line = ent.toLine();
+        ent = TranscriptStore.Entry.fromLine(line.substring(0, line.length()-1));
+        assertNull(ent.getJID());
+        assertNull(ent.getNick());
+        assertNull(ent.getText());
+
+        assertEquals("", TranscriptStore.Entry.unescape(""));
+        assertNull(TranscriptStore.Entry.fromLine("12\t1\tcut off"));
+        assertNull(TranscriptStore.Entry.fromLine("x\t1\t\t\t"));
+    }
+
+    /**
+     * Page back through a whole transcript whose messages are numbered
+     * from zero, checking that each page carries on where the last left
+     * off. Returns the number of messages seen.
+     */
+    private static int pageAll(TranscriptStore.Transcript transcript,
+        int pageSize) {
+        List ls = transcript.readRecent(pageSize);
+        int seen = 0;
+        int next = -1;
+        while (!ls.isEmpty()) {
+            for (int ix=ls.size()-1; ix>=0; ix--) {
+                String text = ((TranscriptStore.Entry)ls.get(ix)).getText();
+                int num = Integer.parseInt(text.substring("message ".length()));
+                if (next >= 0)
+                    assertEquals(next, num);
+                next = num - 1;
+                seen++;
+            }
+            ls = transcript.readBefore((TranscriptStore.Entry)ls.get(0),
+                pageSize);
+        }
+        assertEquals(-1, next);
+        return seen;
+    }
+
+    private static void deleteAll(File file) {
+        File[] files = file.listFiles();
+        if (files != null) {
+            for (int ix=0; ix<files.length; ix++)
+                deleteAll(files[ix]);
+        }
+        file.delete();
+    }
+}
@@ -0,0 +1,268 @@
+/**
+ * $RCSfile$
+ * $Revision$
+ * $Date$
+ *
+ * Copyright (C) 2003 Jive Software. All rights reserved.
+ *
+ * This software is the proprietary information of Jive Software. Use is subject to license terms.
+ */
+
+package org.jivesoftware.webchat;
+
+import java.util.*;
+
+import org.jivesoftware.smack.*;
+
+
+/**
+ * Shares anonymous XMPP connections between web sessions.<br>
+ *
+ * An anonymous web user has no identity of their own on the XMPP server, so any anonymous
+ *  connection will do to carry them into a room. The one thing the protocol does not allow
+ *  is for one connection to be in the same room twice, since the room knows its occupants
+ *  by their full JID. A pooled connection therefore carries at most one session per room,
+ *  and at most <tt>maxSessionsPerConnection</tt> sessions in all.<br>
+ *
+ * Connections left with no sessions are kept, up to <tt>maxIdleConnections</tt> of them,
+ *  so that the next anonymous login doesn't have to connect and authenticate. Logins with
+ *  a username and password can't be shared, and get a connection of their own from
+ *  {@link #openConnection()}.
+ */
+public class ConnectionPool {
+
+    protected String host;
+    protected int port;
+    protected boolean sslEnabled;
+    protected int maxSessionsPerConnection;
+    protected int maxIdleConnections;
+
+    // PooledConnection instances, in the order they were created
+    protected List connections = new ArrayList();
+
+    /**
+     * @param host the XMPP server
+     * @param port the port, or -1 to use the default
+     * @param sslEnabled true to connect over SSL
+     * @param maxSessionsPerConnection the most web sessions one connection may carry
+     * @param maxIdleConnections the most connections to keep open with no sessions
+     */
+    public ConnectionPool (String host, int port, boolean sslEnabled,
+                           int maxSessionsPerConnection, int maxIdleConnections) {
+        this.host = host;
+        this.port = port;
+        this.sslEnabled = sslEnabled;
+        this.maxSessionsPerConnection = Math.max(1, maxSessionsPerConnection);
+        this.maxIdleConnections = Math.max(0, maxIdleConnections);
+    }
+
+    /**
+     * Opens a new, unauthenticated connection to the server. The connection is not part
+     *  of the pool; the caller is responsible for closing it.
+     */
+    public XMPPConnection openConnection ()
+        throws XMPPException {
+        if (! this.sslEnabled) {
+            if (this.port != -1) {
+                return new XMPPConnection(this.host, this.port);
+            } else {
+                return new XMPPConnection(this.host);
+            }
+        } else {
+            if (this.port != -1) {
+                return new SSLXMPPConnection(this.host, this.port);
+            } else {
+                return new SSLXMPPConnection(this.host);
+            }
+        }
+    }
+
+    /**
+     * Returns an anonymous connection which may be used to join the given room. The caller
+     *  must hand it back with {@link #release(XMPPConnection, String)} when the session
+     *  leaves the room.
+     */
+    public XMPPConnection acquire (String room)
+        throws XMPPException {
+        String key = room.toLowerCase();
+        PooledConnection pooled = null;
+
+        synchronized (this) {
+            pooled = this.findConnectionFor(key);
+
+            if (pooled != null) {
+                pooled.rooms.add(key);
+
+                return pooled.connection;
+            }
+        }
+
+        // Connect outside the lock, so that other sessions aren't held up behind a slow
+        //  server.
+        pooled = new PooledConnection(this.openConnection());
+        try {
+            pooled.connection.loginAnonymously();
+        } catch (XMPPException e) {
+            pooled.connection.close();
+
+            throw e;
+        }
+
+        pooled.rooms.add(key);
+
+        synchronized (this) {
+            this.connections.add(pooled);
+        }
+
+        return pooled.connection;
+    }
+
+    /**
+     * Hands back a connection obtained from {@link #acquire(String)}. The session should
+     *  already have left the room.
+     */
+    public void release (XMPPConnection connection, String room) {
+        PooledConnection toClose = null;
+
+        synchronized (this) {
+            PooledConnection pooled = this.getPooledConnection(connection);
+
+            // MAY RETURN THIS BLOCK
+            if (pooled == null) {
+                return;
+            }
+
+            pooled.rooms.remove(room.toLowerCase());
+
+            if ((pooled.rooms.size() == 0) && (this.getIdleCount() > this.maxIdleConnections)) {
+                this.connections.remove(pooled);
+
+                toClose = pooled;
+            }
+        }
+
+        if (toClose != null) {
+            toClose.connection.close();
+        }
+    }
+
+    /**
+     * Removes a connection from the pool and closes it, whatever sessions it carries. This
+     *  is for connections which have failed.
+     */
+    public void discard (XMPPConnection connection) {
+        synchronized (this) {
+            PooledConnection pooled = this.getPooledConnection(connection);
+
+            // MAY RETURN THIS BLOCK
+            if (pooled == null) {
+                return;
+            }
+
+            this.connections.remove(pooled);
+        }
+
+        connection.close();
+    }
+
+    /**
+     * Closes every pooled connection.
+     */
+    public void closeAll () {
+        List toClose = null;
+
+        synchronized (this) {
+            toClose = new ArrayList(this.connections);
+
+            this.connections.clear();
+        }
+
+        for (Iterator i = toClose.iterator(); i.hasNext(); ) {
+            ((PooledConnection)i.next()).connection.close();
+        }
+    }
+
+    /**
+     * Returns the number of open pooled connections.
+     */
+    public synchronized int getConnectionCount () {
+        return this.connections.size();
+    }
+
+    /**
+     * Returns the number of web sessions carried by pooled connections.
+     */
+    public synchronized int getSessionCount () {
+        int count = 0;
+
+        for (Iterator i = this.connections.iterator(); i.hasNext(); ) {
+            count += ((PooledConnection)i.next()).rooms.size();
+        }
+
+        return count;
+    }
+
+    /**
+     * Picks the busiest connection which still has room and isn't in the given room, so
+     *  that sessions are packed onto as few connections as possible. Dead connections
+     *  found along the way are dropped.
+     */
+    protected PooledConnection findConnectionFor (String room) {
+        PooledConnection best = null;
+
+        for (Iterator i = this.connections.iterator(); i.hasNext(); ) {
+            PooledConnection pooled = (PooledConnection)i.next();
+
+            if (! pooled.connection.isConnected()) {
+                i.remove();
+
+                continue;
+            }
+
+            if ((pooled.rooms.size() < this.maxSessionsPerConnection)
+                    && (! pooled.rooms.contains(room))
+                    && ((best == null) || (pooled.rooms.size() > best.rooms.size()))) {
+                best = pooled;
+            }
+        }
+
+        return best;
+    }
+
+    protected PooledConnection getPooledConnection (XMPPConnection connection) {
+        for (Iterator i = this.connections.iterator(); i.hasNext(); ) {
+            PooledConnection pooled = (PooledConnection)i.next();
+
+            if (pooled.connection == connection) {
+                return pooled;
+            }
+        }
+
+        return null;
+    }
+
+    protected int getIdleCount () {
+        int count = 0;
+
+        for (Iterator i = this.connections.iterator(); i.hasNext(); ) {
+            if (((PooledConnection)i.next()).rooms.size() == 0) {
+                count++;
+            }
+        }
+
+        return count;
+    }
+
+    protected static class PooledConnection {
+
+        protected XMPPConnection connection;
+        // the (lower-cased) rooms this connection is in on behalf of some session
+        protected Set rooms = new HashSet();
+
+        protected PooledConnection (XMPPConnection connection) {
+            this.connection = connection;
+        }
+
+    }
+
+}
@@ -24,14 +24,24 @@ import org.jivesoftware.smack.util.StringUtils;
 
 /**
  * An extension of HttpServlet customized to handle transactions between N webclients
- *  and M chats located on a given XMPP server. While N >= M in the case of group chats,
- *  the code will currently, never the less, hold onto N connections to the XMPP server.<br>
+ *  and M chats located on a given XMPP server. Anonymous web sessions share a small pool
+ *  of connections (see {@link ConnectionPool}); sessions logged in with a username and
+ *  password each hold a connection of their own.<br>
+ *
+ * Each session has its own bounded queue of room messages, joins and departures. A read
+ *  request waits (long-polls) until the queue has something in it, or until the poll
+ *  timeout passes, so an idle browser costs one waiting request rather than a stream of
+ *  empty polls.<br>
  *
  * It is assumed that all JSP pages are in the context root. The init params should be:
  * <ul>
  *      <li> host</li>
  *      <li> port (optional)</li>
  *      <li> SSLEnabled (optional)</li>
+ *      <li> maxSessionsPerConnection (optional, default 20)</li>
+ *      <li> maxIdleConnections (optional, default 2)</li>
+ *      <li> pollTimeout (optional, in seconds, default 20)</li>
+ *      <li> maxQueuedMessages (optional, default 200)</li>
  * </ul>
  *
  * @author Bill Lynch
@@ -39,7 +49,7 @@ import org.jivesoftware.smack.util.StringUtils;
  */
 public class JiveChatServlet
     extends HttpServlet
-    implements HttpSessionListener, PacketListener {
+    implements HttpSessionListener {
 
     static public final String JIVE_WEB_CHAT_RESOURCE_NAME = "WebChat";
 
@@ -56,6 +66,10 @@ public class JiveChatServlet
     static protected String HOST_PARAM_STRING = "host";
     static protected String PORT_PARAM_STRING = "port";
     static protected String SSL_PARAM_STRING = "SSLEnabled";
+    static protected String MAX_SESSIONS_PARAM_STRING = "maxSessionsPerConnection";
+    static protected String MAX_IDLE_PARAM_STRING = "maxIdleConnections";
+    static protected String POLL_TIMEOUT_PARAM_STRING = "pollTimeout";
+    static protected String MAX_QUEUED_PARAM_STRING = "maxQueuedMessages";
 
     static protected String COMMAND_PARAM_STRING = "command";
     static protected String NICKNAME_PARAM_STRING = "nickname";
@@ -80,8 +94,12 @@ public class JiveChatServlet
 
     // k/v :: S(session id) / ChatData
     static protected Map SESSION_CHATDATA_MAP = new HashMap();
-    // k/v :: S(unique root of packet ids) / ChatData
-    static protected Map PACKET_ROOT_CHATDATA_MAP = new HashMap();
+
+    // These are static, like the map above, because the container makes one instance of
+    //  this class as the servlet and another as the session listener.
+    static protected ConnectionPool CONNECTION_POOL = null;
+    static protected long POLL_TIMEOUT_MS = 20000;
+    static protected int MAX_QUEUED_MESSAGES = 200;
 
     static protected EmoticonFilter EMOTICONFILTER = new EmoticonFilter();
     static protected URLTranscoder URLTRANSCODER = new URLTranscoder();
@@ -121,6 +139,30 @@ public class JiveChatServlet
 
         this.sslEnabled
                     = Boolean.valueOf(context.getInitParameter(SSL_PARAM_STRING)).booleanValue();
+
+        POLL_TIMEOUT_MS = 1000L * this.getIntParameter(context, POLL_TIMEOUT_PARAM_STRING, 20);
+        MAX_QUEUED_MESSAGES = this.getIntParameter(context, MAX_QUEUED_PARAM_STRING, 200);
+
+        CONNECTION_POOL = new ConnectionPool(this.host, this.port, this.sslEnabled,
+                                     this.getIntParameter(context, MAX_SESSIONS_PARAM_STRING, 20),
+                                     this.getIntParameter(context, MAX_IDLE_PARAM_STRING, 2));
+    }
+
+    protected int getIntParameter (ServletContext context, String name, int defaultValue)
+        throws ServletException {
+        String value = context.getInitParameter(name);
+
+        // MAY RETURN THIS BLOCK
+        if (value == null) {
+            return defaultValue;
+        }
+
+        try {
+            return Integer.parseInt(value.trim());
+        } catch (NumberFormatException nfe) {
+            throw new ServletException("Init parameter \"" + name
+                                            + "\" must be a valid number.", nfe);
+        }
     }
 
     /**
@@ -128,18 +170,20 @@ public class JiveChatServlet
      *  to our superclass.
      */
     public void destroy () {
+        List chatDatas = null;
+
         synchronized (SESSION_CHATDATA_MAP) {
-            for (Iterator i = SESSION_CHATDATA_MAP.values().iterator(); i.hasNext(); ) {
-                ChatData chatData = (ChatData)i.next();
+            chatDatas = new ArrayList(SESSION_CHATDATA_MAP.values());
 
-                if (chatData.groupChat != null) {
-                    chatData.groupChat.leave();
-                }
+            SESSION_CHATDATA_MAP.clear();
+        }
 
-                chatData.connection.close();
-            }
+        for (Iterator i = chatDatas.iterator(); i.hasNext(); ) {
+            this.releaseChatData((ChatData)i.next());
         }
 
+        CONNECTION_POOL.closeAll();
+
         super.destroy();
     }
 
@@ -151,10 +195,10 @@ public class JiveChatServlet
         String command = request.getParameter(COMMAND_PARAM_STRING);
 
         if (READ_COMMAND_STRING.equals(command))  {
-            ChatData chatData = (ChatData)SESSION_CHATDATA_MAP.get(sessionID);
+            ChatData chatData = this.getChatData(sessionID);
             StringBuffer reply = null;
-            boolean foundData = false;
-            Message message = null;
+            Iterator it = null;
+            int dropped = 0;
             int i = 0;
 
             if (chatData == null) {
@@ -163,18 +207,29 @@ public class JiveChatServlet
                 return;
             }
 
+            // Hold the request until there is something to send. The page reloads itself
+            //  as soon as it is answered, so the browser always has one read outstanding.
+            chatData.waitForEvents(POLL_TIMEOUT_MS);
+
             reply = new StringBuffer();
             reply.append("<!DOCTYPE HTML PUBLIC \"-//W3C//DTD HTML 4.0 Transitional//EN\">\n");
             reply.append("<html><head><title>Chat Read Page</title>\n");
-            reply.append("<meta http-equiv=\"refresh\" content=\"2\">\n");
+            reply.append("<meta http-equiv=\"refresh\" content=\"0\">\n");
             reply.append("<script language=\"Javascript\" src=\"common.js\"></script>");
             reply.append("<script language=\"JavaScript\" type=\"text/javascript\">\n");
             reply.append("  var nickname = \"");
             reply.append(request.getSession().getAttribute(NICKNAME_ATTRIBUTE_STRING));
             reply.append("\";\n");
 
-            message = chatData.groupChat.pollMessage();
-            while (message != null) {
+            dropped = chatData.takeDroppedCount();
+            if (dropped > 0) {
+                reply.append("  addChatText(\"(").append(dropped);
+                reply.append(" earlier messages were not delivered)\", true);\n");
+            }
+
+            it = chatData.takeMessages().iterator();
+            while (it.hasNext()) {
+                Message message = (Message)it.next();
                 String from = message.getFrom();
                 String body = message.getBody();
 
@@ -211,38 +266,25 @@ public class JiveChatServlet
                     reply.append(");\n  addChatText(body").append(i).append(", false);\n");
                 }
 
-                message = chatData.groupChat.pollMessage();
-
-                foundData = true;
-
                 i++;
             }
 
-            synchronized (chatData.newJoins) {
-                synchronized (chatData.newDepartures) {
-                    Iterator it = chatData.newJoins.iterator();
-
-                    i = 0;
-
-                    while (it.hasNext()) {
-                        reply.append("  var joined").append(i).append(" = \"").append(it.next());
-                        reply.append("\";\n  userJoined(joined").append(i).append(");\n");
-
-                        i++;
-                    }
+            i = 0;
+            it = chatData.takeJoins().iterator();
+            while (it.hasNext()) {
+                reply.append("  var joined").append(i).append(" = \"").append(it.next());
+                reply.append("\";\n  userJoined(joined").append(i).append(");\n");
 
-                    i = 0;
-                    it = chatData.newDepartures.iterator();
-                    while (it.hasNext()) {
-                        reply.append("  var departed").append(i).append(" = \"").append(it.next());
-                        reply.append("\";\n  userDeparted(departed").append(i).append(");\n");
+                i++;
+            }
 
-                        i++;
-                    }
+            i = 0;
+            it = chatData.takeDepartures().iterator();
+            while (it.hasNext()) {
+                reply.append("  var departed").append(i).append(" = \"").append(it.next());
+                reply.append("\";\n  userDeparted(departed").append(i).append(");\n");
 
-                    chatData.newJoins.clear();
-                    chatData.newDepartures.clear();
-                }
+                i++;
             }
 
             reply.append("</script>\n</head><body></body></html>");
@@ -250,7 +292,7 @@ public class JiveChatServlet
             this.writeData(reply.toString(), response);
         } else if (WRITE_COMMAND_STRING.equals(command)) {
             String message = request.getParameter(MESSAGE_REQUEST_STRING);
-            ChatData chatData = (ChatData)SESSION_CHATDATA_MAP.get(sessionID);
+            ChatData chatData = this.getChatData(sessionID);
 
             if (message == null) {
                 this.writeData("Parameter \"" + MESSAGE_REQUEST_STRING + "\" is required.",
@@ -293,18 +335,7 @@ public class JiveChatServlet
             }
 
             if (chatData != null) {
-                if (chatData.groupChat != null) {
-                    chatData.groupChat.leave();
-                }
-
-                synchronized (PACKET_ROOT_CHATDATA_MAP) {
-                    Packet p = new IQ();
-                    String root = this.getPacketIDRoot(p);
-
-                    PACKET_ROOT_CHATDATA_MAP.remove(root);
-                }
-
-                chatData.connection.close();
+                this.releaseChatData(chatData);
             }
         } else if (ANON_LOGIN_COMMAND_STRING.equals(command)) {
             String returnCode = this.handleLogin(request, true);
@@ -348,12 +379,34 @@ public class JiveChatServlet
         }
     }
 
-    protected String getPacketIDRoot (Packet p) {
-        if (p == null) {
-            return null;
+    protected ChatData getChatData (String sessionID) {
+        synchronized (SESSION_CHATDATA_MAP) {
+            return (ChatData)SESSION_CHATDATA_MAP.get(sessionID);
+        }
+    }
+
+    /**
+     * Takes the session out of its room and gives up its connection: back to the pool if
+     *  it was shared, otherwise closed. Any read waiting on the session is released.
+     */
+    protected void releaseChatData (ChatData chatData) {
+        chatData.close();
+
+        if (chatData.groupChat != null) {
+            chatData.groupChat.leave();
+            chatData.groupChat.dispose();
+        }
+
+        // MAY RETURN THIS BLOCK
+        if (chatData.connection == null) {
+            return;
         }
 
-        return p.getPacketID().substring(0, 5);
+        if (chatData.pooled) {
+            CONNECTION_POOL.release(chatData.connection, chatData.room);
+        } else {
+            chatData.connection.close();
+        }
     }
 
     /**
@@ -387,46 +440,36 @@ public class JiveChatServlet
 
         // If there were no errors, continue
         if (errors.size() == 0) {
-            ChatData chatData = (ChatData)SESSION_CHATDATA_MAP.get(sessionID);
+            ChatData chatData = null;
 
-            // If a connection already exists for this session, close it before creating
-            //  another.
-            if (chatData != null) {
-                if (chatData.groupChat != null) {
-                    chatData.groupChat.leave();
-                }
+            synchronized (SESSION_CHATDATA_MAP) {
+                chatData = (ChatData)SESSION_CHATDATA_MAP.remove(sessionID);
+            }
 
-                chatData.connection.close();
+            // If this session is already chatting, end that before creating an account.
+            if (chatData != null) {
+                this.releaseChatData(chatData);
             }
 
-            chatData = new ChatData();
+            XMPPConnection connection = null;
 
             try {
                 AccountManager am = null;
 
-                // Create connection.
-                if (! this.sslEnabled) {
-                    if (port != -1) {
-                        chatData.connection = new XMPPConnection(this.host, this.port);
-                    } else {
-                        chatData.connection = new XMPPConnection(this.host);
-                    }
-                } else {
-                     if (port != -1) {
-                        chatData.connection = new SSLXMPPConnection(this.host, this.port);
-                    }
-                    else {
-                        chatData.connection = new SSLXMPPConnection(this.host);
-                    }
-                }
+                // The connection is only needed to create the account.
+                connection = CONNECTION_POOL.openConnection();
 
-                am = chatData.connection.getAccountManager();
+                am = connection.getAccountManager();
 
                 // PENDING check whether the server even supports account creation
                 am.createAccount(username, password);
             } catch (XMPPException e) {
                 errors.put("general", "The server reported an error in account creation: "
                                            + e.getXMPPError().getMessage());
+            } finally {
+                if (connection != null) {
+                    connection.close();
+                }
             }
         }
 
@@ -469,87 +512,40 @@ public class JiveChatServlet
 
         // If there were no errors, continue
         if (errors.size() == 0) {
-            ChatData chatData = (ChatData)SESSION_CHATDATA_MAP.get(sessionID);
+            ChatData chatData = null;
 
-            // If a connection already exists for this session, close it before creating
-            //  another.
-            if (chatData != null) {
-                if (chatData.groupChat != null) {
-                    chatData.groupChat.leave();
-                }
+            synchronized (SESSION_CHATDATA_MAP) {
+                chatData = (ChatData)SESSION_CHATDATA_MAP.remove(sessionID);
+            }
 
-                chatData.connection.close();
+            // If this session is already chatting, end that before starting again.
+            if (chatData != null) {
+                this.releaseChatData(chatData);
             }
 
-            chatData = new ChatData();
+            chatData = new ChatData(room, MAX_QUEUED_MESSAGES);
 
             try {
-                // Create connection.
-                if (! this.sslEnabled) {
-                    if (port != -1) {
-                        chatData.connection = new XMPPConnection(this.host, this.port);
-                    } else {
-                        chatData.connection = new XMPPConnection(this.host);
-                    }
-                } else {
-                     if (port != -1) {
-                        chatData.connection = new SSLXMPPConnection(this.host, this.port);
-                    }
-                    else {
-                        chatData.connection = new SSLXMPPConnection(this.host);
-                    }
-                }
-
                 if (anonymous) {
-                    Authentication a = new Authentication();
-                    PacketCollector pc = chatData.connection.createPacketCollector(
-                                                               new PacketIDFilter(a.getPacketID()));
-                    Authentication responsePacket = null;
-
-                    a.setType(IQ.Type.SET);
-
-                    chatData.connection.sendPacket(a);
-
-                    responsePacket = (Authentication)pc.nextResult(PACKET_RESPONSE_TIMEOUT_MS);
-                    if (responsePacket == null) {
-//                        throw new XMPPException("No response from the server.");
-                    }
-                    // check for error response
-
-                    pc.cancel();
-
-                    // since GroupChat isn't setting the 'from' in it's message sends,
-                    //  i can't see a problem in not doing anything with the unique resource
-                    //  we've just been given by the server. if GroupChat starts setting the
-                    //  from, it would probably grab the information from the XMPPConnection
-                    //  instance it holds, and as such we would then need to introduce the
-                    //  concept of anonymous logins to XMPPConnection, or tell GroupChat what
-                    //  to do what username is null or blank but a resource exists... PENDING
+                    // Anonymous users have no identity of their own, so they can share a
+                    //  connection.
+                    chatData.connection = CONNECTION_POOL.acquire(room);
+                    chatData.pooled = true;
                 } else {
+                    chatData.connection = CONNECTION_POOL.openConnection();
                     chatData.connection.login(username, password, JIVE_WEB_CHAT_RESOURCE_NAME);
                 }
 
-                chatData.connection.addPacketListener(this,
-                                                      new PacketTypeFilter(Presence.class));
+                // Join groupChat room.
+                chatData.groupChat = new SessionGroupChat(chatData.connection, room);
+                chatData.groupChat.addMessageListener(chatData);
+                chatData.groupChat.addParticipantListener(chatData);
+                chatData.groupChat.join(nickname);
 
                 synchronized (SESSION_CHATDATA_MAP) {
                     SESSION_CHATDATA_MAP.put(sessionID, chatData);
                 }
 
-                synchronized (PACKET_ROOT_CHATDATA_MAP) {
-                    Packet p = new IQ();
-                    String root = this.getPacketIDRoot(p);
-
-                    // PENDING -- we won't do anything with this packet, so it will ultimately look
-                    //  to the server as though a packet has disappeared -- is this ok with the
-                    //  server?
-                    PACKET_ROOT_CHATDATA_MAP.put(root, chatData);
-                }
-
-                // Join groupChat room.
-                chatData.groupChat = chatData.connection.createGroupChat(room);
-                chatData.groupChat.join(nickname);
-
                 // Put the user's nickname in the session - this is used by the view to correctly
                 //  display the user's messages in a different color:
                 request.getSession().setAttribute(NICKNAME_ATTRIBUTE_STRING, nickname);
@@ -559,9 +555,7 @@ public class JiveChatServlet
 
                 errors.put("general", ((err != null) ? err.getMessage() : e.getMessage()));
 
-                if (chatData.groupChat != null) {
-                    chatData.groupChat.leave();
-                }
+                this.releaseChatData(chatData);
             }
         }
 
@@ -587,13 +581,155 @@ public class JiveChatServlet
         }
     }
 
-    // a hack class to hold a data glom (really hacky)
-    private class ChatData {
+    /**
+     * The state of one web session's chat: its connection and room, and the queue of
+     *  room events not yet sent to the browser. Room messages and presence arrive through
+     *  the PacketListener interface; a read request waits for them in
+     *  {@link #waitForEvents(long)}. All of the queue state is guarded by the ChatData
+     *  itself.
+     */
+    protected static class ChatData
+        implements PacketListener {
+
+        protected String room;
+        protected XMPPConnection connection;
+        protected GroupChat groupChat;
+        // true if the connection belongs to CONNECTION_POOL
+        protected boolean pooled = false;
+
+        protected int maxQueuedMessages;
+        protected LinkedList messages = new LinkedList();
+        protected int droppedCount = 0;
+        protected Set newJoins = new HashSet();
+        protected Set newDepartures = new HashSet();
+
+        // bumped by each read, so that a newer read releases an older one still waiting
+        protected int readGeneration = 0;
+        protected boolean closed = false;
+
+        protected ChatData (String room, int maxQueuedMessages) {
+            this.room = room;
+            this.maxQueuedMessages = Math.max(1, maxQueuedMessages);
+        }
 
-        private XMPPConnection connection;
-        private GroupChat groupChat;
-        private Set newJoins = new HashSet();
-        private Set newDepartures = new HashSet();
+        public synchronized void processPacket (Packet packet) {
+            if (packet instanceof Message) {
+                this.messages.addLast(packet);
+
+                // The browser has stopped reading, or can't keep up. Keep the newest.
+                if (this.messages.size() > this.maxQueuedMessages) {
+                    this.messages.removeFirst();
+
+                    this.droppedCount++;
+                }
+            } else if (packet instanceof Presence) {
+                Presence presence = (Presence)packet;
+                String userName = null;
+
+                // MAY RETURN THIS BLOCK
+                if (presence.getMode() == Presence.Mode.INVISIBLE) {
+                    return;
+                }
+
+                userName = StringUtils.parseResource(packet.getFrom());
+
+                if (presence.getType() == Presence.Type.UNAVAILABLE) {
+                    this.newJoins.remove(userName);
+                    this.newDepartures.add(userName);
+                } else if (presence.getType() == Presence.Type.AVAILABLE) {
+                    this.newDepartures.remove(userName);
+                    this.newJoins.add(userName);
+                } else {
+                    return;
+                }
+            }
+
+            this.notifyAll();
+        }
+
+        /**
+         * Waits until there are events to send, the timeout passes, a newer read arrives
+         *  for this session, or the session ends.
+         */
+        protected synchronized void waitForEvents (long timeout) {
+            int generation = ++this.readGeneration;
+            long end = System.currentTimeMillis() + timeout;
+
+            // Release any older read still waiting.
+            this.notifyAll();
+
+            while ((! this.closed) && (generation == this.readGeneration) && (! this.hasEvents())) {
+                long remaining = end - System.currentTimeMillis();
+
+                if (remaining <= 0) {
+                    break;
+                }
+
+                try {
+                    this.wait(remaining);
+                } catch (InterruptedException ie) {
+                    break;
+                }
+            }
+        }
+
+        protected synchronized boolean hasEvents () {
+            return ((this.messages.size() > 0) || (this.droppedCount > 0)
+                        || (this.newJoins.size() > 0) || (this.newDepartures.size() > 0));
+        }
+
+        protected synchronized List takeMessages () {
+            List taken = new ArrayList(this.messages);
+
+            this.messages.clear();
+
+            return taken;
+        }
+
+        protected synchronized int takeDroppedCount () {
+            int taken = this.droppedCount;
+
+            this.droppedCount = 0;
+
+            return taken;
+        }
+
+        protected synchronized Set takeJoins () {
+            Set taken = new HashSet(this.newJoins);
+
+            this.newJoins.clear();
+
+            return taken;
+        }
+
+        protected synchronized Set takeDepartures () {
+            Set taken = new HashSet(this.newDepartures);
+
+            this.newDepartures.clear();
+
+            return taken;
+        }
+
+        protected synchronized void close () {
+            this.closed = true;
+
+            this.notifyAll();
+        }
+
+    }
+
+    /**
+     * A GroupChat whose messages are delivered only to listeners. The session's ChatData
+     *  queues them, so GroupChat's own collector would just hold a second copy.
+     */
+    protected static class SessionGroupChat
+        extends GroupChat {
+
+        protected SessionGroupChat (XMPPConnection connection, String room) {
+            super(connection, room);
+
+            this.messageCollector.cancel();
+        }
 
     }
 
@@ -666,63 +802,7 @@ public class JiveChatServlet
         }
 
         if (chatData != null) {
-            if (chatData.groupChat != null) {
-                chatData.groupChat.leave();
-            }
-
-            synchronized (PACKET_ROOT_CHATDATA_MAP) {
-                Packet p = new IQ();
-                String root = this.getPacketIDRoot(p);
-
-                PACKET_ROOT_CHATDATA_MAP.remove(root);
-            }
-
-            chatData.connection.close();
-        }
-    }
-
-    /**
-     *
-     * PacketListener implementation
-     *
-     */
-    public void processPacket (Packet packet) {
-        Presence presence = (Presence)packet;
-        String root = null;
-        ChatData chatData = null;
-        String userName = null;
-
-        // MAY RETURN THIS BLOCK
-        if (presence.getMode() == Presence.Mode.INVISIBLE) {
-            return;
-        }
-
-        root = this.getPacketIDRoot(presence);
-        chatData = (ChatData)PACKET_ROOT_CHATDATA_MAP.get(root);
-
-        // MAY RETURN THIS BLOCK
-        if (chatData == null) {
-            return;
-        }
-
-        userName = StringUtils.parseResource(packet.getFrom());
-
-        if (presence.getType() == Presence.Type.UNAVAILABLE) {
-            synchronized (chatData.newDepartures) {
-                synchronized (chatData.newJoins) {
-                    chatData.newJoins.remove(userName);
-
-                    chatData.newDepartures.add(userName);
-                }
-            }
-        } else if (presence.getType() == Presence.Type.AVAILABLE) {
-            synchronized (chatData.newJoins) {
-                synchronized (chatData.newDepartures) {
-                    chatData.newDepartures.remove(userName);
-
-                    chatData.newJoins.add(userName);
-                }
-            }
+            this.releaseChatData(chatData);
         }
     }
 
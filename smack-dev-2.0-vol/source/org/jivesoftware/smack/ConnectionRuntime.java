@@ -0,0 +1,198 @@
+/**
+ * $RCSfile$
+ * $Revision$
+ * $Date$
+ *
+ * Copyright 2003-2004 Jive Software.
+ *
+ * All rights reserved. Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.jivesoftware.smack;
+
+import java.util.*;
+
+/**
+ * Threads shared by all connections. Rather than each connection starting its
+ * own writer, listener and keep-alive threads, connections hand their work to
+ * the runtime:<ul>
+ *      <li> Periodic and delayed work (keep-alives, timeouts) goes on one shared
+ *          {@link Timer}.
+ *      <li> Packet writing and listener notification go to a shared worker pool.
+ *          The pool starts a worker when work arrives and none is idle, and an
+ *          idle worker exits after a while, so an idle process has no workers.
+ * </ul>
+ *
+ * Work for one connection must still happen in order. A {@link SerialTask}
+ * guarantees that: it runs on the pool, never runs concurrently with itself, and
+ * coalesces repeated scheduling into a single run.
+ */
+public class ConnectionRuntime {
+
+    /**
+     * Milliseconds an idle worker waits for more work before exiting.
+     */
+    protected static final long WORKER_IDLE_TIME = 30000;
+
+    protected static Timer timer = null;
+
+    protected static LinkedList tasks = new LinkedList();
+    protected static int workerCount = 0;
+    protected static int idleWorkerCount = 0;
+    protected static int workerSerial = 0;
+
+    protected ConnectionRuntime() {
+    }
+
+    /**
+     * Returns the shared timer. Tasks on the timer must be quick and must not
+     * block, since they all share one thread; hand anything longer to
+     * {@link #execute(Runnable)}.
+     *
+     * @return the shared timer.
+     */
+    public static synchronized Timer getTimer() {
+        if (timer == null) {
+            timer = new Timer(true);
+        }
+        return timer;
+    }
+
+    /**
+     * Runs a task on the shared worker pool.
+     *
+     * @param task the task to run.
+     */
+    public static void execute(Runnable task) {
+        synchronized (tasks) {
+            tasks.addLast(task);
+            if (idleWorkerCount > tasks.size() - 1) {
+                tasks.notify();
+                return;
+            }
+            workerCount++;
+            workerSerial++;
+        }
+        Thread worker = new Thread() {
+            public void run() {
+                runWorker();
+            }
+        };
+        worker.setName("Smack Worker " + workerSerial);
+        worker.setDaemon(true);
+        worker.start();
+    }
+
+    /**
+     * Returns the number of worker threads currently alive.
+     *
+     * @return the number of workers.
+     */
+    public static int getWorkerCount() {
+        synchronized (tasks) {
+            return workerCount;
+        }
+    }
+
+    /**
+     * Returns the number of worker threads currently waiting for work.
+     *
+     * @return the number of idle workers.
+     */
+    public static int getIdleWorkerCount() {
+        synchronized (tasks) {
+            return idleWorkerCount;
+        }
+    }
+
+    protected static void runWorker() {
+        while (true) {
+            Runnable task;
+            synchronized (tasks) {
+                if (tasks.isEmpty()) {
+                    idleWorkerCount++;
+                    try {
+                        tasks.wait(WORKER_IDLE_TIME);
+                    }
+                    catch (InterruptedException ie) {
+                        // Ignore.
+                    }
+                    idleWorkerCount--;
+                    if (tasks.isEmpty()) {
+                        workerCount--;
+                        return;
+                    }
+                }
+                task = (Runnable)tasks.removeFirst();
+            }
+            try {
+                task.run();
+            }
+            catch (Throwable t) {
+                t.printStackTrace();
+            }
+        }
+    }
+
+    /**
+     * A task that runs on the shared pool, one run at a time. Calling
+     * {@link #schedule()} while the task is waiting to run does nothing more;
+     * calling it while the task is running makes the task run once more after the
+     * current run. So any work made available before a call to schedule() is
+     * seen by a run that starts after that call.
+     */
+    public static abstract class SerialTask implements Runnable {
+
+        protected boolean pending = false;
+        protected boolean running = false;
+
+        /**
+         * Arranges for the task to run on the shared pool.
+         */
+        public void schedule() {
+            synchronized (this) {
+                pending = true;
+                if (running) {
+                    return;
+                }
+                running = true;
+            }
+            execute(this);
+        }
+
+        public void run() {
+            while (true) {
+                synchronized (this) {
+                    pending = false;
+                }
+                try {
+                    runTask();
+                }
+                catch (Throwable t) {
+                    t.printStackTrace();
+                }
+                synchronized (this) {
+                    if (!pending) {
+                        running = false;
+                        return;
+                    }
+                }
+            }
+        }
+
+        /**
+         * Does the work. This should process everything that is ready, then return.
+         */
+        protected abstract void runTask();
+    }
+}
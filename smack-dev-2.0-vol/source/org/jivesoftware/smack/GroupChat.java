@@ -79,7 +79,7 @@ public class GroupChat {
         // Create a listener for all presence updates.
         presenceFilter = new AndFilter(new FromContainsFilter(room),
                 new PacketTypeFilter(Presence.class));
-        connection.addPacketListener(new PacketListener() {
+        PacketListener presenceListener = new PacketListener() {
             public void processPacket(Packet packet) {
                 Presence presence = (Presence)packet;
                 String from = presence.getFrom();
@@ -96,7 +96,9 @@ public class GroupChat {
                     }
                 }
             }
-        }, presenceFilter);
+        };
+        connection.addPacketListener(presenceListener, presenceFilter);
+        connectionListeners.add(presenceListener);
     }
 
     /**
@@ -250,7 +252,9 @@ public class GroupChat {
      */
     public void addParticipantListener(PacketListener listener) {
         connection.addPacketListener(listener, presenceFilter);
-        connectionListeners.add(listener);
+        synchronized (connectionListeners) {
+            connectionListeners.add(listener);
+        }
     }
 
     /**
@@ -334,19 +338,35 @@ public class GroupChat {
      */
     public void addMessageListener(PacketListener listener) {
         connection.addPacketListener(listener, messageFilter);
-        connectionListeners.add(listener);
+        synchronized (connectionListeners) {
+            connectionListeners.add(listener);
+        }
     }
 
-    public void finalize() throws Throwable {
-        super.finalize();
-        try {
-            if (messageCollector != null) {
-                messageCollector.cancel();
-            }
-            // Remove all the PacketListeners added to the connection by this GroupChat
+    /**
+     * Removes the message collector and all packet listeners which this group
+     * chat added to the connection. This happens anyway when the GroupChat is
+     * garbage-collected; call it directly when the connection outlives the
+     * group chat by a long time, as with a shared connection. The group chat
+     * should not be used afterwards.
+     */
+    public void dispose() {
+        if (messageCollector != null) {
+            messageCollector.cancel();
+        }
+        // Remove all the PacketListeners added to the connection by this GroupChat
+        synchronized (connectionListeners) {
             for (Iterator it=connectionListeners.iterator(); it.hasNext();) {
                 connection.removePacketListener((PacketListener) it.next());
             }
+            connectionListeners.clear();
+        }
+    }
+
+    public void finalize() throws Throwable {
+        super.finalize();
+        try {
+            dispose();
         }
         catch (Exception e) {}
     }
@@ -0,0 +1,130 @@
+/**
+ * $RCSfile$
+ * $Revision$
+ * $Date$
+ *
+ * Copyright 2003-2004 Jive Software.
+ *
+ * All rights reserved. Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.jivesoftware.smack;
+
+import java.util.*;
+
+/**
+ * Records how long each phase of connecting and logging in took. Every
+ * XMPPConnection keeps one of these; the clock starts when the connection
+ * object is created, so the recorded times include DNS resolution and the
+ * socket connect.<p>
+ *
+ * Each phase is recorded once, the first time it is reached. The most
+ * interesting number is usually {@link #ROSTER_RECEIVED}, which is the time
+ * until the connection has a usable roster.
+ *
+ * @see XMPPConnection#getLoginTimings()
+ */
+public class LoginTimings {
+
+    /** The socket to the server is open. */
+    public static final String SOCKET_CONNECTED = "socket-connected";
+    /** The server has opened its stream (and TLS is negotiated, if any). */
+    public static final String STREAM_OPENED = "stream-opened";
+    /** SASL or Non-SASL authentication has succeeded. */
+    public static final String AUTHENTICATED = "authenticated";
+    /** The server has bound a resource for the connection. */
+    public static final String RESOURCE_BOUND = "resource-bound";
+    /** The server has acknowledged the session. */
+    public static final String SESSION_ESTABLISHED = "session-established";
+    /** The roster request has been queued for sending. */
+    public static final String ROSTER_REQUESTED = "roster-requested";
+    /** The initial presence has been queued for sending. */
+    public static final String PRESENCE_SENT = "presence-sent";
+    /** The login method has returned. */
+    public static final String LOGIN_COMPLETE = "login-complete";
+    /** The first roster result has arrived and been processed. */
+    public static final String ROSTER_RECEIVED = "roster-received";
+
+    protected long startTime;
+    protected List phases = new ArrayList();
+    protected Map times = new HashMap();
+
+    /**
+     * Creates a new set of timings, with the clock starting now.
+     */
+    public LoginTimings() {
+        startTime = System.currentTimeMillis();
+    }
+
+    /**
+     * Records that the given phase has been reached. If the phase was already
+     * recorded, this does nothing.
+     *
+     * @param phase the phase name; normally one of the constants in this class.
+     */
+    public synchronized void mark(String phase) {
+        if (times.containsKey(phase)) {
+            return;
+        }
+        times.put(phase, new Long(System.currentTimeMillis() - startTime));
+        phases.add(phase);
+    }
+
+    /**
+     * Returns the number of milliseconds between the start of the clock and
+     * the given phase, or -1 if the phase has not been reached.
+     *
+     * @param phase the phase name.
+     * @return the elapsed milliseconds, or -1.
+     */
+    public synchronized long getElapsed(String phase) {
+        Long val = (Long)times.get(phase);
+        if (val == null) {
+            return -1;
+        }
+        return val.longValue();
+    }
+
+    /**
+     * Returns the names of the phases recorded so far, in the order they
+     * were reached.
+     *
+     * @return an Iterator of phase names.
+     */
+    public synchronized Iterator getPhases() {
+        return Collections.unmodifiableList(new ArrayList(phases)).iterator();
+    }
+
+    /**
+     * Returns the start of the clock, as a System.currentTimeMillis() value.
+     *
+     * @return the start time.
+     */
+    public long getStartTime() {
+        return startTime;
+    }
+
+    public synchronized String toString() {
+        StringBuffer buf = new StringBuffer();
+        buf.append("LoginTimings[");
+        for (int i=0; i<phases.size(); i++) {
+            String phase = (String)phases.get(i);
+            if (i > 0) {
+                buf.append(", ");
+            }
+            buf.append(phase).append("=").append(times.get(phase)).append("ms");
+        }
+        buf.append("]");
+        return buf.toString();
+    }
+}
@@ -0,0 +1,556 @@
+/**
+ * $RCSfile$
+ * $Revision$
+ * $Date$
+ *
+ * Copyright 2003-2004 Jive Software.
+ *
+ * All rights reserved. Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.jivesoftware.smack;
+
+import org.jivesoftware.smack.util.Metrics;
+import org.jivesoftware.smack.util.XMLStanzaFramer;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CoderResult;
+import java.nio.charset.CodingErrorAction;
+import java.util.*;
+
+/**
+ * Drives many non-blocking connections from a small, fixed number of selector
+ * threads. This is the transport used by {@link NIOXMPPConnection}.<p>
+ *
+ * Each selector thread reads whatever bytes are available on its channels,
+ * decodes them, and feeds them to a per-connection {@link XMLStanzaFramer}.
+ * Complete stanzas are handed to the connection's {@link NIOPacketReader}, which
+ * parses them and fills packet collectors just as the blocking reader does;
+ * listeners are then run on the shared {@link ConnectionRuntime} pool. Outgoing
+ * data is buffered by each connection's {@link ChannelWriter} and written
+ * whenever the channel can take it.<p>
+ *
+ * Read and decode buffers belong to the selector threads, not the connections,
+ * so an idle connection costs only its channel, framer and a small output buffer.
+ */
+public class NIOConnectionEngine {
+
+    /**
+     * The size of each selector thread's read buffer.
+     */
+    protected static final int READ_BUFFER_SIZE = 16384;
+
+    /**
+     * Output buffers larger than this are released once they have been written.
+     */
+    protected static final int MAX_IDLE_OUTPUT_BUFFER = 65536;
+
+    /**
+     * The most output a connection may have waiting for its channel, in bytes.
+     * A writer which would go past this waits for the channel to take some.
+     */
+    protected static final int MAX_PENDING_OUTPUT = 1024 * 1024;
+
+    /**
+     * How long a writer waits for room in a full output buffer before giving
+     * up on the connection, in milliseconds.
+     */
+    protected static final int OUTPUT_STALL_TIMEOUT = 30000;
+
+    /**
+     * The same byte counts as XMPPConnection keeps for its sockets.
+     */
+    protected static final Metrics.Counter BYTES_IN = Metrics.getCounter("bytes.in");
+    protected static final Metrics.Counter BYTES_OUT = Metrics.getCounter("bytes.out");
+
+    protected static NIOConnectionEngine defaultEngine = null;
+
+    protected SelectorLoop[] loops;
+    protected int nextLoop = 0;
+    protected boolean shutdown = false;
+    protected boolean plaintextAllowed = false;
+
+    /**
+     * Returns the engine shared by NIOXMPPConnections that don't specify one. It
+     * has one selector thread per processor, up to four.
+     *
+     * @return the default engine.
+     * @throws IOException if a selector cannot be opened.
+     */
+    public static synchronized NIOConnectionEngine getDefault() throws IOException {
+        if (defaultEngine == null) {
+            int count = Math.min(4, Runtime.getRuntime().availableProcessors());
+            defaultEngine = new NIOConnectionEngine(count);
+        }
+        return defaultEngine;
+    }
+
+    /**
+     * Creates an engine with the given number of selector threads.
+     *
+     * @param selectorCount the number of selector threads.
+     * @throws IOException if a selector cannot be opened.
+     */
+    public NIOConnectionEngine(int selectorCount) throws IOException {
+        if (selectorCount < 1) {
+            throw new IllegalArgumentException("Need at least one selector thread.");
+        }
+        loops = new SelectorLoop[selectorCount];
+        for (int i=0; i<selectorCount; i++) {
+            loops[i] = new SelectorLoop(i);
+        }
+        for (int i=0; i<selectorCount; i++) {
+            loops[i].start();
+        }
+    }
+
+    /**
+     * Adds a connected channel to the engine. The channel is switched to
+     * non-blocking mode. Nothing is read from it until
+     * {@link Registration#startReading(NIOPacketReader)} is called, but the
+     * registration's writer may be used at once.
+     *
+     * @param channel a connected socket channel.
+     * @return the registration for the channel.
+     * @throws IOException if the channel cannot be made non-blocking.
+     */
+    public Registration register(SocketChannel channel) throws IOException {
+        if (shutdown) {
+            throw new IllegalStateException("Engine has been shut down.");
+        }
+        channel.configureBlocking(false);
+        SelectorLoop loop;
+        synchronized (this) {
+            loop = loops[nextLoop];
+            nextLoop = (nextLoop + 1) % loops.length;
+        }
+        Registration registration = new Registration(loop, channel);
+        loop.requestUpdate(registration);
+        return registration;
+    }
+
+    /**
+     * Returns true if this engine's connections may carry on in the clear when
+     * the server offers TLS, which they cannot negotiate. The default is false,
+     * and such connections fail.
+     *
+     * @return true if plaintext streams are allowed.
+     */
+    public boolean isPlaintextAllowed() {
+        return plaintextAllowed;
+    }
+
+    /**
+     * Sets whether this engine's connections may carry on in the clear when the
+     * server offers TLS. Passwords and everything else will then be sent
+     * unencrypted, so this is only for servers on a trusted network, such as a
+     * load-testing setup. It applies to connections made afterwards.
+     *
+     * @param allowed true if plaintext streams are allowed.
+     */
+    public void setPlaintextAllowed(boolean allowed) {
+        plaintextAllowed = allowed;
+    }
+
+    /**
+     * Returns the number of selector threads.
+     *
+     * @return the number of selector threads.
+     */
+    public int getSelectorCount() {
+        return loops.length;
+    }
+
+    /**
+     * Returns the number of channels currently registered with the engine.
+     *
+     * @return the number of channels.
+     */
+    public int getConnectionCount() {
+        int count = 0;
+        for (int i=0; i<loops.length; i++) {
+            count += loops[i].selector.keys().size();
+        }
+        return count;
+    }
+
+    /**
+     * Stops the selector threads. Channels still registered are left open, but
+     * nothing more will be read from or written to them.
+     */
+    public void shutdown() {
+        shutdown = true;
+        for (int i=0; i<loops.length; i++) {
+            loops[i].selector.wakeup();
+        }
+        synchronized (NIOConnectionEngine.class) {
+            if (defaultEngine == this) {
+                defaultEngine = null;
+            }
+        }
+    }
+
+    /**
+     * One selector thread, and the buffers it uses for reading.
+     */
+    protected class SelectorLoop extends Thread {
+
+        protected Selector selector;
+        protected LinkedList pendingUpdates = new LinkedList();
+        protected ByteBuffer readBuffer = ByteBuffer.allocate(READ_BUFFER_SIZE);
+        protected CharBuffer charBuffer = CharBuffer.allocate(READ_BUFFER_SIZE);
+        protected CharsetDecoder decoder;
+
+        public SelectorLoop(int index) throws IOException {
+            selector = Selector.open();
+            decoder = Charset.forName("UTF-8").newDecoder()
+                    .onMalformedInput(CodingErrorAction.REPLACE)
+                    .onUnmappableCharacter(CodingErrorAction.REPLACE);
+            setName("Smack Selector " + index);
+            setDaemon(true);
+        }
+
+        /**
+         * Asks the selector thread to register the channel, or to recompute
+         * its interest set. This may be called from any thread.
+         */
+        protected void requestUpdate(Registration registration) {
+            synchronized (pendingUpdates) {
+                pendingUpdates.addLast(registration);
+            }
+            selector.wakeup();
+        }
+
+        public void run() {
+            while (!shutdown) {
+                try {
+                    selector.select();
+                    applyUpdates();
+                    Iterator it = selector.selectedKeys().iterator();
+                    while (it.hasNext()) {
+                        SelectionKey key = (SelectionKey)it.next();
+                        it.remove();
+                        Registration registration = (Registration)key.attachment();
+                        if (key.isValid() && key.isReadable()) {
+                            registration.readReady();
+                        }
+                        if (key.isValid() && key.isWritable()) {
+                            registration.writeReady();
+                        }
+                    }
+                }
+                catch (Throwable t) {
+                    t.printStackTrace();
+                }
+            }
+        }
+
+        protected void applyUpdates() {
+            while (true) {
+                Registration registration;
+                synchronized (pendingUpdates) {
+                    if (pendingUpdates.isEmpty()) {
+                        return;
+                    }
+                    registration = (Registration)pendingUpdates.removeFirst();
+                }
+                registration.updateInterest();
+            }
+        }
+    }
+
+    /**
+     * The engine's record of one channel: its reader, framer and writer.
+     */
+    public static class Registration {
+
+        protected SelectorLoop loop;
+        protected SocketChannel channel;
+        protected SelectionKey key = null;
+        protected NIOPacketReader reader = null;
+        protected XMLStanzaFramer framer = new XMLStanzaFramer();
+        protected ChannelWriter writer;
+        protected byte[] leftover = new byte[0];
+        protected boolean closed = false;
+
+        protected Registration(SelectorLoop loop, SocketChannel channel) {
+            this.loop = loop;
+            this.channel = channel;
+            this.writer = new ChannelWriter(this);
+        }
+
+        /**
+         * Returns the writer for this channel.
+         *
+         * @return the writer.
+         */
+        public ChannelWriter getWriter() {
+            return writer;
+        }
+
+        /**
+         * Starts delivering the channel's input to the given reader.
+         *
+         * @param packetReader the reader.
+         */
+        public void startReading(NIOPacketReader packetReader) {
+            reader = packetReader;
+            loop.requestUpdate(this);
+        }
+
+        /**
+         * Registers the channel, or updates its interest set. Runs on the
+         * selector thread.
+         */
+        protected void updateInterest() {
+            if (!channel.isOpen()) {
+                return;
+            }
+            int ops = 0;
+            if (reader != null && !closed) {
+                ops |= SelectionKey.OP_READ;
+            }
+            if (writer.hasPendingOutput()) {
+                ops |= SelectionKey.OP_WRITE;
+            }
+            try {
+                if (key == null) {
+                    key = channel.register(loop.selector, ops, this);
+                }
+                else if (key.isValid()) {
+                    key.interestOps(ops);
+                }
+            }
+            catch (IOException e) {
+                connectionFailed(e);
+            }
+        }
+
+        /**
+         * Reads what is available, and hands any complete stanzas to the
+         * reader. Runs on the selector thread.
+         */
+        protected void readReady() {
+            ByteBuffer readBuffer = loop.readBuffer;
+            CharBuffer charBuffer = loop.charBuffer;
+            readBuffer.clear();
+            readBuffer.put(leftover);
+            int count;
+            try {
+                count = channel.read(readBuffer);
+            }
+            catch (IOException e) {
+                connectionFailed(e);
+                return;
+            }
+            if (count < 0) {
+                connectionFailed(new EOFException("Connection closed by server."));
+                return;
+            }
+            BYTES_IN.add(count);
+            readBuffer.flip();
+            charBuffer.clear();
+            // A multi-byte character may have been split by the read. The decoder
+            // leaves those bytes unread; we save them for next time.
+            loop.decoder.reset();
+            loop.decoder.decode(readBuffer, charBuffer, false);
+            leftover = new byte[readBuffer.remaining()];
+            readBuffer.get(leftover);
+            charBuffer.flip();
+            framer.append(charBuffer.array(), charBuffer.arrayOffset() + charBuffer.position(),
+                    charBuffer.remaining());
+
+            String element;
+            while ((element = framer.nextElement()) != null) {
+                reader.elementReceived(element, framer.getElementType());
+            }
+        }
+
+        /**
+         * Writes as much pending output as the channel will take. Runs on the
+         * selector thread.
+         */
+        protected void writeReady() {
+            try {
+                if (!writer.writePending()) {
+                    updateInterest();
+                }
+            }
+            catch (IOException e) {
+                connectionFailed(e);
+            }
+        }
+
+        protected void connectionFailed(Exception e) {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            if (key != null) {
+                key.cancel();
+            }
+            if (reader != null) {
+                reader.connectionFailed(e);
+            }
+        }
+    }
+
+    /**
+     * A Writer which buffers output for a non-blocking channel. Flushing writes
+     * as much as the channel will take immediately, and leaves the rest for the
+     * selector thread. The buffer holds at most {@link #MAX_PENDING_OUTPUT}
+     * bytes; past that, writing blocks until the channel takes some, just as a
+     * socket's writer blocks when the peer stops reading. If the channel takes
+     * nothing for {@link #OUTPUT_STALL_TIMEOUT} ms, the write fails.
+     */
+    public static class ChannelWriter extends Writer {
+
+        protected Registration registration;
+        protected CharsetEncoder encoder = Charset.forName("UTF-8").newEncoder();
+        protected ByteBuffer output = ByteBuffer.allocate(1024);
+        protected boolean closed = false;
+
+        protected ChannelWriter(Registration registration) {
+            this.registration = registration;
+        }
+
+        public void write(char[] cbuf, int off, int len) throws IOException {
+            encode(CharBuffer.wrap(cbuf, off, len));
+        }
+
+        public void write(String str, int off, int len) throws IOException {
+            encode(CharBuffer.wrap(str, off, off + len));
+        }
+
+        protected void encode(CharBuffer chars) throws IOException {
+            synchronized (lock) {
+                if (closed) {
+                    throw new IOException("Writer closed.");
+                }
+                while (true) {
+                    CoderResult result = encoder.encode(chars, output, false);
+                    if (!result.isOverflow()) {
+                        break;
+                    }
+                    if (output.capacity() >= MAX_PENDING_OUTPUT) {
+                        waitForRoom();
+                        continue;
+                    }
+                    ByteBuffer bigger = ByteBuffer.allocate(output.capacity() * 2);
+                    output.flip();
+                    bigger.put(output);
+                    output = bigger;
+                }
+            }
+        }
+
+        /**
+         * Waits until the channel has taken some of the full output buffer.
+         * Called with the lock held.
+         *
+         * @throws IOException if the channel fails, or takes nothing in time.
+         */
+        protected void waitForRoom() throws IOException {
+            long end = System.currentTimeMillis() + OUTPUT_STALL_TIMEOUT;
+            int full = output.position();
+            writePending();
+            while (output.position() >= full) {
+                if (closed || registration.closed) {
+                    throw new IOException("Writer closed.");
+                }
+                long wait = end - System.currentTimeMillis();
+                if (wait <= 0) {
+                    throw new IOException("Output stalled: the server has taken "
+                            + "nothing for " + OUTPUT_STALL_TIMEOUT + " ms.");
+                }
+                // Have the selector thread write as the channel allows.
+                registration.loop.requestUpdate(registration);
+                try {
+                    lock.wait(wait);
+                }
+                catch (InterruptedException ie) {
+                    throw new InterruptedIOException();
+                }
+            }
+        }
+
+        public void flush() throws IOException {
+            if (writePending()) {
+                // The channel couldn't take it all; let the selector finish.
+                registration.loop.requestUpdate(registration);
+            }
+        }
+
+        /**
+         * Writes as much buffered output as the channel will take.
+         *
+         * @return true if output remains to be written.
+         * @throws IOException if the channel fails.
+         */
+        protected boolean writePending() throws IOException {
+            synchronized (lock) {
+                if (output.position() == 0) {
+                    return false;
+                }
+                output.flip();
+                try {
+                    int count = registration.channel.write(output);
+                    BYTES_OUT.add(count);
+                    if (count > 0) {
+                        // A writer may be waiting for room.
+                        lock.notifyAll();
+                    }
+                }
+                finally {
+                    output.compact();
+                }
+                if (output.position() == 0 && output.capacity() > MAX_IDLE_OUTPUT_BUFFER) {
+                    output = ByteBuffer.allocate(1024);
+                }
+                return output.position() > 0;
+            }
+        }
+
+        protected boolean hasPendingOutput() {
+            synchronized (lock) {
+                return output.position() > 0;
+            }
+        }
+
+        /**
+         * Flushes what can be flushed and refuses further output. The channel
+         * itself is left open; closing it is up to the connection.
+         */
+        public void close() throws IOException {
+            try {
+                flush();
+            }
+            finally {
+                synchronized (lock) {
+                    closed = true;
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,125 @@
+/**
+ * $RCSfile$
+ * $Revision$
+ * $Date$
+ *
+ * Copyright 2003-2004 Jive Software.
+ *
+ * All rights reserved. Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.jivesoftware.smack;
+
+import org.jivesoftware.smack.util.XMLStanzaFramer;
+import org.xmlpull.v1.XmlPullParser;
+
+import java.io.StringReader;
+
+/**
+ * A packet reader for {@link NIOXMPPConnection}. Instead of running its own
+ * thread, it is handed complete top-level elements by an
+ * {@link NIOConnectionEngine} selector thread, and parses each one there. Packet
+ * collectors are filled on the selector thread; listeners run on the shared
+ * {@link ConnectionRuntime} pool as usual.
+ */
+public class NIOPacketReader extends PacketReader {
+
+    protected NIOConnectionEngine.Registration registration;
+
+    /**
+     * The most recent opening stream tag. Each stanza is parsed inside it, so
+     * that the stream's namespace declarations apply.
+     */
+    protected String streamHeader = null;
+
+    public NIOPacketReader(NIOXMPPConnection connection,
+            NIOConnectionEngine.Registration registration)
+    {
+        super(connection);
+        this.registration = registration;
+    }
+
+    protected void startReading() {
+        registration.startReading(this);
+    }
+
+    /**
+     * Does nothing; each element is parsed from scratch, and a new opening
+     * stream tag is handled when it arrives.
+     */
+    protected void resetParser() {
+    }
+
+    /**
+     * Handles one element delivered by the engine. This is called on a
+     * selector thread.
+     *
+     * @param element the text of the element.
+     * @param type the element type, as defined in {@link XMLStanzaFramer}.
+     */
+    protected void elementReceived(String element, int type) {
+        if (done) {
+            return;
+        }
+        try {
+            if (type == XMLStanzaFramer.STREAM_OPEN) {
+                streamHeader = element;
+                parser.setInput(new StringReader(element));
+                if (parser.next() == XmlPullParser.START_TAG) {
+                    parseElement(parser);
+                }
+            }
+            else if (type == XMLStanzaFramer.STANZA) {
+                if (streamHeader == null) {
+                    throw new XMPPException("Stanza received before the stream was opened.");
+                }
+                parser.setInput(new StringReader(streamHeader + element));
+                // Skip the stream tag; the stanza is the next start tag.
+                parser.next();
+                if (parser.next() == XmlPullParser.START_TAG) {
+                    parseElement(parser);
+                }
+            }
+            else if (type == XMLStanzaFramer.STREAM_CLOSE) {
+                ConnectionRuntime.execute(new Runnable() {
+                    public void run() {
+                        connection.close();
+                    }
+                });
+            }
+        }
+        catch (Exception e) {
+            connectionFailed(e);
+        }
+    }
+
+    /**
+     * Closes the connection and notifies listeners of the error, unless the
+     * reader has already been shut down. The work is done on the shared pool,
+     * since closing the connection may block.
+     *
+     * @param e the exception that caused the failure.
+     */
+    protected void connectionFailed(final Exception e) {
+        if (done) {
+            return;
+        }
+        ConnectionRuntime.execute(new Runnable() {
+            public void run() {
+                if (!done) {
+                    notifyConnectionError(e);
+                }
+            }
+        });
+    }
+}
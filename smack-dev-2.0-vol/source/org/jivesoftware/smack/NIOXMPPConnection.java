@@ -0,0 +1,217 @@
+/**
+ * $RCSfile$
+ * $Revision$
+ * $Date$
+ *
+ * Copyright 2003-2004 Jive Software.
+ *
+ * All rights reserved. Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.jivesoftware.smack;
+
+import org.jivesoftware.smack.packet.XMPPError;
+import org.jivesoftware.smack.util.DNSUtil;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.UnknownHostException;
+import java.nio.channels.SocketChannel;
+
+/**
+ * An XMPPConnection which uses non-blocking I/O, so that many connections can
+ * share a few selector threads instead of each having a reader thread. This is
+ * meant for programs which hold a large number of connections open at once,
+ * such as bot farms, load generators and servers acting as clients.<p>
+ *
+ * Apart from construction, it is used just like an ordinary XMPPConnection, with
+ * two limitations:
+ * <ul>
+ *      <li> TLS cannot be negotiated. If the server offers it, the connection
+ *          fails, unless its engine allows plaintext
+ *          ({@link NIOConnectionEngine#setPlaintextAllowed(boolean)}); then the
+ *          stream, including SASL authentication, is sent in the clear. Only
+ *          allow that for servers on a trusted network.
+ *      <li> The debugger is not supported. If debugging is enabled, it is
+ *          ignored for these connections.
+ * </ul>
+ *
+ * @see NIOConnectionEngine
+ */
+public class NIOXMPPConnection extends XMPPConnection {
+
+    protected NIOConnectionEngine engine;
+    protected SocketChannel channel;
+    protected NIOConnectionEngine.Registration registration;
+
+    /**
+     * Creates a new connection to the specified XMPP server, using the default
+     * engine. Servers are looked up as for {@link XMPPConnection#XMPPConnection(String)},
+     * and tried one at a time.
+     *
+     * @param serviceName the name of the XMPP server to connect to; e.g. <tt>jivesoftware.com</tt>.
+     * @throws XMPPException if an error occurs while trying to establish the connection.
+     */
+    public NIOXMPPConnection(String serviceName) throws XMPPException {
+        this(serviceName, getDefaultEngine());
+    }
+
+    /**
+     * Creates a new connection to the specified XMPP server, using the given
+     * engine.
+     *
+     * @param serviceName the name of the XMPP server to connect to; e.g. <tt>jivesoftware.com</tt>.
+     * @param engine the engine which will carry the connection.
+     * @throws XMPPException if an error occurs while trying to establish the connection.
+     */
+    public NIOXMPPConnection(String serviceName, NIOConnectionEngine engine)
+            throws XMPPException
+    {
+        super();
+        this.engine = engine;
+        DNSUtil.HostAddress[] addresses = DNSUtil.resolveXMPPDomainCandidates(serviceName);
+        XMPPException failure = null;
+        for (int i=0; i<addresses.length && channel == null; i++) {
+            try {
+                openChannel(addresses[i].getHost(), addresses[i].getPort());
+            }
+            catch (XMPPException ex) {
+                failure = ex;
+            }
+        }
+        if (channel == null) {
+            throw failure;
+        }
+        this.serviceName = serviceName;
+        init();
+    }
+
+    /**
+     * Creates a new connection to the specified XMPP server on the given host
+     * and port, using the given engine.
+     *
+     * @param host the host name.
+     * @param port the port on the server that should be used; e.g. <tt>5222</tt>.
+     * @param serviceName the name of the XMPP server to connect to; e.g. <tt>jivesoftware.com</tt>.
+     * @param engine the engine which will carry the connection.
+     * @throws XMPPException if an error occurs while trying to establish the connection.
+     */
+    public NIOXMPPConnection(String host, int port, String serviceName,
+            NIOConnectionEngine engine) throws XMPPException
+    {
+        super();
+        this.engine = engine;
+        openChannel(host, port);
+        this.serviceName = serviceName;
+        init();
+    }
+
+    private static NIOConnectionEngine getDefaultEngine() throws XMPPException {
+        try {
+            return NIOConnectionEngine.getDefault();
+        }
+        catch (IOException ioe) {
+            throw new XMPPException("Could not start the connection engine.", ioe);
+        }
+    }
+
+    /**
+     * Connects the channel, blocking for at most
+     * {@link SmackConfiguration#getConnectTimeout()} milliseconds.
+     */
+    protected void openChannel(String host, int port) throws XMPPException {
+        this.host = host;
+        this.port = port;
+        SocketChannel newChannel = null;
+        try {
+            newChannel = SocketChannel.open();
+            newChannel.socket().connect(new InetSocketAddress(host, port),
+                    SmackConfiguration.getConnectTimeout());
+            channel = newChannel;
+            socket = newChannel.socket();
+        }
+        catch (UnknownHostException uhe) {
+            closeQuietly(newChannel);
+            throw new XMPPException(
+                "Could not connect to " + host + ":" + port + ".",
+                new XMPPError(504),
+                uhe);
+        }
+        catch (IOException ioe) {
+            closeQuietly(newChannel);
+            throw new XMPPException(
+                "XMPPError connecting to " + host + ":" + port + ".",
+                new XMPPError(502),
+                ioe);
+        }
+    }
+
+    private static void closeQuietly(SocketChannel channel) {
+        if (channel != null) {
+            try { channel.close(); } catch (IOException ignore) { /* ignore */ }
+        }
+    }
+
+    protected void initReaderAndWriter() throws XMPPException {
+        try {
+            registration = engine.register(channel);
+        }
+        catch (IOException ioe) {
+            throw new XMPPException(
+                "XMPPError establishing connection with server.",
+                new XMPPError(502),
+                ioe);
+        }
+        // Incoming data goes straight from the engine to the packet reader.
+        reader = null;
+        writer = registration.getWriter();
+    }
+
+    protected void initPacketReaderAndWriter() throws XMPPException {
+        packetWriter = new PacketWriter(this);
+        packetReader = new NIOPacketReader(this, registration);
+    }
+
+    /**
+     * Returns false; TLS is not available on non-blocking connections.
+     *
+     * @return false.
+     */
+    protected boolean isTLSAvailable() {
+        return false;
+    }
+
+    /**
+     * Returns true if this connection's engine allows plaintext streams.
+     *
+     * @return true if the stream may be sent in the clear.
+     */
+    protected boolean isPlaintextAllowed() {
+        return engine.isPlaintextAllowed();
+    }
+
+    public void close() {
+        super.close();
+        // Let the selector thread drop the closed channel.
+        registration.loop.selector.wakeup();
+    }
+
+    /**
+     * Returns the engine carrying this connection.
+     *
+     * @return the engine.
+     */
+    public NIOConnectionEngine getEngine() {
+        return engine;
+    }
+}
@@ -21,9 +21,13 @@
 package org.jivesoftware.smack;
 
 import org.jivesoftware.smack.packet.Packet;
+import org.jivesoftware.smack.packet.Presence;
 import org.jivesoftware.smack.filter.PacketFilter;
+import org.jivesoftware.smack.util.Metrics;
 
+import java.util.HashMap;
 import java.util.LinkedList;
+import java.util.Map;
 
 /**
  * Provides a mechanism to collect packets into a result queue that pass a
@@ -33,7 +37,16 @@ import java.util.LinkedList;
  * result.<p>
  *
  * Each packet collector will queue up to 2^16 packets for processing before
- * older packets are automatically dropped.
+ * older packets are automatically dropped.<p>
+ *
+ * The collectors which feed packet listeners can also coalesce presence, if
+ * the connection allows it (see {@link XMPPConnection#setPresenceCoalescing}).
+ * When an available or unavailable presence arrives while an earlier one from
+ * the same sender is still waiting in the queue, the earlier one is dropped,
+ * so the listener only sees the latest. A presence is never dropped if a
+ * message, IQ or subscription presence from the same sender was queued after
+ * it, so each sender's packets keep their order. Collectors made by
+ * {@link XMPPConnection#createPacketCollector(PacketFilter)} never coalesce.
  *
  * @see XMPPConnection#createPacketCollector(PacketFilter)
  * @author Matt Tucker
@@ -47,11 +60,28 @@ public class PacketCollector {
      */
     protected static final int MAX_PACKETS = 65536;
 
+    protected static final Metrics.Counter PRESENCE_QUEUED =
+            Metrics.getCounter("presence.coalesce.queued");
+    protected static final Metrics.Counter PRESENCE_COALESCED =
+            Metrics.getCounter("presence.coalesced");
+
     protected PacketFilter packetFilter;
     protected LinkedList resultQueue;
     protected PacketReader packetReader;
     protected boolean cancelled = false;
 
+    /**
+     * True if this collector feeds a packet listener, and so may coalesce
+     * presence.
+     */
+    protected boolean listenerQueue = false;
+
+    /**
+     * Maps each sender to its queued presence which a newer one may replace,
+     * while coalescing; otherwise null.
+     */
+    protected Map coalescable = null;
+
     /**
      * Creates a new packet collector. If the packet filter is <tt>null</tt>, then
      * all packets will match this collector.
@@ -111,7 +141,7 @@ public class PacketCollector {
             return null;
         }
         else {
-            return (Packet)resultQueue.removeLast();
+            return removeResult();
         }
     }
 
@@ -131,7 +161,7 @@ public class PacketCollector {
                 // Ignore.
             }
         }
-        return (Packet)resultQueue.removeLast();
+        return removeResult();
     }
 
     /**
@@ -157,7 +187,7 @@ public class PacketCollector {
             return null;
         }
         else {
-            return (Packet)resultQueue.removeLast();
+            return removeResult();
         }
     }
 
@@ -172,9 +202,15 @@ public class PacketCollector {
             return;
         }
         if (packetFilter == null || packetFilter.accept(packet)) {
+            if (listenerQueue && packetReader.connection.isPresenceCoalescing()) {
+                coalesce(packet);
+            }
+            else {
+                coalescable = null;
+            }
             // If the max number of packets has been reached, remove the oldest one.
             if (resultQueue.size() == MAX_PACKETS) {
-                resultQueue.removeLast();
+                removeResult();
             }
             // Add the new packet.
             resultQueue.addFirst(packet);
@@ -182,4 +218,49 @@ public class PacketCollector {
             notifyAll();
         }
     }
+
+    /**
+     * Removes the oldest packet from the result queue, and forgets it as a
+     * presence to coalesce.
+     *
+     * @return the packet.
+     */
+    private Packet removeResult() {
+        Packet packet = (Packet)resultQueue.removeLast();
+        if (coalescable != null && coalescable.get(packet.getFrom()) == packet) {
+            coalescable.remove(packet.getFrom());
+        }
+        return packet;
+    }
+
+    /**
+     * Called with each packet about to be queued while coalescing. Drops a
+     * queued presence from the same sender if the packet replaces it, and
+     * records the packet as the one to replace next, or as a barrier.
+     *
+     * @param packet the packet about to be queued.
+     */
+    private void coalesce(Packet packet) {
+        String from = packet.getFrom();
+        if (from == null) {
+            return;
+        }
+        if (coalescable == null) {
+            coalescable = new HashMap();
+        }
+        if (packet instanceof Presence) {
+            Presence.Type type = ((Presence)packet).getType();
+            if (type == Presence.Type.AVAILABLE || type == Presence.Type.UNAVAILABLE) {
+                PRESENCE_QUEUED.increment();
+                Packet older = (Packet)coalescable.put(from, packet);
+                // The newest packets are at the front, so this is a short search.
+                if (older != null && resultQueue.remove(older)) {
+                    PRESENCE_COALESCED.increment();
+                }
+                return;
+            }
+        }
+        // Anything else from this sender must stay behind its queued presence.
+        coalescable.remove(from);
+    }
 }
@@ -24,8 +24,10 @@ import org.jivesoftware.smack.filter.PacketFilter;
 import org.jivesoftware.smack.packet.*;
 import org.jivesoftware.smack.provider.IQProvider;
 import org.jivesoftware.smack.provider.ProviderManager;
+import org.jivesoftware.smack.util.InterningParser;
+import org.jivesoftware.smack.util.Metrics;
+import org.jivesoftware.smack.util.NameTable;
 import org.jivesoftware.smack.util.PacketParserUtils;
-import org.xmlpull.mxp1.MXParser;
 import org.xmlpull.v1.XmlPullParser;
 import org.xmlpull.v1.XmlPullParserException;
 
@@ -35,14 +37,54 @@ import java.util.*;
  * Listens for XML traffic from the XMPP server and parses it into packet objects.
  * The packet reader also manages all packet listeners and collectors.<p>
  *
+ * Parsing happens on the reader's own thread, and collectors are filled there.
+ * Listeners are notified by a task on the shared {@link ConnectionRuntime} pool.<p>
+ *
+ * The parser is an {@link InterningParser}, and elements are dispatched by
+ * looking their names up in {@link NameTable}s, so each costs a hash lookup
+ * on a string whose hash is already known rather than a series of equals()
+ * calls.<p>
+ *
  * @see PacketCollector
  * @see PacketListener
  * @author Matt Tucker
  */
 public class PacketReader {
 
+    protected static final Metrics.Counter MESSAGES_IN = Metrics.getCounter("stanzas.in.message");
+    protected static final Metrics.Counter PRESENCES_IN = Metrics.getCounter("stanzas.in.presence");
+    protected static final Metrics.Counter IQS_IN = Metrics.getCounter("stanzas.in.iq");
+    protected static final Metrics.Counter QUEUE_LEVEL = Metrics.getLevel("reader.queue");
+    protected static final Metrics.Timing LISTENER_TIME = Metrics.getTiming("listener.time");
+
+    /**
+     * The top-level elements of the stream, for {@link #parseElement}.
+     */
+    protected static final NameTable STREAM_ELEMENTS = new NameTable(new String[] {
+        "message", "iq", "presence", "stream", "features", "proceed", "failure",
+        "challenge", "success" });
+    private static final int ELEMENT_MESSAGE = 1;
+    private static final int ELEMENT_IQ = 2;
+    private static final int ELEMENT_PRESENCE = 3;
+    private static final int ELEMENT_STREAM = 4;
+    private static final int ELEMENT_FEATURES = 5;
+    private static final int ELEMENT_PROCEED = 6;
+    private static final int ELEMENT_FAILURE = 7;
+    private static final int ELEMENT_CHALLENGE = 8;
+    private static final int ELEMENT_SUCCESS = 9;
+
+    /**
+     * The namespaces of the IQ queries parsed here rather than by a provider,
+     * for {@link #parseIQ}.
+     */
+    protected static final NameTable IQ_NAMESPACES = new NameTable(new String[] {
+        "jabber:iq:auth", "jabber:iq:roster", "jabber:iq:register" });
+    private static final int QUERY_AUTH = 1;
+    private static final int QUERY_ROSTER = 2;
+    private static final int QUERY_REGISTER = 3;
+
     protected Thread readerThread;
-    protected Thread listenerThread;
+    protected ConnectionRuntime.SerialTask listenerTask;
 
     protected XMPPConnection connection;
     protected XmlPullParser parser;
@@ -51,9 +93,21 @@ public class PacketReader {
     protected List listeners = new ArrayList();
     protected List connectionListeners = new ArrayList();
 
+    /**
+     * Packets counted in the reader.queue level which the listener task may
+     * not have finished with. Guarded by the listeners list.
+     */
+    protected int queuedPackets = 0;
+
     protected String connectionID = null;
     protected Object connectionIDLock = new Object();
 
+    /**
+     * Set if stream negotiation failed in a way which {@link #startup()}
+     * should report, rather than waiting for its timeout.
+     */
+    protected XMPPException startupFailure = null;
+
     public PacketReader(XMPPConnection connection) {
         this.connection = connection;
 
@@ -65,21 +119,14 @@ public class PacketReader {
         readerThread.setName("Smack Packet Reader");
         readerThread.setDaemon(true);
 
-        listenerThread = new Thread() {
-            public void run() {
-                try {
-                    processListeners();
-                }
-                catch (Exception e) {
-                    e.printStackTrace();
-                }
+        listenerTask = new ConnectionRuntime.SerialTask() {
+            protected void runTask() {
+                processListeners();
             }
         };
-        listenerThread.setName("Smack Listener Processor");
-        listenerThread.setDaemon(true);
 
         try {
-            parser = new MXParser();
+            parser = new InterningParser();
             parser.setFeature(XmlPullParser.FEATURE_PROCESS_NAMESPACES, true);
             parser.setInput(connection.reader);
         }
@@ -139,8 +186,7 @@ public class PacketReader {
      *      for more than five seconds.
      */
     public void startup() throws XMPPException {
-        readerThread.start();
-        listenerThread.start();
+        startReading();
         // Wait for stream tag before returing. We'll wait a couple of seconds before
         // giving up and throwing an error.
         try {
@@ -168,6 +214,9 @@ public class PacketReader {
         catch (InterruptedException ie) {
             // Ignore.
         }
+        if (startupFailure != null) {
+            throw startupFailure;
+        }
         if (connectionID == null) {
             throw new XMPPException("Connection failed. No response from server.");
         }
@@ -176,6 +225,13 @@ public class PacketReader {
         }
     }
 
+    /**
+     * Starts reading from the connection. By default this starts the reader thread.
+     */
+    protected void startReading() {
+        readerThread.start();
+    }
+
     /**
      * Shuts the packet reader down.
      */
@@ -193,6 +249,11 @@ public class PacketReader {
             }
         }
         done = true;
+        // The listener task won't run again, so nothing is queued any more.
+        synchronized (listeners) {
+            QUEUE_LEVEL.add(-queuedPackets);
+            queuedPackets = 0;
+        }
     }
 
     /**
@@ -228,11 +289,14 @@ public class PacketReader {
     }
 
     /**
-     * Process listeners.
+     * Process listeners. This is run by the listener task, and keeps going until
+     * no listener has a packet waiting.
      */
     protected void processListeners() {
         while (!done) {
+            int queued;
             synchronized (listeners) {
+                queued = queuedPackets;
                 if (listeners.size() > 0) {
                     for (int i=listeners.size()-1; i>=0; i--) {
                         if (listeners.get(i) == null) {
@@ -250,15 +314,16 @@ public class PacketReader {
                 }
             }
             if (!processedPacket) {
-                try {
-                    // Wait until more packets are ready to be processed.
-                    synchronized (listenerThread) {
-                        listenerThread.wait();
-                    }
-                }
-                catch (InterruptedException ie) {
-                    // Ignore.
-                }
+                // Nothing left, so every packet which had arrived when this
+                // pass began is done with. The task will be scheduled again
+                // when more packets arrive.
+                synchronized (listeners) {
+                    // (Less, if shutdown() has cleared the count meanwhile.)
+                    queued = Math.min(queued, queuedPackets);
+                    queuedPackets -= queued;
+                    QUEUE_LEVEL.add(-queued);
+                }
+                return;
             }
         }
     }
@@ -271,73 +336,7 @@ public class PacketReader {
             int eventType = parser.getEventType();
             do {
                 if (eventType == XmlPullParser.START_TAG) {
-                    if (parser.getName().equals("message")) {
-                        processPacket(PacketParserUtils.parseMessage(parser));
-                    }
-                    else if (parser.getName().equals("iq")) {
-                        processPacket(parseIQ(parser));
-                    }
-                    else if (parser.getName().equals("presence")) {
-                        processPacket(PacketParserUtils.parsePresence(parser));
-                    }
-                    // We found an opening stream. Record information about it, then notify
-                    // the connectionID lock so that the packet reader startup can finish.
-                    else if (parser.getName().equals("stream")) {
-                        // Ensure the correct jabber:client namespace is being used.
-                        if ("jabber:client".equals(parser.getNamespace(null))) {
-                            // Get the connection id.
-                            for (int i=0; i<parser.getAttributeCount(); i++) {
-                                if (parser.getAttributeName(i).equals("id")) {
-                                    // Save the connectionID
-                                    connectionID = parser.getAttributeValue(i);
-                                    if (!"1.0".equals(parser.getAttributeValue("", "version"))) {
-                                        // Notify that a stream has been opened if the
-                                        // server is not XMPP 1.0 compliant otherwise make the
-                                        // notification after TLS has been negotiated or if TLS
-                                        // is not supported
-                                        releaseConnectionIDLock();
-                                    }
-                                }
-                                else if (parser.getAttributeName(i).equals("from")) {
-                                    // Use the server name that the server says that it is.
-                                    connection.serviceName = parser.getAttributeValue(i);
-                                }
-                            }
-                        }
-                    }
-                    else if (parser.getName().equals("features")) {
-                    	parseFeatures(parser);
-                    }
-                    else if (parser.getName().equals("proceed")) {
-                        // Secure the connection by negotiating TLS
-                        connection.proceedTLSReceived();
-                        // Reset the state of the parser since a new stream element is going
-                        // to be sent by the server
-                        resetParser();
-                    }
-                    else if (parser.getName().equals("failure")) {
-                        if ("urn:ietf:params:xml:ns:xmpp-tls".equals(parser.getNamespace(null))) {
-                            // TLS negotiation has failed. The server will close the connection
-                            throw new Exception("TLS negotiation has failed");
-                        }
-                        else {
-                            // SASL authentication has failed. The server may close the connection
-                            // depending on the number of retries
-                            connection.getSASLAuthentication().authenticationFailed();
-                        }
-                    }
-                    else if (parser.getName().equals("challenge")) {
-                        // The server is challenging the SASL authentication made by the client
-                        connection.getSASLAuthentication().challengeReceived(parser.nextText());
-                    }
-                    else if (parser.getName().equals("success")) {
-                        // The SASL authentication with the server was successful. The next step
-                        // will be to bind the resource
-                        connection.getSASLAuthentication().authenticated();
-                        // Reset the state of the parser since a new stream element is going
-                        // to be sent by the server
-                        resetParser();
-                    }
+                    parseElement(parser);
                 }
                 else if (eventType == XmlPullParser.END_TAG) {
                     if (parser.getName().equals("stream")) {
@@ -357,6 +356,94 @@ public class PacketReader {
         }
     }
 
+    /**
+     * Handles one top-level element of the stream: a packet, the opening stream
+     * tag, or one of the stream-level TLS and SASL elements.
+     *
+     * @param parser the XML parser, positioned at the start tag of the element.
+     * @throws Exception if an exception occurs while parsing the element.
+     */
+    protected void parseElement(XmlPullParser parser) throws Exception {
+        switch (STREAM_ELEMENTS.getCode(parser.getName())) {
+            case ELEMENT_MESSAGE:
+                processPacket(PacketParserUtils.parseMessage(parser));
+                break;
+            case ELEMENT_IQ:
+                processPacket(parseIQ(parser));
+                break;
+            case ELEMENT_PRESENCE:
+                processPacket(PacketParserUtils.parsePresence(parser));
+                break;
+            case ELEMENT_STREAM:
+                // We found an opening stream. Record information about it, then notify
+                // the connectionID lock so that the packet reader startup can finish.
+                parseStream(parser);
+                break;
+            case ELEMENT_FEATURES:
+                parseFeatures(parser);
+                break;
+            case ELEMENT_PROCEED:
+                // Secure the connection by negotiating TLS
+                connection.proceedTLSReceived();
+                // Reset the state of the parser since a new stream element is going
+                // to be sent by the server
+                resetParser();
+                break;
+            case ELEMENT_FAILURE:
+                if ("urn:ietf:params:xml:ns:xmpp-tls".equals(parser.getNamespace(null))) {
+                    // TLS negotiation has failed. The server will close the connection
+                    throw new Exception("TLS negotiation has failed");
+                }
+                else {
+                    // SASL authentication has failed. The server may close the connection
+                    // depending on the number of retries
+                    connection.getSASLAuthentication().authenticationFailed();
+                }
+                break;
+            case ELEMENT_CHALLENGE:
+                // The server is challenging the SASL authentication made by the client
+                connection.getSASLAuthentication().challengeReceived(parser.nextText());
+                break;
+            case ELEMENT_SUCCESS:
+                // The SASL authentication with the server was successful. The next step
+                // will be to bind the resource
+                connection.getSASLAuthentication().authenticated();
+                // Reset the state of the parser since a new stream element is going
+                // to be sent by the server
+                resetParser();
+                break;
+        }
+    }
+
+    /**
+     * Handles the opening stream tag.
+     *
+     * @param parser the XML parser, positioned at the start tag of the stream.
+     */
+    protected void parseStream(XmlPullParser parser) {
+        // Ensure the correct jabber:client namespace is being used.
+        if ("jabber:client".equals(parser.getNamespace(null))) {
+            // Get the connection id.
+            for (int i=0; i<parser.getAttributeCount(); i++) {
+                if (parser.getAttributeName(i).equals("id")) {
+                    // Save the connectionID
+                    connectionID = parser.getAttributeValue(i);
+                    if (!"1.0".equals(parser.getAttributeValue("", "version"))) {
+                        // Notify that a stream has been opened if the
+                        // server is not XMPP 1.0 compliant otherwise make the
+                        // notification after TLS has been negotiated or if TLS
+                        // is not supported
+                        releaseConnectionIDLock();
+                    }
+                }
+                else if (parser.getAttributeName(i).equals("from")) {
+                    // Use the server name that the server says that it is.
+                    connection.serviceName = parser.getAttributeValue(i);
+                }
+            }
+        }
+    }
+
     /**
      * Releases the connection ID lock so that the thread that was waiting can resume. The
      * lock will be released when one of the following three conditions is met:<p>
@@ -403,10 +490,22 @@ public class PacketReader {
             }
         }
 
-        // Notify the listener thread that packets are waiting.
-        synchronized (listenerThread) {
-            listenerThread.notifyAll();
+        if (packet instanceof Message) {
+            MESSAGES_IN.increment();
+        }
+        else if (packet instanceof Presence) {
+            PRESENCES_IN.increment();
+        }
+        else {
+            IQS_IN.increment();
         }
+        synchronized (listeners) {
+            queuedPackets++;
+            QUEUE_LEVEL.increment();
+        }
+
+        // Notify the listener task that packets are waiting.
+        listenerTask.schedule();
     }
 
     protected void parseFeatures(XmlPullParser parser) throws Exception {
@@ -417,9 +516,22 @@ public class PacketReader {
 
             if (eventType == XmlPullParser.START_TAG) {
                 if (parser.getName().equals("starttls")) {
-                    startTLSReceived = true;
-                    // Confirm the server that we want to use TLS
-                    connection.startTLSReceived();
+                    if (connection.isTLSAvailable()) {
+                        startTLSReceived = true;
+                        // Confirm the server that we want to use TLS
+                        connection.startTLSReceived();
+                    }
+                    else if (!connection.isPlaintextAllowed()) {
+                        // Don't quietly carry on in the clear.
+                        startupFailure = new XMPPException("The server offers TLS, "
+                                + "which this connection cannot negotiate, and "
+                                + "plaintext is not allowed.");
+                        // startup() reports this and the connection cleans
+                        // up; no connection error is needed as well.
+                        this.done = true;
+                        releaseConnectionIDLock();
+                        throw startupFailure;
+                    }
                 }
                 else if (parser.getName().equals("mechanisms")) {
                     // The server is reporting available SASL mechanisms. Store this information
@@ -501,29 +613,32 @@ public class PacketReader {
                 String namespace = parser.getNamespace();
                 if (elementName.equals("error")) {
                     error = PacketParserUtils.parseError(parser);
-                }
-                else if (elementName.equals("query") && namespace.equals("jabber:iq:auth")) {
-                    iqPacket = parseAuthentication(parser);
-                }
-                else if (elementName.equals("query") && namespace.equals("jabber:iq:roster")) {
-                    iqPacket = parseRoster(parser);
-                }
-                else if (elementName.equals("query") && namespace.equals("jabber:iq:register")) {
-                    iqPacket = parseRegistration(parser);
-                }
-                // Otherwise, see if there is a registered provider for
-                // this element name and namespace.
-                else {
-                    Object provider = ProviderManager.getIQProvider(elementName, namespace);
-                    if (provider != null) {
-                        if (provider instanceof IQProvider) {
-                            iqPacket = ((IQProvider)provider).parseIQ(parser);
-                        }
-                        else if (provider instanceof Class) {
-                            iqPacket = (IQ)PacketParserUtils.parseWithIntrospection(elementName,
-                                    (Class)provider, parser);
+                    continue;
+                }
+                int query = elementName.equals("query") ? IQ_NAMESPACES.getCode(namespace) : 0;
+                switch (query) {
+                    case QUERY_AUTH:
+                        iqPacket = parseAuthentication(parser);
+                        break;
+                    case QUERY_ROSTER:
+                        iqPacket = parseRoster(parser);
+                        break;
+                    case QUERY_REGISTER:
+                        iqPacket = parseRegistration(parser);
+                        break;
+                    default:
+                        // Otherwise, see if there is a registered provider for
+                        // this element name and namespace.
+                        Object provider = ProviderManager.getIQProvider(elementName, namespace);
+                        if (provider != null) {
+                            if (provider instanceof IQProvider) {
+                                iqPacket = ((IQProvider)provider).parseIQ(parser);
+                            }
+                            else if (provider instanceof Class) {
+                                iqPacket = (IQ)PacketParserUtils.parseWithIntrospection(
+                                        elementName, (Class)provider, parser);
+                            }
                         }
-                    }
                 }
             }
             else if (eventType == XmlPullParser.END_TAG) {
@@ -695,6 +810,7 @@ public class PacketReader {
         {
             this.packetListener = packetListener;
             this.packetCollector = new PacketCollector(packetReader, packetFilter);
+            this.packetCollector.listenerQueue = true;
         }
 
         public boolean equals(Object object) {
@@ -713,7 +829,9 @@ public class PacketReader {
         public boolean notifyListener() {
             Packet packet = packetCollector.pollResult();
             if (packet != null) {
+                long start = System.currentTimeMillis();
                 packetListener.processPacket(packet);
+                LISTENER_TIME.recordSince(start);
                 return true;
             }
             else {
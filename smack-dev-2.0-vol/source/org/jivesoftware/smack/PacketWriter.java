@@ -24,26 +24,57 @@ import java.util.*;
 import java.io.*;
 
 import org.jivesoftware.smack.filter.PacketFilter;
-import org.jivesoftware.smack.packet.Packet;
+import org.jivesoftware.smack.packet.*;
+import org.jivesoftware.smack.util.Metrics;
 
 /**
- * Writes packets to a XMPP server.
+ * Writes packets to a XMPP server.<p>
+ *
+ * The packet writer has no threads of its own. Writing packets, notifying
+ * listeners of sent packets, and sending keep-alives are all done by the
+ * shared {@link ConnectionRuntime}.<p>
+ *
+ * Each packet is serialized with {@link Packet#appendXML(StringBuffer)} into a
+ * buffer which the writer keeps from one packet to the next, and handed to the
+ * underlying writer as a single chunk of characters. So sending a packet makes
+ * no string of it, and debuggers and recorders wrapped around the writer still
+ * see each packet whole.
  *
  * @author Matt Tucker
  */
 public class PacketWriter {
 
-    protected Thread writerThread;
+    protected static final Metrics.Counter MESSAGES_OUT = Metrics.getCounter("stanzas.out.message");
+    protected static final Metrics.Counter PRESENCES_OUT = Metrics.getCounter("stanzas.out.presence");
+    protected static final Metrics.Counter IQS_OUT = Metrics.getCounter("stanzas.out.iq");
+    protected static final Metrics.Counter QUEUE_LEVEL = Metrics.getLevel("writer.queue");
+
+    /**
+     * The largest serialization buffer kept between packets, in characters. A
+     * bigger packet gets a bigger buffer, which is dropped once it is written.
+     */
+    protected static final int BUFFER_LIMIT = 64 * 1024;
+
     protected Writer writer;
     protected XMPPConnection connection;
     protected LinkedList queue;
     protected boolean done = false;
-    
+    protected boolean streamOpened = false;
+    protected boolean streamClosed = false;
+    protected boolean keepAliveDue = false;
+
     protected List listeners = new ArrayList();
     protected boolean listenersDeleted = false;
-    protected Thread listenerThread;
     protected LinkedList sentPackets = new LinkedList();
 
+    protected ConnectionRuntime.SerialTask writerTask;
+    protected ConnectionRuntime.SerialTask listenerTask;
+    protected TimerTask keepAliveTask = null;
+
+    // Used only by the writer task.
+    protected StringBuffer xmlBuffer = new StringBuffer(1024);
+    protected char[] xmlChars = new char[1024];
+
     /**
      * Creates a new packet writer with the specified connection.
      *
@@ -54,30 +85,16 @@ public class PacketWriter {
         this.writer = connection.writer;
         this.queue = new LinkedList();
 
-        writerThread = new Thread() {
-            public void run() {
+        writerTask = new ConnectionRuntime.SerialTask() {
+            protected void runTask() {
                 writePackets();
             }
         };
-        writerThread.setName("Smack Packet Writer");
-        writerThread.setDaemon(true);
-
-        listenerThread = new Thread() {
-            public void run() {
+        listenerTask = new ConnectionRuntime.SerialTask() {
+            protected void runTask() {
                 processListeners();
             }
         };
-        listenerThread.setName("Smack Writer Listener Processor");
-        listenerThread.setDaemon(true);
-
-        // Schedule a keep-alive task to run if the feature is enabled. will write
-        // out a space character each time it runs to keep the TCP/IP connection open.
-        int keepAliveInterval = SmackConfiguration.getKeepAliveInterval();
-        if (keepAliveInterval > 0) {
-            Thread keepAliveThread = new Thread(new KeepAliveTask(keepAliveInterval));
-            keepAliveThread.setDaemon(true);
-            keepAliveThread.start();
-        }
     }
 
     /**
@@ -89,14 +106,15 @@ public class PacketWriter {
         if (!done) {
             synchronized(queue) {
                 queue.addFirst(packet);
-                queue.notifyAll();
             }
+            QUEUE_LEVEL.increment();
+            writerTask.schedule();
             // Add the sent packet to the list of sent packets. The
             // PacketWriterListeners will be notified of the new packet.
             synchronized(sentPackets) {
                 sentPackets.addFirst(packet);
-                sentPackets.notifyAll();
             }
+            listenerTask.schedule();
         }
     }
 
@@ -145,13 +163,21 @@ public class PacketWriter {
     }
 
     /**
-     * Starts the packet writer thread and opens a connection to the server. The
-     * packet writer will continue writing packets until {@link #shutdown} or an
-     * error occurs.
+     * Opens a connection to the server. The packet writer will continue writing
+     * packets until {@link #shutdown} or an error occurs.
      */
     public void startup() {
-        writerThread.start();
-        listenerThread.start();
+        // Opening the stream is the writer task's first job.
+        writerTask.schedule();
+
+        // Schedule a keep-alive task to run if the feature is enabled. will write
+        // out a space character each time it runs to keep the TCP/IP connection open.
+        int keepAliveInterval = SmackConfiguration.getKeepAliveInterval();
+        if (keepAliveInterval > 0) {
+            keepAliveTask = new KeepAliveTask();
+            ConnectionRuntime.getTimer().schedule(keepAliveTask,
+                    keepAliveInterval, keepAliveInterval);
+        }
     }
 
     protected void setWriter(Writer writer) {
@@ -160,48 +186,90 @@ public class PacketWriter {
 
     /**
      * Shuts down the packet writer. Once this method has been called, no further
-     * packets will be written to the server.
+     * packets will be accepted. Packets which were already queued are written,
+     * and then the stream is closed.
      */
     public void shutdown() {
         done = true;
+        if (keepAliveTask != null) {
+            keepAliveTask.cancel();
+            keepAliveTask = null;
+        }
+        writerTask.schedule();
     }
 
     /**
-     * Returns the next available packet from the queue for writing.
+     * Returns the next available packet from the queue for writing, or null
+     * if the queue is empty.
      *
      * @return the next packet for writing.
      */
     protected Packet nextPacket() {
+        Packet packet;
         synchronized(queue) {
-            while (!done && queue.size() == 0) {
-                try {
-                    queue.wait(2000);
-                }
-                catch (InterruptedException ie) { }
-            }
             if (queue.size() > 0) {
-                return (Packet)queue.removeLast();
+                packet = (Packet)queue.removeLast();
             }
             else {
                 return null;
             }
         }
+        QUEUE_LEVEL.decrement();
+        if (packet instanceof Message) {
+            MESSAGES_OUT.increment();
+        }
+        else if (packet instanceof Presence) {
+            PRESENCES_OUT.increment();
+        }
+        else {
+            IQS_OUT.increment();
+        }
+        return packet;
     }
 
+    /**
+     * Writes out everything in the queue. This is run by the writer task, so it
+     * never runs concurrently with itself.
+     */
     protected void writePackets() {
+        if (streamClosed) {
+            return;
+        }
         try {
             // Open the stream.
-            openStream();
-            // Write out packets from the queue.
-            while (!done) {
-                Packet packet = nextPacket();
-                if (packet != null) {
-                    synchronized (writer) {
-                        writer.write(packet.toXML());
-                        writer.flush();
+            if (!streamOpened) {
+                streamOpened = true;
+                openStream();
+            }
+            // Write out packets from the queue, flushing once at the end. If there
+            // are none and a keep-alive is due, write that instead.
+            Packet packet = nextPacket();
+            if (packet != null) {
+                synchronized (writer) {
+                    while (packet != null) {
+                        writePacket(packet);
+                        packet = nextPacket();
                     }
+                    writer.flush();
                 }
+                keepAliveDue = false;
             }
+            else if (keepAliveDue && !done) {
+                keepAliveDue = false;
+                synchronized (writer) {
+                    writer.write(" ");
+                    writer.flush();
+                }
+            }
+        }
+        catch (IOException ioe){
+            if (!done) {
+                done = true;
+                connection.packetReader.notifyConnectionError(ioe);
+            }
+        }
+        if (done) {
+            streamClosed = true;
             // Close the stream.
             try {
                 writer.write("</stream:stream>");
@@ -215,56 +283,64 @@ public class PacketWriter {
                 catch (Exception e) { }
             }
         }
-        catch (IOException ioe){
-            if (!done) {
-                done = true;
-                connection.packetReader.notifyConnectionError(ioe);
-            }
+    }
+
+    /**
+     * Serializes a packet into the reused buffer and writes it out in one
+     * chunk. This is run by the writer task.
+     *
+     * @param packet the packet to write.
+     * @throws IOException if the underlying writer does.
+     */
+    protected void writePacket(Packet packet) throws IOException {
+        xmlBuffer.setLength(0);
+        packet.appendXML(xmlBuffer);
+        int len = xmlBuffer.length();
+        if (xmlChars.length < len) {
+            xmlChars = new char[Math.max(len, xmlChars.length * 2)];
+        }
+        xmlBuffer.getChars(0, len, xmlChars, 0);
+        writer.write(xmlChars, 0, len);
+        if (len > BUFFER_LIMIT) {
+            xmlBuffer = new StringBuffer(1024);
+            xmlChars = new char[1024];
         }
     }
 
     /**
-     * Process listeners.
+     * Process listeners. This is run by the listener task, and notifies the
+     * listeners of every packet sent so far.
      */
     protected void processListeners() {
         while (!done) {
             Packet sentPacket;
-            // Wait until a new packet has been sent
             synchronized (sentPackets) {
-                while (!done && sentPackets.size() == 0) {
-                    try {
-                        sentPackets.wait(2000);
-                    }
-                    catch (InterruptedException ie) { }
-                }
                 if (sentPackets.size() > 0) {
                     sentPacket = (Packet)sentPackets.removeLast();
                 }
                 else {
-                    sentPacket = null;
+                    return;
                 }
             }
-            if (sentPacket != null) {
-                // Clean up null entries in the listeners list if the flag is set. List
-                // removes are done seperately so that the main notification process doesn't
-                // need to synchronize on the list.
-                synchronized (listeners) {
-                    if (listenersDeleted) {
-                        for (int i=listeners.size()-1; i>=0; i--) {
-                            if (listeners.get(i) == null) {
-                                listeners.remove(i);
-                            }
+            // Clean up null entries in the listeners list if the flag is set. List
+            // removes are done seperately so that the main notification process doesn't
+            // need to synchronize on the list.
+            synchronized (listeners) {
+                if (listenersDeleted) {
+                    for (int i=listeners.size()-1; i>=0; i--) {
+                        if (listeners.get(i) == null) {
+                            listeners.remove(i);
                         }
-                        listenersDeleted = false;
                     }
+                    listenersDeleted = false;
                 }
-                // Notify the listeners of the new sent packet
-                int size = listeners.size();
-                for (int i=0; i<size; i++) {
-                    ListenerWrapper listenerWrapper = (ListenerWrapper)listeners.get(i);
-                    if (listenerWrapper != null) {
-                        listenerWrapper.notifyListener(sentPacket);
-                    }
+            }
+            // Notify the listeners of the new sent packet
+            int size = listeners.size();
+            for (int i=0; i<size; i++) {
+                ListenerWrapper listenerWrapper = (ListenerWrapper)listeners.get(i);
+                if (listenerWrapper != null) {
+                    listenerWrapper.notifyListener(sentPacket);
                 }
             }
         }
@@ -331,31 +407,18 @@ public class PacketWriter {
 
     /**
      * A TimerTask that keeps connections to the server alive by sending a space
-     * character on an interval.
+     * character on an interval. It runs on the shared timer, so it doesn't write
+     * anything itself; it asks the writer task to do it.
      */
-    protected class KeepAliveTask implements Runnable {
-
-        protected int delay;
-
-        public KeepAliveTask(int delay) {
-            this.delay = delay;
-        }
+    protected class KeepAliveTask extends TimerTask {
 
         public void run() {
-            while (!done) {
-                synchronized (writer) {
-                    try {
-                        writer.write(" ");
-                        writer.flush();
-                    }
-                    catch (Exception e) { }
-                }
-                try {
-                    // Sleep until we should write the next keep-alive.
-                    Thread.sleep(delay);
-                }
-                catch (InterruptedException ie) { }
+            if (done) {
+                cancel();
+                return;
             }
+            keepAliveDue = true;
+            writerTask.schedule();
         }
     }
 }
@@ -0,0 +1,402 @@
+/**
+ * $RCSfile$
+ * $Revision$
+ * $Date$
+ *
+ * Copyright 2003-2004 Jive Software.
+ *
+ * All rights reserved. Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.jivesoftware.smack;
+
+import org.jivesoftware.smack.util.StringUtils;
+import org.jivesoftware.smack.util.TrafficLog;
+import org.jivesoftware.smack.util.TrafficRecorder;
+import org.jivesoftware.smack.util.XMLStanzaFramer;
+
+import java.io.*;
+import java.util.LinkedList;
+
+/**
+ * A connection which plays back a traffic log written by {@link TrafficRecorder},
+ * instead of talking to a server. The recorded inbound stanzas are fed through
+ * an ordinary {@link PacketReader}, so packet listeners, roster, chats and
+ * multi-user chat rooms see them just as they did when the log was made.
+ * Anything sent on the connection is counted and thrown away.<p>
+ *
+ * The connection comes up already logged in, as the JID recorded in the log.
+ * Stanzas are held back until {@link #startReplay()} is called, which gives
+ * the caller a chance to create its listeners (and join its rooms) first.
+ * They are then delivered at their recorded times, divided by the speed
+ * factor; a speed of zero delivers them as fast as they can be parsed.<p>
+ *
+ * Only stanzas the server sent unprompted drive the replay usefully. Packet IDs
+ * differ from run to run, so replies to requests made during the replay will
+ * not match the recorded replies; those are delivered to listeners but never to
+ * the collectors waiting for them. Stream negotiation (TLS and SASL) is skipped.
+ *
+ * @see TrafficRecorder
+ */
+public class ReplayConnection extends XMPPConnection {
+
+    protected TrafficLog log;
+    protected double speed;
+    protected ReplayReader replayReader;
+    protected DiscardWriter discardWriter;
+
+    /**
+     * Creates a connection which replays the given log file.
+     *
+     * @param file the traffic log.
+     * @param speed the speed factor; 1 for the recorded pace, 0 for as fast
+     *      as possible.
+     * @throws IOException if the log can't be read.
+     * @throws XMPPException if the replayed stream can't be opened.
+     */
+    public ReplayConnection(File file, double speed) throws IOException, XMPPException {
+        this(new TrafficLog(file), speed);
+    }
+
+    /**
+     * Creates a connection which replays the given log.
+     *
+     * @param log the traffic log.
+     * @param speed the speed factor; 1 for the recorded pace, 0 for as fast
+     *      as possible.
+     * @throws XMPPException if the replayed stream can't be opened.
+     */
+    public ReplayConnection(TrafficLog log, double speed) throws XMPPException {
+        super();
+        this.log = log;
+        this.speed = speed;
+        this.serviceName = log.getServiceName();
+        this.host = serviceName;
+        this.port = 5222;
+        init();
+
+        // Take on the identity of the recorded connection.
+        String recordedUser = replayReader.findUser();
+        if (recordedUser != null && recordedUser.length() > 0) {
+            user = recordedUser;
+            authenticated = true;
+            anonymous = (StringUtils.parseName(user).length() == 0);
+            if (!anonymous) {
+                roster = new Roster(this);
+            }
+        }
+    }
+
+    /**
+     * Starts delivering the recorded stanzas.
+     */
+    public void startReplay() {
+        replayReader.start();
+    }
+
+    /**
+     * Waits until every recorded stanza has been delivered to the packet
+     * reader, or the connection is closed.
+     *
+     * @param timeout the most milliseconds to wait, or 0 to wait forever.
+     * @return true if the replay has finished.
+     */
+    public boolean waitForFinish(long timeout) {
+        return replayReader.waitForFinish(timeout);
+    }
+
+    /**
+     * Returns the number of stanzas delivered so far.
+     *
+     * @return the stanza count.
+     */
+    public int getReplayedCount() {
+        return replayReader.getReplayedCount();
+    }
+
+    /**
+     * Returns the number of characters sent on this connection, all of which
+     * were discarded.
+     *
+     * @return the character count.
+     */
+    public long getDiscardedCount() {
+        return discardWriter.getCount();
+    }
+
+    public void close() {
+        super.close();
+        log.close();
+    }
+
+    protected void initReaderAndWriter() throws XMPPException {
+        replayReader = new ReplayReader();
+        discardWriter = new DiscardWriter();
+        reader = replayReader;
+        writer = discardWriter;
+    }
+
+    protected boolean isTLSAvailable() {
+        return false;
+    }
+
+    /**
+     * One stanza waiting to be replayed.
+     */
+    private static class Element {
+        long time;
+        String text;
+
+        Element(long time, String text) {
+            this.time = time;
+            this.text = text;
+        }
+    }
+
+    /**
+     * The reader which the packet reader parses. It produces a stream header,
+     * then each recorded stanza in turn once it falls due, then the end of
+     * the stream.
+     */
+    protected class ReplayReader extends Reader {
+
+        private LinkedList records = new LinkedList();
+        private LinkedList elements = new LinkedList();
+        private XMLStanzaFramer framer = new XMLStanzaFramer();
+        private boolean endOfLog = false;
+
+        private String current = null;
+        private int pos = 0;
+        private boolean headerSent = false;
+        private boolean started = false;
+        private boolean finished = false;
+        private boolean closed = false;
+        private long firstTime = -1;
+        private long replayStart;
+        private int replayedCount = 0;
+
+        /**
+         * Reads ahead to the record of who was logged in, keeping the records
+         * passed over for the replay.
+         */
+        synchronized String findUser() {
+            while (!endOfLog) {
+                TrafficLog.Record record = readRecord();
+                if (record == null) {
+                    break;
+                }
+                records.addLast(record);
+                if (record.type == TrafficRecorder.USER) {
+                    return record.text;
+                }
+            }
+            return null;
+        }
+
+        synchronized void start() {
+            if (!started) {
+                started = true;
+                replayStart = System.currentTimeMillis();
+                notifyAll();
+            }
+        }
+
+        synchronized boolean waitForFinish(long timeout) {
+            long end = System.currentTimeMillis() + timeout;
+            while (!finished && !closed) {
+                long wait = 0;
+                if (timeout > 0) {
+                    wait = end - System.currentTimeMillis();
+                    if (wait <= 0) {
+                        break;
+                    }
+                }
+                try {
+                    wait(wait);
+                }
+                catch (InterruptedException ie) {
+                    break;
+                }
+            }
+            return finished;
+        }
+
+        synchronized int getReplayedCount() {
+            return replayedCount;
+        }
+
+        public synchronized int read(char[] cbuf, int off, int len) throws IOException {
+            if (current == null || pos >= current.length()) {
+                current = nextText();
+                pos = 0;
+                if (current == null) {
+                    return -1;
+                }
+            }
+            int count = Math.min(len, current.length() - pos);
+            current.getChars(pos, pos + count, cbuf, off);
+            pos += count;
+            return count;
+        }
+
+        public synchronized void close() {
+            closed = true;
+            notifyAll();
+        }
+
+        /**
+         * Returns the next piece of text for the parser, waiting until it is
+         * due, or null at the end of the stream.
+         */
+        private String nextText() {
+            if (!headerSent) {
+                headerSent = true;
+                // No version attribute, so the reader doesn't wait for features.
+                return "<?xml version='1.0'?><stream:stream xmlns='jabber:client'"
+                    + " xmlns:stream='http://etherx.jabber.org/streams'"
+                    + " id='replay' from='" + StringUtils.escapeForXML(serviceName) + "'>";
+            }
+            while (!started && !closed) {
+                try {
+                    wait();
+                }
+                catch (InterruptedException ie) {
+                    return null;
+                }
+            }
+            if (closed || finished) {
+                return null;
+            }
+
+            Element element = nextElement();
+            if (element == null) {
+                finished = true;
+                notifyAll();
+                return "</stream:stream>";
+            }
+
+            if (speed > 0) {
+                if (firstTime < 0) {
+                    firstTime = element.time;
+                }
+                long due = replayStart + (long)((element.time - firstTime) / speed);
+                long now;
+                while (!closed && (now = System.currentTimeMillis()) < due) {
+                    try {
+                        wait(due - now);
+                    }
+                    catch (InterruptedException ie) {
+                        return null;
+                    }
+                }
+                if (closed) {
+                    return null;
+                }
+            }
+            replayedCount++;
+            return element.text;
+        }
+
+        /**
+         * Returns the next replayable stanza, framing inbound records as
+         * needed, or null at the end of the log.
+         */
+        private Element nextElement() {
+            while (elements.isEmpty()) {
+                if (endOfLog) {
+                    return null;
+                }
+                TrafficLog.Record record;
+                if (!records.isEmpty()) {
+                    record = (TrafficLog.Record)records.removeFirst();
+                }
+                else {
+                    record = readRecord();
+                }
+                if (record == null) {
+                    return null;
+                }
+                if (record.type != TrafficRecorder.INBOUND) {
+                    continue;
+                }
+                framer.append(record.text);
+                String text;
+                while ((text = framer.nextElement()) != null) {
+                    int type = framer.getElementType();
+                    if (type == XMLStanzaFramer.STREAM_CLOSE) {
+                        endOfLog = true;
+                        break;
+                    }
+                    if (type == XMLStanzaFramer.STANZA && isStanza(text)) {
+                        elements.addLast(new Element(record.time, text));
+                    }
+                }
+            }
+            return (Element)elements.removeFirst();
+        }
+
+        private TrafficLog.Record readRecord() {
+            try {
+                TrafficLog.Record record = log.next();
+                if (record == null) {
+                    endOfLog = true;
+                }
+                return record;
+            }
+            catch (IOException ioe) {
+                ioe.printStackTrace();
+                endOfLog = true;
+                return null;
+            }
+        }
+    }
+
+    /**
+     * Returns true if the element is a message, presence or IQ stanza, as
+     * opposed to stream negotiation.
+     */
+    static boolean isStanza(String text) {
+        int end = 1;
+        while (end < text.length() && " \t\r\n/>".indexOf(text.charAt(end)) < 0) {
+            end++;
+        }
+        String name = text.substring(1, end);
+        return name.equals("message") || name.equals("presence") || name.equals("iq");
+    }
+
+    /**
+     * A writer which counts what is written to it and throws it away.
+     */
+    protected static class DiscardWriter extends Writer {
+
+        private long count = 0;
+
+        public synchronized void write(char[] cbuf, int off, int len) {
+            count += len;
+        }
+
+        public synchronized void write(String str, int off, int len) {
+            count += len;
+        }
+
+        public void flush() {
+        }
+
+        public void close() {
+        }
+
+        public synchronized long getCount() {
+            return count;
+        }
+    }
+}
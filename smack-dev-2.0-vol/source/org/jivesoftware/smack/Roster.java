@@ -772,6 +772,7 @@ public class Roster {
                 rosterInitialized = true;
                 Roster.this.notifyAll();
             }
+            connection.loginTimings.mark(LoginTimings.ROSTER_RECEIVED);
 
             // Fire event for roster listeners.
             fireRosterChangedEvent();
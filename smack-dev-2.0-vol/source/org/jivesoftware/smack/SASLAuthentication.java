@@ -76,6 +76,11 @@ public class SASLAuthentication implements UserAuthentication {
     protected boolean saslFailed = false;
     protected boolean resourceBinded = false;
     protected boolean sessionSupported = false;
+    /**
+     * Collector for a session reply that has not been waited for yet. This is only
+     * used by pipelined logins; see {@link #awaitSession()}.
+     */
+    protected PacketCollector pendingSessionCollector = null;
 
     static {
         // Register SASL mechanisms supported by Smack
@@ -206,6 +211,7 @@ public class SASLAuthentication implements UserAuthentication {
                 }
 
                 if (saslNegotiated) {
+                    connection.loginTimings.mark(LoginTimings.AUTHENTICATED);
                     // Bind a resource for this connection and
                     return bindResourceAndEstablishSession(resource);
                 } else {
@@ -262,6 +268,7 @@ public class SASLAuthentication implements UserAuthentication {
             }
 
             if (saslNegotiated) {
+                connection.loginTimings.mark(LoginTimings.AUTHENTICATED);
                 // Bind a resource for this connection and
                 return bindResourceAndEstablishSession(null);
             }
@@ -307,26 +314,67 @@ public class SASLAuthentication implements UserAuthentication {
             throw new XMPPException(response.getError());
         }
         String userJID = response.getJid();
+        connection.loginTimings.mark(LoginTimings.RESOURCE_BOUND);
 
         if (sessionSupported) {
             Session session = new Session();
             collector = connection.createPacketCollector(new PacketIDFilter(session.getPacketID()));
             // Send the packet
             connection.sendPacket(session);
-            // Wait up to a certain number of seconds for a response from the server.
-            IQ ack = (IQ) collector.nextResult(SmackConfiguration.getPacketReplyTimeout());
-            collector.cancel();
-            if (ack == null) {
-                throw new XMPPException("No response from the server.");
+            if (connection.isPipelinedLogin()) {
+                // Don't wait for the reply now. The caller can go on to send its roster
+                // and presence requests, and then check the reply with awaitSession().
+                pendingSessionCollector = collector;
             }
-            // If the server replied with an error, throw an exception.
-            else if (ack.getType() == IQ.Type.ERROR) {
-                throw new XMPPException(ack.getError());
+            else {
+                waitForSession(collector);
             }
         }
         return userJID;
     }
 
+    /**
+     * Waits for the reply to a session request which was sent by a pipelined login.
+     * If no session request is outstanding, this returns immediately.
+     *
+     * @throws XMPPException if the server does not reply, or replies with an error.
+     */
+    protected void awaitSession() throws XMPPException {
+        PacketCollector collector = pendingSessionCollector;
+        pendingSessionCollector = null;
+        if (collector != null) {
+            waitForSession(collector);
+        }
+    }
+
+    /**
+     * Cancels the collector for a session reply which was sent by a pipelined
+     * login but not waited for, so that it doesn't go on collecting packets after
+     * the login has failed. If no session request is outstanding, this does
+     * nothing.
+     */
+    protected void cancelSession() {
+        PacketCollector collector = pendingSessionCollector;
+        pendingSessionCollector = null;
+        if (collector != null) {
+            collector.cancel();
+        }
+    }
+
+    protected void waitForSession(PacketCollector collector) throws XMPPException {
+        // Wait up to a certain number of seconds for a response from the server.
+        IQ ack = (IQ) collector.nextResult(SmackConfiguration.getPacketReplyTimeout());
+        collector.cancel();
+        if (ack == null) {
+            throw new XMPPException("No response from the server.");
+        }
+        // If the server replied with an error, throw an exception.
+        else if (ack.getType() == IQ.Type.ERROR) {
+            throw new XMPPException(ack.getError());
+        }
+        connection.loginTimings.mark(LoginTimings.SESSION_ESTABLISHED);
+    }
+
     /**
      * Sets the available SASL mechanism reported by the server. The server will report the
      * available SASL mechanism once the TLS negotiation was successful. This information is
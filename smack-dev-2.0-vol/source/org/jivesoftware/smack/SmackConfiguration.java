@@ -48,6 +48,10 @@ public final class SmackConfiguration {
 
     protected static int packetReplyTimeout = 5000;
     protected static int keepAliveInterval = 30000;
+    protected static boolean pipelinedLogin = false;
+    protected static boolean presenceCoalescing = false;
+    protected static int connectTimeout = 10000;
+    protected static int connectStaggerDelay = 250;
 
     protected SmackConfiguration() {
     }
@@ -86,6 +90,18 @@ public final class SmackConfiguration {
                                 else if (parser.getName().equals("keepAliveInterval")) {
                                     keepAliveInterval = parseIntProperty(parser, keepAliveInterval);
                                 }
+                                else if (parser.getName().equals("connectTimeout")) {
+                                    connectTimeout = parseIntProperty(parser, connectTimeout);
+                                }
+                                else if (parser.getName().equals("connectStaggerDelay")) {
+                                    connectStaggerDelay = parseIntProperty(parser, connectStaggerDelay);
+                                }
+                                else if (parser.getName().equals("pipelinedLogin")) {
+                                    pipelinedLogin = parseBooleanProperty(parser, pipelinedLogin);
+                                }
+                                else if (parser.getName().equals("presenceCoalescing")) {
+                                    presenceCoalescing = parseBooleanProperty(parser, presenceCoalescing);
+                                }
                             }
                             eventType = parser.next();
                         }
@@ -169,6 +185,102 @@ public final class SmackConfiguration {
         keepAliveInterval = interval;
     }
 
+    /**
+     * Returns the number of milliseconds to allow each attempt to open a socket
+     * to the server. The default value is 10000 ms.
+     *
+     * @return the milliseconds to allow for each connection attempt.
+     */
+    public static int getConnectTimeout() {
+        // The timeout value must be greater than 0 otherwise we will answer the default value
+        if (connectTimeout <= 0) {
+            connectTimeout = 10000;
+        }
+        return connectTimeout;
+    }
+
+    /**
+     * Sets the number of milliseconds to allow each attempt to open a socket
+     * to the server.
+     *
+     * @param timeout the milliseconds to allow for each connection attempt.
+     */
+    public static void setConnectTimeout(int timeout) {
+        if (timeout <= 0) {
+            throw new IllegalArgumentException();
+        }
+        connectTimeout = timeout;
+    }
+
+    /**
+     * Returns the number of milliseconds to wait for one connection attempt
+     * before starting an attempt on the next address the server's DNS records
+     * list. The default value is 250 ms.
+     *
+     * @return the milliseconds between staggered connection attempts.
+     */
+    public static int getConnectStaggerDelay() {
+        return connectStaggerDelay;
+    }
+
+    /**
+     * Sets the number of milliseconds to wait for one connection attempt
+     * before starting an attempt on the next address. A value of 0 starts
+     * all attempts at once.
+     *
+     * @param delay the milliseconds between staggered connection attempts.
+     */
+    public static void setConnectStaggerDelay(int delay) {
+        if (delay < 0) {
+            throw new IllegalArgumentException();
+        }
+        connectStaggerDelay = delay;
+    }
+
+    /**
+     * Returns true if logins should be pipelined. When pipelined, the session
+     * request, roster request and initial presence are all sent as soon as a
+     * resource has been bound, without waiting for the server to acknowledge
+     * each one in turn. The session reply is checked afterwards. The default
+     * value is false.
+     *
+     * @return true if logins should be pipelined.
+     */
+    public static boolean isPipelinedLogin() {
+        return pipelinedLogin;
+    }
+
+    /**
+     * Sets whether logins should be pipelined. See {@link #isPipelinedLogin()}.
+     *
+     * @param pipelined true if logins should be pipelined.
+     */
+    public static void setPipelinedLogin(boolean pipelined) {
+        pipelinedLogin = pipelined;
+    }
+
+    /**
+     * Returns true if connections should coalesce presence. When they do, a
+     * packet listener which falls behind is handed only the latest of the
+     * available and unavailable presences waiting for it from each sender,
+     * rather than every one in turn. The default value is false.
+     *
+     * @return true if presence should be coalesced.
+     */
+    public static boolean isPresenceCoalescing() {
+        return presenceCoalescing;
+    }
+
+    /**
+     * Sets whether connections should coalesce presence. See
+     * {@link #isPresenceCoalescing()}.
+     *
+     * @param coalescing true if presence should be coalesced.
+     */
+    public static void setPresenceCoalescing(boolean coalescing) {
+        presenceCoalescing = coalescing;
+    }
+
     protected static void parseClassToLoad(XmlPullParser parser) throws Exception {
         String className = parser.nextText();
         // Attempt to load the class so that the class can get initialized
@@ -193,6 +305,19 @@ public final class SmackConfiguration {
         }
     }
 
+    protected static boolean parseBooleanProperty(XmlPullParser parser, boolean defaultValue)
+            throws Exception
+    {
+        String text = parser.nextText().trim();
+        if (text.equalsIgnoreCase("true")) {
+            return true;
+        }
+        if (text.equalsIgnoreCase("false")) {
+            return false;
+        }
+        return defaultValue;
+    }
+
     /**
      * Returns an array of class loaders to load resources from.
      *
@@ -31,6 +31,9 @@ import org.jivesoftware.smack.packet.PresenceFactory;
 import org.jivesoftware.smack.packet.XMPPError;
 import org.jivesoftware.smack.util.StringUtils;
 import org.jivesoftware.smack.util.DNSUtil;
+import org.jivesoftware.smack.util.Metrics;
+import org.jivesoftware.smack.util.SocketConnector;
+import org.jivesoftware.smack.util.TrafficRecorder;
 
 import javax.net.SocketFactory;
 import javax.net.ssl.SSLContext;
@@ -77,6 +80,21 @@ public class XMPPConnection {
      */
     public static boolean DEBUG_ENABLED = false;
 
+    /**
+     * Directory to record connection traffic in, or null if traffic is not being
+     * recorded. Each connection writes a log of its own; see {@link TrafficRecorder}.
+     * Set the system property <tt>smack.trafficLogDir</tt> to turn recording on, as
+     * in "java SomeApp -Dsmack.trafficLogDir=/tmp/xmpplogs". Connections created
+     * after this is changed will use the new value.
+     */
+    public static String TRAFFIC_LOG_DIR = null;
+
+    /**
+     * Bytes read from and written to the network by all connections.
+     */
+    protected static final Metrics.Counter BYTES_IN = Metrics.getCounter("bytes.in");
+    protected static final Metrics.Counter BYTES_OUT = Metrics.getCounter("bytes.out");
+
     protected static List connectionEstablishedListeners = new ArrayList();
 
     static {
@@ -84,6 +102,12 @@ public class XMPPConnection {
         // property (for example, when an applet).
         try {
             DEBUG_ENABLED = Boolean.getBoolean("smack.debugEnabled");
+            TRAFFIC_LOG_DIR = System.getProperty("smack.trafficLogDir");
+            // Write all metrics to standard error every so many seconds.
+            String interval = System.getProperty("smack.metricsInterval");
+            if (interval != null) {
+                Metrics.startDumping(Long.parseLong(interval) * 1000, System.err);
+            }
         }
         catch (Exception e) {
             // Ignore.
@@ -92,6 +116,7 @@ public class XMPPConnection {
         SmackConfiguration.getVersion();
     }
     protected SmackDebugger debugger = null;
+    protected TrafficRecorder trafficRecorder = null;
 
     /**
      * IP address or host name of the server. This information is only used when
@@ -128,6 +153,14 @@ public class XMPPConnection {
 
     protected PresenceFactory presenceFactory = new DefaultPresenceFactory();
 
+    /**
+     * Timings of the connection and login phases. The clock starts when the
+     * connection object is created.
+     */
+    protected LoginTimings loginTimings = new LoginTimings();
+    protected boolean pipelinedLogin = SmackConfiguration.isPipelinedLogin();
+    protected boolean presenceCoalescing = SmackConfiguration.isPresenceCoalescing();
+
     /**
      * A map between JIDs and the most recently created Chat object with that JID.
      * Reference to the Chat is stored via a WeakReference so that the map
@@ -141,7 +174,12 @@ public class XMPPConnection {
      * performed to try to determine the IP address and port corresponding to the
      * serviceName; if that lookup fails, it's assumed that server resides at serviceName
      * with the default port of 5222. This is the preferred constructor for connecting
-     * to an XMPP server.
+     * to an XMPP server.<p>
+     *
+     * If the SRV lookup lists several servers, they are tried in SRV order, with
+     * staggered overlapping attempts; see {@link SocketConnector}. The timing is
+     * controlled by {@link SmackConfiguration#getConnectStaggerDelay()} and
+     * {@link SmackConfiguration#getConnectTimeout()}.
      *
      * @param serviceName the name of the XMPP server to connect to; e.g. <tt>jivesoftware.com</tt>.
      * @throws XMPPException if an error occurs while trying to establish the connection.
@@ -151,12 +189,17 @@ public class XMPPConnection {
      *      appropiate error messages to end-users.
      */
     public XMPPConnection(String serviceName) throws XMPPException {
-        DNSUtil.HostAddress address = DNSUtil.resolveXMPPDomain(serviceName);
+        DNSUtil.HostAddress[] addresses = DNSUtil.resolveXMPPDomainCandidates(serviceName);
 
-        this.host = address.getHost();
-        this.port = address.getPort();
+        this.host = addresses[0].getHost();
+        this.port = addresses[0].getPort();
         try {
-            this.socket = new Socket(host, port);
+            SocketConnector connector = new SocketConnector(addresses,
+                    SmackConfiguration.getConnectStaggerDelay(),
+                    SmackConfiguration.getConnectTimeout());
+            this.socket = connector.connect();
+            this.host = connector.getWinningAddress().getHost();
+            this.port = connector.getWinningAddress().getPort();
         }
         catch (UnknownHostException uhe) {
             throw new XMPPException(
@@ -421,31 +464,47 @@ public class XMPPConnection {
             response = new NonSASLAuthentication(this).authenticate(username, password, resource);
         }
 
-        // Set the user.
-        if (response != null) {
-            this.user = response;
-            // Update the serviceName with the one returned by the server
-            this.serviceName = StringUtils.parseServer(response);
-        }
-        else {
-            this.user = username + "@" + this.serviceName;
-            if (resource != null) {
-                this.user += "/" + resource;
+        try {
+            loginTimings.mark(LoginTimings.AUTHENTICATED);
+            loginTimings.mark(LoginTimings.RESOURCE_BOUND);
+
+            // Set the user.
+            if (response != null) {
+                this.user = response;
+                // Update the serviceName with the one returned by the server
+                this.serviceName = StringUtils.parseServer(response);
+            }
+            else {
+                this.user = username + "@" + this.serviceName;
+                if (resource != null) {
+                    this.user += "/" + resource;
+                }
             }
-        }
 
-        // Create the roster.
-        this.roster = new Roster(this);
-        roster.reload();
+            // Create the roster.
+            this.roster = new Roster(this);
+            loginTimings.mark(LoginTimings.ROSTER_REQUESTED);
+            roster.reload();
 
-        // Set presence to online.
-        if (sendPresence) {
-            packetWriter.sendPacket(createPresence(Presence.Type.AVAILABLE));
+            // Set presence to online.
+            if (sendPresence) {
+                packetWriter.sendPacket(createPresence(Presence.Type.AVAILABLE));
+                loginTimings.mark(LoginTimings.PRESENCE_SENT);
+            }
+
+            // If this was a pipelined login, the session reply hasn't been checked yet.
+            saslAuthentication.awaitSession();
+        }
+        finally {
+            // If anything above failed, don't leave a pipelined session
+            // request's collector registered.
+            saslAuthentication.cancelSession();
         }
 
         // Indicate that we're now authenticated.
         authenticated = true;
         anonymous = false;
+        loginTimings.mark(LoginTimings.LOGIN_COMPLETE);
 
         // If debugging is enabled, change the the debug window title to include the
         // name we are now logged-in as.
@@ -454,6 +513,9 @@ public class XMPPConnection {
         if (DEBUG_ENABLED && debugger != null) {
             debugger.userHasLogged(user);
         }
+        if (trafficRecorder != null) {
+            trafficRecorder.recordUser(user);
+        }
     }
 
     /**
@@ -483,20 +545,33 @@ public class XMPPConnection {
             response = new NonSASLAuthentication(this).authenticateAnonymously();
         }
 
-        // Set the user value.
-        this.user = response;
-        // Update the serviceName with the one returned by the server
-        this.serviceName = StringUtils.parseServer(response);
+        try {
+            loginTimings.mark(LoginTimings.AUTHENTICATED);
+            loginTimings.mark(LoginTimings.RESOURCE_BOUND);
+
+            // Set the user value.
+            this.user = response;
+            // Update the serviceName with the one returned by the server
+            this.serviceName = StringUtils.parseServer(response);
+
+            // Anonymous users can't have a roster.
+            roster = null;
 
-        // Anonymous users can't have a roster.
-        roster = null;
+            // Set presence to online.
+            packetWriter.sendPacket(createPresence(Presence.Type.AVAILABLE));
+            loginTimings.mark(LoginTimings.PRESENCE_SENT);
 
-        // Set presence to online.
-        packetWriter.sendPacket(createPresence(Presence.Type.AVAILABLE));
+            // If this was a pipelined login, the session reply hasn't been checked yet.
+            saslAuthentication.awaitSession();
+        }
+        finally {
+            saslAuthentication.cancelSession();
+        }
 
         // Indicate that we're now authenticated.
         authenticated = true;
         anonymous = true;
+        loginTimings.mark(LoginTimings.LOGIN_COMPLETE);
 
         // If debugging is enabled, change the the debug window title to include the
         // name we are now logged-in as.
@@ -505,6 +580,9 @@ public class XMPPConnection {
         if (DEBUG_ENABLED && debugger != null) {
             debugger.userHasLogged(user);
         }
+        if (trafficRecorder != null) {
+            trafficRecorder.recordUser(user);
+        }
     }
 
     /**
@@ -532,6 +610,64 @@ public class XMPPConnection {
         return presenceFactory.create(type, status, priority, mode);
     }
 
+    /**
+     * Returns true if this connection will pipeline its login. A pipelined login
+     * sends the session request, roster request and initial presence as soon as
+     * a resource has been bound, rather than waiting for the session reply
+     * first. The default comes from {@link SmackConfiguration#isPipelinedLogin()}.
+     *
+     * @return true if the login will be pipelined.
+     */
+    public boolean isPipelinedLogin() {
+        return pipelinedLogin;
+    }
+
+    /**
+     * Sets whether this connection will pipeline its login. This must be called
+     * before one of the login methods to have any effect.
+     *
+     * @param pipelined true if the login should be pipelined.
+     */
+    public void setPipelinedLogin(boolean pipelined) {
+        pipelinedLogin = pipelined;
+    }
+
+    /**
+     * Returns true if this connection coalesces presence. While a packet
+     * listener is behind, an available or unavailable presence replaces any
+     * earlier one from the same sender still waiting for that listener,
+     * unless another packet from the sender came in between. (See
+     * {@link PacketCollector}.) The default comes from
+     * {@link SmackConfiguration#isPresenceCoalescing()}.
+     *
+     * @return true if presence is coalesced.
+     */
+    public boolean isPresenceCoalescing() {
+        return presenceCoalescing;
+    }
+
+    /**
+     * Sets whether this connection coalesces presence. This may be changed at
+     * any time; it applies to packets which arrive afterwards.
+     *
+     * @param coalescing true if presence should be coalesced.
+     */
+    public void setPresenceCoalescing(boolean coalescing) {
+        presenceCoalescing = coalescing;
+    }
+
+    /**
+     * Returns the timings of the connection and login phases. The
+     * {@link LoginTimings#ROSTER_RECEIVED} phase is recorded asynchronously,
+     * when the roster arrives, so it may not be present immediately after
+     * login returns.
+     *
+     * @return the login timings for this connection.
+     */
+    public LoginTimings getLoginTimings() {
+        return loginTimings;
+    }
+
     /**
      * Returns the roster for the user logged into the server. If the user has not yet
      * logged into the server (or if the user is logged in anonymously), this method will return
@@ -690,6 +826,9 @@ public class XMPPConnection {
         catch (Exception e) {
             // Ignore.
         }
+        if (trafficRecorder != null) {
+            trafficRecorder.close();
+        }
         authenticated = false;
         connected = false;
     }
@@ -846,6 +985,8 @@ public class XMPPConnection {
      * @throws XMPPException if establishing a connection to the server fails.
      */
     protected void init() throws XMPPException {
+        loginTimings.mark(LoginTimings.SOCKET_CONNECTED);
+
         // Set the reader and writer instance variables
         initReaderAndWriter();
 
@@ -856,7 +997,7 @@ public class XMPPConnection {
 
             // If debugging is enabled, we should start the thread that will listen for
             // all packets and then log them.
-            if (DEBUG_ENABLED) {
+            if (DEBUG_ENABLED && debugger != null) {
                 packetReader.addPacketListener(debugger.getReaderListener(), null);
                 if (debugger.getWriterListener() != null) {
                     packetWriter.addPacketListener(debugger.getWriterListener(), null);
@@ -867,6 +1008,7 @@ public class XMPPConnection {
             // Start the packet reader. The startup() method will block until we
             // get an opening stream packet back from server.
             packetReader.startup();
+            loginTimings.mark(LoginTimings.STREAM_OPENED);
 
             // Make note of the fact that we're now connected.
             connected = true;
@@ -933,8 +1075,10 @@ public class XMPPConnection {
 
     protected void initReaderAndWriter() throws XMPPException {
         try {
-            reader = new BufferedReader(new InputStreamReader(socket.getInputStream(), "UTF-8"));
-            writer = new BufferedWriter(new OutputStreamWriter(socket.getOutputStream(), "UTF-8"));
+            reader = new BufferedReader(new InputStreamReader(
+                new Metrics.MeteredInputStream(socket.getInputStream(), BYTES_IN), "UTF-8"));
+            writer = new BufferedWriter(new OutputStreamWriter(
+                new Metrics.MeteredOutputStream(socket.getOutputStream(), BYTES_OUT), "UTF-8"));
         }
         catch (IOException ioe) {
             throw new XMPPException(
@@ -943,6 +1087,23 @@ public class XMPPConnection {
                 ioe);
         }
 
+        // If recording is enabled, log all network traffic. After TLS is negotiated
+        // this is called again, and the same recorder carries on with the new streams.
+        if (TRAFFIC_LOG_DIR != null) {
+            if (trafficRecorder == null) {
+                try {
+                    trafficRecorder = TrafficRecorder.create(new File(TRAFFIC_LOG_DIR), serviceName);
+                }
+                catch (IOException ioe) {
+                    ioe.printStackTrace();
+                }
+            }
+            if (trafficRecorder != null) {
+                reader = trafficRecorder.wrapReader(reader);
+                writer = trafficRecorder.wrapWriter(writer);
+            }
+        }
+
         // If debugging is enabled, we open a window and write out all network traffic.
         if (DEBUG_ENABLED) {
             if (debugger == null) {
@@ -1035,6 +1196,30 @@ public class XMPPConnection {
         return usingTLS;
     }
 
+    /**
+     * Returns true if this connection is able to negotiate TLS when the server
+     * offers it. Subclasses whose transport cannot be secured should return false.
+     * When such a connection is offered TLS, it fails with an XMPPException, unless
+     * {@link #isPlaintextAllowed()} returns true, in which case it carries on without
+     * TLS.
+     *
+     * @return true if TLS can be negotiated on this connection.
+     */
+    protected boolean isTLSAvailable() {
+        return true;
+    }
+
+    /**
+     * Returns true if this connection may go on without TLS when the server
+     * offers it but {@link #isTLSAvailable()} is false. If not, the connection
+     * fails instead. The default is false.
+     *
+     * @return true if the stream may be sent in the clear.
+     */
+    protected boolean isPlaintextAllowed() {
+        return false;
+    }
+
     /**
      * Returns the SASLAuthentication manager that is responsible for authenticating with
      * the server.
@@ -244,8 +244,9 @@ public class LiteDebugger implements SmackDebugger {
         // data as Smack sees it and not as it's coming in as raw XML.
         listener = new PacketListener() {
             public void processPacket(Packet packet) {
-                interpretedText1.append(packet.toXML());
-                interpretedText2.append(packet.toXML());
+                String xml = packet.toXML();
+                interpretedText1.append(xml);
+                interpretedText2.append(xml);
                 interpretedText1.append(NEWLINE);
                 interpretedText2.append(NEWLINE);
             }
@@ -68,15 +68,31 @@ public abstract class IQ extends Packet {
 
     public String toXML() {
         StringBuffer buf = new StringBuffer();
+        appendIQXML(buf);
+        return buf.toString();
+    }
+
+    public void appendXML(StringBuffer buf) {
+        // A subclass which overrides toXML() decides what is sent.
+        if (!appendOverriddenXML(buf, IQ.class)) {
+            appendIQXML(buf);
+        }
+    }
+
+    private void appendIQXML(StringBuffer buf) {
         buf.append("<iq ");
         if (getPacketID() != null) {
-            buf.append("id=\"" + getPacketID() + "\" ");
+            buf.append("id=\"").append(getPacketID()).append("\" ");
         }
         if (getTo() != null) {
-            buf.append("to=\"").append(StringUtils.escapeForXML(getTo())).append("\" ");
+            buf.append("to=\"");
+            StringUtils.escapeForXML(getTo(), buf);
+            buf.append("\" ");
         }
         if (getFrom() != null) {
-            buf.append("from=\"").append(StringUtils.escapeForXML(getFrom())).append("\" ");
+            buf.append("from=\"");
+            StringUtils.escapeForXML(getFrom(), buf);
+            buf.append("\" ");
         }
         if (type == null) {
             buf.append("type=\"get\">");
@@ -85,17 +101,13 @@ public abstract class IQ extends Packet {
             buf.append("type=\"").append(getType()).append("\">");
         }
         // Add the query section if there is one.
-        String queryXML = getChildElementXML();
-        if (queryXML != null) {
-            buf.append(queryXML);
-        }
+        appendChildElementXML(buf);
         // Add the error sub-packet, if there is one.
         XMPPError error = getError();
         if (error != null) {
-            buf.append(error.toXML());
+            error.appendXML(buf);
         }
         buf.append("</iq>");
-        return buf.toString();
     }
 
     /**
@@ -108,6 +120,21 @@ public abstract class IQ extends Packet {
      */
     public abstract String getChildElementXML();
 
+    /**
+     * Appends the sub-element XML section of the IQ packet, if there is one, to
+     * a buffer. By default this appends the result of {@link #getChildElementXML()};
+     * extensions of this class which build large child elements can override it
+     * to append them directly, and implement getChildElementXML() in terms of it.
+     *
+     * @param buf the buffer to append to.
+     */
+    protected void appendChildElementXML(StringBuffer buf) {
+        String queryXML = getChildElementXML();
+        if (queryXML != null) {
+            buf.append(queryXML);
+        }
+    }
+
     /**
      * A class to represent the type of the IQ packet. The types are:
      *
@@ -166,25 +166,45 @@ public class Message extends Packet {
 
     public String toXML() {
         StringBuffer buf = new StringBuffer();
+        appendMessageXML(buf);
+        return buf.toString();
+    }
+
+    public void appendXML(StringBuffer buf) {
+        // A subclass which overrides toXML() decides what is sent.
+        if (!appendOverriddenXML(buf, Message.class)) {
+            appendMessageXML(buf);
+        }
+    }
+
+    private void appendMessageXML(StringBuffer buf) {
         buf.append("<message");
         if (getPacketID() != null) {
             buf.append(" id=\"").append(getPacketID()).append("\"");
         }
         if (getTo() != null) {
-            buf.append(" to=\"").append(StringUtils.escapeForXML(getTo())).append("\"");
+            buf.append(" to=\"");
+            StringUtils.escapeForXML(getTo(), buf);
+            buf.append("\"");
         }
         if (getFrom() != null) {
-            buf.append(" from=\"").append(StringUtils.escapeForXML(getFrom())).append("\"");
+            buf.append(" from=\"");
+            StringUtils.escapeForXML(getFrom(), buf);
+            buf.append("\"");
         }
         if (type != Type.NORMAL) {
             buf.append(" type=\"").append(type).append("\"");
         }
         buf.append(">");
         if (subject != null) {
-            buf.append("<subject>").append(StringUtils.escapeForXML(subject)).append("</subject>");
+            buf.append("<subject>");
+            StringUtils.escapeForXML(subject, buf);
+            buf.append("</subject>");
         }
         if (body != null) {
-            buf.append("<body>").append(StringUtils.escapeForXML(body)).append("</body>");
+            buf.append("<body>");
+            StringUtils.escapeForXML(body, buf);
+            buf.append("</body>");
         }
         if (thread != null) {
             buf.append("<thread>").append(thread).append("</thread>");
@@ -193,13 +213,12 @@ public class Message extends Packet {
         if (type == Type.ERROR) {
             XMPPError error = getError();
             if (error != null) {
-                buf.append(error.toXML());
+                error.appendXML(buf);
             }
         }
         // Add packet extensions, if any are defined.
-        buf.append(getExtensionsXML());
+        appendExtensionsXML(buf);
         buf.append("</message>");
-        return buf.toString();
     }
 
     /**
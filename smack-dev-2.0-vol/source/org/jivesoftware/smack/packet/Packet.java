@@ -37,7 +37,7 @@ import java.io.*;
  *
  * @author Matt Tucker
  */
-public abstract class Packet {
+public abstract class Packet implements XMLAppendable {
 
     /**
      * Constant used as packetID to indicate that a packet has no id. To indicate that a packet
@@ -74,6 +74,14 @@ public abstract class Packet {
     private Map properties = null;
     private XMPPError error = null;
 
+    // Method name -> (Class -> Boolean), remembered by overrides()
+    private static Map overrideCache = new Hashtable();
+
+    // The packet, if any, whose overridden toXML() or getExtensionsXML() this
+    // thread is calling on behalf of the append methods
+    private static ThreadLocal toXMLFallback = new ThreadLocal();
+    private static ThreadLocal extensionsXMLFallback = new ThreadLocal();
+
     /**
      * Returns the unique ID of the packet. The returned value could be <tt>null</tt> when
      * ID_NOT_AVAILABLE was set as the packet's id.
@@ -343,6 +351,25 @@ public abstract class Packet {
      */
     public abstract String toXML();
 
+    /**
+     * Appends the packet as XML to a buffer. This is how the packet writer
+     * serializes packets, into a buffer it reuses, so that sending a packet
+     * does not build a string of it.<p>
+     *
+     * By default this appends the result of {@link #toXML()}. Message, Presence
+     * and IQ override it to append their XML piece by piece. A subclass of those
+     * which overrides toXML() (or {@link #getExtensionsXML()}) instead of the
+     * append methods still has its own XML sent: they notice the override and
+     * fall back to calling it, at the cost of building the string. An override
+     * may itself call appendXML() (or appendExtensionsXML()); that inner call
+     * takes the direct path rather than calling the override again.
+     *
+     * @param buf the buffer to append to.
+     */
+    public void appendXML(StringBuffer buf) {
+        buf.append(toXML());
+    }
+
     /**
      * Returns the extension sub-packets (including properties data) as an XML
      * String, or the Empty String if there are no packet extensions.
@@ -350,13 +377,76 @@ public abstract class Packet {
      * @return the extension sub-packets as XML or the Empty String if there
      * are no packet extensions.
      */
-    protected synchronized String getExtensionsXML() {
+    protected String getExtensionsXML() {
         StringBuffer buf = new StringBuffer();
+        appendPacketExtensionsXML(buf);
+        return buf.toString();
+    }
+
+    /**
+     * Appends the extension sub-packets (including properties data) as XML to a
+     * buffer. Extensions which are {@link XMLAppendable} append themselves;
+     * others are asked for their toXML() string. If a subclass overrides
+     * {@link #getExtensionsXML()}, its result is appended instead.
+     *
+     * @param buf the buffer to append to.
+     */
+    protected void appendExtensionsXML(StringBuffer buf) {
+        if (getClass() == Packet.class
+                || !overrides(getClass(), Packet.class, "getExtensionsXML")
+                || extensionsXMLFallback.get() == this) {
+            appendPacketExtensionsXML(buf);
+            return;
+        }
+        Object outer = extensionsXMLFallback.get();
+        extensionsXMLFallback.set(this);
+        try {
+            buf.append(getExtensionsXML());
+        }
+        finally {
+            extensionsXMLFallback.set(outer);
+        }
+    }
+
+    /**
+     * Appends the result of {@link #toXML()}, if a subclass of the given class
+     * overrides it, so that the subclass decides what is sent. If this thread
+     * is already inside that toXML() for this packet (because the override
+     * calls appendXML()), nothing is appended.
+     *
+     * @param buf the buffer to append to.
+     * @param base the class whose append method is asking.
+     * @return true if toXML() was appended; false if the caller should append
+     *      the packet itself.
+     */
+    protected boolean appendOverriddenXML(StringBuffer buf, Class base) {
+        if (getClass() == base || !overrides(getClass(), base, "toXML")
+                || toXMLFallback.get() == this) {
+            return false;
+        }
+        Object outer = toXMLFallback.get();
+        toXMLFallback.set(this);
+        try {
+            buf.append(toXML());
+        }
+        finally {
+            toXMLFallback.set(outer);
+        }
+        return true;
+    }
+
+    private synchronized void appendPacketExtensionsXML(StringBuffer buf) {
         // Add in all standard extension sub-packets.
-        Iterator extensions = getExtensions();
-        while (extensions.hasNext()) {
-            PacketExtension extension = (PacketExtension)extensions.next();
-            buf.append(extension.toXML());
+        if (packetExtensions != null) {
+            for (int i=0; i<packetExtensions.size(); i++) {
+                PacketExtension extension = (PacketExtension)packetExtensions.get(i);
+                if (extension instanceof XMLAppendable) {
+                    ((XMLAppendable)extension).appendXML(buf);
+                }
+                else {
+                    buf.append(extension.toXML());
+                }
+            }
         }
         // Add in packet properties.
         if (properties != null && !properties.isEmpty()) {
@@ -366,7 +456,9 @@ public abstract class Packet {
                 String name = (String)i.next();
                 Object value = getProperty(name);
                 buf.append("<property>");
-                buf.append("<name>").append(StringUtils.escapeForXML(name)).append("</name>");
+                buf.append("<name>");
+                StringUtils.escapeForXML(name, buf);
+                buf.append("</name>");
                 buf.append("<value type=\"");
                 if (value instanceof Integer) {
                     buf.append("integer\">").append(value).append("</value>");
@@ -385,7 +477,7 @@ public abstract class Packet {
                 }
                 else if (value instanceof String) {
                     buf.append("string\">");
-                    buf.append(StringUtils.escapeForXML((String)value));
+                    StringUtils.escapeForXML((String)value, buf);
                     buf.append("</value>");
                 }
                 // Otherwise, it's a generic Serializable object. Serialized objects are in
@@ -399,8 +491,8 @@ public abstract class Packet {
                         out = new ObjectOutputStream(byteStream);
                         out.writeObject(value);
                         buf.append("java-object\">");
-                        String encodedVal = StringUtils.encodeBase64(byteStream.toByteArray());
-                        buf.append(encodedVal).append("</value>");
+                        StringUtils.encodeBase64(byteStream.toByteArray(), buf);
+                        buf.append("</value>");
                     }
                     catch (Exception e) {
                         e.printStackTrace();
@@ -418,6 +510,43 @@ public abstract class Packet {
             }
             buf.append("</properties>");
         }
-        return buf.toString();
     }
-}
\ No newline at end of file
+
+    /**
+     * Returns true if a class, or one of its superclasses below the given base
+     * class, declares a method of the given name with no parameters. This is
+     * how the append methods tell whether a subclass has overridden the string
+     * methods they would otherwise bypass. The answer is remembered per class.
+     *
+     * @param cls the class to check.
+     * @param base the class whose own declaration doesn't count.
+     * @param methodName the name of the method.
+     * @return true if the method is overridden below the base class.
+     */
+    protected static boolean overrides(Class cls, Class base, String methodName) {
+        Map byClass = (Map)overrideCache.get(methodName);
+        if (byClass == null) {
+            byClass = Collections.synchronizedMap(new WeakHashMap());
+            overrideCache.put(methodName, byClass);
+        }
+        Boolean known = (Boolean)byClass.get(cls);
+        if (known == null) {
+            boolean found = false;
+            for (Class c = cls; c != null && c != base && !found; c = c.getSuperclass()) {
+                try {
+                    c.getDeclaredMethod(methodName, new Class[0]);
+                    found = true;
+                }
+                catch (NoSuchMethodException e) {
+                    // Not declared at this level.
+                }
+                catch (SecurityException e) {
+                    // Can't tell; assume not.
+                }
+            }
+            known = found ? Boolean.TRUE : Boolean.FALSE;
+            byClass.put(cls, known);
+        }
+        return known.booleanValue();
+    }
+}
@@ -169,15 +169,31 @@ public class Presence extends Packet {
 
     public String toXML() {
         StringBuffer buf = new StringBuffer();
+        appendPresenceXML(buf);
+        return buf.toString();
+    }
+
+    public void appendXML(StringBuffer buf) {
+        // A subclass which overrides toXML() decides what is sent.
+        if (!appendOverriddenXML(buf, Presence.class)) {
+            appendPresenceXML(buf);
+        }
+    }
+
+    private void appendPresenceXML(StringBuffer buf) {
         buf.append("<presence");
         if (getPacketID() != null) {
             buf.append(" id=\"").append(getPacketID()).append("\"");
         }
         if (getTo() != null) {
-            buf.append(" to=\"").append(StringUtils.escapeForXML(getTo())).append("\"");
+            buf.append(" to=\"");
+            StringUtils.escapeForXML(getTo(), buf);
+            buf.append("\"");
         }
         if (getFrom() != null) {
-            buf.append(" from=\"").append(StringUtils.escapeForXML(getFrom())).append("\"");
+            buf.append(" from=\"");
+            StringUtils.escapeForXML(getFrom(), buf);
+            buf.append("\"");
         }
         if (type != Type.AVAILABLE) {
             buf.append(" type=\"").append(type).append("\"");
@@ -193,17 +209,15 @@ public class Presence extends Packet {
             buf.append("<show>").append(mode).append("</show>");
         }
 
-        buf.append(this.getExtensionsXML());
+        appendExtensionsXML(buf);
 
         // Add the error sub-packet, if there is one.
         XMPPError error = getError();
         if (error != null) {
-            buf.append(error.toXML());
+            error.appendXML(buf);
         }
 
         buf.append("</presence>");
-        
-        return buf.toString();
     }
 
     public String toString() {
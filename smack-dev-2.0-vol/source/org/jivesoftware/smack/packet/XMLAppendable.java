@@ -0,0 +1,47 @@
+/**
+ * $RCSfile$
+ * $Revision$
+ * $Date$
+ *
+ * Copyright 2003-2004 Jive Software.
+ *
+ * All rights reserved. Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.jivesoftware.smack.packet;
+
+/**
+ * Something which can append its XML to a buffer, rather than returning it
+ * as a String. Packets can all do this (see {@link Packet#appendXML}), and
+ * the packet writer serializes each packet straight into one buffer which it
+ * reuses for every send, so no per-packet string is made.<p>
+ *
+ * A packet extension or error which implements this interface is appended the
+ * same way when its packet is serialized; one which doesn't is asked for its
+ * toXML() string. The two methods must produce the same XML -- usually toXML()
+ * just appends to a new buffer and returns it.<p>
+ *
+ * A Message, Presence or IQ subclass may override either method. If it
+ * overrides only toXML(), appendXML() calls that override; and if the override
+ * in turn calls appendXML(), the inner call appends the packet directly
+ * instead of looping.
+ */
+public interface XMLAppendable {
+
+    /**
+     * Appends the XML representation of this object to a buffer.
+     *
+     * @param buf the buffer to append to.
+     */
+    public void appendXML(StringBuffer buf);
+}
@@ -47,7 +47,7 @@ package org.jivesoftware.smack.packet;
  *
  * @author Matt Tucker
  */
-public class XMPPError {
+public class XMPPError implements XMLAppendable {
 
     private int code;
     private String message;
@@ -98,12 +98,16 @@ public class XMPPError {
      */
     public String toXML() {
         StringBuffer buf = new StringBuffer();
+        appendXML(buf);
+        return buf.toString();
+    }
+
+    public void appendXML(StringBuffer buf) {
         buf.append("<error code=\"").append(code).append("\">");
         if (message != null) {
             buf.append(message);
         }
         buf.append("</error>");
-        return buf.toString();
     }
 
     public String toString() {
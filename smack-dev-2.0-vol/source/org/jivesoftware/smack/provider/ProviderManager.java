@@ -109,6 +109,11 @@ import java.net.URL;
  */
 public class ProviderManager {
 
+    /**
+     * Providers are kept by namespace, then by element name, so that looking
+     * one up is two map lookups on the strings the parser returned, with no
+     * key to build.
+     */
     private static Map extensionProviders = new Hashtable();
     private static Map iqProviders = new Hashtable();
 
@@ -143,8 +148,7 @@ public class ProviderManager {
                                     String className = parser.nextText();
                                     // Only add the provider for the namespace if one isn't
                                     // already registered.
-                                    String key = getProviderKey(elementName, namespace);
-                                    if (!iqProviders.containsKey(key)) {
+                                    if (getProvider(iqProviders, elementName, namespace) == null) {
                                         // Attempt to load the provider class and then create
                                         // a new instance if it's an IQProvider. Otherwise, if it's
                                         // an IQ class, add the class object itself, then we'll use
@@ -153,10 +157,12 @@ public class ProviderManager {
                                             // Add the provider to the map.
                                             Class provider = Class.forName(className);
                                             if (IQProvider.class.isAssignableFrom(provider)) {
-                                                iqProviders.put(key, provider.newInstance());
+                                                putProvider(iqProviders, elementName, namespace,
+                                                        provider.newInstance());
                                             }
                                             else if (IQ.class.isAssignableFrom(provider)) {
-                                                iqProviders.put(key, provider);
+                                                putProvider(iqProviders, elementName, namespace,
+                                                        provider);
                                             }
                                         }
                                         catch (ClassNotFoundException cnfe) {
@@ -176,8 +182,7 @@ public class ProviderManager {
                                     String className = parser.nextText();
                                     // Only add the provider for the namespace if one isn't
                                     // already registered.
-                                    String key = getProviderKey(elementName, namespace);
-                                    if (!extensionProviders.containsKey(key)) {
+                                    if (getProvider(extensionProviders, elementName, namespace) == null) {
                                         // Attempt to load the provider class and then create
                                         // a new instance if it's a Provider. Otherwise, if it's
                                         // a PacketExtension, add the class object itself and
@@ -189,12 +194,14 @@ public class ProviderManager {
                                             if (PacketExtensionProvider.class.isAssignableFrom(
                                                     provider))
                                             {
-                                                extensionProviders.put(key, provider.newInstance());
+                                                putProvider(extensionProviders, elementName,
+                                                        namespace, provider.newInstance());
                                             }
                                             else if (PacketExtension.class.isAssignableFrom(
                                                     provider))
                                             {
-                                                extensionProviders.put(key, provider);
+                                                putProvider(extensionProviders, elementName,
+                                                        namespace, provider);
                                             }
                                         }
                                         catch (ClassNotFoundException cnfe) {
@@ -239,8 +246,7 @@ public class ProviderManager {
      * @return the IQ provider.
      */
     public static Object getIQProvider(String elementName, String namespace) {
-        String key = getProviderKey(elementName, namespace);
-        return iqProviders.get(key);
+        return getProvider(iqProviders, elementName, namespace);
     }
 
     /**
@@ -249,7 +255,7 @@ public class ProviderManager {
      * @return an Iterator for all IQProvider instances.
      */
     public static Iterator getIQProviders() {
-        return Collections.unmodifiableCollection(new HashMap(iqProviders).values()).iterator();
+        return getProviders(iqProviders);
     }
 
     /**
@@ -270,8 +276,7 @@ public class ProviderManager {
             throw new IllegalArgumentException("Provider must be an IQProvider " +
                     "or a Class instance.");
         }
-        String key = getProviderKey(elementName, namespace);
-        iqProviders.put(key, provider);
+        putProvider(iqProviders, elementName, namespace, provider);
     }
 
     /**
@@ -294,8 +299,7 @@ public class ProviderManager {
      * @return the extenion provider.
      */
     public static Object getExtensionProvider(String elementName, String namespace) {
-        String key = getProviderKey(elementName, namespace);
-        return extensionProviders.get(key);
+        return getProvider(extensionProviders, elementName, namespace);
     }
 
     /**
@@ -314,8 +318,7 @@ public class ProviderManager {
             throw new IllegalArgumentException("Provider must be a PacketExtensionProvider " +
                     "or a Class instance.");
         }
-        String key = getProviderKey(elementName, namespace);
-        extensionProviders.put(key, provider);
+        putProvider(extensionProviders, elementName, namespace, provider);
     }
 
     /**
@@ -324,21 +327,67 @@ public class ProviderManager {
      * @return an Iterator for all PacketExtensionProvider instances.
      */
     public static Iterator getExtensionProviders() {
-        return Collections.unmodifiableCollection(
-                new HashMap(extensionProviders).values()).iterator();
+        return getProviders(extensionProviders);
+    }
+
+    /**
+     * Returns the provider in a map for a given element name and namespace,
+     * or <tt>null</tt> if there isn't one.
+     *
+     * @param providers the map of providers, by namespace and element name.
+     * @param elementName the element name.
+     * @param namespace the namespace.
+     * @return the provider.
+     */
+    private static Object getProvider(Map providers, String elementName, String namespace) {
+        if (elementName == null || namespace == null) {
+            return null;
+        }
+        Map elements = (Map)providers.get(namespace);
+        if (elements == null) {
+            return null;
+        }
+        return elements.get(elementName);
     }
 
     /**
-     * Returns a String key for a given element name and namespace.
+     * Adds a provider to a map for a given element name and namespace.
      *
+     * @param providers the map of providers, by namespace and element name.
      * @param elementName the element name.
      * @param namespace the namespace.
-     * @return a unique key for the element name and namespace pair.
+     * @param provider the provider.
      */
-    private static String getProviderKey(String elementName, String namespace) {
-        StringBuffer buf = new StringBuffer();
-        buf.append("<").append(elementName).append("/><").append(namespace).append("/>");
-        return buf.toString();
+    private static void putProvider(Map providers, String elementName, String namespace,
+            Object provider)
+    {
+        if (elementName == null || namespace == null) {
+            throw new IllegalArgumentException("Element name and namespace must not be null.");
+        }
+        synchronized (providers) {
+            Map elements = (Map)providers.get(namespace);
+            if (elements == null) {
+                elements = new Hashtable();
+                providers.put(namespace, elements);
+            }
+            elements.put(elementName, provider);
+        }
+    }
+
+    /**
+     * Returns an Iterator for a copy of all the providers in a map.
+     *
+     * @param providers the map of providers, by namespace and element name.
+     * @return an Iterator for all the providers.
+     */
+    private static Iterator getProviders(Map providers) {
+        List list = new ArrayList();
+        synchronized (providers) {
+            for (Iterator i=providers.values().iterator(); i.hasNext(); ) {
+                list.addAll(((Map)i.next()).values());
+            }
+        }
+        return Collections.unmodifiableList(list).iterator();
     }
 
     /**
@@ -19,14 +19,19 @@
 
 package org.jivesoftware.smack.util;
 
+import javax.naming.NamingEnumeration;
+import javax.naming.directory.Attribute;
 import javax.naming.directory.DirContext;
 import javax.naming.directory.InitialDirContext;
 import javax.naming.directory.Attributes;
-import java.util.Hashtable;
-import java.util.Map;
+import java.util.*;
 
 /**
- * Utilty class to perform DNS lookups for XMPP services.
+ * Utilty class to perform DNS lookups for XMPP services.<p>
+ *
+ * SRV lookups go through a {@link Resolver}. The default resolver uses JNDI;
+ * tests (or applications with unusual needs) can install a different one with
+ * {@link #setResolver(Resolver)}.
  *
  * @author Matt Tucker
  */
@@ -38,29 +43,44 @@ public class DNSUtil {
      */
     private static Map cache = new Cache(100, 1000*60*10);
 
-    private static DirContext context;
+    private static Resolver resolver = new JNDIResolver();
 
-    static {
-        try {
-            Hashtable env = new Hashtable();
-            env.put("java.naming.factory.initial", "com.sun.jndi.dns.DnsContextFactory");
-            context = new InitialDirContext(env);
-        }
-        catch (Exception e) {
-            // Ignore.
+    private static Random random = new Random();
+
+    /**
+     * Performs the raw SRV lookups for DNSUtil.
+     */
+    public static interface Resolver {
+        /**
+         * Looks up the SRV records for the given name, such as
+         * "_xmpp-client._tcp.example.com". Each record is returned as a string of the
+         * form "priority weight port target".
+         *
+         * @param name the name to look up.
+         * @return the SRV records, or null (or an empty array) if there are none.
+         * @throws Exception if the lookup fails.
+         */
+        public String[] lookupSRV(String name) throws Exception;
+    }
+
+    /**
+     * Sets the resolver used for SRV lookups, and clears the lookup cache. Passing
+     * null restores the default JNDI resolver.
+     *
+     * @param newResolver the resolver to use.
+     */
+    public static synchronized void setResolver(Resolver newResolver) {
+        if (newResolver == null) {
+            newResolver = new JNDIResolver();
         }
+        resolver = newResolver;
+        cache.clear();
     }
 
     /**
      * Returns the host name and port that the specified XMPP server can be
-     * reached at for client-to-server communication. A DNS lookup for a SRV
-     * record in the form "_xmpp-client._tcp.example.com" is attempted, according
-     * to section 14.4 of RFC 3920. If that lookup fails, a lookup in the older form
-     * of "_jabber._tcp.example.com" is attempted since servers that implement an
-     * older version of the protocol may be listed using that notation. If that
-     * lookup fails as well, it's assumed that the XMPP server lives at the
-     * host resolved by a DNS lookup at the specified domain on the default port
-     * of 5222.<p>
+     * reached at for client-to-server communication. This is the first of the
+     * addresses returned by {@link #resolveXMPPDomainCandidates(String)}.<p>
      *
      * As an example, a lookup for "example.com" may return "im.example.com:5269".
      *
@@ -69,37 +89,29 @@ public class DNSUtil {
      *      server can be reached at for the specified domain.
      */
     public static HostAddress resolveXMPPDomain(String domain) {
-        if (context == null) {
-            return new HostAddress(domain, 5222);
-        }
-        String key = "c" + domain;
-        // Return item from cache if it exists.
-        if (cache.containsKey(key)) {
-            HostAddress address = (HostAddress)cache.get(key);
-            if (address != null) {
-                return address;
-            }
-        }
-        String host = domain;
-        int port = 5222;
-        try {
-            Attributes dnsLookup = context.getAttributes("_xmpp-client._tcp." + domain);
-            String srvRecord = (String)dnsLookup.get("SRV").get();
-            String [] srvRecordEntries = srvRecord.split(" ");
-            port = Integer.parseInt(srvRecordEntries[srvRecordEntries.length-2]);
-            host = srvRecordEntries[srvRecordEntries.length-1];
-        }
-        catch (Exception e) {
-            // Ignore.
-        }
-        // Host entries in DNS should end with a ".".
-        if (host.endsWith(".")) {
-            host = host.substring(0, host.length()-1);
-        }
-        HostAddress address = new HostAddress(host, port);
-        // Add item to cache.
-        cache.put(key, address);
-        return address;
+        return resolveXMPPDomainCandidates(domain)[0];
+    }
+
+    /**
+     * Returns all the host names and ports that the specified XMPP server can be
+     * reached at for client-to-server communication, in the order they should be
+     * tried. A DNS lookup for SRV records in the form "_xmpp-client._tcp.example.com"
+     * is attempted, according to section 14.4 of RFC 3920. If that lookup fails, a
+     * lookup in the older form of "_jabber._tcp.example.com" is attempted since
+     * servers that implement an older version of the protocol may be listed using
+     * that notation. If that lookup fails as well, it's assumed that the XMPP server
+     * lives at the host resolved by a DNS lookup at the specified domain on the
+     * default port of 5222.<p>
+     *
+     * The records are ordered as described in RFC 2782: by ascending priority, and
+     * then by a weighted random choice among records of equal priority. The
+     * weighted choice is made afresh on each call.
+     *
+     * @param domain the domain.
+     * @return an array of at least one HostAddress.
+     */
+    public static HostAddress[] resolveXMPPDomainCandidates(String domain) {
+        return resolve(domain, "c", "_xmpp-client._tcp.", 5222);
     }
 
     /**
@@ -120,45 +132,184 @@ public class DNSUtil {
      *      server can be reached at for the specified domain.
      */
     public static HostAddress resolveXMPPServerDomain(String domain) {
-        if (context == null) {
-            return new HostAddress(domain, 5269);
-        }
-        String key = "s" + domain;
-        // Return item from cache if it exists.
+        return resolve(domain, "s", "_xmpp-server._tcp.", 5269)[0];
+    }
+
+    /**
+     * Looks up (or fetches from the cache) the SRV records for a domain, and
+     * returns them in the order they should be tried.
+     */
+    private static HostAddress[] resolve(String domain, String keyPrefix, String service,
+            int defaultPort)
+    {
+        String key = keyPrefix + domain;
+        List records = null;
+        // Use the records from the cache if they exist.
         if (cache.containsKey(key)) {
-            HostAddress address = (HostAddress)cache.get(key);
-            if (address != null) {
-                return address;
+            records = (List)cache.get(key);
+        }
+        if (records == null) {
+            records = lookup(service + domain);
+            if (records.isEmpty()) {
+                // Attempt lookup with older "jabber" name.
+                records = lookup("_jabber._tcp." + domain);
             }
+            // Add item to cache. An empty list is cached too, so that domains
+            // with no SRV records don't cost a lookup every time.
+            cache.put(key, records);
+        }
+        if (records.isEmpty()) {
+            return new HostAddress[] { new HostAddress(domain, defaultPort) };
         }
-        String host = domain;
-        int port = 5269;
+        List ordered = orderRecords(records);
+        return (HostAddress[])ordered.toArray(new HostAddress[ordered.size()]);
+    }
+
+    /**
+     * Runs one SRV lookup through the resolver, and parses the results. Records
+     * which can't be parsed, and "." targets (which mean the service is not
+     * offered), are dropped.
+     *
+     * @return an unmodifiable list of HostAddress objects, in no particular order.
+     */
+    private static List lookup(String name) {
+        List result = new ArrayList();
+        String[] srvRecords;
         try {
-            Attributes dnsLookup = context.getAttributes("_xmpp-server._tcp." + domain);
-            String srvRecord = (String)dnsLookup.get("SRV").get();
-            String [] srvRecordEntries = srvRecord.split(" ");
-            port = Integer.parseInt(srvRecordEntries[srvRecordEntries.length-2]);
-            host = srvRecordEntries[srvRecordEntries.length-1];
+            srvRecords = resolver.lookupSRV(name);
         }
         catch (Exception e) {
-            // Attempt lookup with older "jabber" name.
+            srvRecords = null;
+        }
+        if (srvRecords == null) {
+            return Collections.unmodifiableList(result);
+        }
+        for (int i=0; i<srvRecords.length; i++) {
+            try {
+                String [] srvRecordEntries = srvRecords[i].trim().split("\\s+");
+                int len = srvRecordEntries.length;
+                int priority = 0;
+                int weight = 0;
+                if (len >= 4) {
+                    priority = Integer.parseInt(srvRecordEntries[len-4]);
+                    weight = Integer.parseInt(srvRecordEntries[len-3]);
+                }
+                int port = Integer.parseInt(srvRecordEntries[len-2]);
+                String host = srvRecordEntries[len-1];
+                // Host entries in DNS should end with a ".".
+                if (host.endsWith(".")) {
+                    host = host.substring(0, host.length()-1);
+                }
+                if (host.length() == 0) {
+                    continue;
+                }
+                result.add(new HostAddress(host, port, priority, weight));
+            }
+            catch (Exception e) {
+                // Ignore this record.
+            }
+        }
+        return Collections.unmodifiableList(result);
+    }
+
+    /**
+     * Orders SRV records according to RFC 2782. Records are sorted by ascending
+     * priority. Within each priority, records are picked one at a time by a
+     * random draw in which each record's chance is proportional to its weight.
+     *
+     * @param records a list of HostAddress objects.
+     * @return a new list of the same objects, in the order they should be tried.
+     */
+    static List orderRecords(List records) {
+        List sorted = new ArrayList(records);
+        Collections.sort(sorted, new Comparator() {
+            public int compare(Object o1, Object o2) {
+                return ((HostAddress)o1).priority - ((HostAddress)o2).priority;
+            }
+        });
+        List result = new ArrayList(sorted.size());
+        int start = 0;
+        while (start < sorted.size()) {
+            int priority = ((HostAddress)sorted.get(start)).priority;
+            int end = start;
+            while (end < sorted.size() && ((HostAddress)sorted.get(end)).priority == priority) {
+                end++;
+            }
+            // RFC 2782 puts zero-weight records first, so they have a small
+            // chance of being picked early.
+            List group = new LinkedList();
+            for (int i=start; i<end; i++) {
+                HostAddress address = (HostAddress)sorted.get(i);
+                if (address.weight == 0) {
+                    group.add(0, address);
+                }
+                else {
+                    group.add(address);
+                }
+            }
+            while (!group.isEmpty()) {
+                int total = 0;
+                for (Iterator it = group.iterator(); it.hasNext(); ) {
+                    total += ((HostAddress)it.next()).weight;
+                }
+                int pick;
+                synchronized (random) {
+                    pick = random.nextInt(total + 1);
+                }
+                int running = 0;
+                for (Iterator it = group.iterator(); it.hasNext(); ) {
+                    HostAddress address = (HostAddress)it.next();
+                    running += address.weight;
+                    if (running >= pick) {
+                        result.add(address);
+                        it.remove();
+                        break;
+                    }
+                }
+            }
+            start = end;
+        }
+        return result;
+    }
+
+    /**
+     * The default Resolver, which performs SRV lookups through JNDI. Lookups are
+     * bounded by a one-second initial timeout and two retries, rather than the
+     * JNDI defaults.
+     */
+    protected static class JNDIResolver implements Resolver {
+
+        private DirContext context;
+
+        public JNDIResolver() {
             try {
-                Attributes dnsLookup = context.getAttributes("_jabber._tcp." + domain);
-                String srvRecord = (String)dnsLookup.get("SRV").get();
-                String [] srvRecordEntries = srvRecord.split(" ");
-                port = Integer.parseInt(srvRecordEntries[srvRecordEntries.length-2]);
-                host = srvRecordEntries[srvRecordEntries.length-1];
-            }
-            catch (Exception e2) { }
-        }
-        // Host entries in DNS should end with a ".".
-        if (host.endsWith(".")) {
-            host = host.substring(0, host.length()-1);
-        }
-        HostAddress address = new HostAddress(host, port);
-        // Add item to cache.
-        cache.put(key, address);
-        return address;
+                Hashtable env = new Hashtable();
+                env.put("java.naming.factory.initial", "com.sun.jndi.dns.DnsContextFactory");
+                env.put("com.sun.jndi.dns.timeout.initial", "1000");
+                env.put("com.sun.jndi.dns.timeout.retries", "2");
+                context = new InitialDirContext(env);
+            }
+            catch (Exception e) {
+                // Ignore.
+            }
+        }
+
+        public String[] lookupSRV(String name) throws Exception {
+            if (context == null) {
+                return null;
+            }
+            Attributes dnsLookup = context.getAttributes(name, new String[] { "SRV" });
+            Attribute srv = dnsLookup.get("SRV");
+            if (srv == null) {
+                return null;
+            }
+            List records = new ArrayList();
+            NamingEnumeration en = srv.getAll();
+            while (en.hasMore()) {
+                records.add(en.next().toString());
+            }
+            return (String[])records.toArray(new String[records.size()]);
+        }
     }
 
     /**
@@ -168,10 +319,18 @@ public class DNSUtil {
 
         private String host;
         private int port;
+        private int priority;
+        private int weight;
 
         private HostAddress(String host, int port) {
+            this(host, port, 0, 0);
+        }
+
+        private HostAddress(String host, int port, int priority, int weight) {
             this.host = host;
             this.port = port;
+            this.priority = priority;
+            this.weight = weight;
         }
 
         /**
@@ -192,6 +351,27 @@ public class DNSUtil {
             return port;
         }
 
+        /**
+         * Returns the SRV priority of this address. Lower values are tried first.
+         * Addresses that did not come from an SRV record have priority 0.
+         *
+         * @return the priority.
+         */
+        public int getPriority() {
+            return priority;
+        }
+
+        /**
+         * Returns the SRV weight of this address, used to choose among addresses
+         * of equal priority. Addresses that did not come from an SRV record have
+         * weight 0.
+         *
+         * @return the weight.
+         */
+        public int getWeight() {
+            return weight;
+        }
+
         public String toString() {
             return host + ":" + port;
         }
@@ -215,5 +395,9 @@ public class DNSUtil {
 
             return true;
         }
+
+        public int hashCode() {
+            return host.hashCode() * 31 + port;
+        }
     }
 }
\ No newline at end of file
@@ -0,0 +1,103 @@
+/**
+ * $RCSfile$
+ * $Revision$
+ * $Date$
+ *
+ * Copyright 2003-2004 Jive Software.
+ *
+ * All rights reserved. Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.jivesoftware.smack.util;
+
+import org.xmlpull.mxp1.MXParser;
+
+/**
+ * A pull parser which hands out the same String each time it reads the same
+ * name, rather than a new one.<p>
+ *
+ * The XMPP names -- stanza and child element names, the common attribute
+ * names and namespaces, the Jabber-RPC elements -- come from a fixed
+ * {@link NameTable}, so they are the interned strings, identical to the
+ * literals in the code which compares against them. Other names and
+ * namespaces (up to {@link #CACHE_LENGTH} characters) go through a small
+ * cache of the ones most recently made, so the extension namespaces of a busy
+ * connection are mostly not made afresh either.<p>
+ *
+ * Either way, looking the name up in a table or map is cheap: its hash code
+ * has been computed before, and the first comparison is usually an identity
+ * check. Element text and attribute values are made as usual. A parser is
+ * used by one thread at a time, so the cache is not synchronized.
+ */
+public class InterningParser extends MXParser {
+
+    /**
+     * The names every parser knows, as interned strings.
+     */
+    protected static final NameTable NAMES = new NameTable(new String[] {
+        // Stream and stanza elements
+        "stream", "features", "starttls", "mechanisms", "mechanism", "bind",
+        "session", "proceed", "failure", "challenge", "success",
+        "message", "presence", "iq",
+        "body", "subject", "thread", "error", "status", "show", "priority",
+        "properties", "property", "name", "value", "query", "x", "c", "item",
+        "group", "composing", "delay",
+        // Attributes
+        "id", "to", "from", "type", "code", "version", "jid", "nick", "role",
+        "affiliation", "node", "ver", "ext", "var", "label",
+        // Namespaces
+        "jabber:client", "http://etherx.jabber.org/streams",
+        "urn:ietf:params:xml:ns:xmpp-tls", "urn:ietf:params:xml:ns:xmpp-sasl",
+        "urn:ietf:params:xml:ns:xmpp-bind", "urn:ietf:params:xml:ns:xmpp-session",
+        "jabber:iq:auth", "jabber:iq:roster", "jabber:iq:register",
+        "jabber:iq:rpc", "jabber:iq:version", "jabber:iq:last",
+        "http://www.jivesoftware.com/xmlns/xmpp/properties",
+        "http://jabber.org/protocol/muc", "http://jabber.org/protocol/muc#user",
+        "http://jabber.org/protocol/muc#owner", "http://jabber.org/protocol/caps",
+        "http://jabber.org/protocol/disco#info",
+        "http://jabber.org/protocol/disco#items",
+        "jabber:x:data", "jabber:x:event", "jabber:x:delay", "vcard-temp",
+        // Jabber-RPC
+        "methodCall", "methodName", "methodResponse", "params", "param",
+        "fault", "int", "i4", "double", "boolean", "string", "base64",
+        "dateTime.iso8601", "struct", "array", "data"
+    });
+
+    /**
+     * The longest string which goes through the cache.
+     */
+    public static final int CACHE_LENGTH = 64;
+
+    private static final int CACHE_SIZE = 512;
+
+    private final String[] cache = new String[CACHE_SIZE];
+
+    protected String newString(char[] cbuf, int off, int len) {
+        if (len > CACHE_LENGTH) {
+            return super.newString(cbuf, off, len);
+        }
+        int hash = NameTable.hash(cbuf, off, len);
+        String str = NAMES.get(cbuf, off, len, hash);
+        if (str != null) {
+            return str;
+        }
+        int slot = (hash ^ (hash >>> 9)) & (CACHE_SIZE - 1);
+        str = cache[slot];
+        if (str != null && NameTable.matches(str, cbuf, off, len)) {
+            return str;
+        }
+        str = new String(cbuf, off, len);
+        cache[slot] = str;
+        return str;
+    }
+}
@@ -0,0 +1,477 @@
+/**
+ * $RCSfile$
+ * $Revision$
+ * $Date$
+ *
+ * Copyright 2003-2004 Jive Software.
+ *
+ * All rights reserved. Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.jivesoftware.smack.util;
+
+import org.jivesoftware.smack.ConnectionRuntime;
+
+import java.io.*;
+import java.util.*;
+
+/**
+ * Counters and timings for the whole process, shared by all connections. Smack
+ * records stanzas and bytes in and out, the depth of the reader and writer
+ * queues, and how long packet listeners take; applications can add their own
+ * metrics by name.<p>
+ *
+ * There are two kinds of metric. A {@link Counter} holds a running total, or a
+ * level which goes up and down and remembers the highest level seen (see
+ * {@link #getLevel(String)}). A {@link Timing} records durations in milliseconds into a fixed set of
+ * buckets, so it takes the same small amount of memory however many samples it
+ * records. Recording either is a synchronized add, cheap enough to leave on all
+ * the time. Hot code should look a metric up once and keep the reference.<p>
+ *
+ * Set the system property <tt>smack.metricsInterval</tt> to a number of seconds
+ * to have every metric written to standard error on that interval, as in
+ * "java SomeApp -Dsmack.metricsInterval=60". {@link #getNames()} and
+ * {@link #getMetric(String)} give the same values to a program.
+ */
+public class Metrics {
+
+    /**
+     * Metrics by name: Counter and Timing objects.
+     */
+    protected static Map metrics = new TreeMap();
+
+    protected static TimerTask dumpTask = null;
+
+    protected Metrics() {
+    }
+
+    /**
+     * Returns the running total with the given name, creating it if there is
+     * none.
+     *
+     * @param name the name of the counter.
+     * @return the counter.
+     * @throws IllegalArgumentException if the name belongs to another kind of
+     *      metric.
+     */
+    public static Counter getCounter(String name) {
+        return getCounter(name, false);
+    }
+
+    /**
+     * Returns the level with the given name, creating it if there is none. A
+     * level is a counter which goes down as well as up, such as the length of
+     * a queue; it keeps the highest count it has reached.
+     *
+     * @param name the name of the level.
+     * @return the level.
+     * @throws IllegalArgumentException if the name belongs to another kind of
+     *      metric.
+     */
+    public static Counter getLevel(String name) {
+        return getCounter(name, true);
+    }
+
+    protected static Counter getCounter(String name, boolean level) {
+        synchronized (metrics) {
+            Object metric = metrics.get(name);
+            if (metric == null) {
+                metric = new Counter(name, level);
+                metrics.put(name, metric);
+            }
+            else if (!(metric instanceof Counter) || ((Counter)metric).level != level) {
+                throw new IllegalArgumentException(name + " is already another kind of metric");
+            }
+            return (Counter)metric;
+        }
+    }
+
+    /**
+     * Returns the timing with the given name, creating it if there is none.
+     *
+     * @param name the name of the timing.
+     * @return the timing.
+     * @throws IllegalArgumentException if the name belongs to a counter.
+     */
+    public static Timing getTiming(String name) {
+        synchronized (metrics) {
+            Object metric = metrics.get(name);
+            if (metric == null) {
+                metric = new Timing(name);
+                metrics.put(name, metric);
+            }
+            else if (!(metric instanceof Timing)) {
+                throw new IllegalArgumentException(name + " is already another kind of metric");
+            }
+            return (Timing)metric;
+        }
+    }
+
+    /**
+     * Returns the names of all metrics, in alphabetical order.
+     *
+     * @return an Iterator of metric names.
+     */
+    public static Iterator getNames() {
+        synchronized (metrics) {
+            return Collections.unmodifiableList(new ArrayList(metrics.keySet())).iterator();
+        }
+    }
+
+    /**
+     * Returns the metric with the given name: a Counter, a Timing, or null if
+     * there is no such metric.
+     *
+     * @param name the name of the metric.
+     * @return the metric, or null.
+     */
+    public static Object getMetric(String name) {
+        synchronized (metrics) {
+            return metrics.get(name);
+        }
+    }
+
+    /**
+     * Clears every metric. Levels keep their current count, since the things
+     * they count are still there.
+     */
+    public static void reset() {
+        List all;
+        synchronized (metrics) {
+            all = new ArrayList(metrics.values());
+        }
+        for (Iterator i=all.iterator(); i.hasNext(); ) {
+            Object metric = i.next();
+            if (metric instanceof Counter) {
+                ((Counter)metric).reset();
+            }
+            else {
+                ((Timing)metric).reset();
+            }
+        }
+    }
+
+    /**
+     * Writes every metric, one per line, to the given stream.
+     *
+     * @param out the stream to write to.
+     */
+    public static void dump(PrintStream out) {
+        List all;
+        synchronized (metrics) {
+            all = new ArrayList(metrics.values());
+        }
+        StringBuffer buf = new StringBuffer();
+        buf.append("Smack metrics at ").append(new Date()).append('\n');
+        for (Iterator i=all.iterator(); i.hasNext(); ) {
+            buf.append("  ").append(i.next()).append('\n');
+        }
+        out.print(buf.toString());
+        out.flush();
+    }
+
+    /**
+     * Starts writing every metric to a stream on an interval, replacing any
+     * earlier interval.
+     *
+     * @param interval the interval in milliseconds.
+     * @param out the stream to write to.
+     */
+    public static synchronized void startDumping(long interval, final PrintStream out) {
+        stopDumping();
+        dumpTask = new TimerTask() {
+            public void run() {
+                dump(out);
+            }
+        };
+        ConnectionRuntime.getTimer().schedule(dumpTask, interval, interval);
+    }
+
+    /**
+     * Stops the periodic writing started by {@link #startDumping}.
+     */
+    public static synchronized void stopDumping() {
+        if (dumpTask != null) {
+            dumpTask.cancel();
+            dumpTask = null;
+        }
+    }
+
+    /**
+     * A running total, or a level which goes up and down.
+     */
+    public static class Counter {
+
+        protected String name;
+        protected boolean level;
+        protected long count = 0;
+        protected long max = 0;
+
+        protected Counter(String name, boolean level) {
+            this.name = name;
+            this.level = level;
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        /**
+         * Adds one.
+         */
+        public synchronized void increment() {
+            count++;
+            if (count > max) {
+                max = count;
+            }
+        }
+
+        /**
+         * Subtracts one. Only levels should be decremented.
+         */
+        public synchronized void decrement() {
+            count--;
+        }
+
+        /**
+         * Adds the given amount, which may be negative.
+         *
+         * @param amount the amount to add.
+         */
+        public synchronized void add(long amount) {
+            count += amount;
+            if (count > max) {
+                max = count;
+            }
+        }
+
+        /**
+         * Returns the current count.
+         *
+         * @return the count.
+         */
+        public synchronized long getCount() {
+            return count;
+        }
+
+        /**
+         * Returns the highest count since the last reset. For a running total
+         * this is the same as the count.
+         *
+         * @return the highest count.
+         */
+        public synchronized long getMax() {
+            return max;
+        }
+
+        /**
+         * Returns true if this is a level rather than a running total.
+         *
+         * @return true for a level.
+         */
+        public boolean isLevel() {
+            return level;
+        }
+
+        /**
+         * Clears a running total. A level keeps its count, and its highest
+         * count starts again from there.
+         */
+        public synchronized void reset() {
+            if (!level) {
+                count = 0;
+            }
+            max = count;
+        }
+
+        public synchronized String toString() {
+            if (!level) {
+                return name + " " + count;
+            }
+            return name + " " + count + " (max " + max + ")";
+        }
+    }
+
+    /**
+     * Durations, in milliseconds. The count, total and maximum are exact;
+     * percentiles are estimated from buckets, and are reported as the upper
+     * bound of the bucket they fall in.
+     */
+    public static class Timing {
+
+        /**
+         * Upper bounds of the buckets, in milliseconds. Durations of the last
+         * bound or more go in one more bucket.
+         */
+        protected static final long[] BUCKETS = {
+            1, 2, 5, 10, 20, 50, 100, 200, 500, 1000, 2000, 5000, 10000, 30000
+        };
+
+        protected String name;
+        protected long count = 0;
+        protected long total = 0;
+        protected long max = 0;
+        protected long[] buckets = new long[BUCKETS.length+1];
+
+        protected Timing(String name) {
+            this.name = name;
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        /**
+         * Records one duration.
+         *
+         * @param millis the duration in milliseconds.
+         */
+        public synchronized void record(long millis) {
+            if (millis < 0) {
+                millis = 0;
+            }
+            count++;
+            total += millis;
+            if (millis > max) {
+                max = millis;
+            }
+            int bucket = 0;
+            while (bucket < BUCKETS.length && millis >= BUCKETS[bucket]) {
+                bucket++;
+            }
+            buckets[bucket]++;
+        }
+
+        /**
+         * Records the time from the given start until now.
+         *
+         * @param start the start, as a System.currentTimeMillis() value.
+         */
+        public void recordSince(long start) {
+            record(System.currentTimeMillis() - start);
+        }
+
+        public synchronized long getCount() {
+            return count;
+        }
+
+        public synchronized long getTotal() {
+            return total;
+        }
+
+        public synchronized long getMax() {
+            return max;
+        }
+
+        /**
+         * Returns the mean duration, or 0 if nothing has been recorded.
+         *
+         * @return the mean in milliseconds.
+         */
+        public synchronized long getMean() {
+            return (count == 0) ? 0 : total / count;
+        }
+
+        /**
+         * Returns an estimate of a percentile: the upper bound of the bucket
+         * it falls in, or the maximum if that is lower.
+         *
+         * @param percent the percentile, from 0 to 100.
+         * @return the estimate in milliseconds, or 0 if nothing has been
+         *      recorded.
+         */
+        public synchronized long getPercentile(int percent) {
+            if (count == 0) {
+                return 0;
+            }
+            long wanted = (count * percent + 99) / 100;
+            long seen = 0;
+            for (int i=0; i<BUCKETS.length; i++) {
+                seen += buckets[i];
+                if (seen >= wanted && seen > 0) {
+                    return Math.min(BUCKETS[i], max);
+                }
+            }
+            return max;
+        }
+
+        public synchronized void reset() {
+            count = 0;
+            total = 0;
+            max = 0;
+            Arrays.fill(buckets, 0);
+        }
+
+        public synchronized String toString() {
+            if (count == 0) {
+                return name + " none";
+            }
+            return name + " count " + count + ", mean " + getMean()
+                + "ms, p50 " + getPercentile(50) + "ms, p99 " + getPercentile(99)
+                + "ms, max " + max + "ms";
+        }
+    }
+
+    /**
+     * An input stream which adds the number of bytes read to a counter.
+     */
+    public static class MeteredInputStream extends FilterInputStream {
+
+        protected Counter counter;
+
+        public MeteredInputStream(InputStream in, Counter counter) {
+            super(in);
+            this.counter = counter;
+        }
+
+        public int read() throws IOException {
+            int b = in.read();
+            if (b >= 0) {
+                counter.add(1);
+            }
+            return b;
+        }
+
+        public int read(byte[] b, int off, int len) throws IOException {
+            int count = in.read(b, off, len);
+            if (count > 0) {
+                counter.add(count);
+            }
+            return count;
+        }
+    }
+
+    /**
+     * An output stream which adds the number of bytes written to a counter.
+     */
+    public static class MeteredOutputStream extends FilterOutputStream {
+
+        protected Counter counter;
+
+        public MeteredOutputStream(OutputStream out, Counter counter) {
+            super(out);
+            this.counter = counter;
+        }
+
+        public void write(int b) throws IOException {
+            out.write(b);
+            counter.add(1);
+        }
+
+        public void write(byte[] b, int off, int len) throws IOException {
+            // FilterOutputStream would write the bytes one at a time.
+            out.write(b, off, len);
+            counter.add(len);
+        }
+    }
+}
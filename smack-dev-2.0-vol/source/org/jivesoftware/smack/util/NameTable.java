@@ -0,0 +1,158 @@
+/**
+ * $RCSfile$
+ * $Revision$
+ * $Date$
+ *
+ * Copyright 2003-2004 Jive Software.
+ *
+ * All rights reserved. Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.jivesoftware.smack.util;
+
+/**
+ * A fixed table of names -- element names and namespaces, usually -- each
+ * with a number. It is made once, typically in a static field, and used to
+ * turn a name read from a parser into a number which a switch statement can
+ * dispatch on, in place of a chain of equals() calls:
+ *
+ * <pre>
+ * private static final NameTable ELEMENTS = new NameTable(new String[] {
+ *     "body", "subject" });
+ * ...
+ * switch (ELEMENTS.getCode(parser.getName())) {
+ *     case 1: // body
+ *     ...
+ *     default: // not in the table
+ * }</pre>
+ *
+ * Codes count from one, in the order the names were given; zero means the
+ * name is not in the table. Lookup costs one hashCode() (which a String
+ * caches) and usually one comparison, which is an identity check when the
+ * name came from an {@link InterningParser}. Tables are never changed after
+ * they are made, so any number of threads may use one.
+ */
+public class NameTable {
+
+    private final String[] names;
+    private final int[] codes;
+    private final int mask;
+
+    /**
+     * Creates a table of the given names. The first has code 1, the second 2,
+     * and so on. Each name is interned, so that {@link #get} returns the same
+     * instance as the equivalent string literal.
+     *
+     * @param list the names.
+     */
+    public NameTable(String[] list) {
+        int size = 4;
+        while (size < list.length * 2) {
+            size *= 2;
+        }
+        names = new String[size];
+        codes = new int[size];
+        mask = size - 1;
+        for (int i = 0; i < list.length; i++) {
+            String name = list[i].intern();
+            int slot = name.hashCode() & mask;
+            while (names[slot] != null && !names[slot].equals(name)) {
+                slot = (slot + 1) & mask;
+            }
+            if (names[slot] == null) {
+                names[slot] = name;
+                codes[slot] = i + 1;
+            }
+        }
+    }
+
+    /**
+     * Returns the code of a name, or zero if it is not in the table (or is
+     * null).
+     *
+     * @param name the name.
+     * @return the code.
+     */
+    public int getCode(String name) {
+        if (name == null) {
+            return 0;
+        }
+        int slot = name.hashCode() & mask;
+        while (true) {
+            String entry = names[slot];
+            if (entry == null) {
+                return 0;
+            }
+            if (entry == name || entry.equals(name)) {
+                return codes[slot];
+            }
+            slot = (slot + 1) & mask;
+        }
+    }
+
+    /**
+     * Returns the name in the table made of the given characters, or null if
+     * there isn't one. No string is made to look it up.
+     *
+     * @param buf the characters.
+     * @param off the offset of the first.
+     * @param len the number of characters.
+     * @return the (interned) name, or null.
+     */
+    public String get(char[] buf, int off, int len) {
+        return get(buf, off, len, hash(buf, off, len));
+    }
+
+    /**
+     * Like {@link #get(char[], int, int)}, given the hash of the characters.
+     */
+    String get(char[] buf, int off, int len, int hash) {
+        int slot = hash & mask;
+        while (true) {
+            String entry = names[slot];
+            if (entry == null) {
+                return null;
+            }
+            if (matches(entry, buf, off, len)) {
+                return entry;
+            }
+            slot = (slot + 1) & mask;
+        }
+    }
+
+    /**
+     * Returns the hash code a string of the given characters would have.
+     */
+    static int hash(char[] buf, int off, int len) {
+        int hash = 0;
+        for (int i = 0; i < len; i++) {
+            hash = 31 * hash + buf[off + i];
+        }
+        return hash;
+    }
+
+    /**
+     * Returns true if the string is made of the given characters.
+     */
+    static boolean matches(String str, char[] buf, int off, int len) {
+        if (str.length() != len) {
+            return false;
+        }
+        for (int i = 0; i < len; i++) {
+            if (str.charAt(i) != buf[off + i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+}
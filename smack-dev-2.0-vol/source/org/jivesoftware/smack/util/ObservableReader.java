@@ -31,8 +31,13 @@ import java.util.*;
  */
 public class ObservableReader extends Reader {
 
+    private static final ReaderListener[] NO_LISTENERS = new ReaderListener[0];
+
     Reader wrappedReader = null;
     List listeners = new ArrayList();
+    // A copy of the listeners, remade whenever they change, so that reading
+    // needn't copy them each time.
+    private volatile ReaderListener[] listenerArray = NO_LISTENERS;
 
     public ObservableReader(Reader wrappedReader) {
         this.wrappedReader = wrappedReader;
@@ -40,14 +45,10 @@ public class ObservableReader extends Reader {
         
     public int read(char[] cbuf, int off, int len) throws IOException {
         int count = wrappedReader.read(cbuf, off, len);
-        if (count > 0) {
+        ReaderListener[] readerListeners = listenerArray;
+        if (count > 0 && readerListeners.length > 0) {
             String str = new String(cbuf, off, count);
             // Notify that a new string has been read
-            ReaderListener[] readerListeners = null;
-            synchronized (listeners) {
-                readerListeners = new ReaderListener[listeners.size()];
-                listeners.toArray(readerListeners);
-            }
             for (int i = 0; i < readerListeners.length; i++) {
                 readerListeners[i].read(str);
             }
@@ -100,6 +101,7 @@ public class ObservableReader extends Reader {
         synchronized (listeners) {
             if (!listeners.contains(readerListener)) {
                 listeners.add(readerListener);
+                updateListenerArray();
             }
         }
     }
@@ -112,7 +114,14 @@ public class ObservableReader extends Reader {
     public void removeReaderListener(ReaderListener readerListener) {
         synchronized (listeners) {
             listeners.remove(readerListener);
+            updateListenerArray();
         }
     }
 
+    private void updateListenerArray() {
+        ReaderListener[] readerListeners = new ReaderListener[listeners.size()];
+        listeners.toArray(readerListeners);
+        listenerArray = readerListeners;
+    }
+
 }
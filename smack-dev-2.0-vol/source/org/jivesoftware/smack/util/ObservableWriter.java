@@ -31,8 +31,13 @@ import java.util.*;
  */
 public class ObservableWriter extends Writer {
 
+    private static final WriterListener[] NO_LISTENERS = new WriterListener[0];
+
     Writer wrappedWriter = null;
     List listeners = new ArrayList();
+    // A copy of the listeners, remade whenever they change, so that writing
+    // needn't copy them each time.
+    private volatile WriterListener[] listenerArray = NO_LISTENERS;
 
     public ObservableWriter(Writer wrappedWriter) {
         this.wrappedWriter = wrappedWriter;
@@ -40,8 +45,9 @@ public class ObservableWriter extends Writer {
 
     public void write(char cbuf[], int off, int len) throws IOException {
         wrappedWriter.write(cbuf, off, len);
-        String str = new String(cbuf, off, len);
-        notifyListeners(str);
+        if (listenerArray.length > 0) {
+            notifyListeners(new String(cbuf, off, len));
+        }
     }
 
     public void flush() throws IOException {
@@ -58,8 +64,9 @@ public class ObservableWriter extends Writer {
 
     public void write(char cbuf[]) throws IOException {
         wrappedWriter.write(cbuf);
-        String str = new String(cbuf);
-        notifyListeners(str);
+        if (listenerArray.length > 0) {
+            notifyListeners(new String(cbuf));
+        }
     }
 
     public void write(String str) throws IOException {
@@ -69,8 +76,9 @@ public class ObservableWriter extends Writer {
 
     public void write(String str, int off, int len) throws IOException {
         wrappedWriter.write(str, off, len);
-        str = str.substring(off, off + len);
-        notifyListeners(str);
+        if (listenerArray.length > 0) {
+            notifyListeners(str.substring(off, off + len));
+        }
     }
 
     /**
@@ -79,11 +87,7 @@ public class ObservableWriter extends Writer {
      * @param str the written String to notify 
      */
     private void notifyListeners(String str) {
-        WriterListener[] writerListeners = null;
-        synchronized (listeners) {
-            writerListeners = new WriterListener[listeners.size()];
-            listeners.toArray(writerListeners);
-        }
+        WriterListener[] writerListeners = listenerArray;
         for (int i = 0; i < writerListeners.length; i++) {
             writerListeners[i].write(str);
         }
@@ -102,6 +106,7 @@ public class ObservableWriter extends Writer {
         synchronized (listeners) {
             if (!listeners.contains(writerListener)) {
                 listeners.add(writerListener);
+                updateListenerArray();
             }
         }
     }
@@ -114,7 +119,14 @@ public class ObservableWriter extends Writer {
     public void removeWriterListener(WriterListener writerListener) {
         synchronized (listeners) {
             listeners.remove(writerListener);
+            updateListenerArray();
         }
     }
 
+    private void updateListenerArray() {
+        WriterListener[] writerListeners = new WriterListener[listeners.size()];
+        listeners.toArray(writerListeners);
+        listenerArray = writerListeners;
+    }
+
 }
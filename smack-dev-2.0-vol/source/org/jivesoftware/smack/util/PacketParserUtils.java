@@ -47,6 +47,22 @@ public class PacketParserUtils {
     private static final String PROPERTIES_NAMESPACE =
             "http://www.jivesoftware.com/xmlns/xmpp/properties";
 
+    /**
+     * The child elements of messages and presences which are parsed here
+     * rather than as packet extensions.
+     */
+    private static final NameTable CHILD_ELEMENTS = new NameTable(new String[] {
+        "subject", "body", "thread", "error", "properties", "status", "priority",
+        "show" });
+    private static final int CHILD_SUBJECT = 1;
+    private static final int CHILD_BODY = 2;
+    private static final int CHILD_THREAD = 3;
+    private static final int CHILD_ERROR = 4;
+    private static final int CHILD_PROPERTIES = 5;
+    private static final int CHILD_STATUS = 6;
+    private static final int CHILD_PRIORITY = 7;
+    private static final int CHILD_SHOW = 8;
+
     /**
      * Parses a message packet.
      *
@@ -75,33 +91,36 @@ public class PacketParserUtils {
             if (eventType == XmlPullParser.START_TAG) {
                 String elementName = parser.getName();
                 String namespace = parser.getNamespace();
-                if (elementName.equals("subject")) {
-                    if (subject == null) {
-                        subject = parser.nextText();
-                    }
-                }
-                else if (elementName.equals("body")) {
-                    if (body == null) {
-                        body = parser.nextText();
-                    }
-                }
-                else if (elementName.equals("thread")) {
-                    if (thread == null) {
-                        thread = parser.nextText();
-                    }
-                }
-                else if (elementName.equals("error")) {
-                    message.setError(parseError(parser));
+                int child = CHILD_ELEMENTS.getCode(elementName);
+                if (child == CHILD_PROPERTIES && !namespace.equals(PROPERTIES_NAMESPACE)) {
+                    child = 0;
                 }
-                else if (elementName.equals("properties") &&
-                        namespace.equals(PROPERTIES_NAMESPACE))
-                {
-                    properties = parseProperties(parser);
-                }
-                // Otherwise, it must be a packet extension.
-                else {
-                    message.addExtension(
-                    PacketParserUtils.parsePacketExtension(elementName, namespace, parser));
+                switch (child) {
+                    case CHILD_SUBJECT:
+                        if (subject == null) {
+                            subject = parser.nextText();
+                        }
+                        break;
+                    case CHILD_BODY:
+                        if (body == null) {
+                            body = parser.nextText();
+                        }
+                        break;
+                    case CHILD_THREAD:
+                        if (thread == null) {
+                            thread = parser.nextText();
+                        }
+                        break;
+                    case CHILD_ERROR:
+                        message.setError(parseError(parser));
+                        break;
+                    case CHILD_PROPERTIES:
+                        properties = parseProperties(parser);
+                        break;
+                    default:
+                        // Otherwise, it must be a packet extension.
+                        message.addExtension(
+                        PacketParserUtils.parsePacketExtension(elementName, namespace, parser));
                 }
             }
             else if (eventType == XmlPullParser.END_TAG) {
@@ -146,40 +165,43 @@ public class PacketParserUtils {
             if (eventType == XmlPullParser.START_TAG) {
                 String elementName = parser.getName();
                 String namespace = parser.getNamespace();
-                if (elementName.equals("status")) {
-                    presence.setStatus(parser.nextText());
-                }
-                else if (elementName.equals("priority")) {
-                    try {
-                        int priority = Integer.parseInt(parser.nextText());
-                        presence.setPriority(priority);
-                    }
-                    catch (NumberFormatException nfe) { }
-                    catch (IllegalArgumentException iae) {
-                        // Presence priority is out of range so assume priority to be zero
-                        presence.setPriority(0);
-                    }
+                int child = CHILD_ELEMENTS.getCode(elementName);
+                if (child == CHILD_PROPERTIES && !namespace.equals(PROPERTIES_NAMESPACE)) {
+                    child = 0;
                 }
-                else if (elementName.equals("show")) {
-                    presence.setMode(Presence.Mode.fromString(parser.nextText()));
-                }
-                else if (elementName.equals("error")) {
-                    presence.setError(parseError(parser));
-                }
-                else if (elementName.equals("properties") &&
-                        namespace.equals(PROPERTIES_NAMESPACE))
-                {
-                    Map properties = parseProperties(parser);
-                    // Set packet properties.
-                    for (Iterator i=properties.keySet().iterator(); i.hasNext(); ) {
-                        String name = (String)i.next();
-                        presence.setProperty(name, properties.get(name));
-                    }
-                }
-                // Otherwise, it must be a packet extension.
-                else {
-                    presence.addExtension(
-                        PacketParserUtils.parsePacketExtension(elementName, namespace, parser));
+                switch (child) {
+                    case CHILD_STATUS:
+                        presence.setStatus(parser.nextText());
+                        break;
+                    case CHILD_PRIORITY:
+                        try {
+                            int priority = Integer.parseInt(parser.nextText());
+                            presence.setPriority(priority);
+                        }
+                        catch (NumberFormatException nfe) { }
+                        catch (IllegalArgumentException iae) {
+                            // Presence priority is out of range so assume priority to be zero
+                            presence.setPriority(0);
+                        }
+                        break;
+                    case CHILD_SHOW:
+                        presence.setMode(Presence.Mode.fromString(parser.nextText()));
+                        break;
+                    case CHILD_ERROR:
+                        presence.setError(parseError(parser));
+                        break;
+                    case CHILD_PROPERTIES:
+                        Map properties = parseProperties(parser);
+                        // Set packet properties.
+                        for (Iterator i=properties.keySet().iterator(); i.hasNext(); ) {
+                            String name = (String)i.next();
+                            presence.setProperty(name, properties.get(name));
+                        }
+                        break;
+                    default:
+                        // Otherwise, it must be a packet extension.
+                        presence.addExtension(
+                            PacketParserUtils.parsePacketExtension(elementName, namespace, parser));
                 }
             }
             else if (eventType == XmlPullParser.END_TAG) {
@@ -0,0 +1,183 @@
+/**
+ * $Revision$
+ * $Date$
+ *
+ * Copyright 2003-2005 Jive Software.
+ *
+ * All rights reserved. Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.jivesoftware.smack.util;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+
+/**
+ * Opens a socket to the first reachable address out of a list of candidates,
+ * such as the list returned by {@link DNSUtil#resolveXMPPDomainCandidates(String)}.<p>
+ *
+ * The candidates are raced rather than tried strictly one after another. The first
+ * candidate is tried at once; if it has neither connected nor failed after the
+ * stagger delay, the next candidate is started alongside it, and so on. A candidate
+ * that fails outright causes the next one to start immediately. The first socket to
+ * connect wins, and any later connections are closed. Each attempt's connect is
+ * limited by its own timeout, so a dead server costs at most that long rather than
+ * the operating system's TCP timeout. (Host name lookups happen inside the attempt
+ * threads, so a slow lookup holds up only its own candidate.)
+ */
+public class SocketConnector {
+
+    protected DNSUtil.HostAddress[] candidates;
+    protected int staggerDelay;
+    protected int attemptTimeout;
+
+    protected Socket winner = null;
+    protected DNSUtil.HostAddress winningAddress = null;
+    protected IOException lastError = null;
+    protected int started = 0;
+    protected int failed = 0;
+    protected boolean finished = false;
+
+    /**
+     * Creates a connector for the given candidates.
+     *
+     * @param candidates the addresses to try, in order of preference.
+     * @param staggerDelay milliseconds to wait for one attempt before starting the next.
+     * @param attemptTimeout milliseconds to allow each attempt before giving up on it.
+     */
+    public SocketConnector(DNSUtil.HostAddress[] candidates, int staggerDelay,
+            int attemptTimeout)
+    {
+        if (candidates == null || candidates.length == 0) {
+            throw new IllegalArgumentException("No addresses to connect to.");
+        }
+        this.candidates = candidates;
+        this.staggerDelay = staggerDelay;
+        this.attemptTimeout = attemptTimeout;
+    }
+
+    /**
+     * Races the candidates and returns the first socket that connects. This blocks
+     * until a socket connects or every candidate has failed. A connector can only be
+     * used once.
+     *
+     * @return a connected socket.
+     * @throws IOException the error from the last failed attempt, if every attempt
+     *      failed.
+     */
+    public synchronized Socket connect() throws IOException {
+        if (finished) {
+            throw new IllegalStateException("SocketConnector already used.");
+        }
+        try {
+            for (int i=0; i<candidates.length && winner == null; i++) {
+                Thread attempt = new AttemptThread(candidates[i]);
+                attempt.setName("Smack Connect " + candidates[i]);
+                attempt.setDaemon(true);
+                attempt.start();
+                started++;
+
+                if (i < candidates.length-1) {
+                    // Wait out the stagger delay, unless an attempt finishes first.
+                    // If an attempt fails, the next one starts at once.
+                    int failedBefore = failed;
+                    long waitTime = staggerDelay;
+                    long start = System.currentTimeMillis();
+                    while (winner == null && failed == failedBefore && waitTime > 0) {
+                        wait(waitTime);
+                        long now = System.currentTimeMillis();
+                        waitTime -= now - start;
+                        start = now;
+                    }
+                }
+            }
+            // Everything has been started; wait for a winner or for all to fail.
+            while (winner == null && failed < started) {
+                wait();
+            }
+        }
+        catch (InterruptedException ie) {
+            // Keep the interrupt for the caller, then fall through and report
+            // whatever we have.
+            Thread.currentThread().interrupt();
+        }
+        finished = true;
+        if (winner != null) {
+            return winner;
+        }
+        if (lastError == null) {
+            lastError = new IOException("Connection attempt interrupted.");
+        }
+        throw lastError;
+    }
+
+    /**
+     * Returns the candidate whose socket won the race, or null if none has.
+     *
+     * @return the winning address.
+     */
+    public synchronized DNSUtil.HostAddress getWinningAddress() {
+        return winningAddress;
+    }
+
+    /**
+     * Called by an attempt thread when its socket connects.
+     */
+    protected synchronized void attemptSucceeded(DNSUtil.HostAddress address, Socket socket) {
+        if (winner == null && !finished) {
+            winner = socket;
+            winningAddress = address;
+        }
+        else {
+            // Somebody else got there first.
+            try { socket.close(); } catch (IOException ignore) { /* ignore */ }
+        }
+        notifyAll();
+    }
+
+    /**
+     * Called by an attempt thread when its connection fails.
+     */
+    protected synchronized void attemptFailed(IOException e) {
+        failed++;
+        lastError = e;
+        notifyAll();
+    }
+
+    /**
+     * Makes one connection attempt.
+     */
+    protected class AttemptThread extends Thread {
+
+        protected DNSUtil.HostAddress address;
+
+        public AttemptThread(DNSUtil.HostAddress address) {
+            this.address = address;
+        }
+
+        public void run() {
+            Socket socket = new Socket();
+            try {
+                socket.connect(new InetSocketAddress(address.getHost(), address.getPort()),
+                        attemptTimeout);
+            }
+            catch (IOException e) {
+                try { socket.close(); } catch (IOException ignore) { /* ignore */ }
+                attemptFailed(e);
+                return;
+            }
+            attemptSucceeded(address, socket);
+        }
+    }
+}
@@ -22,7 +22,9 @@ package org.jivesoftware.smack.util;
 
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
+import java.io.IOException;
 import java.io.UnsupportedEncodingException;
+import java.io.Writer;
 import java.util.Random;
 
 /**
@@ -129,7 +131,8 @@ public class StringUtils {
 
     /**
      * Escapes all necessary characters in the String so that it can be used
-     * in an XML doc.
+     * in an XML doc. If nothing needs escaping, the string itself is
+     * returned.
      *
      * @param string the string to escape.
      * @return the string with appropriate characters escaped.
@@ -138,75 +141,185 @@ public class StringUtils {
         if (string == null) {
             return null;
         }
-        char ch;
-        int i=0;
-        int last=0;
+        int next = nextEscape(string, 0);
+        if (next < 0) {
+            return string;
+        }
+        return new String(escape(string, next));
+    }
+
+    /**
+     * Escapes all necessary characters in the String, as
+     * {@link #escapeForXML(String)} does, and appends the result to a buffer.
+     * Unless something needs escaping, the string is appended as it is.
+     *
+     * @param string the string to escape.
+     * @param out the buffer to append to.
+     */
+    public static void escapeForXML(String string, StringBuffer out) {
+        if (string == null) {
+            return;
+        }
+        int next = nextEscape(string, 0);
+        if (next < 0) {
+            out.append(string);
+            return;
+        }
+        out.append(escape(string, next));
+    }
+
+    /**
+     * Escapes all necessary characters in the String, as
+     * {@link #escapeForXML(String)} does, and writes the result to a writer,
+     * in pieces; no escaped copy of the string is made.
+     *
+     * @param string the string to escape.
+     * @param out the writer to write to.
+     * @throws IOException if the writer does.
+     */
+    public static void escapeForXML(String string, Writer out) throws IOException {
+        if (string == null) {
+            return;
+        }
+        int len = string.length();
+        int last = 0;
+        int next = nextEscape(string, 0);
+        while (next >= 0) {
+            if (next > last) {
+                out.write(string, last, next - last);
+            }
+            out.write(escapeFor(string.charAt(next)));
+            last = next + 1;
+            next = nextEscape(string, last);
+        }
+        if (len > last) {
+            out.write(string, last, len - last);
+        }
+    }
+
+    /**
+     * Returns the string, escaped, as an array of exactly the right size,
+     * given the position of the first character which needs escaping. The
+     * work is done in arrays rather than a StringBuffer so that no lock is
+     * taken per piece.
+     */
+    private static char[] escape(String string, int next) {
         char[] input = string.toCharArray();
         int len = input.length;
-        StringBuffer out = new StringBuffer((int)(len*1.3));
-        for (; i < len; i++) {
-            ch = input[i];
-            if (ch > '>') {
-                continue;
-            }
-            else if (ch == '<') {
-                if (i > last) {
-                    out.append(input, last, i - last);
-                }
-                last = i + 1;
-                out.append(LT_ENCODE);
+        int outLen = len;
+        for (int i = next; i < len; i++) {
+            char[] escape = escapeAt(input, i);
+            if (escape != null) {
+                outLen += escape.length - 1;
             }
-            else if (ch == '>') {
-                if (i > last) {
-                    out.append(input, last, i - last);
-                }
-                last = i + 1;
-                out.append(GT_ENCODE);
+        }
+        char[] out = new char[outLen];
+        System.arraycopy(input, 0, out, 0, next);
+        int pos = next;
+        int last = next;
+        for (int i = next; i < len; i++) {
+            char[] escape = escapeAt(input, i);
+            if (escape == null) {
+                continue;
             }
+            System.arraycopy(input, last, out, pos, i - last);
+            pos += i - last;
+            System.arraycopy(escape, 0, out, pos, escape.length);
+            pos += escape.length;
+            last = i + 1;
+        }
+        System.arraycopy(input, last, out, pos, len - last);
+        return out;
+    }
 
-            else if (ch == '&') {
-                if (i > last) {
-                    out.append(input, last, i - last);
-                }
-                // Do nothing if the string is of the form &#235; (unicode value) 
-                if (!(len > i + 5
+    /**
+     * Returns the entity to replace the character at the given position
+     * with, or null if it can stay as it is.
+     */
+    private static char[] escapeAt(char[] input, int i) {
+        char ch = input[i];
+        if (ch > '>') {
+            return null;
+        }
+        switch (ch) {
+            case '<': return LT_ENCODE;
+            case '>': return GT_ENCODE;
+            case '"': return QUOTE_ENCODE;
+            case '&':
+                // Do nothing if the string is of the form &#235; (unicode value)
+                if (input.length > i + 5
                     && input[i + 1] == '#'
                     && Character.isDigit(input[i + 2])
                     && Character.isDigit(input[i + 3])
                     && Character.isDigit(input[i + 4])
-                    && input[i + 5] == ';')) {
-                        last = i + 1;
-                        out.append(AMP_ENCODE);
-                    }
+                    && input[i + 5] == ';') {
+                    return null;
+                }
+                return AMP_ENCODE;
+            default: return null;
+        }
+    }
+
+    /**
+     * Returns the position of the next character, at or after the given one,
+     * which needs escaping, or -1 if there are none. An ampersand which
+     * begins a character reference of the form &amp;#235; is left alone.
+     */
+    private static int nextEscape(String string, int from) {
+        int len = string.length();
+        for (int i = from; i < len; i++) {
+            char ch = string.charAt(i);
+            if (ch > '>') {
+                continue;
             }
-            else if (ch == '"') {
-                if (i > last) {
-                    out.append(input, last, i - last);
+            if (ch == '<' || ch == '>' || ch == '"') {
+                return i;
+            }
+            if (ch == '&') {
+                if (len > i + 5
+                    && string.charAt(i + 1) == '#'
+                    && Character.isDigit(string.charAt(i + 2))
+                    && Character.isDigit(string.charAt(i + 3))
+                    && Character.isDigit(string.charAt(i + 4))
+                    && string.charAt(i + 5) == ';') {
+                    continue;
                 }
-                last = i + 1;
-                out.append(QUOTE_ENCODE);
+                return i;
             }
         }
-        if (last == 0) {
-            return string;
-        }
-        if (i > last) {
-            out.append(input, last, i - last);
+        return -1;
+    }
+
+    private static char[] escapeFor(char ch) {
+        switch (ch) {
+            case '<': return LT_ENCODE;
+            case '>': return GT_ENCODE;
+            case '&': return AMP_ENCODE;
+            default: return QUOTE_ENCODE;
         }
-        return out.toString();
     }
 
     /**
-     * Used by the hash method.
+     * Used by the hash method: one SHA-1 digest for each thread.
      */
-    private static MessageDigest digest = null;
+    private static ThreadLocal digests = new ThreadLocal() {
+        protected Object initialValue() {
+            try {
+                return MessageDigest.getInstance("SHA-1");
+            }
+            catch (NoSuchAlgorithmException nsae) {
+                System.err.println("Failed to load the SHA-1 MessageDigest. " +
+                "Jive will be unable to function normally.");
+                return null;
+            }
+        }
+    };
 
     /**
      * Hashes a String using the SHA-1 algorithm and returns the result as a
-     * String of hexadecimal numbers. This method is synchronized to avoid
-     * excessive MessageDigest object creation. If calling this method becomes
-     * a bottleneck in your code, you may wish to maintain a pool of
-     * MessageDigest objects instead of using this method.
+     * String of hexadecimal numbers. Each thread which calls this method
+     * gets a MessageDigest object of its own, so callers never wait for
+     * each other.
      * <p>
      * A hash is a one-way function -- that is, given an
      * input, an output is easily computed. However, given the output, the
@@ -217,16 +330,8 @@ public class StringUtils {
      * @param data the String to compute the hash of.
      * @return a hashed version of the passed-in String
      */
-    public synchronized static String hash(String data) {
-        if (digest == null) {
-            try {
-                digest = MessageDigest.getInstance("SHA-1");
-            }
-            catch (NoSuchAlgorithmException nsae) {
-                System.err.println("Failed to load the SHA-1 MessageDigest. " +
-                "Jive will be unable to function normally.");
-            }
-        }
+    public static String hash(String data) {
+        MessageDigest digest = (MessageDigest)digests.get();
         // Now, compute hash.
         try {
             digest.update(data.getBytes("UTF-8"));
@@ -237,6 +342,8 @@ public class StringUtils {
         return encodeHex(digest.digest());
     }
 
+    private static final char[] HEX_DIGITS = "0123456789abcdef".toCharArray();
+
     /**
      * Encodes an array of bytes as String representation of hexadecimal.
      *
@@ -244,16 +351,13 @@ public class StringUtils {
      * @return generated hex string.
      */
     public static String encodeHex(byte[] bytes) {
-        StringBuffer hex = new StringBuffer(bytes.length * 2);
-
+        char[] hex = new char[bytes.length * 2];
         for (int i=0; i<bytes.length; i++) {
-            if (((int) bytes[i] & 0xff) < 0x10) {
-                hex.append("0");
-            }
-            hex.append(Integer.toString((int) bytes[i] & 0xff, 16));
+            int b = bytes[i] & 0xff;
+            hex[i * 2] = HEX_DIGITS[b >> 4];
+            hex[i * 2 + 1] = HEX_DIGITS[b & 0x0f];
         }
-        
-        return hex.toString();
+        return new String(hex);
     }
 
     //*********************************************************************
@@ -264,11 +368,27 @@ public class StringUtils {
     //* This code may be freely used for any purpose, either personal
     //* or commercial, provided the authors copyright notice remains
     //* intact.
+    //*
+    //* Since rewritten to work from lookup tables, directly into char and
+    //* byte arrays.
     //*********************************************************************
 
-    private static final int fillchar = '=';
-    private static final String cvt = "ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz"
-                                    + "0123456789+/";
+    private static final char fillchar = '=';
+    private static final char[] cvt = ("ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz"
+                                    + "0123456789+/").toCharArray();
+
+    /**
+     * Maps each byte to its six-bit value in base64, or to -1 if it is not
+     * a base64 digit.
+     */
+    private static final byte[] DECODE = new byte[256];
+
+    static {
+        java.util.Arrays.fill(DECODE, (byte)-1);
+        for (int i = 0; i < cvt.length; i++) {
+            DECODE[cvt[i]] = (byte)i;
+        }
+    }
 
     /**
      * Encodes a String as a base64 String.
@@ -294,95 +414,141 @@ public class StringUtils {
      * @return a base64 encode String.
      */
     public static String encodeBase64(byte[] data) {
-        int c;
-        int len = data.length;
-        StringBuffer ret = new StringBuffer(((len / 3) + 1) * 4);
-        for (int i = 0; i < len; ++i) {
-            c = (data[i] >> 2) & 0x3f;
-            ret.append(cvt.charAt(c));
-            c = (data[i] << 4) & 0x3f;
-            if (++i < len)
-                c |= (data[i] >> 4) & 0x0f;
-
-            ret.append(cvt.charAt(c));
-            if (i < len) {
-                c = (data[i] << 2) & 0x3f;
-                if (++i < len)
-                    c |= (data[i] >> 6) & 0x03;
-
-                ret.append(cvt.charAt(c));
-            }
-            else {
-                ++i;
-                ret.append((char) fillchar);
-            }
+        char[] out = new char[((data.length + 2) / 3) * 4];
+        encodeBase64(data, out);
+        return new String(out);
+    }
 
-            if (i < len) {
-                c = data[i] & 0x3f;
-                ret.append(cvt.charAt(c));
-            }
-            else {
-                ret.append((char) fillchar);
+    /**
+     * Encodes a byte array into base64, and appends it to a buffer.
+     *
+     * @param data a byte array to encode.
+     * @param out the buffer to append to.
+     */
+    public static void encodeBase64(byte[] data, StringBuffer out) {
+        char[] chars = new char[((data.length + 2) / 3) * 4];
+        encodeBase64(data, chars);
+        out.append(chars);
+    }
+
+    private static void encodeBase64(byte[] data, char[] out) {
+        int len = data.length;
+        int full = len - len % 3;
+        int pos = 0;
+        for (int i = 0; i < full; i += 3) {
+            int bits = ((data[i] & 0xff) << 16) | ((data[i + 1] & 0xff) << 8)
+                | (data[i + 2] & 0xff);
+            out[pos++] = cvt[bits >> 18];
+            out[pos++] = cvt[(bits >> 12) & 0x3f];
+            out[pos++] = cvt[(bits >> 6) & 0x3f];
+            out[pos++] = cvt[bits & 0x3f];
+        }
+        if (full < len) {
+            int bits = (data[full] & 0xff) << 16;
+            if (full + 1 < len) {
+                bits |= (data[full + 1] & 0xff) << 8;
             }
+            out[pos++] = cvt[bits >> 18];
+            out[pos++] = cvt[(bits >> 12) & 0x3f];
+            out[pos++] = (full + 1 < len) ? cvt[(bits >> 6) & 0x3f] : fillchar;
+            out[pos++] = fillchar;
         }
-        return ret.toString();
     }
 
     /**
-     * Decodes a base64 String.
+     * Decodes a base64 String. Characters which are not base64 digits, such
+     * as line breaks, are skipped, and decoding stops at the first '='.
      *
      * @param data a base64 encoded String to decode.
-     * @return the decoded String.
+     * @return the decoded bytes.
      */
     public static byte[] decodeBase64(String data) {
-        byte [] bytes = null;
-        try {
-            bytes = data.getBytes("ISO-8859-1");
-            return decodeBase64(bytes).getBytes("ISO-8859-1");
+        int len = data.length();
+        byte[] out = new byte[(len / 4) * 3 + 3];
+        int pos = 0;
+        int bits = 0;
+        int count = 0;
+        for (int i = 0; i < len; i++) {
+            char ch = data.charAt(i);
+            if (ch == fillchar) {
+                break;
+            }
+            int val = (ch < 256) ? DECODE[ch] : -1;
+            if (val < 0) {
+                continue;
+            }
+            bits = (bits << 6) | val;
+            if (++count == 4) {
+                out[pos++] = (byte)(bits >> 16);
+                out[pos++] = (byte)(bits >> 8);
+                out[pos++] = (byte)bits;
+                bits = 0;
+                count = 0;
+            }
         }
-        catch (UnsupportedEncodingException uee) {
-            uee.printStackTrace();
+        pos = finishBase64(out, pos, bits, count);
+        if (pos == out.length) {
+            return out;
         }
-        return new byte[] { };
+        byte[] result = new byte[pos];
+        System.arraycopy(out, 0, result, 0, pos);
+        return result;
     }
 
     /**
-     * Decodes a base64 aray of bytes.
+     * Decodes a base64 aray of bytes. Bytes which are not base64 digits are
+     * skipped, and decoding stops at the first '='.
      *
      * @param data a base64 encode byte array to decode.
-     * @return the decoded String.
+     * @return the decoded String, one character per byte.
      */
     public static String decodeBase64(byte[] data) {
-        int c, c1;
         int len = data.length;
-        StringBuffer ret = new StringBuffer((len * 3) / 4);
-        for (int i = 0; i < len; ++i) {
-            c = cvt.indexOf(data[i]);
-            ++i;
-            c1 = cvt.indexOf(data[i]);
-            c = ((c << 2) | ((c1 >> 4) & 0x3));
-            ret.append((char) c);
-            if (++i < len) {
-                c = data[i];
-                if (fillchar == c)
-                    break;
-
-                c = cvt.indexOf(c);
-                c1 = ((c1 << 4) & 0xf0) | ((c >> 2) & 0xf);
-                ret.append((char) c1);
+        byte[] out = new byte[(len / 4) * 3 + 3];
+        int pos = 0;
+        int bits = 0;
+        int count = 0;
+        for (int i = 0; i < len; i++) {
+            if (data[i] == fillchar) {
+                break;
             }
-
-            if (++i < len) {
-                c1 = data[i];
-                if (fillchar == c1)
-                    break;
-
-                c1 = cvt.indexOf(c1);
-                c = ((c << 6) & 0xc0) | c1;
-                ret.append((char) c);
+            int val = DECODE[data[i] & 0xff];
+            if (val < 0) {
+                continue;
             }
+            bits = (bits << 6) | val;
+            if (++count == 4) {
+                out[pos++] = (byte)(bits >> 16);
+                out[pos++] = (byte)(bits >> 8);
+                out[pos++] = (byte)bits;
+                bits = 0;
+                count = 0;
+            }
+        }
+        pos = finishBase64(out, pos, bits, count);
+        try {
+            return new String(out, 0, pos, "ISO-8859-1");
+        }
+        catch (UnsupportedEncodingException uee) {
+            uee.printStackTrace();
+            return "";
+        }
+    }
+
+    /**
+     * Writes out the bytes of a final, partial group of base64 digits.
+     *
+     * @return the new end of the output.
+     */
+    private static int finishBase64(byte[] out, int pos, int bits, int count) {
+        if (count == 2) {
+            out[pos++] = (byte)(bits >> 4);
+        }
+        else if (count == 3) {
+            out[pos++] = (byte)(bits >> 10);
+            out[pos++] = (byte)(bits >> 2);
         }
-        return ret.toString();
+        return pos;
     }
 
     /**
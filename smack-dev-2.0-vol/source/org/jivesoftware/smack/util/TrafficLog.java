@@ -0,0 +1,161 @@
+/**
+ * $RCSfile$
+ * $Revision$
+ * $Date$
+ *
+ * Copyright 2003-2004 Jive Software.
+ *
+ * All rights reserved. Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.jivesoftware.smack.util;
+
+import java.io.*;
+
+/**
+ * Reads a traffic log written by {@link TrafficRecorder}, one record at a
+ * time.
+ */
+public class TrafficLog {
+
+    /**
+     * One record from the log. Type is {@link TrafficRecorder#INBOUND},
+     * {@link TrafficRecorder#OUTBOUND} or {@link TrafficRecorder#USER}; time
+     * is the number of milliseconds since recording started.
+     */
+    public static class Record {
+        public char type;
+        public long time;
+        public String text;
+
+        public Record(char type, long time, String text) {
+            this.type = type;
+            this.time = time;
+            this.text = text;
+        }
+    }
+
+    protected Reader in;
+    protected String serviceName;
+    protected long startTime;
+
+    /**
+     * Opens a log file and reads its header.
+     *
+     * @param file the log file.
+     * @throws IOException if the file can't be read or is not a traffic log.
+     */
+    public TrafficLog(File file) throws IOException {
+        this(new InputStreamReader(new FileInputStream(file), "UTF-8"));
+    }
+
+    /**
+     * Reads a log from the given reader, starting with its header.
+     *
+     * @param reader the reader.
+     * @throws IOException if the log can't be read or is not a traffic log.
+     */
+    public TrafficLog(Reader reader) throws IOException {
+        in = new BufferedReader(reader);
+        String line = readLine();
+        String[] fields = (line == null) ? new String[0] : line.split(" ");
+        if (fields.length != 4 || !fields[0].equals(TrafficRecorder.HEADER)) {
+            throw new IOException("Not a traffic log");
+        }
+        if (!fields[1].equals(String.valueOf(TrafficRecorder.VERSION))) {
+            throw new IOException("Unsupported traffic log version " + fields[1]);
+        }
+        serviceName = fields[2];
+        try {
+            startTime = Long.parseLong(fields[3]);
+        }
+        catch (NumberFormatException ex) {
+            throw new IOException("Bad traffic log header: " + line);
+        }
+    }
+
+    /**
+     * Returns the name of the service the recorded connection was made to.
+     *
+     * @return the service name.
+     */
+    public String getServiceName() {
+        return serviceName;
+    }
+
+    /**
+     * Returns the time recording started, as a System.currentTimeMillis()
+     * value.
+     *
+     * @return the start time.
+     */
+    public long getStartTime() {
+        return startTime;
+    }
+
+    /**
+     * Returns the next record, or null at the end of the log. A record cut
+     * short (because the recording process died before flushing) is treated
+     * as the end of the log.
+     *
+     * @return the next record, or null.
+     * @throws IOException if the log can't be read or is malformed.
+     */
+    public Record next() throws IOException {
+        String line = readLine();
+        if (line == null) {
+            return null;
+        }
+        String[] fields = line.split(" ");
+        if (fields.length != 3 || fields[0].length() != 1) {
+            throw new IOException("Bad traffic log record: " + line);
+        }
+        long time;
+        int len;
+        try {
+            time = Long.parseLong(fields[1]);
+            len = Integer.parseInt(fields[2]);
+        }
+        catch (NumberFormatException ex) {
+            throw new IOException("Bad traffic log record: " + line);
+        }
+        char[] buf = new char[len];
+        int pos = 0;
+        while (pos < len) {
+            int count = in.read(buf, pos, len - pos);
+            if (count < 0) {
+                return null;
+            }
+            pos += count;
+        }
+        // Skip the newline which ends the record.
+        in.read();
+        return new Record(fields[0].charAt(0), time, new String(buf));
+    }
+
+    /**
+     * Closes the log.
+     */
+    public void close() {
+        try {
+            in.close();
+        }
+        catch (IOException ioe) {
+            // Ignore.
+        }
+    }
+
+    private String readLine() throws IOException {
+        return ((BufferedReader)in).readLine();
+    }
+}
@@ -0,0 +1,480 @@
+/**
+ * $RCSfile$
+ * $Revision$
+ * $Date$
+ *
+ * Copyright 2003-2004 Jive Software.
+ *
+ * All rights reserved. Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.jivesoftware.smack.util;
+
+import java.io.*;
+import java.util.*;
+
+import org.jivesoftware.smack.ConnectionRuntime;
+
+/**
+ * Records the traffic of one connection to a compact log, for later replay
+ * with {@link org.jivesoftware.smack.ReplayConnection}. The recorder wraps the
+ * connection's reader and writer and copies every chunk of characters that
+ * passes through them, stamped with the number of milliseconds since the
+ * recorder was created.<p>
+ *
+ * The log is plain UTF-8 text. The first line is a header:
+ *
+ * <pre>
+ * smack-traffic 1 <i>serviceName</i> <i>startTime</i>
+ * </pre>
+ *
+ * Each record after that is a line giving the record type, the elapsed
+ * milliseconds, and the length of the text in characters, followed by the
+ * text itself and a newline:
+ *
+ * <pre>
+ * I 1520 112
+ * &lt;message from='...'&gt;...&lt;/message&gt;
+ * </pre>
+ *
+ * Type <tt>I</tt> is inbound traffic, <tt>O</tt> is outbound traffic, and
+ * <tt>U</tt> records the full JID the connection logged in as. Chunks are
+ * recorded as they were read or written, so a record may hold part of a
+ * stanza or several stanzas.<p>
+ *
+ * Credentials are not recorded. The text of SASL <tt>&lt;auth&gt;</tt> and
+ * <tt>&lt;response&gt;</tt> elements, and of <tt>&lt;password&gt;</tt> and
+ * <tt>&lt;digest&gt;</tt> elements (as in <tt>jabber:iq:auth</tt>, account
+ * registration and password-protected rooms), is replaced by
+ * {@link #REDACTED}, even when an element is split across chunks. The rest
+ * of the log is still the connection's traffic, but it holds private
+ * conversation and should be treated as sensitive all the same.<p>
+ *
+ * Recording costs one pass over each chunk into a buffered file writer. The
+ * buffer is written out once a second (on the shared connection timer) and
+ * when the recorder is closed. If the log can't be written, recording stops;
+ * the connection itself is never disturbed.
+ *
+ * @see TrafficLog
+ */
+public class TrafficRecorder {
+
+    public static final String HEADER = "smack-traffic";
+    public static final int VERSION = 1;
+
+    public static final char INBOUND = 'I';
+    public static final char OUTBOUND = 'O';
+    public static final char USER = 'U';
+
+    /**
+     * The text written in place of a credential.
+     */
+    public static final String REDACTED = "[redacted]";
+
+    protected static final long FLUSH_INTERVAL = 1000;
+
+    private static int fileCounter = 0;
+
+    protected Writer out;
+    protected long startTime;
+    protected boolean closed = false;
+    protected TimerTask flushTask;
+
+    private Redactor inboundRedactor = new Redactor();
+    private Redactor outboundRedactor = new Redactor();
+
+    /**
+     * Creates a recorder which writes to a new file in the given directory.
+     * The file name is made from the service name and the current time, so
+     * that every connection gets a log of its own.
+     *
+     * @param dir the directory to write the log in. It is created if needed.
+     * @param serviceName the name of the service being connected to.
+     * @return the recorder.
+     * @throws IOException if the file can't be created.
+     */
+    public static TrafficRecorder create(File dir, String serviceName) throws IOException {
+        if (!dir.isDirectory() && !dir.mkdirs()) {
+            throw new IOException("Unable to create directory " + dir);
+        }
+        int serial;
+        synchronized (TrafficRecorder.class) {
+            serial = fileCounter++;
+        }
+        String name = serviceName + "-" + System.currentTimeMillis() + "-" + serial + ".xmpplog";
+        OutputStream stream = new FileOutputStream(new File(dir, name));
+        Writer out = new BufferedWriter(new OutputStreamWriter(stream, "UTF-8"), 32768);
+        return new TrafficRecorder(out, serviceName);
+    }
+
+    /**
+     * Creates a recorder which writes to the given writer. The header is
+     * written immediately.
+     *
+     * @param out the writer to write the log to.
+     * @param serviceName the name of the service being connected to.
+     * @throws IOException if the header can't be written.
+     */
+    public TrafficRecorder(Writer out, String serviceName) throws IOException {
+        this.out = out;
+        this.startTime = System.currentTimeMillis();
+        out.write(HEADER + " " + VERSION + " " + serviceName + " " + startTime + "\n");
+
+        flushTask = new TimerTask() {
+            public void run() {
+                flush();
+            }
+        };
+        ConnectionRuntime.getTimer().schedule(flushTask, FLUSH_INTERVAL, FLUSH_INTERVAL);
+    }
+
+    /**
+     * Returns a reader which records everything read through it as inbound
+     * traffic.
+     *
+     * @param reader the reader to wrap.
+     * @return the recording reader.
+     */
+    public Reader wrapReader(Reader reader) {
+        return new RecordingReader(reader);
+    }
+
+    /**
+     * Returns a writer which records everything written through it as
+     * outbound traffic.
+     *
+     * @param writer the writer to wrap.
+     * @return the recording writer.
+     */
+    public Writer wrapWriter(Writer writer) {
+        return new RecordingWriter(writer);
+    }
+
+    /**
+     * Records the JID that the connection has logged in as.
+     *
+     * @param user the full JID.
+     */
+    public void recordUser(String user) {
+        String str = (user == null) ? "" : user;
+        record(USER, str, 0, str.length());
+    }
+
+    /**
+     * Records a chunk of traffic.
+     *
+     * @param type {@link #INBOUND}, {@link #OUTBOUND} or {@link #USER}.
+     * @param chars the characters.
+     * @param offset the offset of the first character.
+     * @param len the number of characters.
+     */
+    public synchronized void record(char type, char[] chars, int offset, int len) {
+        if (closed) {
+            return;
+        }
+        try {
+            Redactor redactor = getRedactor(type);
+            if (redactor != null) {
+                redactor.clear();
+                for (int i = offset; i < offset + len; i++) {
+                    redactor.filter(chars[i]);
+                }
+                redactor.write(type);
+            }
+            else {
+                writeRecordHeader(type, len);
+                out.write(chars, offset, len);
+                out.write('\n');
+            }
+        }
+        catch (IOException ioe) {
+            fail(ioe);
+        }
+    }
+
+    /**
+     * Records a chunk of traffic.
+     *
+     * @param type {@link #INBOUND}, {@link #OUTBOUND} or {@link #USER}.
+     * @param str the string containing the characters.
+     * @param offset the offset of the first character.
+     * @param len the number of characters.
+     */
+    public synchronized void record(char type, String str, int offset, int len) {
+        if (closed) {
+            return;
+        }
+        try {
+            Redactor redactor = getRedactor(type);
+            if (redactor != null) {
+                redactor.clear();
+                for (int i = offset; i < offset + len; i++) {
+                    redactor.filter(str.charAt(i));
+                }
+                redactor.write(type);
+            }
+            else {
+                writeRecordHeader(type, len);
+                out.write(str, offset, len);
+                out.write('\n');
+            }
+        }
+        catch (IOException ioe) {
+            fail(ioe);
+        }
+    }
+
+    private Redactor getRedactor(char type) {
+        switch (type) {
+            case INBOUND:
+                return inboundRedactor;
+            case OUTBOUND:
+                return outboundRedactor;
+            default:
+                return null;
+        }
+    }
+
+    private void writeRecordHeader(char type, int len) throws IOException {
+        out.write(type);
+        out.write(' ');
+        out.write(Long.toString(System.currentTimeMillis() - startTime));
+        out.write(' ');
+        out.write(Integer.toString(len));
+        out.write('\n');
+    }
+
+    /**
+     * Writes out any buffered records.
+     */
+    public synchronized void flush() {
+        if (closed) {
+            return;
+        }
+        try {
+            out.flush();
+        }
+        catch (IOException ioe) {
+            fail(ioe);
+        }
+    }
+
+    /**
+     * Writes out any buffered records and closes the log. Anything recorded
+     * after this is ignored.
+     */
+    public synchronized void close() {
+        if (closed) {
+            return;
+        }
+        flushTask.cancel();
+        closed = true;
+        try {
+            out.close();
+        }
+        catch (IOException ioe) {
+            // Ignore.
+        }
+    }
+
+    /**
+     * Returns true if the log has been closed, or recording has stopped
+     * because of an error.
+     *
+     * @return true if closed.
+     */
+    public synchronized boolean isClosed() {
+        return closed;
+    }
+
+    private void fail(IOException ioe) {
+        ioe.printStackTrace();
+        flushTask.cancel();
+        closed = true;
+        try {
+            out.close();
+        }
+        catch (IOException ignore) {
+            // Ignore.
+        }
+    }
+
+    /**
+     * Copies one direction of traffic into a scratch buffer, leaving out the
+     * text of credential elements. The state carries over from one chunk to
+     * the next, so a tag or credential split between chunks is still caught.
+     * Only called while holding the recorder's lock.
+     */
+    private class Redactor {
+
+        private static final int TEXT = 0;
+        private static final int TAG = 1;
+        private static final int SECRET = 2;
+
+        // Start tags longer than this are not examined.
+        private static final int MAX_TAG = 256;
+
+        private int state = TEXT;
+        private StringBuffer tag = new StringBuffer();
+        private boolean redacted;
+
+        private char[] buf = new char[1024];
+        private int count;
+
+        void clear() {
+            count = 0;
+        }
+
+        void filter(char ch) {
+            switch (state) {
+                case TEXT:
+                    append(ch);
+                    if (ch == '<') {
+                        tag.setLength(0);
+                        state = TAG;
+                    }
+                    break;
+                case TAG:
+                    append(ch);
+                    if (ch == '>') {
+                        state = isSecret() ? SECRET : TEXT;
+                        redacted = false;
+                    }
+                    else if (tag.length() < MAX_TAG) {
+                        tag.append(ch);
+                    }
+                    else {
+                        state = TEXT;
+                    }
+                    break;
+                case SECRET:
+                    if (ch == '<') {
+                        append(ch);
+                        tag.setLength(0);
+                        state = TAG;
+                    }
+                    else if (!redacted) {
+                        for (int i = 0; i < REDACTED.length(); i++) {
+                            append(REDACTED.charAt(i));
+                        }
+                        redacted = true;
+                    }
+                    break;
+            }
+        }
+
+        /**
+         * Returns true if the start tag just read opens an element whose
+         * text is a credential.
+         */
+        private boolean isSecret() {
+            int len = tag.length();
+            if (len == 0 || tag.charAt(len - 1) == '/') {
+                return false;
+            }
+            int end = 0;
+            while (end < len && !Character.isWhitespace(tag.charAt(end))) {
+                end++;
+            }
+            String name = tag.substring(0, end);
+            int colon = name.indexOf(':');
+            if (colon >= 0) {
+                name = name.substring(colon + 1);
+            }
+            if (name.equals("password") || name.equals("digest")) {
+                return true;
+            }
+            if (name.equals("auth") || name.equals("response")) {
+                return tag.toString().indexOf("urn:ietf:params:xml:ns:xmpp-sasl") >= 0;
+            }
+            return false;
+        }
+
+        private void append(char ch) {
+            if (count == buf.length) {
+                char[] newBuf = new char[buf.length * 2];
+                System.arraycopy(buf, 0, newBuf, 0, count);
+                buf = newBuf;
+            }
+            buf[count++] = ch;
+        }
+
+        void write(char type) throws IOException {
+            writeRecordHeader(type, count);
+            out.write(buf, 0, count);
+            out.write('\n');
+            if (buf.length > 65536) {
+                // Don't hold on to the buffer after an unusually large chunk.
+                buf = new char[1024];
+            }
+        }
+    }
+
+    /**
+     * A reader which records each chunk it reads.
+     */
+    private class RecordingReader extends FilterReader {
+
+        RecordingReader(Reader in) {
+            super(in);
+        }
+
+        public int read() throws IOException {
+            int ch = in.read();
+            if (ch >= 0) {
+                record(INBOUND, new char[] { (char)ch }, 0, 1);
+            }
+            return ch;
+        }
+
+        public int read(char[] cbuf, int off, int len) throws IOException {
+            int count = in.read(cbuf, off, len);
+            if (count > 0) {
+                record(INBOUND, cbuf, off, count);
+            }
+            return count;
+        }
+
+        public long skip(long n) throws IOException {
+            // Skipped characters would be lost from the log, so read them instead.
+            char[] buf = new char[(int)Math.min(n, 1024)];
+            int count = read(buf, 0, buf.length);
+            return (count < 0) ? 0 : count;
+        }
+    }
+
+    /**
+     * A writer which records each chunk written to it.
+     */
+    private class RecordingWriter extends FilterWriter {
+
+        RecordingWriter(Writer out) {
+            super(out);
+        }
+
+        public void write(int c) throws IOException {
+            out.write(c);
+            record(OUTBOUND, new char[] { (char)c }, 0, 1);
+        }
+
+        public void write(char[] cbuf, int off, int len) throws IOException {
+            out.write(cbuf, off, len);
+            record(OUTBOUND, cbuf, off, len);
+        }
+
+        public void write(String str, int off, int len) throws IOException {
+            out.write(str, off, len);
+            record(OUTBOUND, str, off, len);
+        }
+    }
+}
@@ -0,0 +1,305 @@
+/**
+ * $RCSfile$
+ * $Revision$
+ * $Date$
+ *
+ * Copyright 2003-2004 Jive Software.
+ *
+ * All rights reserved. Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.jivesoftware.smack.util;
+
+import java.io.*;
+import java.util.*;
+
+/**
+ * Keeps the most recent traffic of a connection in memory, in a fixed amount
+ * of space. Like {@link TrafficRecorder}, the ring wraps the connection's
+ * reader and writer and copies every chunk of characters that passes through
+ * them; but the chunks go into a circular character buffer, and once it is
+ * full the oldest are overwritten.<p>
+ *
+ * Recording a chunk copies its characters into the buffer and fills in one
+ * slot of a fixed table of record headers (type, time, position, length).
+ * Nothing is allocated and no strings are made, so capture costs about as
+ * much as the copy. Readers -- a debugger window, say -- ask for the records
+ * since a given sequence number with {@link #getRecords(long, List)}, which builds
+ * {@link TrafficLog.Record} objects on demand. Every record ever made has a
+ * sequence number, counting from zero; {@link #getSequence()} is the number
+ * of the next one.
+ */
+public class TrafficRing {
+
+    public static final char INBOUND = TrafficRecorder.INBOUND;
+    public static final char OUTBOUND = TrafficRecorder.OUTBOUND;
+
+    protected char[] chars;
+    protected long charEnd = 0;     // characters ever recorded
+
+    protected char[] types;
+    protected long[] times;
+    protected long[] starts;        // in characters ever recorded
+    protected int[] lengths;
+    protected long recordEnd = 0;   // records ever recorded
+
+    protected long startTime;
+    protected boolean closed = false;
+
+    /**
+     * Creates a ring.
+     *
+     * @param charCapacity the number of characters of traffic to keep.
+     * @param recordCapacity the largest number of chunks to keep.
+     */
+    public TrafficRing(int charCapacity, int recordCapacity) {
+        chars = new char[charCapacity];
+        types = new char[recordCapacity];
+        times = new long[recordCapacity];
+        starts = new long[recordCapacity];
+        lengths = new int[recordCapacity];
+        startTime = System.currentTimeMillis();
+    }
+
+    /**
+     * Returns the time the ring was created, as a System.currentTimeMillis()
+     * value. Record times count from this.
+     *
+     * @return the start time.
+     */
+    public long getStartTime() {
+        return startTime;
+    }
+
+    /**
+     * Returns a reader which records everything read through it as inbound
+     * traffic.
+     *
+     * @param reader the reader to wrap.
+     * @return the recording reader.
+     */
+    public Reader wrapReader(Reader reader) {
+        return new RecordingReader(reader);
+    }
+
+    /**
+     * Returns a writer which records everything written through it as
+     * outbound traffic.
+     *
+     * @param writer the writer to wrap.
+     * @return the recording writer.
+     */
+    public Writer wrapWriter(Writer writer) {
+        return new RecordingWriter(writer);
+    }
+
+    /**
+     * Records a chunk of traffic. If the chunk is longer than the whole
+     * buffer, only its end is kept.
+     *
+     * @param type {@link #INBOUND} or {@link #OUTBOUND}.
+     * @param cbuf the characters.
+     * @param offset the offset of the first character.
+     * @param len the number of characters.
+     */
+    public synchronized void record(char type, char[] cbuf, int offset, int len) {
+        if (closed || len <= 0) {
+            return;
+        }
+        if (len > chars.length) {
+            offset += len - chars.length;
+            len = chars.length;
+        }
+        int pos = (int)(charEnd % chars.length);
+        int first = Math.min(len, chars.length - pos);
+        System.arraycopy(cbuf, offset, chars, pos, first);
+        if (first < len) {
+            System.arraycopy(cbuf, offset + first, chars, 0, len - first);
+        }
+        addRecord(type, len);
+    }
+
+    /**
+     * Records a chunk of traffic. If the chunk is longer than the whole
+     * buffer, only its end is kept.
+     *
+     * @param type {@link #INBOUND} or {@link #OUTBOUND}.
+     * @param str the string containing the characters.
+     * @param offset the offset of the first character.
+     * @param len the number of characters.
+     */
+    public synchronized void record(char type, String str, int offset, int len) {
+        if (closed || len <= 0) {
+            return;
+        }
+        if (len > chars.length) {
+            offset += len - chars.length;
+            len = chars.length;
+        }
+        int pos = (int)(charEnd % chars.length);
+        int first = Math.min(len, chars.length - pos);
+        str.getChars(offset, offset + first, chars, pos);
+        if (first < len) {
+            str.getChars(offset + first, offset + len, chars, 0);
+        }
+        addRecord(type, len);
+    }
+
+    private void addRecord(char type, int len) {
+        int slot = (int)(recordEnd % types.length);
+        types[slot] = type;
+        times[slot] = System.currentTimeMillis() - startTime;
+        starts[slot] = charEnd;
+        lengths[slot] = len;
+        charEnd += len;
+        recordEnd++;
+    }
+
+    /**
+     * Returns the sequence number the next record will have.
+     *
+     * @return the sequence number.
+     */
+    public synchronized long getSequence() {
+        return recordEnd;
+    }
+
+    /**
+     * Returns the sequence number of the oldest record still in the ring.
+     * If this is greater than a reader's last sequence number, the records
+     * in between were overwritten before the reader saw them.
+     *
+     * @return the sequence number.
+     */
+    public synchronized long getFirstSequence() {
+        long seq = Math.max(0, recordEnd - types.length);
+        long oldestChar = charEnd - chars.length;
+        while (seq < recordEnd && starts[(int)(seq % types.length)] < oldestChar) {
+            seq++;
+        }
+        return seq;
+    }
+
+    /**
+     * Adds the records still in the ring whose sequence number is at least
+     * the given one to a list, oldest first, as {@link TrafficLog.Record}
+     * objects. The records added are consecutive, and the return value is
+     * the sequence number after the last of them; pass it in next time to
+     * get only newer records. If fewer records were added than that number
+     * minus <tt>since</tt>, the rest were overwritten before they were
+     * asked for.
+     *
+     * @param since the sequence number to start from.
+     * @param list the list to add the records to.
+     * @return the sequence number of the next record.
+     */
+    public synchronized long getRecords(long since, List list) {
+        long seq = Math.max(since, getFirstSequence());
+        for (; seq < recordEnd; seq++) {
+            int slot = (int)(seq % types.length);
+            int len = lengths[slot];
+            int pos = (int)(starts[slot] % chars.length);
+            int first = Math.min(len, chars.length - pos);
+            StringBuffer buf = new StringBuffer(len);
+            buf.append(chars, pos, first);
+            if (first < len) {
+                buf.append(chars, 0, len - first);
+            }
+            list.add(new TrafficLog.Record(types[slot], times[slot], buf.toString()));
+        }
+        return recordEnd;
+    }
+
+    /**
+     * Forgets everything recorded so far. Sequence numbers carry on from
+     * where they were.
+     */
+    public synchronized void clear() {
+        charEnd += chars.length;
+    }
+
+    /**
+     * Stops recording. The traffic already recorded can still be read.
+     */
+    public synchronized void close() {
+        closed = true;
+    }
+
+    /**
+     * A reader which records each chunk it reads.
+     */
+    private class RecordingReader extends FilterReader {
+
+        RecordingReader(Reader in) {
+            super(in);
+        }
+
+        public int read() throws IOException {
+            int ch = in.read();
+            if (ch >= 0) {
+                synchronized (TrafficRing.this) {
+                    if (!closed) {
+                        chars[(int)(charEnd % chars.length)] = (char)ch;
+                        addRecord(INBOUND, 1);
+                    }
+                }
+            }
+            return ch;
+        }
+
+        public int read(char[] cbuf, int off, int len) throws IOException {
+            int count = in.read(cbuf, off, len);
+            if (count > 0) {
+                record(INBOUND, cbuf, off, count);
+            }
+            return count;
+        }
+
+        public long skip(long n) throws IOException {
+            // Skipped characters would be lost from the ring, so read them instead.
+            char[] buf = new char[(int)Math.min(n, 1024)];
+            int count = read(buf, 0, buf.length);
+            return (count < 0) ? 0 : count;
+        }
+    }
+
+    /**
+     * A writer which records each chunk written to it.
+     */
+    private class RecordingWriter extends FilterWriter {
+
+        RecordingWriter(Writer out) {
+            super(out);
+        }
+
+        public void write(int c) throws IOException {
+            out.write(c);
+            synchronized (TrafficRing.this) {
+                if (!closed) {
+                    chars[(int)(charEnd % chars.length)] = (char)c;
+                    addRecord(OUTBOUND, 1);
+                }
+            }
+        }
+
+        public void write(char[] cbuf, int off, int len) throws IOException {
+            out.write(cbuf, off, len);
+            record(OUTBOUND, cbuf, off, len);
+        }
+
+        public void write(String str, int off, int len) throws IOException {
+            out.write(str, off, len);
+            record(OUTBOUND, str, off, len);
+        }
+    }
+}
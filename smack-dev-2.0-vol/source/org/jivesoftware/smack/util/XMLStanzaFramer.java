@@ -0,0 +1,340 @@
+/**
+ * $RCSfile$
+ * $Revision$
+ * $Date$
+ *
+ * Copyright 2003-2004 Jive Software.
+ *
+ * All rights reserved. Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.jivesoftware.smack.util;
+
+/**
+ * Splits an incoming XMPP stream into top-level elements, a piece at a time.
+ * Characters are fed in with {@link #append(char[], int, int)} as they arrive, in
+ * chunks of any size; {@link #nextElement()} then returns each complete element as
+ * it becomes available. This lets a non-blocking reader hand whole stanzas to a
+ * pull parser without ever blocking on a partial read.<p>
+ *
+ * The framer only tracks enough of the XML syntax to find element boundaries:
+ * tags (with quoted attribute values), comments, CDATA sections and processing
+ * instructions. Three kinds of element are reported (see {@link #getElementType()}):
+ * <ul>
+ *      <li> {@link #STREAM_OPEN} -- the opening stream tag, without a matching
+ *          close. A second opening stream tag (as sent after TLS or SASL) is
+ *          reported the same way.
+ *      <li> {@link #STANZA} -- a complete child of the stream, including any
+ *          stream-level element such as features.
+ *      <li> {@link #STREAM_CLOSE} -- the closing stream tag.
+ * </ul>
+ *
+ * XML declarations, comments and whitespace between stanzas are dropped.
+ */
+public class XMLStanzaFramer {
+
+    public static final int NONE = 0;
+    public static final int STREAM_OPEN = 1;
+    public static final int STANZA = 2;
+    public static final int STREAM_CLOSE = 3;
+
+    // Scanner states.
+    private static final int TEXT = 0;
+    private static final int TAG = 1;
+    private static final int COMMENT = 2;
+    private static final int CDATA = 3;
+    private static final int PI = 4;
+
+    private StringBuffer buffer = new StringBuffer(1024);
+    private int scanPos = 0;
+    private int state = TEXT;
+    private char quote = 0;
+    private int markupStart = 0;
+
+    /** Element depth; 1 means "inside the stream, between stanzas". */
+    private int depth = 0;
+    private int elementStart = -1;
+    private String streamTagName = null;
+
+    private int elementType = NONE;
+
+    /**
+     * Adds newly read characters to the end of the framer's buffer.
+     *
+     * @param chars the characters.
+     * @param offset the offset of the first character.
+     * @param len the number of characters.
+     */
+    public void append(char[] chars, int offset, int len) {
+        buffer.append(chars, offset, len);
+    }
+
+    /**
+     * Adds newly read characters to the end of the framer's buffer.
+     *
+     * @param str the characters.
+     */
+    public void append(String str) {
+        buffer.append(str);
+    }
+
+    /**
+     * Returns the next complete top-level element, or null if none is complete
+     * yet. The type of the element is available from {@link #getElementType()}.
+     *
+     * @return the text of the element, or null.
+     */
+    public String nextElement() {
+        elementType = NONE;
+        int len = buffer.length();
+        while (scanPos < len) {
+            char ch = buffer.charAt(scanPos);
+            switch (state) {
+            case TEXT:
+                if (ch != '<') {
+                    scanPos++;
+                    break;
+                }
+                // Decide what kind of markup this is. We may need to wait for
+                // more characters to tell.
+                if (scanPos + 1 >= len) {
+                    return compact(null);
+                }
+                char next = buffer.charAt(scanPos+1);
+                markupStart = scanPos;
+                if (next == '?') {
+                    state = PI;
+                    scanPos += 2;
+                }
+                else if (next == '!') {
+                    if (scanPos + 4 > len) {
+                        return compact(null);
+                    }
+                    if (buffer.charAt(scanPos+2) == '-' && buffer.charAt(scanPos+3) == '-') {
+                        state = COMMENT;
+                        scanPos += 4;
+                    }
+                    else {
+                        if (scanPos + 9 > len) {
+                            return compact(null);
+                        }
+                        if (buffer.substring(scanPos, scanPos+9).equals("<![CDATA[")) {
+                            state = CDATA;
+                            scanPos += 9;
+                        }
+                        else {
+                            // A declaration such as DOCTYPE; treat it as a tag.
+                            state = TAG;
+                            scanPos += 2;
+                        }
+                    }
+                }
+                else {
+                    state = TAG;
+                    quote = 0;
+                    scanPos++;
+                }
+                break;
+
+            case TAG:
+                scanPos++;
+                if (quote != 0) {
+                    if (ch == quote) {
+                        quote = 0;
+                    }
+                }
+                else if (ch == '"' || ch == '\'') {
+                    quote = ch;
+                }
+                else if (ch == '>') {
+                    state = TEXT;
+                    String result = tagEnded();
+                    if (result != null) {
+                        return compact(result);
+                    }
+                }
+                break;
+
+            case COMMENT:
+                scanPos++;
+                if (ch == '>' && endsWith("-->")) {
+                    state = TEXT;
+                }
+                break;
+
+            case CDATA:
+                scanPos++;
+                if (ch == '>' && endsWith("]]>")) {
+                    state = TEXT;
+                }
+                break;
+
+            case PI:
+                scanPos++;
+                if (ch == '>' && endsWith("?>")) {
+                    state = TEXT;
+                }
+                break;
+            }
+        }
+        return compact(null);
+    }
+
+    /**
+     * Returns the type of the element most recently returned by
+     * {@link #nextElement()}, or {@link #NONE} if it returned null.
+     *
+     * @return the element type.
+     */
+    public int getElementType() {
+        return elementType;
+    }
+
+    /**
+     * Returns the number of characters buffered but not yet returned as part
+     * of an element.
+     *
+     * @return the number of buffered characters.
+     */
+    public int getBufferedLength() {
+        return buffer.length();
+    }
+
+    /**
+     * Discards all buffered data and state, as if the framer were new.
+     */
+    public void reset() {
+        buffer.setLength(0);
+        scanPos = 0;
+        state = TEXT;
+        quote = 0;
+        depth = 0;
+        elementStart = -1;
+        streamTagName = null;
+        elementType = NONE;
+    }
+
+    /**
+     * Handles the end of a tag, which runs from markupStart to just before
+     * scanPos. Returns the text of a completed top-level element, or null.
+     */
+    private String tagEnded() {
+        boolean endTag = buffer.charAt(markupStart+1) == '/';
+        boolean emptyTag = !endTag && buffer.charAt(scanPos-2) == '/';
+        if (buffer.charAt(markupStart+1) == '!') {
+            // Declaration; not an element.
+            return null;
+        }
+
+        if (endTag) {
+            if (depth == 1) {
+                // Closing the stream itself.
+                depth = 0;
+                elementType = STREAM_CLOSE;
+                return buffer.substring(markupStart, scanPos);
+            }
+            depth--;
+            if (depth == 1) {
+                elementType = STANZA;
+                String result = buffer.substring(elementStart, scanPos);
+                elementStart = -1;
+                return result;
+            }
+            return null;
+        }
+
+        if (depth == 0 || (depth == 1 && isStreamTag())) {
+            // An opening stream tag. (Or a new one, after a stream restart.)
+            if (depth == 0) {
+                streamTagName = tagName();
+            }
+            depth = 1;
+            elementType = STREAM_OPEN;
+            return buffer.substring(markupStart, scanPos);
+        }
+
+        if (depth == 1) {
+            elementStart = markupStart;
+            if (emptyTag) {
+                elementType = STANZA;
+                elementStart = -1;
+                return buffer.substring(markupStart, scanPos);
+            }
+        }
+        if (!emptyTag) {
+            depth++;
+        }
+        return null;
+    }
+
+    private boolean isStreamTag() {
+        return streamTagName != null && streamTagName.equals(tagName());
+    }
+
+    /**
+     * Returns the name of the tag starting at markupStart.
+     */
+    private String tagName() {
+        int start = markupStart + 1;
+        int end = start;
+        int len = buffer.length();
+        while (end < len) {
+            char ch = buffer.charAt(end);
+            if (ch == '>' || ch == '/' || Character.isWhitespace(ch)) {
+                break;
+            }
+            end++;
+        }
+        return buffer.substring(start, end);
+    }
+
+    private boolean endsWith(String str) {
+        int start = scanPos - str.length();
+        if (start < markupStart) {
+            return false;
+        }
+        for (int i=0; i<str.length(); i++) {
+            if (buffer.charAt(start+i) != str.charAt(i)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Drops consumed characters from the front of the buffer, and returns the
+     * given result.
+     */
+    private String compact(String result) {
+        int keep;
+        if (elementStart >= 0) {
+            keep = elementStart;
+        }
+        else if (state != TEXT) {
+            keep = markupStart;
+        }
+        else {
+            keep = scanPos;
+        }
+        // Avoid shuffling the buffer for every small element.
+        if (keep > 0 && (keep == buffer.length() || keep >= 4096)) {
+            buffer.delete(0, keep);
+            scanPos -= keep;
+            markupStart -= keep;
+            if (elementStart >= 0) {
+                elementStart -= keep;
+            }
+        }
+        return result;
+    }
+}
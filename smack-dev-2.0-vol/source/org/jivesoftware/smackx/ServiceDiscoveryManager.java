@@ -25,6 +25,7 @@ import java.util.*;
 import org.jivesoftware.smack.*;
 import org.jivesoftware.smack.filter.*;
 import org.jivesoftware.smack.packet.*;
+import org.jivesoftware.smack.util.Metrics;
 import org.jivesoftware.smackx.packet.*;
 
 /**
@@ -47,6 +48,10 @@ public class ServiceDiscoveryManager {
     protected static ServiceDiscoveryFactory factory;
     protected static Map instances = new Hashtable();
 
+    // Round-trip times of the queries this client makes.
+    protected static final Metrics.Timing DISCO_INFO_TIME = Metrics.getTiming("disco.info");
+    protected static final Metrics.Timing DISCO_ITEMS_TIME = Metrics.getTiming("disco.items");
+
     protected XMPPConnection connection;
     protected List features = new ArrayList();
     protected Map nodeInformationProviders = new Hashtable();
@@ -427,6 +432,7 @@ public class ServiceDiscoveryManager {
         PacketCollector collector =
             connection.createPacketCollector(new PacketIDFilter(disco.getPacketID()));
 
+        long start = System.currentTimeMillis();
         connection.sendPacket(disco);
 
         // Wait up to 5 seconds for a result.
@@ -436,6 +442,7 @@ public class ServiceDiscoveryManager {
         if (result == null) {
             throw new XMPPException("No response from the server.");
         }
+        DISCO_INFO_TIME.recordSince(start);
         if (result.getType() == IQ.Type.ERROR) {
             throw new XMPPException(result.getError());
         }
@@ -474,6 +481,7 @@ public class ServiceDiscoveryManager {
         PacketCollector collector =
             connection.createPacketCollector(new PacketIDFilter(disco.getPacketID()));
 
+        long start = System.currentTimeMillis();
         connection.sendPacket(disco);
 
         // Wait up to 5 seconds for a result.
@@ -483,6 +491,7 @@ public class ServiceDiscoveryManager {
         if (result == null) {
             throw new XMPPException("No response from the server.");
         }
+        DISCO_ITEMS_TIME.recordSince(start);
         if (result.getType() == IQ.Type.ERROR) {
             throw new XMPPException(result.getError());
         }
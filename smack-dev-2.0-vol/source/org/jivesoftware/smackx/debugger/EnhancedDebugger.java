@@ -26,7 +26,9 @@ import java.awt.event.*;
 import java.io.*;
 import java.net.*;
 import java.text.*;
+import java.util.ArrayList;
 import java.util.Date;
+import java.util.List;
 
 import javax.swing.*;
 import javax.swing.event.*;
@@ -36,6 +38,7 @@ import javax.xml.transform.stream.*;
 
 import org.jivesoftware.smack.*;
 import org.jivesoftware.smack.debugger.*;
+import org.jivesoftware.smack.filter.PacketFilter;
 import org.jivesoftware.smack.packet.*;
 import org.jivesoftware.smack.util.*;
 
@@ -44,7 +47,17 @@ import org.jivesoftware.smack.util.*;
  * but also provides the ability to send ad-hoc messages composed by the user.<p>
  * 
  * A new EnhancedDebugger will be created for each connection to debug. All the EnhancedDebuggers 
- * will be shown in the same debug window provided by the class EnhancedDebuggerWindow.
+ * will be shown in the same debug window provided by the class EnhancedDebuggerWindow.<p>
+ *
+ * The debugger is cheap enough to leave on. Raw traffic is captured into a fixed-size
+ * {@link TrafficRing}, and packets into a fixed-size table, without any formatting; the
+ * views are brought up to date from them twice a second, and only while they are showing.
+ * When either fills up, the oldest entries are dropped. The sizes can be set with the
+ * system properties <tt>smack.debugBufferSize</tt> (characters of raw traffic) and
+ * <tt>smack.debugPacketLimit</tt> (packets), or with {@link #setBufferSize(int)} and
+ * {@link #setPacketLimit(int)}. To keep only some packets, set a sample rate
+ * (<tt>smack.debugSampleRate</tt>, or {@link #setSampleRate(int)}) or a filter
+ * ({@link #setPacketFilter(PacketFilter)}). These apply to debuggers created afterwards.
  * 
  * @author Gaston Dombiak
  */
@@ -52,6 +65,29 @@ public class EnhancedDebugger implements SmackDebugger {
 
     private static final String NEWLINE = "\n";
 
+    /**
+     * Milliseconds between updates of the visible views.
+     */
+    private static final int REFRESH_INTERVAL = 500;
+
+    private static int bufferSize = 256 * 1024;
+    private static int packetLimit = 1000;
+    private static int sampleRate = 1;
+    private static PacketFilter packetFilter = null;
+
+    static {
+        // Use try block since we may not have permission to get a system
+        // property (for example, when an applet).
+        try {
+            setBufferSize(Integer.getInteger("smack.debugBufferSize", bufferSize).intValue());
+            setPacketLimit(Integer.getInteger("smack.debugPacketLimit", packetLimit).intValue());
+            setSampleRate(Integer.getInteger("smack.debugSampleRate", sampleRate).intValue());
+        }
+        catch (Exception e) {
+            // Ignore.
+        }
+    }
+
     private static ImageIcon packetReceivedIcon;
     private static ImageIcon packetSentIcon;
     private static ImageIcon presencePacketIcon;
@@ -93,7 +129,7 @@ public class EnhancedDebugger implements SmackDebugger {
         }
     }
 
-    private DefaultTableModel messagesTable = null;
+    private PacketTableModel messagesTable = null;
     private JTextArea messageTextArea = null;
     private JFormattedTextField userField = null;
     private JFormattedTextField statusField = null;
@@ -106,8 +142,13 @@ public class EnhancedDebugger implements SmackDebugger {
 
     private Writer writer;
     private Reader reader;
-    private ReaderListener readerListener;
-    private WriterListener writerListener;
+
+    // Captured traffic and packets, and the views of them
+    private TrafficRing traffic;
+    private PacketCapture capture;
+    private RawView sentView;
+    private RawView receivedView;
+    private javax.swing.Timer refreshTimer;
 
     private Date creationTime = new Date();
 
@@ -130,10 +171,54 @@ public class EnhancedDebugger implements SmackDebugger {
         this.connection = connection;
         this.writer = writer;
         this.reader = reader;
+        // Allow an average of 64 characters per chunk of traffic.
+        traffic = new TrafficRing(bufferSize, Math.max(bufferSize / 64, 16));
+        capture = new PacketCapture(packetLimit, sampleRate, packetFilter);
         createDebug();
         EnhancedDebuggerWindow.addDebugger(this);
     }
 
+    /**
+     * Sets the number of characters of raw traffic each new debugger keeps.
+     * Values less than 1 are taken as 1.
+     *
+     * @param size the number of characters.
+     */
+    public static void setBufferSize(int size) {
+        bufferSize = Math.max(size, 1);
+    }
+
+    /**
+     * Sets the number of packets each new debugger keeps. Values less than 1
+     * are taken as 1.
+     *
+     * @param limit the number of packets.
+     */
+    public static void setPacketLimit(int limit) {
+        packetLimit = Math.max(limit, 1);
+    }
+
+    /**
+     * Sets the sample rate of new debuggers: they keep one packet out of every
+     * <tt>rate</tt>. The statistics still count them all. Values less than 1
+     * are taken as 1.
+     *
+     * @param rate the sample rate, 1 to keep every packet.
+     */
+    public static void setSampleRate(int rate) {
+        sampleRate = Math.max(rate, 1);
+    }
+
+    /**
+     * Sets a filter for new debuggers: they keep only the packets it accepts.
+     * The statistics still count them all.
+     *
+     * @param filter the packet filter, or null to keep every packet.
+     */
+    public static void setPacketFilter(PacketFilter filter) {
+        packetFilter = filter;
+    }
+
     /**
      * Creates the debug process, which is a GUI window that displays XML traffic.
      */
@@ -156,21 +241,33 @@ public class EnhancedDebugger implements SmackDebugger {
         // the GUI. This is what we call "interpreted" packet data, since it's the packet
         // data as Smack sees it and not as it's coming in as raw XML.
         packetReaderListener = new PacketListener() {
-            SimpleDateFormat dateFormatter = new SimpleDateFormat("hh:mm:ss aaa");
             public void processPacket(Packet packet) {
-                addReadPacketToTable(dateFormatter, packet);
+                capture.add(packet, false);
             }
         };
 
         // Create a thread that will listen for all outgoing packets and write them to
         // the GUI.
         packetWriterListener = new PacketListener() {
-            SimpleDateFormat dateFormatter = new SimpleDateFormat("hh:mm:ss aaa");
             public void processPacket(Packet packet) {
-                addSentPacketToTable(dateFormatter, packet);
+                capture.add(packet, true);
             }
         };
 
+        // Bring the visible views up to date every so often, and whenever another tab
+        // is chosen.
+        refreshTimer = new javax.swing.Timer(REFRESH_INTERVAL, new ActionListener() {
+            public void actionPerformed(ActionEvent e) {
+                refreshViews();
+            }
+        });
+        refreshTimer.start();
+        tabbedPane.addChangeListener(new ChangeListener() {
+            public void stateChanged(ChangeEvent e) {
+                refreshViews();
+            }
+        });
+
         // Create a thread that will listen for any connection closed event
         connListener = new ConnectionListener() {
             public void connectionClosed() {
@@ -191,21 +288,7 @@ public class EnhancedDebugger implements SmackDebugger {
         tabbedPane.add("All Packets", allPane);
         tabbedPane.setToolTipTextAt(0, "Sent and received packets processed by Smack");
 
-        messagesTable =
-            new DefaultTableModel(
-                new Object[] { "Hide", "Timestamp", "", "", "Message", "Id", "Type", "To", "From" },
-                0) {
-            public boolean isCellEditable(int rowIndex, int mColIndex) {
-                return false;
-            }
-            public Class getColumnClass(int columnIndex) {
-                if (columnIndex == 2 || columnIndex == 3) {
-                    return Icon.class;
-                }
-                return super.getColumnClass(columnIndex);
-            }
-
-        };
+        messagesTable = new PacketTableModel(capture.packets.length);
         JTable table = new JTable(messagesTable);
         // Allow only single a selection
         table.setSelectionMode(ListSelectionModel.SINGLE_SELECTION);
@@ -283,6 +366,7 @@ public class EnhancedDebugger implements SmackDebugger {
                 sentText.setText("");
             }
         });
+        sentView = new RawView(sentText, TrafficRing.OUTBOUND);
 
         // Add listener to the text area so the popup menu can come up.
         sentText.addMouseListener(new PopupListener(menu));
@@ -316,48 +400,17 @@ public class EnhancedDebugger implements SmackDebugger {
                 receivedText.setText("");
             }
         });
+        receivedView = new RawView(receivedText, TrafficRing.INBOUND);
 
         // Add listener to the text area so the popup menu can come up.
         receivedText.addMouseListener(new PopupListener(menu));
         menu.add(menuItem1);
         menu.add(menuItem2);
 
-        // Create a special Reader that wraps the main Reader and logs data to the GUI.
-        ObservableReader debugReader = new ObservableReader(reader);
-        readerListener = new ReaderListener() {
-                    public void read(String str) {
-                        int index = str.lastIndexOf(">");
-                        if (index != -1) {
-                            receivedText.append(str.substring(0, index + 1));
-                            receivedText.append(NEWLINE);
-                            if (str.length() > index) {
-                                receivedText.append(str.substring(index + 1));
-                            }
-                        }
-                        else {
-                            receivedText.append(str);
-                        }
-                    }
-                };
-        debugReader.addReaderListener(readerListener);
-
-        // Create a special Writer that wraps the main Writer and logs data to the GUI.
-        ObservableWriter debugWriter = new ObservableWriter(writer);
-        writerListener = new WriterListener() {
-                    public void write(String str) {
-                        sentText.append(str);
-                        if (str.endsWith(">")) {
-                            sentText.append(NEWLINE);
-                        }
-                    }
-                };
-        debugWriter.addWriterListener(writerListener);
-
-        // Assign the reader/writer objects to use the debug versions. The packet reader
-        // and writer will use the debug versions when they are created.
-        reader = debugReader;
-        writer = debugWriter;
-
+        // Wrap the main Reader and Writer so that they record all traffic. The packet
+        // reader and writer will use the recording versions when they are created.
+        reader = traffic.wrapReader(reader);
+        writer = traffic.wrapWriter(writer);
     }
 
     private void addAdhocPacketPanel() {
@@ -562,18 +615,12 @@ public class EnhancedDebugger implements SmackDebugger {
     }
 
     public Reader newConnectionReader(Reader newReader) {
-        ((ObservableReader)reader).removeReaderListener(readerListener);
-        ObservableReader debugReader = new ObservableReader(newReader);
-        debugReader.addReaderListener(readerListener);
-        reader = debugReader;
+        reader = traffic.wrapReader(newReader);
         return reader;
     }
 
     public Writer newConnectionWriter(Writer newWriter) {
-        ((ObservableWriter)writer).removeWriterListener(writerListener);
-        ObservableWriter debugWriter = new ObservableWriter(newWriter);
-        debugWriter.addWriterListener(writerListener);
-        writer = debugWriter;
+        writer = traffic.wrapWriter(newWriter);
         return writer;
     }
 
@@ -602,126 +649,40 @@ public class EnhancedDebugger implements SmackDebugger {
     }
 
     /**
-     * Updates the statistics table
-     */
-    private void updateStatistics() {
-        statisticsTable.setValueAt(new Integer(receivedIQPackets), 0, 1);
-        statisticsTable.setValueAt(new Integer(sentIQPackets), 0, 2);
-
-        statisticsTable.setValueAt(new Integer(receivedMessagePackets), 1, 1);
-        statisticsTable.setValueAt(new Integer(sentMessagePackets), 1, 2);
-
-        statisticsTable.setValueAt(new Integer(receivedPresencePackets), 2, 1);
-        statisticsTable.setValueAt(new Integer(sentPresencePackets), 2, 2);
-
-        statisticsTable.setValueAt(new Integer(receivedOtherPackets), 3, 1);
-        statisticsTable.setValueAt(new Integer(sentOtherPackets), 3, 2);
-
-        statisticsTable.setValueAt(new Integer(receivedPackets), 4, 1);
-        statisticsTable.setValueAt(new Integer(sentPackets), 4, 2);
-    }
-
-    /**
-     * Adds the received packet detail to the messages table.
-     * 
-     * @param dateFormatter the SimpleDateFormat to use to format Dates
-     * @param packet the read packet to add to the table
+     * Brings the views which are showing up to date with the captured traffic and
+     * packets.
      */
-    private void addReadPacketToTable(SimpleDateFormat dateFormatter, Packet packet) {
-        String messageType = null;
-        String from = packet.getFrom();
-        String type = "";
-        Icon packetTypeIcon;
-        receivedPackets++;
-        if (packet instanceof IQ) {
-            packetTypeIcon = iqPacketIcon;
-            messageType = "IQ Received (class=" + packet.getClass().getName() + ")";
-            type = ((IQ) packet).getType().toString();
-            receivedIQPackets++;
-        }
-        else if (packet instanceof Message) {
-            packetTypeIcon = messagePacketIcon;
-            messageType = "Message Received";
-            type = ((Message) packet).getType().toString();
-            receivedMessagePackets++;
-        }
-        else if (packet instanceof Presence) {
-            packetTypeIcon = presencePacketIcon;
-            messageType = "Presence Received";
-            type = ((Presence) packet).getType().toString();
-            receivedPresencePackets++;
-        }
-        else {
-            packetTypeIcon = unknownPacketTypeIcon;
-            messageType = packet.getClass().getName() + " Received";
-            receivedOtherPackets++;
-        }
-
-        messagesTable.addRow(
-            new Object[] {
-                formatXML(packet.toXML()),
-                dateFormatter.format(new Date()),
-                packetReceivedIcon,
-                packetTypeIcon,
-                messageType,
-                packet.getPacketID(),
-                type,
-                "",
-                from });
-        // Update the statistics table
-        updateStatistics();
+    private void refreshViews() {
+        if (messagesTable == null) {
+            return;
+        }
+        if (tabbedPane.isShowing()) {
+            messagesTable.refresh();
+            sentView.refresh();
+            receivedView.refresh();
+            updateStatistics();
+        }
     }
 
     /**
-     * Adds the sent packet detail to the messages table.
-     * 
-     * @param dateFormatter the SimpleDateFormat to use to format Dates
-     * @param packet the sent packet to add to the table
+     * Updates the statistics table
      */
-    private void addSentPacketToTable(SimpleDateFormat dateFormatter, Packet packet) {
-        String messageType = null;
-        String to = packet.getTo();
-        String type = "";
-        Icon packetTypeIcon;
-        sentPackets++;
-        if (packet instanceof IQ) {
-            packetTypeIcon = iqPacketIcon;
-            messageType = "IQ Sent (class=" + packet.getClass().getName() + ")";
-            type = ((IQ) packet).getType().toString();
-            sentIQPackets++;
-        }
-        else if (packet instanceof Message) {
-            packetTypeIcon = messagePacketIcon;
-            messageType = "Message Sent";
-            type = ((Message) packet).getType().toString();
-            sentMessagePackets++;
-        }
-        else if (packet instanceof Presence) {
-            packetTypeIcon = presencePacketIcon;
-            messageType = "Presence Sent";
-            type = ((Presence) packet).getType().toString();
-            sentPresencePackets++;
-        }
-        else {
-            packetTypeIcon = unknownPacketTypeIcon;
-            messageType = packet.getClass().getName() + " Sent";
-            sentOtherPackets++;
-        }
-
-        messagesTable.addRow(
-            new Object[] {
-                formatXML(packet.toXML()),
-                dateFormatter.format(new Date()),
-                packetSentIcon,
-                packetTypeIcon,
-                messageType,
-                packet.getPacketID(),
-                type,
-                to,
-                "" });
-
-        // Update the statistics table
-        updateStatistics();
+    private void updateStatistics() {
+        int[] counts;
+        synchronized (capture) {
+            counts = new int[] {
+                receivedIQPackets, sentIQPackets,
+                receivedMessagePackets, sentMessagePackets,
+                receivedPresencePackets, sentPresencePackets,
+                receivedOtherPackets, sentOtherPackets,
+                receivedPackets, sentPackets };
+        }
+        for (int i = 0; i < counts.length; i++) {
+            Integer value = new Integer(counts[i]);
+            if (!value.equals(statisticsTable.getValueAt(i / 2, 1 + i % 2))) {
+                statisticsTable.setValueAt(value, i / 2, 1 + i % 2);
+            }
+        }
     }
 
     private String formatXML(String str) {
@@ -791,8 +752,8 @@ public class EnhancedDebugger implements SmackDebugger {
         connection.removeConnectionListener(connListener);
         connection.removePacketListener(packetReaderListener);
         connection.removePacketWriterListener(packetWriterListener);
-        ((ObservableReader)reader).removeReaderListener(readerListener);
-        ((ObservableWriter)writer).removeWriterListener(writerListener);
+        traffic.close();
+        refreshTimer.stop();
         messagesTable = null;
     }
 
@@ -824,6 +785,246 @@ public class EnhancedDebugger implements SmackDebugger {
 
     }
 
+    /**
+     * Holds the most recent packets sent and received, in a fixed amount of space, and
+     * counts them all for the statistics. Packets are kept as they are; describing them
+     * is left to the table, which only does it for the rows it shows.
+     */
+    private class PacketCapture {
+        Packet[] packets;
+        boolean[] sent;
+        long[] times;
+        long end = 0;      // packets ever kept
+
+        int sampleRate;
+        PacketFilter filter;
+        int sampleCount = 0;
+
+        PacketCapture(int capacity, int sampleRate, PacketFilter filter) {
+            packets = new Packet[capacity];
+            sent = new boolean[capacity];
+            times = new long[capacity];
+            this.sampleRate = sampleRate;
+            this.filter = filter;
+        }
+
+        synchronized void add(Packet packet, boolean isSent) {
+            if (isSent) {
+                sentPackets++;
+                if (packet instanceof IQ) sentIQPackets++;
+                else if (packet instanceof Message) sentMessagePackets++;
+                else if (packet instanceof Presence) sentPresencePackets++;
+                else sentOtherPackets++;
+            }
+            else {
+                receivedPackets++;
+                if (packet instanceof IQ) receivedIQPackets++;
+                else if (packet instanceof Message) receivedMessagePackets++;
+                else if (packet instanceof Presence) receivedPresencePackets++;
+                else receivedOtherPackets++;
+            }
+
+            if (filter != null && !filter.accept(packet)) {
+                return;
+            }
+            if (sampleRate > 1 && (sampleCount++ % sampleRate) != 0) {
+                return;
+            }
+            int slot = (int)(end % packets.length);
+            packets[slot] = packet;
+            sent[slot] = isSent;
+            times[slot] = System.currentTimeMillis();
+            end++;
+        }
+    }
+
+    /**
+     * The table of packets. It keeps a copy of the capture's most recent entries, made
+     * by {@link #refresh()} in the Swing thread, and describes each row when it is
+     * drawn.
+     */
+    private class PacketTableModel extends AbstractTableModel {
+        private final String[] COLUMNS =
+            { "Hide", "Timestamp", "", "", "Message", "Id", "Type", "To", "From" };
+
+        private SimpleDateFormat dateFormatter = new SimpleDateFormat("hh:mm:ss aaa");
+
+        // Slots correspond to the capture's.
+        private Packet[] packets;
+        private boolean[] sent;
+        private long[] times;
+        private long first = 0;
+        private long end = 0;
+
+        PacketTableModel(int capacity) {
+            packets = new Packet[capacity];
+            sent = new boolean[capacity];
+            times = new long[capacity];
+        }
+
+        /**
+         * Copies in the packets captured since the last refresh, dropping the oldest rows
+         * if need be.
+         */
+        void refresh() {
+            long oldFirst = first;
+            long oldEnd = end;
+            long newEnd;
+            synchronized (capture) {
+                newEnd = capture.end;
+                for (long seq = Math.max(oldEnd, newEnd - packets.length); seq < newEnd; seq++) {
+                    int slot = (int)(seq % packets.length);
+                    packets[slot] = capture.packets[slot];
+                    sent[slot] = capture.sent[slot];
+                    times[slot] = capture.times[slot];
+                }
+            }
+            if (newEnd == oldEnd) {
+                return;
+            }
+            long newFirst = Math.max(oldFirst, newEnd - packets.length);
+            if (newFirst > oldFirst) {
+                int dropped = (int)(Math.min(newFirst, oldEnd) - oldFirst);
+                first = newFirst;
+                if (newFirst > oldEnd) {
+                    end = newFirst;
+                }
+                if (dropped > 0) {
+                    fireTableRowsDeleted(0, dropped - 1);
+                }
+            }
+            int firstNew = (int)(Math.max(oldEnd, newFirst) - first);
+            end = newEnd;
+            fireTableRowsInserted(firstNew, (int)(end - first) - 1);
+        }
+
+        public int getRowCount() {
+            return (int)(end - first);
+        }
+
+        Packet getPacket(int rowIndex) {
+            return packets[(int)((first + rowIndex) % packets.length)];
+        }
+
+        public int getColumnCount() {
+            return COLUMNS.length;
+        }
+
+        public String getColumnName(int columnIndex) {
+            return COLUMNS[columnIndex];
+        }
+
+        public Class getColumnClass(int columnIndex) {
+            if (columnIndex == 2 || columnIndex == 3) {
+                return Icon.class;
+            }
+            return Object.class;
+        }
+
+        public Object getValueAt(int rowIndex, int columnIndex) {
+            int slot = (int)((first + rowIndex) % packets.length);
+            Packet packet = packets[slot];
+            boolean isSent = sent[slot];
+            String direction = isSent ? " Sent" : " Received";
+            switch (columnIndex) {
+            case 0:
+                // The hidden column; the detail is only formatted when a row is selected.
+                return "";
+            case 1:
+                return dateFormatter.format(new Date(times[slot]));
+            case 2:
+                return isSent ? packetSentIcon : packetReceivedIcon;
+            case 3:
+                if (packet instanceof IQ) return iqPacketIcon;
+                if (packet instanceof Message) return messagePacketIcon;
+                if (packet instanceof Presence) return presencePacketIcon;
+                return unknownPacketTypeIcon;
+            case 4:
+                if (packet instanceof IQ)
+                    return "IQ" + direction + " (class=" + packet.getClass().getName() + ")";
+                if (packet instanceof Message) return "Message" + direction;
+                if (packet instanceof Presence) return "Presence" + direction;
+                return packet.getClass().getName() + direction;
+            case 5:
+                return packet.getPacketID();
+            case 6:
+                if (packet instanceof IQ) return ((IQ) packet).getType().toString();
+                if (packet instanceof Message) return ((Message) packet).getType().toString();
+                if (packet instanceof Presence) return ((Presence) packet).getType().toString();
+                return "";
+            case 7:
+                return isSent ? packet.getTo() : "";
+            default:
+                return isSent ? "" : packet.getFrom();
+            }
+        }
+    }
+
+    /**
+     * Shows the raw traffic in one direction, appending what the ring has recorded since
+     * the last refresh. The text area is kept no longer than the ring.
+     */
+    private class RawView {
+        JTextArea textArea;
+        char type;
+        int limit;
+        long seen = 0;
+
+        RawView(JTextArea textArea, char type) {
+            this.textArea = textArea;
+            this.type = type;
+            this.limit = bufferSize;
+        }
+
+        void refresh() {
+            if (!textArea.isShowing()) {
+                return;
+            }
+            List records = new ArrayList();
+            long next = traffic.getRecords(seen, records);
+            if (next == seen) {
+                return;
+            }
+            StringBuffer buf = new StringBuffer();
+            if (next - seen > records.size()) {
+                buf.append("[...]").append(NEWLINE);
+            }
+            seen = next;
+            for (int i = 0; i < records.size(); i++) {
+                TrafficLog.Record record = (TrafficLog.Record) records.get(i);
+                if (record.type != type) {
+                    continue;
+                }
+                String str = record.text;
+                if (type == TrafficRing.INBOUND) {
+                    int index = str.lastIndexOf(">");
+                    if (index != -1) {
+                        buf.append(str.substring(0, index + 1));
+                        buf.append(NEWLINE);
+                        buf.append(str.substring(index + 1));
+                    }
+                    else {
+                        buf.append(str);
+                    }
+                }
+                else {
+                    buf.append(str);
+                    if (str.endsWith(">")) {
+                        buf.append(NEWLINE);
+                    }
+                }
+            }
+            if (buf.length() == 0) {
+                return;
+            }
+            textArea.append(buf.toString());
+            int excess = textArea.getDocument().getLength() - limit;
+            if (excess > 0) {
+                textArea.replaceRange("", 0, excess);
+            }
+        }
+    }
+
     /**
      * Listens for debug window popup dialog events.
      */
@@ -862,10 +1063,10 @@ public class EnhancedDebugger implements SmackDebugger {
                 // Clear the messageTextArea since there is none packet selected 
                 messageTextArea.setText(null);
             }
-            else {
+            else if (messagesTable != null) {
                 // Set the detail of the packet in the messageTextArea 
-                messageTextArea.setText(
-                    (String) table.getModel().getValueAt(table.getSelectedRow(), 0));
+                Packet packet = messagesTable.getPacket(table.getSelectedRow());
+                messageTextArea.setText(formatXML(packet.toXML()));
                 // Scroll up to the top
                 messageTextArea.setCaretPosition(0);
             }
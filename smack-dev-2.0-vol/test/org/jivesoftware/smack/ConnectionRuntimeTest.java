@@ -0,0 +1,164 @@
+/**
+ * $RCSfile$
+ * $Revision$
+ * $Date$
+ *
+ * Copyright (C) 2002-2003 Jive Software. All rights reserved.
+ * ====================================================================
+ * The Jive Software License (based on Apache Software License, Version 1.1)
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in
+ *    the documentation and/or other materials provided with the
+ *    distribution.
+ *
+ * 3. The end-user documentation included with the redistribution,
+ *    if any, must include the following acknowledgment:
+ *       "This product includes software developed by
+ *        Jive Software (http://www.jivesoftware.com)."
+ *    Alternately, this acknowledgment may appear in the software itself,
+ *    if and wherever such third-party acknowledgments normally appear.
+ *
+ * 4. The names "Smack" and "Jive Software" must not be used to
+ *    endorse or promote products derived from this software without
+ *    prior written permission. For written permission, please
+ *    contact webmaster@jivesoftware.com.
+ *
+ * 5. Products derived from this software may not be called "Smack",
+ *    nor may "Smack" appear in their name, without prior written
+ *    permission of Jive Software.
+ *
+ * THIS SOFTWARE IS PROVIDED ``AS IS'' AND ANY EXPRESSED OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ * OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED.  IN NO EVENT SHALL JIVE SOFTWARE OR
+ * ITS CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+ * LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF
+ * USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT
+ * OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF
+ * SUCH DAMAGE.
+ * ====================================================================
+ */
+
+package org.jivesoftware.smack;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import junit.framework.TestCase;
+
+/**
+ * A test case for the ConnectionRuntime class.
+ */
+public class ConnectionRuntimeTest extends TestCase {
+
+    public void testExecute() throws Exception {
+        final Object lock = new Object();
+        final int[] count = new int[1];
+        for (int i=0; i<50; i++) {
+            ConnectionRuntime.execute(new Runnable() {
+                public void run() {
+                    synchronized (lock) {
+                        count[0]++;
+                        lock.notifyAll();
+                    }
+                }
+            });
+        }
+        synchronized (lock) {
+            long end = System.currentTimeMillis() + 5000;
+            while (count[0] < 50 && System.currentTimeMillis() < end) {
+                lock.wait(100);
+            }
+        }
+        assertEquals(50, count[0]);
+    }
+
+    public void testSerialTaskNeverOverlaps() throws Exception {
+        final List queue = new ArrayList();
+        final List seen = new ArrayList();
+        final int[] active = new int[1];
+        final boolean[] overlapped = new boolean[1];
+
+        ConnectionRuntime.SerialTask task = new ConnectionRuntime.SerialTask() {
+            protected void runTask() {
+                synchronized (seen) {
+                    active[0]++;
+                    if (active[0] > 1) {
+                        overlapped[0] = true;
+                    }
+                }
+                while (true) {
+                    Object item;
+                    synchronized (queue) {
+                        if (queue.isEmpty()) {
+                            break;
+                        }
+                        item = queue.remove(0);
+                    }
+                    synchronized (seen) {
+                        seen.add(item);
+                    }
+                }
+                synchronized (seen) {
+                    active[0]--;
+                    seen.notifyAll();
+                }
+            }
+        };
+
+        for (int i=0; i<1000; i++) {
+            synchronized (queue) {
+                queue.add(new Integer(i));
+            }
+            task.schedule();
+        }
+
+        synchronized (seen) {
+            long end = System.currentTimeMillis() + 5000;
+            while (seen.size() < 1000 && System.currentTimeMillis() < end) {
+                seen.wait(100);
+            }
+        }
+        assertFalse("SerialTask ran concurrently with itself", overlapped[0]);
+        assertEquals(1000, seen.size());
+        for (int i=0; i<1000; i++) {
+            assertEquals(new Integer(i), seen.get(i));
+        }
+    }
+
+    public void testIdleWorkersReused() throws Exception {
+        final Object lock = new Object();
+        final int[] count = new int[1];
+        int before = ConnectionRuntime.getWorkerCount();
+        for (int round=0; round<5; round++) {
+            ConnectionRuntime.execute(new Runnable() {
+                public void run() {
+                    synchronized (lock) {
+                        count[0]++;
+                        lock.notifyAll();
+                    }
+                }
+            });
+            synchronized (lock) {
+                while (count[0] <= round) {
+                    lock.wait(1000);
+                }
+            }
+            // Give the worker a moment to go idle again.
+            Thread.sleep(20);
+        }
+        assertTrue("Sequential tasks should not need many workers",
+                ConnectionRuntime.getWorkerCount() <= before + 1);
+    }
+}
@@ -0,0 +1,362 @@
+/**
+ * $RCSfile$
+ * $Revision$
+ * $Date$
+ *
+ * Copyright (C) 2002-2003 Jive Software. All rights reserved.
+ * ====================================================================
+ * The Jive Software License (based on Apache Software License, Version 1.1)
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in
+ *    the documentation and/or other materials provided with the
+ *    distribution.
+ *
+ * 3. The end-user documentation included with the redistribution,
+ *    if any, must include the following acknowledgment:
+ *       "This product includes software developed by
+ *        Jive Software (http://www.jivesoftware.com)."
+ *    Alternately, this acknowledgment may appear in the software itself,
+ *    if and wherever such third-party acknowledgments normally appear.
+ *
+ * 4. The names "Smack" and "Jive Software" must not be used to
+ *    endorse or promote products derived from this software without
+ *    prior written permission. For written permission, please
+ *    contact webmaster@jivesoftware.com.
+ *
+ * 5. Products derived from this software may not be called "Smack",
+ *    nor may "Smack" appear in their name, without prior written
+ *    permission of Jive Software.
+ *
+ * THIS SOFTWARE IS PROVIDED ``AS IS'' AND ANY EXPRESSED OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ * OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED.  IN NO EVENT SHALL JIVE SOFTWARE OR
+ * ITS CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+ * LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF
+ * USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT
+ * OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF
+ * SUCH DAMAGE.
+ * ====================================================================
+ */
+
+package org.jivesoftware.smack;
+
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.Reader;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.Iterator;
+
+import junit.framework.TestCase;
+
+import org.jivesoftware.smack.filter.PacketIDFilter;
+import org.jivesoftware.smack.packet.Presence;
+import org.jivesoftware.smack.packet.PresenceFactory;
+
+/**
+ * A test case for the LoginTimings class, and for pipelined logins against a
+ * scripted server on the loopback interface.
+ */
+public class LoginTimingsTest extends TestCase {
+
+    private static final String STREAM = "<?xml version='1.0'?>"
+        + "<stream:stream xmlns='jabber:client'"
+        + " xmlns:stream='http://etherx.jabber.org/streams' id='pipe1'"
+        + " from='localhost' version='1.0'>";
+
+    private static final String SESSION_ERROR = "<error code='503' type='cancel'>"
+        + "<service-unavailable xmlns='urn:ietf:params:xml:ns:xmpp-stanzas'/></error>";
+
+    public void testUnmarkedPhase() {
+        LoginTimings timings = new LoginTimings();
+        assertEquals(-1, timings.getElapsed(LoginTimings.ROSTER_RECEIVED));
+        assertFalse(timings.getPhases().hasNext());
+    }
+
+    public void testMarkOrder() {
+        LoginTimings timings = new LoginTimings();
+        timings.mark(LoginTimings.SOCKET_CONNECTED);
+        timings.mark(LoginTimings.STREAM_OPENED);
+        timings.mark(LoginTimings.AUTHENTICATED);
+
+        Iterator it = timings.getPhases();
+        assertEquals(LoginTimings.SOCKET_CONNECTED, it.next());
+        assertEquals(LoginTimings.STREAM_OPENED, it.next());
+        assertEquals(LoginTimings.AUTHENTICATED, it.next());
+        assertFalse(it.hasNext());
+        assertTrue(timings.getElapsed(LoginTimings.STREAM_OPENED)
+                >= timings.getElapsed(LoginTimings.SOCKET_CONNECTED));
+    }
+
+    public void testFirstMarkWins() throws Exception {
+        LoginTimings timings = new LoginTimings();
+        timings.mark(LoginTimings.AUTHENTICATED);
+        long first = timings.getElapsed(LoginTimings.AUTHENTICATED);
+        Thread.sleep(20);
+        timings.mark(LoginTimings.AUTHENTICATED);
+        assertEquals(first, timings.getElapsed(LoginTimings.AUTHENTICATED));
+
+        int count = 0;
+        for (Iterator it = timings.getPhases(); it.hasNext(); it.next()) {
+            count++;
+        }
+        assertEquals(1, count);
+    }
+
+    /**
+     * A pipelined login sends its session request, roster request and
+     * presence without waiting for replies. The server here doesn't answer
+     * the session request until it has seen all three, so a login which
+     * waited would time out.
+     */
+    public void testPipelinedLogin() throws Exception {
+        ServerSocket serverSocket = new ServerSocket(0);
+        ScriptedServer server = new ScriptedServer(serverSocket, null);
+        server.start();
+        XMPPConnection conn = new XMPPConnection("127.0.0.1",
+            serverSocket.getLocalPort(), "localhost");
+        try {
+            conn.setPipelinedLogin(true);
+            conn.login("user", "secret", "Home");
+            assertTrue(conn.isAuthenticated());
+            assertEquals("user@localhost/Home", conn.getUser());
+
+            LoginTimings timings = conn.getLoginTimings();
+            long session = timings.getElapsed(LoginTimings.SESSION_ESTABLISHED);
+            assertTrue(session >= 0);
+            assertTrue(timings.getElapsed(LoginTimings.ROSTER_REQUESTED) >= 0);
+            assertTrue(timings.getElapsed(LoginTimings.ROSTER_REQUESTED) <= session);
+            assertTrue(timings.getElapsed(LoginTimings.PRESENCE_SENT) >= 0);
+            assertTrue(timings.getElapsed(LoginTimings.PRESENCE_SENT) <= session);
+        }
+        finally {
+            conn.close();
+            serverSocket.close();
+        }
+        server.join(5000);
+        assertNull(server.failure);
+        assertTrue(server.sessionReplied);
+    }
+
+    /**
+     * An error reply to a pipelined session request, which arrives after
+     * the roster request and presence have gone out, still fails the login.
+     */
+    public void testPipelinedSessionError() throws Exception {
+        ServerSocket serverSocket = new ServerSocket(0);
+        ScriptedServer server = new ScriptedServer(serverSocket, SESSION_ERROR);
+        server.start();
+        XMPPConnection conn = new XMPPConnection("127.0.0.1",
+            serverSocket.getLocalPort(), "localhost");
+        try {
+            conn.setPipelinedLogin(true);
+            try {
+                conn.login("user", "secret", "Home");
+                fail("Login succeeded despite a session error");
+            }
+            catch (XMPPException ex) {
+                assertNotNull(ex.getXMPPError());
+                assertEquals(503, ex.getXMPPError().getCode());
+            }
+            assertFalse(conn.isAuthenticated());
+            assertEquals(-1, conn.getLoginTimings().getElapsed(
+                LoginTimings.SESSION_ESTABLISHED));
+            assertEquals(-1, conn.getLoginTimings().getElapsed(
+                LoginTimings.LOGIN_COMPLETE));
+        }
+        finally {
+            conn.close();
+            serverSocket.close();
+        }
+        server.join(5000);
+        assertNull(server.failure);
+        assertTrue(server.sessionReplied);
+    }
+
+    /**
+     * If a pipelined login fails after sending its session request but
+     * before waiting for the reply, the reply's collector is cancelled
+     * rather than left collecting for the life of the connection.
+     */
+    public void testPipelinedFailureCancelsSession() throws Exception {
+        ServerSocket serverSocket = new ServerSocket(0);
+        ScriptedServer server = new ScriptedServer(serverSocket, null);
+        server.presenceExpected = false;
+        server.start();
+        XMPPConnection conn = new XMPPConnection("127.0.0.1",
+            serverSocket.getLocalPort(), "localhost");
+        try {
+            conn.setPipelinedLogin(true);
+            // Fail to make the available presence; close() still needs
+            // its unavailable one.
+            conn.setPresenceFactory(new PresenceFactory() {
+                public Presence create(Presence.Type type) {
+                    if (type == Presence.Type.AVAILABLE) {
+                        throw new IllegalStateException("No presence today");
+                    }
+                    return new Presence(type);
+                }
+                public Presence create(Presence.Type type, String status,
+                        int priority, Presence.Mode mode) {
+                    return create(type);
+                }
+            });
+            try {
+                conn.login("user", "secret", "Home");
+                fail("Login succeeded without sending presence");
+            }
+            catch (IllegalStateException ex) {
+                assertEquals("No presence today", ex.getMessage());
+            }
+            assertFalse(conn.isAuthenticated());
+            assertNull(conn.saslAuthentication.pendingSessionCollector);
+            synchronized (conn.packetReader.collectors) {
+                for (Iterator it = conn.packetReader.collectors.iterator(); it.hasNext(); ) {
+                    PacketCollector collector = (PacketCollector)it.next();
+                    if (collector != null) {
+                        assertFalse(collector.getPacketFilter() instanceof PacketIDFilter);
+                    }
+                }
+            }
+        }
+        finally {
+            conn.close();
+            serverSocket.close();
+        }
+        server.join(5000);
+        assertNull(server.failure);
+        assertFalse(server.sessionReplied);
+    }
+
+    /**
+     * Plays the server's side of a SASL PLAIN login with resource binding
+     * and a session. The reply to the session request is held back until
+     * the roster request and available presence have arrived.
+     */
+    private static class ScriptedServer extends Thread {
+
+        private ServerSocket serverSocket;
+        private String sessionError;
+        private Reader in;
+        private OutputStream out;
+        private StringBuffer received = new StringBuffer();
+        private int pos = 0;
+
+        Exception failure = null;
+        boolean sessionReplied = false;
+        // If false, the client isn't expected to get as far as presence,
+        // and the session request is never answered.
+        boolean presenceExpected = true;
+
+        ScriptedServer(ServerSocket serverSocket, String sessionError) {
+            this.serverSocket = serverSocket;
+            this.sessionError = sessionError;
+            setDaemon(true);
+        }
+
+        public void run() {
+            try {
+                Socket socket = serverSocket.accept();
+                in = new InputStreamReader(socket.getInputStream(), "UTF-8");
+                out = socket.getOutputStream();
+
+                waitFor("<stream:stream");
+                send(STREAM + "<stream:features>"
+                    + "<mechanisms xmlns='urn:ietf:params:xml:ns:xmpp-sasl'>"
+                    + "<mechanism>PLAIN</mechanism></mechanisms>"
+                    + "</stream:features>");
+                waitFor("</auth>");
+                send("<success xmlns='urn:ietf:params:xml:ns:xmpp-sasl'/>");
+
+                waitFor("<stream:stream");
+                send(STREAM + "<stream:features>"
+                    + "<bind xmlns='urn:ietf:params:xml:ns:xmpp-bind'/>"
+                    + "<session xmlns='urn:ietf:params:xml:ns:xmpp-session'/>"
+                    + "</stream:features>");
+                String bindID = waitForIQ("urn:ietf:params:xml:ns:xmpp-bind");
+                send("<iq type='result' id='" + bindID + "'>"
+                    + "<bind xmlns='urn:ietf:params:xml:ns:xmpp-bind'>"
+                    + "<jid>user@localhost/Home</jid></bind></iq>");
+
+                // The session request, roster request and presence, in that
+                // order, with nothing answered yet.
+                String sessionID = waitForIQ("urn:ietf:params:xml:ns:xmpp-session");
+                String rosterID = waitForIQ("jabber:iq:roster");
+                if (!presenceExpected) {
+                    waitFor("</stream:stream>");
+                    socket.close();
+                    return;
+                }
+                waitFor("<presence");
+
+                // Both replies go in one write, since the client may close
+                // the connection as soon as it sees the first.
+                String session;
+                if (sessionError == null) {
+                    session = "<iq type='result' id='" + sessionID + "'/>";
+                }
+                else {
+                    session = "<iq type='error' id='" + sessionID + "'>"
+                        + "<session xmlns='urn:ietf:params:xml:ns:xmpp-session'/>"
+                        + sessionError + "</iq>";
+                }
+                send(session + "<iq type='result' id='" + rosterID + "'>"
+                    + "<query xmlns='jabber:iq:roster'/></iq>");
+                sessionReplied = true;
+
+                waitFor("</stream:stream>");
+                socket.close();
+            }
+            catch (Exception ex) {
+                failure = ex;
+            }
+        }
+
+        private void send(String text) throws Exception {
+            out.write(text.getBytes("UTF-8"));
+            out.flush();
+        }
+
+        /**
+         * Reads until the given text has been received, and moves past it.
+         */
+        private void waitFor(String text) throws Exception {
+            char[] buf = new char[1024];
+            int found;
+            while ((found = received.toString().indexOf(text, pos)) < 0) {
+                int count = in.read(buf);
+                if (count < 0) {
+                    throw new Exception("Stream ended waiting for " + text);
+                }
+                received.append(buf, 0, count);
+            }
+            pos = found + text.length();
+        }
+
+        /**
+         * Reads until a whole IQ in the given namespace has been received,
+         * and returns its packet ID.
+         */
+        private String waitForIQ(String namespace) throws Exception {
+            waitFor("xmlns=\"" + namespace + "\"");
+            String text = received.toString();
+            int start = text.lastIndexOf("<iq ", pos);
+            waitFor("</iq>");
+            text = received.toString();
+            int idStart = text.indexOf(" id=\"", start) + 5;
+            return text.substring(idStart, text.indexOf('"', idStart));
+        }
+    }
+}
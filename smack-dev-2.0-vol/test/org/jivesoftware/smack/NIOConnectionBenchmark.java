@@ -0,0 +1,224 @@
+/**
+ * $RCSfile$
+ * $Revision$
+ * $Date$
+ *
+ * Copyright (C) 2002-2003 Jive Software. All rights reserved.
+ * ====================================================================
+ * The Jive Software License (based on Apache Software License, Version 1.1)
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in
+ *    the documentation and/or other materials provided with the
+ *    distribution.
+ *
+ * 3. The end-user documentation included with the redistribution,
+ *    if any, must include the following acknowledgment:
+ *       "This product includes software developed by
+ *        Jive Software (http://www.jivesoftware.com)."
+ *    Alternately, this acknowledgment may appear in the software itself,
+ *    if and wherever such third-party acknowledgments normally appear.
+ *
+ * 4. The names "Smack" and "Jive Software" must not be used to
+ *    endorse or promote products derived from this software without
+ *    prior written permission. For written permission, please
+ *    contact webmaster@jivesoftware.com.
+ *
+ * 5. Products derived from this software may not be called "Smack",
+ *    nor may "Smack" appear in their name, without prior written
+ *    permission of Jive Software.
+ *
+ * THIS SOFTWARE IS PROVIDED ``AS IS'' AND ANY EXPRESSED OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ * OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED.  IN NO EVENT SHALL JIVE SOFTWARE OR
+ * ITS CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+ * LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF
+ * USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT
+ * OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF
+ * SUCH DAMAGE.
+ * ====================================================================
+ */
+
+package org.jivesoftware.smack;
+
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Compares the cost of holding many connections open with the blocking
+ * XMPPConnection and with NIOXMPPConnection. This is not a unit test; run it
+ * by hand:
+ *
+ * <pre>java org.jivesoftware.smack.NIOConnectionBenchmark [connections]</pre>
+ *
+ * A stub server on the loopback interface opens a stream for each connection
+ * and discards whatever the client sends. For each mode the benchmark reports
+ * the time taken to open the connections, the heap in use afterwards, and the
+ * number of live Smack threads.
+ */
+public class NIOConnectionBenchmark {
+
+    public static void main(String[] args) throws Exception {
+        int count = 500;
+        if (args.length > 0) {
+            count = Integer.parseInt(args[0]);
+        }
+        StubServer server = new StubServer();
+        server.start();
+
+        runBlocking(server.getPort(), count);
+        runNIO(server.getPort(), count);
+
+        server.shutdown();
+        System.exit(0);
+    }
+
+    private static void runBlocking(int port, int count) throws Exception {
+        long baseline = usedMemory();
+        long start = System.currentTimeMillis();
+        List connections = new ArrayList();
+        for (int i=0; i<count; i++) {
+            connections.add(new XMPPConnection("127.0.0.1", port, "localhost"));
+        }
+        report("blocking", count, System.currentTimeMillis() - start, baseline);
+        closeAll(connections);
+    }
+
+    private static void runNIO(int port, int count) throws Exception {
+        NIOConnectionEngine engine = NIOConnectionEngine.getDefault();
+        long baseline = usedMemory();
+        long start = System.currentTimeMillis();
+        List connections = new ArrayList();
+        for (int i=0; i<count; i++) {
+            connections.add(new NIOXMPPConnection("127.0.0.1", port, "localhost", engine));
+        }
+        report("nio (" + engine.getSelectorCount() + " selectors)", count,
+                System.currentTimeMillis() - start, baseline);
+        System.out.println("    engine connections: " + engine.getConnectionCount());
+        closeAll(connections);
+    }
+
+    private static void closeAll(final List connections) throws InterruptedException {
+        // Each close pauses briefly, so close them in parallel.
+        Thread[] closers = new Thread[8];
+        for (int t=0; t<closers.length; t++) {
+            final int offset = t;
+            closers[t] = new Thread() {
+                public void run() {
+                    for (int i=offset; i<connections.size(); i+=8) {
+                        ((XMPPConnection)connections.get(i)).close();
+                    }
+                }
+            };
+            closers[t].start();
+        }
+        for (int t=0; t<closers.length; t++) {
+            closers[t].join();
+        }
+    }
+
+    private static void report(String mode, int count, long millis, long baseline) {
+        System.out.println(mode + ": " + count + " connections in " + millis + "ms");
+        System.out.println("    heap: " + ((usedMemory() - baseline) / 1024) + "KB, "
+                + ((usedMemory() - baseline) / count) + " bytes per connection");
+        System.out.println("    smack threads: " + countSmackThreads()
+                + ", all threads: " + Thread.activeCount());
+    }
+
+    private static long usedMemory() {
+        Runtime runtime = Runtime.getRuntime();
+        for (int i=0; i<3; i++) {
+            System.gc();
+            try { Thread.sleep(100); } catch (InterruptedException ie) { }
+        }
+        return runtime.totalMemory() - runtime.freeMemory();
+    }
+
+    private static int countSmackThreads() {
+        Thread[] threads = new Thread[Thread.activeCount() * 2];
+        int n = Thread.enumerate(threads);
+        int count = 0;
+        for (int i=0; i<n; i++) {
+            if (threads[i].getName().startsWith("Smack")) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    /**
+     * Accepts connections, opens an old-style (non-XMPP 1.0) stream on each, and
+     * throws away whatever the client sends.
+     */
+    private static class StubServer extends Thread {
+
+        private static final String STREAM_HEADER = "<?xml version='1.0'?>"
+                + "<stream:stream xmlns='jabber:client' "
+                + "xmlns:stream='http://etherx.jabber.org/streams' "
+                + "from='localhost' id='";
+
+        private ServerSocket serverSocket;
+        private int nextID = 0;
+
+        public StubServer() throws Exception {
+            serverSocket = new ServerSocket(0, 1000);
+            setName("Stub Server");
+            setDaemon(true);
+        }
+
+        public int getPort() {
+            return serverSocket.getLocalPort();
+        }
+
+        public void run() {
+            while (true) {
+                final Socket socket;
+                try {
+                    socket = serverSocket.accept();
+                }
+                catch (Exception e) {
+                    return;
+                }
+                final String id = "stub" + (nextID++);
+                Thread handler = new Thread() {
+                    public void run() {
+                        try {
+                            OutputStream out = socket.getOutputStream();
+                            out.write((STREAM_HEADER + id + "'>").getBytes("UTF-8"));
+                            out.flush();
+                            InputStream in = socket.getInputStream();
+                            byte[] buf = new byte[1024];
+                            while (in.read(buf) >= 0) {
+                            }
+                        }
+                        catch (Exception e) {
+                        }
+                        try { socket.close(); } catch (Exception e) { }
+                    }
+                };
+                handler.setName("Stub Server Connection");
+                handler.setDaemon(true);
+                handler.start();
+            }
+        }
+
+        public void shutdown() {
+            try { serverSocket.close(); } catch (Exception e) { }
+        }
+    }
+}
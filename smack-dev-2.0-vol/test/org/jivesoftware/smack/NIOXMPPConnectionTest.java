@@ -0,0 +1,210 @@
+/**
+ * $RCSfile$
+ * $Revision$
+ * $Date$
+ *
+ * Copyright (C) 2002-2003 Jive Software. All rights reserved.
+ * ====================================================================
+ * The Jive Software License (based on Apache Software License, Version 1.1)
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in
+ *    the documentation and/or other materials provided with the
+ *    distribution.
+ *
+ * 3. The end-user documentation included with the redistribution,
+ *    if any, must include the following acknowledgment:
+ *       "This product includes software developed by
+ *        Jive Software (http://www.jivesoftware.com)."
+ *    Alternately, this acknowledgment may appear in the software itself,
+ *    if and wherever such third-party acknowledgments normally appear.
+ *
+ * 4. The names "Smack" and "Jive Software" must not be used to
+ *    endorse or promote products derived from this software without
+ *    prior written permission. For written permission, please
+ *    contact webmaster@jivesoftware.com.
+ *
+ * 5. Products derived from this software may not be called "Smack",
+ *    nor may "Smack" appear in their name, without prior written
+ *    permission of Jive Software.
+ *
+ * THIS SOFTWARE IS PROVIDED ``AS IS'' AND ANY EXPRESSED OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ * OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED.  IN NO EVENT SHALL JIVE SOFTWARE OR
+ * ITS CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+ * LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF
+ * USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT
+ * OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF
+ * SUCH DAMAGE.
+ * ====================================================================
+ */
+
+
+package org.jivesoftware.smack;
+
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.channels.SocketChannel;
+
+import junit.framework.TestCase;
+
+/**
+ * Tests NIOXMPPConnection's handling of a server which offers TLS, and the
+ * limit on its output buffer, against stub servers on the loopback interface.
+ */
+public class NIOXMPPConnectionTest extends TestCase {
+
+    private static final String TLS_STREAM = "<?xml version='1.0'?>"
+        + "<stream:stream xmlns='jabber:client'"
+        + " xmlns:stream='http://etherx.jabber.org/streams' id='tls1'"
+        + " from='localhost' version='1.0'><stream:features>"
+        + "<starttls xmlns='urn:ietf:params:xml:ns:xmpp-tls'/>"
+        + "<mechanisms xmlns='urn:ietf:params:xml:ns:xmpp-sasl'>"
+        + "<mechanism>PLAIN</mechanism></mechanisms></stream:features>";
+
+    private NIOConnectionEngine engine;
+    private ServerSocket serverSocket;
+
+    protected void setUp() throws Exception {
+        engine = new NIOConnectionEngine(1);
+        serverSocket = new ServerSocket(0);
+    }
+
+    protected void tearDown() throws Exception {
+        serverSocket.close();
+        engine.shutdown();
+    }
+
+    /**
+     * A server which offers TLS is refused, rather than being talked to in
+     * the clear.
+     */
+    public void testTLSOfferedFails() throws Exception {
+        serveStream(TLS_STREAM);
+        long start = System.currentTimeMillis();
+        try {
+            new NIOXMPPConnection("127.0.0.1", serverSocket.getLocalPort(),
+                "localhost", engine);
+            fail("Connected in the clear to a server offering TLS");
+        }
+        catch (XMPPException ex) {
+            assertTrue(ex.getMessage().indexOf("TLS") >= 0);
+        }
+        // It fails at once, not after the startup timeout.
+        assertTrue(System.currentTimeMillis() - start
+            < SmackConfiguration.getPacketReplyTimeout());
+    }
+
+    /**
+     * With plaintext allowed, the same server is accepted.
+     */
+    public void testTLSOfferedPlaintextAllowed() throws Exception {
+        engine.setPlaintextAllowed(true);
+        serveStream(TLS_STREAM);
+        XMPPConnection conn = new NIOXMPPConnection("127.0.0.1",
+            serverSocket.getLocalPort(), "localhost", engine);
+        try {
+            assertTrue(conn.isConnected());
+            assertFalse(conn.isUsingTLS());
+        }
+        finally {
+            conn.close();
+        }
+    }
+
+    /**
+     * A writer whose peer isn't reading blocks once the output buffer is
+     * full, and carries on when the peer reads again.
+     */
+    public void testOutputLimit() throws Exception {
+        SocketChannel channel = SocketChannel.open();
+        channel.connect(new InetSocketAddress("127.0.0.1",
+            serverSocket.getLocalPort()));
+        final Socket peer = serverSocket.accept();
+        final NIOConnectionEngine.ChannelWriter writer =
+            engine.register(channel).getWriter();
+
+        // Enough to fill the socket buffers as well as the writer's.
+        final int total = 32 * NIOConnectionEngine.MAX_PENDING_OUTPUT;
+        final char[] chunk = new char[8192];
+        java.util.Arrays.fill(chunk, 'x');
+        final Exception[] failure = { null };
+        Thread writing = new Thread() {
+            public void run() {
+                try {
+                    for (int sent=0; sent<total; sent+=chunk.length) {
+                        writer.write(chunk, 0, chunk.length);
+                        writer.flush();
+                    }
+                }
+                catch (Exception ex) {
+                    failure[0] = ex;
+                }
+            }
+        };
+        writing.start();
+        writing.join(1000);
+        assertNull(failure[0]);
+        assertTrue("Writer did not block", writing.isAlive());
+        synchronized (writer) {
+            assertTrue(writer.output.capacity()
+                <= NIOConnectionEngine.MAX_PENDING_OUTPUT);
+        }
+
+        // Now read everything; the writer should finish.
+        InputStream in = peer.getInputStream();
+        byte[] buf = new byte[65536];
+        int received = 0;
+        while (received < total) {
+            int count = in.read(buf);
+            assertTrue(count > 0);
+            received += count;
+        }
+        writing.join(5000);
+        assertFalse(writing.isAlive());
+        assertNull(failure[0]);
+        assertEquals(total, received);
+        channel.close();
+        peer.close();
+    }
+
+    /**
+     * Accept one connection, send it the given text, and discard whatever
+     * it sends back.
+     */
+    private void serveStream(final String text) {
+        Thread server = new Thread() {
+            public void run() {
+                try {
+                    Socket socket = serverSocket.accept();
+                    OutputStream out = socket.getOutputStream();
+                    out.write(text.getBytes("UTF-8"));
+                    out.flush();
+                    InputStream in = socket.getInputStream();
+                    byte[] buf = new byte[1024];
+                    while (in.read(buf) >= 0) {
+                    }
+                    socket.close();
+                }
+                catch (Exception e) {
+                }
+            }
+        };
+        server.setDaemon(true);
+        server.start();
+    }
+}
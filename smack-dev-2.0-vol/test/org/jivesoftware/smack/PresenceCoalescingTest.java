@@ -0,0 +1,205 @@
+/**
+ * $RCSfile$
+ * $Revision$
+ * $Date$
+ *
+ * Copyright (C) 2002-2003 Jive Software. All rights reserved.
+ * ====================================================================
+ * The Jive Software License (based on Apache Software License, Version 1.1)
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in
+ *    the documentation and/or other materials provided with the
+ *    distribution.
+ *
+ * 3. The end-user documentation included with the redistribution,
+ *    if any, must include the following acknowledgment:
+ *       "This product includes software developed by
+ *        Jive Software (http://www.jivesoftware.com)."
+ *    Alternately, this acknowledgment may appear in the software itself,
+ *    if and wherever such third-party acknowledgments normally appear.
+ *
+ * 4. The names "Smack" and "Jive Software" must not be used to
+ *    endorse or promote products derived from this software without
+ *    prior written permission. For written permission, please
+ *    contact webmaster@jivesoftware.com.
+ *
+ * 5. Products derived from this software may not be called "Smack",
+ *    nor may "Smack" appear in their name, without prior written
+ *    permission of Jive Software.
+ *
+ * THIS SOFTWARE IS PROVIDED ``AS IS'' AND ANY EXPRESSED OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ * OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED.  IN NO EVENT SHALL JIVE SOFTWARE OR
+ * ITS CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+ * LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF
+ * USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT
+ * OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF
+ * SUCH DAMAGE.
+ * ====================================================================
+ */
+
+
+package org.jivesoftware.smack;
+
+import java.io.StringReader;
+import java.io.StringWriter;
+import java.util.ArrayList;
+import java.util.List;
+
+import junit.framework.TestCase;
+
+import org.jivesoftware.smack.filter.*;
+import org.jivesoftware.smack.packet.Message;
+import org.jivesoftware.smack.packet.Packet;
+import org.jivesoftware.smack.packet.Presence;
+import org.jivesoftware.smack.util.Metrics;
+import org.jivesoftware.smack.util.TrafficLog;
+import org.jivesoftware.smack.util.TrafficRecorder;
+
+/**
+ * Tests presence coalescing, by replaying a flood of presence to a listener
+ * which is held up until the whole flood has been queued for it.
+ */
+public class PresenceCoalescingTest extends TestCase {
+
+    private static final String SERVER_STREAM =
+        "<?xml version='1.0'?><stream:stream xmlns='jabber:client'"
+        + " xmlns:stream='http://etherx.jabber.org/streams' id='abc' from='example.com'"
+        + " version='1.0'><stream:features><mechanisms"
+        + " xmlns='urn:ietf:params:xml:ns:xmpp-sasl'><mechanism>PLAIN</mechanism>"
+        + "</mechanisms></stream:features>";
+
+    /**
+     * The flood: a gate message which holds up the listener, then presence
+     * from a, b and c mixed with a message from a and a subscription
+     * request from c, then an end message.
+     */
+    private static final String[] FLOOD = {
+        "<message from='gate@example.com' id='gate'><body>gate</body></message>",
+        "<presence from='a@example.com/x' id='a1'/>",
+        "<presence from='a@example.com/x' id='a2'><show>away</show></presence>",
+        "<message from='a@example.com/x' id='ma'><body>hi</body></message>",
+        "<presence from='a@example.com/x' id='a3'/>",
+        "<presence from='c@example.com' id='csub' type='subscribe'/>",
+        "<presence from='a@example.com/x' id='a4' type='unavailable'/>",
+        "<presence from='b@example.com/y' id='b1'/>",
+        "<presence from='c@example.com' id='cavail'/>",
+        "<presence from='b@example.com/y' id='b2'/>",
+        "<message from='gate@example.com' id='end'><body>end</body></message>",
+    };
+
+    /**
+     * With coalescing on, the listener sees only the latest of each run of
+     * presence from a sender, and everything else in order.
+     */
+    public void testCoalescing() throws Exception {
+        Metrics.Counter coalesced = Metrics.getCounter("presence.coalesced");
+        long before = coalesced.getCount();
+        List ids = replayFlood(true);
+        assertEquals("[gate, a2, ma, csub, a4, cavail, b2, end]", ids.toString());
+        // The roster's listener may have coalesced some too.
+        assertTrue(coalesced.getCount() - before >= 3);
+    }
+
+    /**
+     * With coalescing off, the listener sees every packet.
+     */
+    public void testNoCoalescing() throws Exception {
+        List ids = replayFlood(false);
+        assertEquals("[gate, a1, a2, ma, a3, csub, a4, b1, cavail, b2, end]",
+            ids.toString());
+    }
+
+    /**
+     * Replays the flood, and returns the IDs of the packets the listener
+     * was handed, in order.
+     */
+    private List replayFlood(boolean coalescing) throws Exception {
+        StringWriter out = new StringWriter();
+        TrafficRecorder recorder = new TrafficRecorder(out, "example.com");
+        record(recorder, TrafficRecorder.OUTBOUND, "<stream:stream to='example.com'>");
+        record(recorder, TrafficRecorder.INBOUND, SERVER_STREAM);
+        record(recorder, TrafficRecorder.INBOUND,
+            "<success xmlns='urn:ietf:params:xml:ns:xmpp-sasl'/>");
+        record(recorder, TrafficRecorder.INBOUND, SERVER_STREAM);
+        record(recorder, TrafficRecorder.INBOUND,
+            "<iq type='result' id='bind_1'><bind xmlns='urn:ietf:params:xml:ns:xmpp-bind'>"
+            + "<jid>me@example.com/home</jid></bind></iq>");
+        recorder.recordUser("me@example.com/home");
+        for (int i=0; i<FLOOD.length; i++) {
+            record(recorder, TrafficRecorder.INBOUND, FLOOD[i]);
+        }
+        recorder.close();
+        // The stream closes when the replay finishes, and queued packets are
+        // dropped then. So add a last stanza due a minute later (the replay
+        // runs in real time), to keep the stream open until the test is done.
+        String late = "<presence from='late@example.com'/>";
+        out.write("I 60000 " + late.length() + "\n" + late + "\n");
+
+        ReplayConnection conn = new ReplayConnection(
+            new TrafficLog(new StringReader(out.toString())), 1);
+        try {
+            conn.setPresenceCoalescing(coalescing);
+            final List ids = new ArrayList();
+            final Object gate = new Object();
+            final boolean[] open = { false };
+            conn.addPacketListener(new PacketListener() {
+                public void processPacket(Packet packet) {
+                    synchronized (gate) {
+                        while (!open[0]) {
+                            try {
+                                gate.wait();
+                            }
+                            catch (InterruptedException ie) {
+                                return;
+                            }
+                        }
+                    }
+                    synchronized (ids) {
+                        ids.add(packet.getPacketID());
+                        ids.notifyAll();
+                    }
+                }
+            }, new OrFilter(new PacketTypeFilter(Message.class),
+                new PacketTypeFilter(Presence.class)));
+            // Made after the listener, so the listener's queue has every
+            // packet by the time this sees the end.
+            PacketCollector end = conn.createPacketCollector(
+                new PacketIDFilter("end"));
+
+            conn.startReplay();
+            assertNotNull(end.nextResult(5000));
+            synchronized (gate) {
+                open[0] = true;
+                gate.notifyAll();
+            }
+
+            synchronized (ids) {
+                long deadline = System.currentTimeMillis() + 5000;
+                while (!ids.contains("end") && System.currentTimeMillis() < deadline) {
+                    ids.wait(100);
+                }
+                return new ArrayList(ids);
+            }
+        }
+        finally {
+            conn.close();
+        }
+    }
+
+    private static void record(TrafficRecorder recorder, char type, String text) {
+        recorder.record(type, text, 0, text.length());
+    }
+}
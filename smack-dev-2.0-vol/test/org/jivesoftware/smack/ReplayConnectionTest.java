@@ -0,0 +1,221 @@
+/**
+ * $RCSfile$
+ * $Revision$
+ * $Date$
+ *
+ * Copyright (C) 2002-2003 Jive Software. All rights reserved.
+ * ====================================================================
+ * The Jive Software License (based on Apache Software License, Version 1.1)
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in
+ *    the documentation and/or other materials provided with the
+ *    distribution.
+ *
+ * 3. The end-user documentation included with the redistribution,
+ *    if any, must include the following acknowledgment:
+ *       "This product includes software developed by
+ *        Jive Software (http://www.jivesoftware.com)."
+ *    Alternately, this acknowledgment may appear in the software itself,
+ *    if and wherever such third-party acknowledgments normally appear.
+ *
+ * 4. The names "Smack" and "Jive Software" must not be used to
+ *    endorse or promote products derived from this software without
+ *    prior written permission. For written permission, please
+ *    contact webmaster@jivesoftware.com.
+ *
+ * 5. Products derived from this software may not be called "Smack",
+ *    nor may "Smack" appear in their name, without prior written
+ *    permission of Jive Software.
+ *
+ * THIS SOFTWARE IS PROVIDED ``AS IS'' AND ANY EXPRESSED OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ * OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED.  IN NO EVENT SHALL JIVE SOFTWARE OR
+ * ITS CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+ * LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF
+ * USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT
+ * OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF
+ * SUCH DAMAGE.
+ * ====================================================================
+ */
+
+package org.jivesoftware.smack;
+
+import java.io.*;
+import java.util.ArrayList;
+import java.util.List;
+
+import junit.framework.TestCase;
+
+import org.jivesoftware.smack.filter.PacketTypeFilter;
+import org.jivesoftware.smack.packet.Message;
+import org.jivesoftware.smack.packet.Packet;
+import org.jivesoftware.smack.util.TrafficLog;
+import org.jivesoftware.smack.util.TrafficRecorder;
+
+/**
+ * A test case for recording traffic and replaying it with ReplayConnection.
+ */
+public class ReplayConnectionTest extends TestCase {
+
+    private static final String SERVER_STREAM =
+        "<?xml version='1.0'?><stream:stream xmlns='jabber:client'"
+        + " xmlns:stream='http://etherx.jabber.org/streams' id='abc' from='example.com'"
+        + " version='1.0'><stream:features><mechanisms"
+        + " xmlns='urn:ietf:params:xml:ns:xmpp-sasl'><mechanism>PLAIN</mechanism>"
+        + "</mechanisms></stream:features>";
+
+    /**
+     * Record some traffic through the wrapped reader and writer, and check
+     * that the log reads back the same.
+     */
+    public void testRecordAndRead() throws Exception {
+        StringWriter out = new StringWriter();
+        TrafficRecorder recorder = new TrafficRecorder(out, "example.com");
+
+        Reader reader = recorder.wrapReader(new StringReader("<a>\n\u00e9</a>"));
+        char[] buf = new char[4];
+        StringBuffer read = new StringBuffer();
+        int count;
+        while ((count = reader.read(buf, 0, buf.length)) > 0) {
+            read.append(buf, 0, count);
+        }
+        Writer writer = recorder.wrapWriter(new StringWriter());
+        writer.write("<b/>");
+        recorder.recordUser("me@example.com/home");
+        recorder.close();
+
+        TrafficLog log = new TrafficLog(new StringReader(out.toString()));
+        assertEquals("example.com", log.getServiceName());
+        StringBuffer inbound = new StringBuffer();
+        String outbound = null;
+        String user = null;
+        TrafficLog.Record record;
+        while ((record = log.next()) != null) {
+            if (record.type == TrafficRecorder.INBOUND) {
+                inbound.append(record.text);
+            }
+            else if (record.type == TrafficRecorder.OUTBOUND) {
+                outbound = record.text;
+            }
+            else if (record.type == TrafficRecorder.USER) {
+                user = record.text;
+            }
+        }
+        assertEquals(read.toString(), inbound.toString());
+        assertEquals("<b/>", outbound);
+        assertEquals("me@example.com/home", user);
+    }
+
+    /**
+     * A truncated final record is treated as the end of the log.
+     */
+    public void testTruncatedLog() throws Exception {
+        String text = "smack-traffic 1 example.com 0\nI 0 3\n<a>\nI 5 10\n<b";
+        TrafficLog log = new TrafficLog(new StringReader(text));
+        assertEquals("<a>", log.next().text);
+        assertNull(log.next());
+    }
+
+    public void testBadHeader() throws Exception {
+        try {
+            new TrafficLog(new StringReader("hello\n"));
+            fail("Header not rejected");
+        }
+        catch (IOException ioe) {
+            // Expected.
+        }
+    }
+
+    /**
+     * Replay a log of a SASL login followed by messages split across
+     * records. Negotiation should be skipped, the user taken from the log, and
+     * every message delivered.
+     */
+    public void testReplay() throws Exception {
+        StringWriter out = new StringWriter();
+        TrafficRecorder recorder = new TrafficRecorder(out, "example.com");
+        record(recorder, TrafficRecorder.OUTBOUND, "<stream:stream to='example.com'>");
+        record(recorder, TrafficRecorder.INBOUND, SERVER_STREAM);
+        record(recorder, TrafficRecorder.INBOUND,
+            "<success xmlns='urn:ietf:params:xml:ns:xmpp-sasl'/>");
+        record(recorder, TrafficRecorder.INBOUND, SERVER_STREAM);
+        record(recorder, TrafficRecorder.INBOUND,
+            "<iq type='result' id='bind_1'><bind xmlns='urn:ietf:params:xml:ns:xmpp-bind'>"
+            + "<jid>me@example.com/home</jid></bind></iq>");
+        recorder.recordUser("me@example.com/home");
+        for (int i=0; i<5; i++) {
+            String msg = "<message from='you@example.com/x' to='me@example.com/home'>"
+                + "<body>hello " + i + "</body></message>";
+            // Split each message across two reads.
+            record(recorder, TrafficRecorder.INBOUND, msg.substring(0, 20));
+            record(recorder, TrafficRecorder.INBOUND, msg.substring(20));
+        }
+        record(recorder, TrafficRecorder.INBOUND, "</stream:stream>");
+        recorder.close();
+
+        ReplayConnection conn = new ReplayConnection(
+            new TrafficLog(new StringReader(out.toString())), 0);
+        try {
+            assertEquals("me@example.com/home", conn.getUser());
+            assertTrue(conn.isAuthenticated());
+            assertFalse(conn.isAnonymous());
+
+            final List bodies = new ArrayList();
+            conn.addPacketListener(new PacketListener() {
+                public void processPacket(Packet packet) {
+                    synchronized (bodies) {
+                        bodies.add(((Message)packet).getBody());
+                        bodies.notifyAll();
+                    }
+                }
+            }, new PacketTypeFilter(Message.class));
+
+            conn.startReplay();
+            assertTrue(conn.waitForFinish(5000));
+            // The bind result and the five messages.
+            assertEquals(6, conn.getReplayedCount());
+
+            synchronized (bodies) {
+                long end = System.currentTimeMillis() + 5000;
+                while (bodies.size() < 5 && System.currentTimeMillis() < end) {
+                    bodies.wait(100);
+                }
+                assertEquals(5, bodies.size());
+                assertEquals("hello 0", bodies.get(0));
+                assertEquals("hello 4", bodies.get(4));
+            }
+
+            conn.sendPacket(new Message("you@example.com"));
+            Thread.sleep(200);
+            assertTrue(conn.getDiscardedCount() > 0);
+        }
+        finally {
+            conn.close();
+        }
+    }
+
+    public void testIsStanza() {
+        assertTrue(ReplayConnection.isStanza("<message/>"));
+        assertTrue(ReplayConnection.isStanza("<iq type='get'>"));
+        assertTrue(ReplayConnection.isStanza("<presence\nfrom='x'/>"));
+        assertFalse(ReplayConnection.isStanza("<stream:features>"));
+        assertFalse(ReplayConnection.isStanza("<success xmlns='x'/>"));
+        assertFalse(ReplayConnection.isStanza("<messages/>"));
+    }
+
+    private static void record(TrafficRecorder recorder, char type, String text) {
+        recorder.record(type, text, 0, text.length());
+    }
+}
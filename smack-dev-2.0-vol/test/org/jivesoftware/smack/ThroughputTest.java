@@ -0,0 +1,259 @@
+/**
+ * $RCSfile$
+ * $Revision$
+ * $Date$
+ *
+ * Copyright (C) 2002-2003 Jive Software. All rights reserved.
+ * ====================================================================
+ * The Jive Software License (based on Apache Software License, Version 1.1)
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in
+ *    the documentation and/or other materials provided with the
+ *    distribution.
+ *
+ * 3. The end-user documentation included with the redistribution,
+ *    if any, must include the following acknowledgment:
+ *       "This product includes software developed by
+ *        Jive Software (http://www.jivesoftware.com)."
+ *    Alternately, this acknowledgment may appear in the software itself,
+ *    if and wherever such third-party acknowledgments normally appear.
+ *
+ * 4. The names "Smack" and "Jive Software" must not be used to
+ *    endorse or promote products derived from this software without
+ *    prior written permission. For written permission, please
+ *    contact webmaster@jivesoftware.com.
+ *
+ * 5. Products derived from this software may not be called "Smack",
+ *    nor may "Smack" appear in their name, without prior written
+ *    permission of Jive Software.
+ *
+ * THIS SOFTWARE IS PROVIDED ``AS IS'' AND ANY EXPRESSED OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ * OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED.  IN NO EVENT SHALL JIVE SOFTWARE OR
+ * ITS CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+ * LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF
+ * USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT
+ * OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF
+ * SUCH DAMAGE.
+ * ====================================================================
+ */
+
+package org.jivesoftware.smack;
+
+import java.util.Arrays;
+
+import org.jivesoftware.smack.filter.*;
+import org.jivesoftware.smack.packet.*;
+import org.jivesoftware.smack.test.SmackTestCase;
+import org.jivesoftware.smackx.muc.MultiUserChat;
+import org.jivesoftware.smackx.packet.Version;
+
+/**
+ * Measures message, IQ and groupchat throughput and latency through Smack. The test
+ * always runs against a {@link org.jivesoftware.smack.test.StandInServer} in this JVM,
+ * so the numbers measure the client (and the loopback socket), not a real server.
+ * Results are printed to standard output; the assertions only check that nothing was
+ * lost.<p>
+ *
+ * Latencies are measured with the system clock, so they have its resolution (often
+ * 10 ms on Windows).
+ */
+public class ThroughputTest extends SmackTestCase {
+
+    private static final int MESSAGE_COUNT = 2000;
+    private static final int IQ_COUNT = 500;
+    private static final int MUC_MESSAGE_COUNT = 500;
+
+    public ThroughputTest(String arg0) {
+        super(arg0);
+    }
+
+    /**
+     * Sends a burst of chat messages from one connection to another.
+     */
+    public void testMessageThroughput() {
+        try {
+            final long[] latencies = new long[MESSAGE_COUNT];
+            final int[] received = new int[1];
+            getConnection(1).addPacketListener(new PacketListener() {
+                public void processPacket(Packet packet) {
+                    long now = System.currentTimeMillis();
+                    Message message = (Message)packet;
+                    synchronized (received) {
+                        if (received[0] < latencies.length) {
+                            latencies[received[0]] = now - Long.parseLong(message.getBody());
+                        }
+                        received[0]++;
+                        received.notifyAll();
+                    }
+                }
+            }, new AndFilter(new PacketTypeFilter(Message.class),
+                    new FromContainsFilter(getBareJID(0))));
+
+            long start = System.currentTimeMillis();
+            for (int i=0; i<MESSAGE_COUNT; i++) {
+                Message message = new Message(getFullJID(1), Message.Type.CHAT);
+                message.setBody(Long.toString(System.currentTimeMillis()));
+                getConnection(0).sendPacket(message);
+            }
+            waitFor(received, MESSAGE_COUNT, 30000);
+            long elapsed = System.currentTimeMillis() - start;
+
+            assertEquals("Some messages were lost", MESSAGE_COUNT, received[0]);
+            report("messages", MESSAGE_COUNT, elapsed, latencies);
+        }
+        catch (Exception e) {
+            e.printStackTrace();
+            fail(e.getMessage());
+        }
+    }
+
+    /**
+     * Makes IQ requests one at a time, each waiting for its reply, as RPC calls do.
+     */
+    public void testIQRoundTrip() {
+        try {
+            final XMPPConnection responder = getConnection(1);
+            responder.addPacketListener(new PacketListener() {
+                public void processPacket(Packet packet) {
+                    Version request = (Version)packet;
+                    if (request.getType() != IQ.Type.GET) {
+                        return;
+                    }
+                    Version reply = new Version();
+                    reply.setType(IQ.Type.RESULT);
+                    reply.setPacketID(request.getPacketID());
+                    reply.setTo(request.getFrom());
+                    reply.setName("ThroughputTest");
+                    responder.sendPacket(reply);
+                }
+            }, new PacketTypeFilter(Version.class));
+
+            long[] latencies = new long[IQ_COUNT];
+            long start = System.currentTimeMillis();
+            for (int i=0; i<IQ_COUNT; i++) {
+                Version request = new Version();
+                request.setTo(getFullJID(1));
+                PacketCollector collector = getConnection(0).createPacketCollector(
+                        new PacketIDFilter(request.getPacketID()));
+                long sent = System.currentTimeMillis();
+                getConnection(0).sendPacket(request);
+                IQ reply = (IQ)collector.nextResult(SmackConfiguration.getPacketReplyTimeout());
+                latencies[i] = System.currentTimeMillis() - sent;
+                collector.cancel();
+
+                assertNotNull("No reply to request " + i, reply);
+                assertEquals("Request " + i + " failed", IQ.Type.RESULT, reply.getType());
+            }
+            long elapsed = System.currentTimeMillis() - start;
+
+            report("IQ round trips", IQ_COUNT, elapsed, latencies);
+        }
+        catch (Exception e) {
+            e.printStackTrace();
+            fail(e.getMessage());
+        }
+    }
+
+    /**
+     * Sends groupchat messages to a room, and measures their delivery to every
+     * occupant.
+     */
+    public void testMUCFanout() {
+        try {
+            String room = "throughput@" + getMUCDomain();
+            int occupants = getMaxConnections();
+            final long[] latencies = new long[MUC_MESSAGE_COUNT * occupants];
+            final int[] received = new int[1];
+            PacketListener listener = new PacketListener() {
+                public void processPacket(Packet packet) {
+                    long now = System.currentTimeMillis();
+                    Message message = (Message)packet;
+                    if (message.getBody() == null) {
+                        return;
+                    }
+                    synchronized (received) {
+                        if (received[0] < latencies.length) {
+                            latencies[received[0]] = now - Long.parseLong(message.getBody());
+                        }
+                        received[0]++;
+                        received.notifyAll();
+                    }
+                }
+            };
+
+            MultiUserChat[] chats = new MultiUserChat[occupants];
+            for (int i=0; i<occupants; i++) {
+                chats[i] = new MultiUserChat(getConnection(i), room);
+                chats[i].join("user" + i);
+                getConnection(i).addPacketListener(listener, new AndFilter(
+                        new MessageTypeFilter(Message.Type.GROUP_CHAT),
+                        new FromContainsFilter(room + "/user0")));
+            }
+
+            long start = System.currentTimeMillis();
+            for (int i=0; i<MUC_MESSAGE_COUNT; i++) {
+                chats[0].sendMessage(Long.toString(System.currentTimeMillis()));
+            }
+            waitFor(received, latencies.length, 30000);
+            long elapsed = System.currentTimeMillis() - start;
+
+            assertEquals("Some groupchat messages were lost", latencies.length, received[0]);
+            report("groupchat deliveries to " + occupants + " occupants", latencies.length,
+                    elapsed, latencies);
+
+            for (int i=0; i<occupants; i++) {
+                chats[i].leave();
+            }
+        }
+        catch (Exception e) {
+            e.printStackTrace();
+            fail(e.getMessage());
+        }
+    }
+
+    /**
+     * Waits until the counter reaches the given value, or the timeout passes.
+     */
+    private void waitFor(int[] counter, int count, long timeout) throws InterruptedException {
+        long end = System.currentTimeMillis() + timeout;
+        synchronized (counter) {
+            while (counter[0] < count) {
+                long remaining = end - System.currentTimeMillis();
+                if (remaining <= 0) {
+                    break;
+                }
+                counter.wait(remaining);
+            }
+        }
+    }
+
+    private void report(String what, int count, long elapsed, long[] latencies) {
+        long[] sorted = (long[])latencies.clone();
+        Arrays.sort(sorted);
+        System.out.println(getName() + ": " + count + " " + what + " in " + elapsed + " ms ("
+                + (count * 1000L / Math.max(1, elapsed)) + "/s); latency p50 "
+                + sorted[sorted.length / 2] + " ms, p99 " + sorted[sorted.length * 99 / 100]
+                + " ms, max " + sorted[sorted.length - 1] + " ms");
+    }
+
+    protected boolean isStandInServer() {
+        return true;
+    }
+
+    protected int getMaxConnections() {
+        return 4;
+    }
+}
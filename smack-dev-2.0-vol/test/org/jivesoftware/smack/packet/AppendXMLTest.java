@@ -0,0 +1,216 @@
+/**
+ * $RCSfile$
+ * $Revision$
+ * $Date$
+ *
+ * Copyright (C) 2002-2003 Jive Software. All rights reserved.
+ * ====================================================================
+ * The Jive Software License (based on Apache Software License, Version 1.1)
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in
+ *    the documentation and/or other materials provided with the
+ *    distribution.
+ *
+ * 3. The end-user documentation included with the redistribution,
+ *    if any, must include the following acknowledgment:
+ *       "This product includes software developed by
+ *        Jive Software (http://www.jivesoftware.com)."
+ *    Alternately, this acknowledgment may appear in the software itself,
+ *    if and wherever such third-party acknowledgments normally appear.
+ *
+ * 4. The names "Smack" and "Jive Software" must not be used to
+ *    endorse or promote products derived from this software without
+ *    prior written permission. For written permission, please
+ *    contact webmaster@jivesoftware.com.
+ *
+ * 5. Products derived from this software may not be called "Smack",
+ *    nor may "Smack" appear in their name, without prior written
+ *    permission of Jive Software.
+ *
+ * THIS SOFTWARE IS PROVIDED ``AS IS'' AND ANY EXPRESSED OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ * OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED.  IN NO EVENT SHALL JIVE SOFTWARE OR
+ * ITS CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+ * LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF
+ * USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT
+ * OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF
+ * SUCH DAMAGE.
+ * ====================================================================
+ */
+
+
+package org.jivesoftware.smack.packet;
+
+import junit.framework.TestCase;
+
+/**
+ * A test case for appending packets as XML.
+ */
+public class AppendXMLTest extends TestCase {
+
+    public void testMessage() {
+        Message message = new Message("room@conference.example.com", Message.Type.GROUP_CHAT);
+        message.setPacketID("m1");
+        message.setFrom("me@example.com/home");
+        message.setBody("Fish & <chips>");
+        message.setProperty("seat", "white");
+        message.addExtension(new DefaultPacketExtension("x", "urn:test"));
+
+        String xml = message.toXML();
+        assertEquals("<message id=\"m1\" to=\"room@conference.example.com\" "
+            + "from=\"me@example.com/home\" type=\"groupchat\">"
+            + "<body>Fish &amp; &lt;chips&gt;</body><x xmlns=\"urn:test\"></x>"
+            + "<properties xmlns=\"http://www.jivesoftware.com/xmlns/xmpp/properties\">"
+            + "<property><name>seat</name><value type=\"string\">white</value></property>"
+            + "</properties></message>", xml);
+        assertAppends(message, xml);
+    }
+
+    public void testPresence() {
+        Presence presence = new Presence(Presence.Type.AVAILABLE, "Out", 1, Presence.Mode.AWAY);
+        presence.setPacketID("p1");
+        presence.setError(new XMPPError(404, "Gone"));
+
+        String xml = presence.toXML();
+        assertEquals("<presence id=\"p1\"><status>Out</status><priority>1</priority>"
+            + "<show>away</show><error code=\"404\">Gone</error></presence>", xml);
+        assertAppends(presence, xml);
+    }
+
+    public void testIQ() {
+        IQ iq = new IQ() {
+            public String getChildElementXML() {
+                return "<query xmlns=\"jabber:iq:version\"/>";
+            }
+        };
+        iq.setPacketID("i1");
+        iq.setTo("a&b@example.com");
+
+        String xml = iq.toXML();
+        assertEquals("<iq id=\"i1\" to=\"a&amp;b@example.com\" type=\"get\">"
+            + "<query xmlns=\"jabber:iq:version\"/></iq>", xml);
+        assertAppends(iq, xml);
+    }
+
+    public void testAppendableExtension() {
+        Message message = new Message();
+        message.setPacketID("m2");
+        message.addExtension(new AppendingExtension());
+        assertEquals("<message id=\"m2\"><appended/></message>", message.toXML());
+    }
+
+    public void testDefaultAppendUsesToXML() {
+        Packet packet = new Packet() {
+            public String toXML() {
+                return "<custom/>";
+            }
+        };
+        StringBuffer buf = new StringBuffer("<stream>");
+        packet.appendXML(buf);
+        assertEquals("<stream><custom/>", buf.toString());
+    }
+
+    public void testOverriddenToXMLIsSent() {
+        Message message = new Message() {
+            public String toXML() {
+                return "<message><body>overridden</body></message>";
+            }
+        };
+        assertAppends(message, "<message><body>overridden</body></message>");
+
+        // An override which wraps the superclass's XML doesn't loop.
+        IQ iq = new IQ() {
+            public String getChildElementXML() {
+                return null;
+            }
+            public String toXML() {
+                return "<!-- wrapped -->" + super.toXML();
+            }
+        };
+        iq.setPacketID("i2");
+        assertEquals("<!-- wrapped --><iq id=\"i2\" type=\"get\"></iq>", iq.toXML());
+        assertAppends(iq, iq.toXML());
+    }
+
+    public void testOverriddenExtensionsXMLIsSent() {
+        Presence presence = new Presence(Presence.Type.AVAILABLE) {
+            protected String getExtensionsXML() {
+                return super.getExtensionsXML() + "<c xmlns=\"urn:test\"/>";
+            }
+        };
+        presence.setPacketID("p2");
+        presence.addExtension(new DefaultPacketExtension("x", "urn:test"));
+
+        String xml = "<presence id=\"p2\"><x xmlns=\"urn:test\"></x>"
+            + "<c xmlns=\"urn:test\"/></presence>";
+        assertEquals(xml, presence.toXML());
+        assertAppends(presence, xml);
+    }
+
+    /**
+     * A toXML() or getExtensionsXML() override which is built on the append
+     * methods doesn't recurse through the fallback.
+     */
+    public void testOverrideCallingAppend() {
+        Message message = new Message("a@b", Message.Type.CHAT) {
+            public String toXML() {
+                StringBuffer buf = new StringBuffer();
+                appendXML(buf);
+                return buf.toString();
+            }
+            protected String getExtensionsXML() {
+                StringBuffer buf = new StringBuffer();
+                appendExtensionsXML(buf);
+                return buf.toString();
+            }
+        };
+        message.setPacketID("m3");
+        message.setBody("Hi");
+        message.addExtension(new DefaultPacketExtension("x", "urn:test"));
+
+        String xml = "<message id=\"m3\" to=\"a@b\" type=\"chat\"><body>Hi</body>"
+            + "<x xmlns=\"urn:test\"></x></message>";
+        assertEquals(xml, message.toXML());
+        assertAppends(message, xml);
+    }
+
+    private void assertAppends(Packet packet, String xml) {
+        StringBuffer buf = new StringBuffer("<stream>");
+        packet.appendXML(buf);
+        assertEquals("<stream>" + xml, buf.toString());
+    }
+
+    /**
+     * An extension which can only be appended.
+     */
+    private static class AppendingExtension implements PacketExtension, XMLAppendable {
+
+        public String getElementName() {
+            return "appended";
+        }
+
+        public String getNamespace() {
+            return "urn:test";
+        }
+
+        public String toXML() {
+            throw new IllegalStateException("toXML() should not be called");
+        }
+
+        public void appendXML(StringBuffer buf) {
+            buf.append("<appended/>");
+        }
+    }
+}
@@ -78,6 +78,11 @@ import junit.framework.TestCase;
  * The file must be placed in the folder "config". This folder is where the default configuration 
  * file is being held.
  *
+ * If the configuration sets <tt>standIn</tt> to true (or the system property
+ * <tt>smack.test.standIn</tt> is true), the test case instead starts a {@link StandInServer}
+ * in this JVM, and connects to that. A test case which only makes sense against the stand-in
+ * can override {@link #isStandInServer()}.
+ *
  * @author Gaston Dombiak
  */
 public abstract class SmackTestCase extends TestCase {
@@ -89,6 +94,9 @@ public abstract class SmackTestCase extends TestCase {
     private String chatDomain = "chat.localhost";
     private String mucDomain = "conference.localhost";
 
+    private boolean standIn = false;
+    private StandInServer standInServer = null;
+
     private XMPPConnection[] connections = null;
 
     /**
@@ -206,9 +214,39 @@ public abstract class SmackTestCase extends TestCase {
         return mucDomain;
     }
 
+    /**
+     * Returns true if this test case runs against a {@link StandInServer} in this JVM. By
+     * default this is the <tt>standIn</tt> setting of the configuration file, which the
+     * system property <tt>smack.test.standIn</tt> overrides.
+     *
+     * @return true if the stand-in server is used.
+     */
+    protected boolean isStandInServer() {
+        return standIn;
+    }
+
+    /**
+     * Returns the stand-in server this test case is running against, or null if it is
+     * using an external server.
+     *
+     * @return the stand-in server, or null.
+     */
+    protected StandInServer getStandInServer() {
+        return standInServer;
+    }
+
     protected void setUp() throws Exception {
         super.setUp();
         init();
+        if (isStandInServer()) {
+            standInServer = new StandInServer(serviceName);
+            standInServer.start();
+            host = standInServer.getHost();
+            port = standInServer.getPort();
+            // The stand-in has a single chat service, which speaks both protocols.
+            chatDomain = standInServer.getMUCDomain();
+            mucDomain = standInServer.getMUCDomain();
+        }
         if (getMaxConnections() < 1) {
             return;
         }
@@ -264,6 +302,10 @@ public abstract class SmackTestCase extends TestCase {
             getConnection(i).close();
 
         }
+        if (standInServer != null) {
+            standInServer.stop();
+            standInServer = null;
+        }
     }
 
     /**
@@ -293,6 +335,10 @@ public abstract class SmackTestCase extends TestCase {
             if (!found) {
                 System.err.println("File config/test-case.xml not found. Using default config.");
             }
+            String property = System.getProperty("smack.test.standIn");
+            if (property != null) {
+                standIn = "true".equals(property);
+            }
         }
         catch (Exception e) {
         }
@@ -332,6 +378,9 @@ public abstract class SmackTestCase extends TestCase {
                     else if (parser.getName().equals("muc")) {
                         mucDomain = parser.nextText();
                     }
+                    else if (parser.getName().equals("standIn")) {
+                        standIn = "true".equals(parser.nextText().trim());
+                    }
                 }
                 eventType = parser.next();
             }
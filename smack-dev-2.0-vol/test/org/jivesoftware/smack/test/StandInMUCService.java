@@ -0,0 +1,574 @@
+/**
+ * $RCSfile$
+ * $Revision$
+ * $Date$
+ *
+ * Copyright (C) 2002-2003 Jive Software. All rights reserved.
+ * ====================================================================
+ * The Jive Software License (based on Apache Software License, Version 1.1)
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in
+ *    the documentation and/or other materials provided with the
+ *    distribution.
+ *
+ * 3. The end-user documentation included with the redistribution,
+ *    if any, must include the following acknowledgment:
+ *       "This product includes software developed by
+ *        Jive Software (http://www.jivesoftware.com)."
+ *    Alternately, this acknowledgment may appear in the software itself,
+ *    if and wherever such third-party acknowledgments normally appear.
+ *
+ * 4. The names "Smack" and "Jive Software" must not be used to
+ *    endorse or promote products derived from this software without
+ *    prior written permission. For written permission, please
+ *    contact webmaster@jivesoftware.com.
+ *
+ * 5. Products derived from this software may not be called "Smack",
+ *    nor may "Smack" appear in their name, without prior written
+ *    permission of Jive Software.
+ *
+ * THIS SOFTWARE IS PROVIDED ``AS IS'' AND ANY EXPRESSED OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ * OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED.  IN NO EVENT SHALL JIVE SOFTWARE OR
+ * ITS CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+ * LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF
+ * USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT
+ * OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF
+ * SUCH DAMAGE.
+ * ====================================================================
+ */
+
+package org.jivesoftware.smack.test;
+
+import java.text.SimpleDateFormat;
+import java.util.*;
+
+import org.jivesoftware.smack.util.StringUtils;
+
+/**
+ * The multi-user chat service of a {@link StandInServer}. Rooms are created
+ * when the first occupant joins, are open to anyone, accept any
+ * configuration, and vanish when the last occupant leaves. The creator is
+ * the room's owner and a moderator; everyone else is a participant. Only
+ * moderators may change the subject. The last {@link #HISTORY_SIZE}
+ * groupchat messages are sent to newcomers, as the join request's history
+ * element allows. There is no kicking, banning or voice, and no reserved
+ * nicknames.<p>
+ *
+ * Everything here runs under the server's lock.
+ */
+public class StandInMUCService {
+
+    public static final String NS_MUC = "http://jabber.org/protocol/muc";
+    public static final String NS_MUC_USER = "http://jabber.org/protocol/muc#user";
+    public static final String NS_MUC_OWNER = "http://jabber.org/protocol/muc#owner";
+
+    /**
+     * The number of groupchat messages each room remembers.
+     */
+    public static final int HISTORY_SIZE = 20;
+
+    private static final SimpleDateFormat DELAY_FORMAT =
+            new SimpleDateFormat("yyyyMMdd'T'HH:mm:ss");
+    static {
+        DELAY_FORMAT.setTimeZone(TimeZone.getTimeZone("UTC"));
+    }
+
+    protected StandInServer server;
+    protected String domain;
+    // bare room JID -> Room
+    protected Map rooms = new TreeMap();
+
+    public StandInMUCService(StandInServer server, String domain) {
+        this.server = server;
+        this.domain = domain;
+    }
+
+    public String getDomain() {
+        return domain;
+    }
+
+    /**
+     * Returns the number of rooms which currently have occupants.
+     *
+     * @return the room count.
+     */
+    public int getRoomCount() {
+        synchronized (server) {
+            return rooms.size();
+        }
+    }
+
+    protected void handlePresence(StandInServer.Session session, StanzaElement presence) {
+        String to = presence.getAttribute("to");
+        String roomJID = StringUtils.parseBareAddress(to).toLowerCase();
+        String nick = StringUtils.parseResource(to);
+        Room room = (Room)rooms.get(roomJID);
+        Occupant occupant = (room == null) ? null : room.getOccupantByJID(session.jid);
+
+        if ("unavailable".equals(presence.getAttribute("type"))) {
+            if (occupant != null) {
+                leave(room, occupant, presence);
+            }
+            return;
+        }
+        if (presence.getAttribute("type") != null) {
+            return;
+        }
+        if (nick.length() == 0) {
+            server.deliver(session.jid,
+                StandInServer.errorReply(presence, 400, "modify", "jid-malformed"));
+            return;
+        }
+
+        StanzaElement join = presence.getChild("x", NS_MUC);
+        StanzaElement historyRequest = (join == null) ? null : join.getChild("history");
+
+        // Whatever the occupant sends, the room's copy doesn't carry the MUC join element.
+        presence = presence.copy();
+        presence.removeChildren("x", NS_MUC);
+
+        if (occupant != null) {
+            if (occupant.nick.equals(nick)) {
+                // A presence change.
+                occupant.presence = presence;
+                broadcastPresence(room, occupant, null);
+                return;
+            }
+            if (room.getOccupant(nick) != null) {
+                server.deliver(session.jid,
+                    StandInServer.errorReply(presence, 409, "cancel", "conflict"));
+                return;
+            }
+            // A nickname change: the old nickname leaves, pointing at the new one.
+            StanzaElement leaving = new StanzaElement("presence").setAttribute("type", "unavailable");
+            StanzaElement status = new StanzaElement("status").setAttribute("code", "303");
+            broadcastPresence(room, occupant, leaving, nick, status);
+            room.occupants.remove(occupant.nick);
+            occupant.nick = nick;
+            occupant.presence = presence;
+            room.occupants.put(nick, occupant);
+            broadcastPresence(room, occupant, null);
+            return;
+        }
+
+        if (room != null && room.getOccupant(nick) != null) {
+            server.deliver(session.jid,
+                StandInServer.errorReply(presence, 409, "cancel", "conflict"));
+            return;
+        }
+
+        boolean created = false;
+        if (room == null) {
+            room = new Room(roomJID);
+            rooms.put(roomJID, room);
+            created = true;
+        }
+        occupant = new Occupant(nick, session.jid);
+        occupant.presence = presence;
+        if (created) {
+            occupant.affiliation = "owner";
+            occupant.role = "moderator";
+        }
+
+        // The newcomer first hears about everyone already there...
+        for (Iterator i=room.occupants.values().iterator(); i.hasNext(); ) {
+            Occupant other = (Occupant)i.next();
+            server.deliver(session.jid, roomPresence(room, other, other.presence, session.jid));
+        }
+        room.occupants.put(nick, occupant);
+        // ...and then everyone, the newcomer included, hears about the newcomer.
+        broadcastPresence(room, occupant, created ? "201" : null);
+
+        sendHistory(room, session.jid, historyRequest);
+        if (room.subject != null) {
+            server.deliver(session.jid, room.subject.copy().setAttribute("to", session.jid));
+        }
+    }
+
+    /**
+     * Sends a newcomer the room's recent messages, each marked with a
+     * jabber:x:delay timestamp. The join request's history element may limit
+     * them by count (maxstanzas) or age (seconds).
+     */
+    protected void sendHistory(Room room, String jid, StanzaElement request) {
+        int maxStanzas = HISTORY_SIZE;
+        long since = 0;
+        if (request != null) {
+            try {
+                if (request.getAttribute("maxstanzas") != null) {
+                    maxStanzas = Integer.parseInt(request.getAttribute("maxstanzas"));
+                }
+                if ("0".equals(request.getAttribute("maxchars"))) {
+                    maxStanzas = 0;
+                }
+                if (request.getAttribute("seconds") != null) {
+                    since = System.currentTimeMillis()
+                        - 1000L * Integer.parseInt(request.getAttribute("seconds"));
+                }
+            }
+            catch (NumberFormatException e) {
+                // Ignore a malformed limit.
+            }
+        }
+
+        int first = Math.max(0, room.history.size() - maxStanzas);
+        for (int i=first; i<room.history.size(); i++) {
+            HistoryEntry entry = (HistoryEntry)room.history.get(i);
+            if (entry.time < since) {
+                continue;
+            }
+            String stamp;
+            synchronized (DELAY_FORMAT) {
+                stamp = DELAY_FORMAT.format(new Date(entry.time));
+            }
+            StanzaElement out = entry.message.copy().setAttribute("to", jid);
+            out.addChild(new StanzaElement("x", "jabber:x:delay")
+                .setAttribute("stamp", stamp).setAttribute("from", room.jid));
+            server.deliver(jid, out);
+        }
+    }
+
+    protected void handleMessage(StandInServer.Session session, StanzaElement message) {
+        String to = message.getAttribute("to");
+        String roomJID = StringUtils.parseBareAddress(to).toLowerCase();
+        String nick = StringUtils.parseResource(to);
+        Room room = (Room)rooms.get(roomJID);
+        if ("error".equals(message.getAttribute("type"))) {
+            return;
+        }
+        if (room == null) {
+            server.deliver(session.jid,
+                StandInServer.errorReply(message, 404, "cancel", "item-not-found"));
+            return;
+        }
+
+        StanzaElement x = message.getChild("x", NS_MUC_USER);
+        if (nick.length() == 0 && x != null && x.getChild("invite") != null) {
+            StanzaElement invite = x.getChild("invite");
+            String invitee = invite.getAttribute("to");
+            // The invitation keeps whatever else the inviter put in the message.
+            StanzaElement forwarded = message.copy()
+                .setAttribute("from", room.jid).setAttribute("to", invitee);
+            forwarded.removeChildren("x", NS_MUC_USER);
+            StanzaElement inviteOut = new StanzaElement("invite")
+                .setAttribute("from", session.jid);
+            if (invite.getChild("reason") != null) {
+                inviteOut.addChild(invite.getChild("reason").copy());
+            }
+            forwarded.addChild(new StanzaElement("x", NS_MUC_USER).addChild(inviteOut));
+            server.handleMessage(session, forwarded);
+            return;
+        }
+        if (nick.length() == 0 && x != null && x.getChild("decline") != null) {
+            // The invitee turned the invitation down: tell the inviter.
+            StanzaElement decline = x.getChild("decline");
+            StanzaElement forwarded = new StanzaElement("message")
+                .setAttribute("from", room.jid).setAttribute("to", decline.getAttribute("to"));
+            StanzaElement declineOut = new StanzaElement("decline")
+                .setAttribute("from", session.jid);
+            if (decline.getChild("reason") != null) {
+                declineOut.addChild(decline.getChild("reason").copy());
+            }
+            forwarded.addChild(new StanzaElement("x", NS_MUC_USER).addChild(declineOut));
+            server.handleMessage(session, forwarded);
+            return;
+        }
+
+        Occupant sender = room.getOccupantByJID(session.jid);
+        if (sender == null) {
+            server.deliver(session.jid,
+                StandInServer.errorReply(message, 406, "modify", "not-acceptable"));
+            return;
+        }
+
+        if (nick.length() == 0) {
+            if (!"groupchat".equals(message.getAttribute("type"))) {
+                server.deliver(session.jid,
+                    StandInServer.errorReply(message, 400, "modify", "bad-request"));
+                return;
+            }
+            StanzaElement out = message.copy().setAttribute("from", room.jid + "/" + sender.nick);
+            if (message.getChild("subject") != null) {
+                if (!sender.role.equals("moderator")) {
+                    server.deliver(session.jid,
+                        StandInServer.errorReply(message, 403, "auth", "forbidden"));
+                    return;
+                }
+                room.subject = out;
+            }
+            else {
+                room.history.add(new HistoryEntry(out));
+                if (room.history.size() > HISTORY_SIZE) {
+                    room.history.remove(0);
+                }
+            }
+            for (Iterator i=room.occupants.values().iterator(); i.hasNext(); ) {
+                Occupant occupant = (Occupant)i.next();
+                server.deliver(occupant.jid, out.copy().setAttribute("to", occupant.jid));
+            }
+            return;
+        }
+
+        // A private message.
+        Occupant recipient = room.getOccupant(nick);
+        if (recipient == null) {
+            server.deliver(session.jid,
+                StandInServer.errorReply(message, 404, "cancel", "item-not-found"));
+            return;
+        }
+        server.deliver(recipient.jid, message.copy()
+            .setAttribute("from", room.jid + "/" + sender.nick)
+            .setAttribute("to", recipient.jid));
+    }
+
+    protected void handleIQ(StandInServer.Session session, StanzaElement iq) {
+        String to = iq.getAttribute("to");
+        String type = iq.getAttribute("type");
+        boolean request = "get".equals(type) || "set".equals(type);
+        String roomJID = StringUtils.parseBareAddress(to).toLowerCase();
+        String nick = StringUtils.parseResource(to);
+        StanzaElement query = iq.getChild(null);
+        String namespace = (query == null) ? null : query.getNamespace();
+
+        if (to.equalsIgnoreCase(domain)) {
+            if (StandInServer.NS_DISCO_INFO.equals(namespace) && "get".equals(type)) {
+                StanzaElement info = new StanzaElement("query", StandInServer.NS_DISCO_INFO);
+                info.addChild(new StanzaElement("identity")
+                    .setAttribute("category", "conference").setAttribute("type", "text")
+                    .setAttribute("name", "Chat rooms"));
+                info.addChild(new StanzaElement("feature").setAttribute("var", NS_MUC));
+                server.deliver(session.jid, StandInServer.resultReply(iq, info));
+            }
+            else if (StandInServer.NS_DISCO_ITEMS.equals(namespace) && "get".equals(type)) {
+                StanzaElement items = new StanzaElement("query", StandInServer.NS_DISCO_ITEMS);
+                for (Iterator i=rooms.keySet().iterator(); i.hasNext(); ) {
+                    items.addChild(new StanzaElement("item").setAttribute("jid", (String)i.next()));
+                }
+                server.deliver(session.jid, StandInServer.resultReply(iq, items));
+            }
+            else if (request) {
+                server.deliver(session.jid,
+                    StandInServer.errorReply(iq, 501, "cancel", "feature-not-implemented"));
+            }
+            return;
+        }
+
+        Room room = (Room)rooms.get(roomJID);
+        if (room == null) {
+            if (request) {
+                server.deliver(session.jid,
+                    StandInServer.errorReply(iq, 404, "cancel", "item-not-found"));
+            }
+            return;
+        }
+
+        if (nick.length() > 0) {
+            // Addressed to an occupant: pass it on, as from the sender's nickname.
+            Occupant sender = room.getOccupantByJID(session.jid);
+            Occupant recipient = room.getOccupant(nick);
+            if (sender == null || recipient == null) {
+                if (request) {
+                    server.deliver(session.jid, StandInServer.errorReply(iq,
+                        (sender == null) ? 406 : 404, "cancel",
+                        (sender == null) ? "not-acceptable" : "item-not-found"));
+                }
+                return;
+            }
+            server.deliver(recipient.jid, iq.copy()
+                .setAttribute("from", room.jid + "/" + sender.nick)
+                .setAttribute("to", recipient.jid));
+            return;
+        }
+
+        if (!request) {
+            return;
+        }
+        if (NS_MUC_OWNER.equals(namespace) && "get".equals(type)) {
+            StanzaElement form = new StanzaElement("x", "jabber:x:data").setAttribute("type", "form");
+            form.addChild("title", "Configuration for " + room.jid);
+            form.addChild(new StanzaElement("field")
+                .setAttribute("var", "FORM_TYPE").setAttribute("type", "hidden")
+                .addChild("value", "http://jabber.org/protocol/muc#roomconfig"));
+            server.deliver(session.jid, StandInServer.resultReply(iq,
+                new StanzaElement("query", NS_MUC_OWNER).addChild(form)));
+        }
+        else if (NS_MUC_OWNER.equals(namespace)) {
+            server.deliver(session.jid, StandInServer.resultReply(iq, null));
+            if (query.getChild("destroy") != null) {
+                destroy(room, query.getChild("destroy"));
+            }
+        }
+        else if (StandInServer.NS_DISCO_INFO.equals(namespace) && "get".equals(type)) {
+            StanzaElement info = new StanzaElement("query", StandInServer.NS_DISCO_INFO);
+            info.addChild(new StanzaElement("identity")
+                .setAttribute("category", "conference").setAttribute("type", "text"));
+            info.addChild(new StanzaElement("feature").setAttribute("var", NS_MUC));
+            server.deliver(session.jid, StandInServer.resultReply(iq, info));
+        }
+        else if (StandInServer.NS_DISCO_ITEMS.equals(namespace) && "get".equals(type)) {
+            server.deliver(session.jid, StandInServer.resultReply(iq,
+                new StanzaElement("query", StandInServer.NS_DISCO_ITEMS)));
+        }
+        else {
+            server.deliver(session.jid,
+                StandInServer.errorReply(iq, 501, "cancel", "feature-not-implemented"));
+        }
+    }
+
+    /**
+     * Takes a connection out of every room it is in.
+     *
+     * @param jid the full JID of the connection.
+     */
+    protected void userUnavailable(String jid) {
+        List toLeave = new ArrayList();
+        for (Iterator i=rooms.values().iterator(); i.hasNext(); ) {
+            Room room = (Room)i.next();
+            Occupant occupant = room.getOccupantByJID(jid);
+            if (occupant != null) {
+                toLeave.add(new Object[] { room, occupant });
+            }
+        }
+        for (Iterator i=toLeave.iterator(); i.hasNext(); ) {
+            Object[] pair = (Object[])i.next();
+            leave((Room)pair[0], (Occupant)pair[1],
+                new StanzaElement("presence").setAttribute("type", "unavailable"));
+        }
+    }
+
+    protected void leave(Room room, Occupant occupant, StanzaElement presence) {
+        occupant.role = "none";
+        broadcastPresence(room, occupant, presence.copy(), null, null);
+        room.occupants.remove(occupant.nick);
+        if (room.occupants.isEmpty()) {
+            rooms.remove(room.jid);
+        }
+    }
+
+    protected void destroy(Room room, StanzaElement destroy) {
+        for (Iterator i=new ArrayList(room.occupants.values()).iterator(); i.hasNext(); ) {
+            Occupant occupant = (Occupant)i.next();
+            StanzaElement presence = roomPresence(room, occupant,
+                new StanzaElement("presence").setAttribute("type", "unavailable"), occupant.jid);
+            occupant.role = "none";
+            presence.getChild("x", NS_MUC_USER).addChild(destroy.copy());
+            server.deliver(occupant.jid, presence);
+        }
+        rooms.remove(room.jid);
+    }
+
+    /**
+     * Sends an occupant's current presence to everyone in the room. The
+     * occupant's own copy gets status code 110, and the given extra status
+     * code if there is one.
+     */
+    protected void broadcastPresence(Room room, Occupant occupant, String selfCode) {
+        StanzaElement extra = (selfCode == null) ? null
+            : new StanzaElement("status").setAttribute("code", selfCode);
+        broadcastPresence(room, occupant, occupant.presence, null, extra);
+    }
+
+    protected void broadcastPresence(Room room, Occupant occupant, StanzaElement presence,
+            String newNick, StanzaElement extraStatus)
+    {
+        for (Iterator i=room.occupants.values().iterator(); i.hasNext(); ) {
+            Occupant recipient = (Occupant)i.next();
+            StanzaElement out = roomPresence(room, occupant, presence, recipient.jid);
+            StanzaElement x = out.getChild("x", NS_MUC_USER);
+            if (newNick != null) {
+                x.getChild("item").setAttribute("nick", newNick);
+            }
+            if (extraStatus != null && extraStatus.getAttribute("code").equals("303")) {
+                x.addChild(extraStatus.copy());
+            }
+            if (recipient == occupant) {
+                x.addChild(new StanzaElement("status").setAttribute("code", "110"));
+                if (extraStatus != null && !extraStatus.getAttribute("code").equals("303")) {
+                    x.addChild(extraStatus.copy());
+                }
+            }
+            server.deliver(recipient.jid, out);
+        }
+    }
+
+    /**
+     * Builds the presence the room sends on behalf of an occupant.
+     */
+    protected StanzaElement roomPresence(Room room, Occupant occupant, StanzaElement presence,
+            String recipientJID)
+    {
+        StanzaElement out = presence.copy()
+            .setAttribute("from", room.jid + "/" + occupant.nick)
+            .setAttribute("to", recipientJID);
+        out.removeChildren("x", NS_MUC_USER);
+        StanzaElement item = new StanzaElement("item")
+            .setAttribute("affiliation", occupant.affiliation)
+            .setAttribute("role", occupant.role)
+            .setAttribute("jid", occupant.jid);
+        out.addChild(new StanzaElement("x", NS_MUC_USER).addChild(item));
+        return out;
+    }
+
+    protected static class Room {
+        String jid;
+        // nickname -> Occupant, in order of arrival
+        Map occupants = new LinkedHashMap();
+        StanzaElement subject;
+        // HistoryEntry objects, oldest first
+        List history = new ArrayList();
+
+        Room(String jid) {
+            this.jid = jid;
+        }
+
+        Occupant getOccupant(String nick) {
+            return (Occupant)occupants.get(nick);
+        }
+
+        Occupant getOccupantByJID(String jid) {
+            for (Iterator i=occupants.values().iterator(); i.hasNext(); ) {
+                Occupant occupant = (Occupant)i.next();
+                if (occupant.jid.equals(jid)) {
+                    return occupant;
+                }
+            }
+            return null;
+        }
+    }
+
+    protected static class HistoryEntry {
+        StanzaElement message;
+        long time;
+
+        HistoryEntry(StanzaElement message) {
+            this.message = message;
+            this.time = System.currentTimeMillis();
+        }
+    }
+
+    protected static class Occupant {
+        String nick;
+        String jid;
+        String affiliation = "none";
+        String role = "participant";
+        StanzaElement presence;
+
+        Occupant(String nick, String jid) {
+            this.nick = nick;
+            this.jid = jid;
+        }
+    }
+}
@@ -0,0 +1,1212 @@
+/**
+ * $RCSfile$
+ * $Revision$
+ * $Date$
+ *
+ * Copyright (C) 2002-2003 Jive Software. All rights reserved.
+ * ====================================================================
+ * The Jive Software License (based on Apache Software License, Version 1.1)
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in
+ *    the documentation and/or other materials provided with the
+ *    distribution.
+ *
+ * 3. The end-user documentation included with the redistribution,
+ *    if any, must include the following acknowledgment:
+ *       "This product includes software developed by
+ *        Jive Software (http://www.jivesoftware.com)."
+ *    Alternately, this acknowledgment may appear in the software itself,
+ *    if and wherever such third-party acknowledgments normally appear.
+ *
+ * 4. The names "Smack" and "Jive Software" must not be used to
+ *    endorse or promote products derived from this software without
+ *    prior written permission. For written permission, please
+ *    contact webmaster@jivesoftware.com.
+ *
+ * 5. Products derived from this software may not be called "Smack",
+ *    nor may "Smack" appear in their name, without prior written
+ *    permission of Jive Software.
+ *
+ * THIS SOFTWARE IS PROVIDED ``AS IS'' AND ANY EXPRESSED OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ * OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED.  IN NO EVENT SHALL JIVE SOFTWARE OR
+ * ITS CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+ * LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF
+ * USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT
+ * OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF
+ * SUCH DAMAGE.
+ * ====================================================================
+ */
+
+package org.jivesoftware.smack.test;
+
+import java.io.*;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.*;
+
+import org.jivesoftware.smack.util.StringUtils;
+import org.jivesoftware.smack.util.XMLStanzaFramer;
+
+/**
+ * A small XMPP server which runs inside the test JVM, on a loopback port, so
+ * that test cases and benchmarks can exercise the whole client stack without
+ * an external server. It is a stand-in, not a server: it keeps everything in
+ * memory and implements only what the Smack test cases and Volity clients
+ * use. That is:
+ * <ul>
+ *      <li> Non-SASL authentication (plain password) and anonymous login.
+ *      <li> In-band account creation and removal (jabber:iq:register).
+ *      <li> The roster, subscriptions and presence broadcast to contacts.
+ *      <li> Routing of messages, presence and IQs (including Jabber-RPC calls)
+ *          between connected users, by full or bare JID.
+ *      <li> Service discovery of the server and its chat service.
+ *      <li> A multi-user chat service at <tt>conference.<i>domain</i></tt>; see
+ *          {@link StandInMUCService}.
+ * </ul>
+ * There is no TLS, no SASL, no vCards and no privacy lists. Offline messages
+ * are kept in memory. Requests the stand-in doesn't understand get a
+ * service-unavailable error.<p>
+ *
+ * Each connection has a reader thread and a writer thread. All server state
+ * is guarded by the server's lock; stanzas are queued for the writer threads
+ * while holding it, and written out after.
+ *
+ * @see SmackTestCase#isStandInServer()
+ */
+public class StandInServer {
+
+    public static final String NS_STANZAS = "urn:ietf:params:xml:ns:xmpp-stanzas";
+    public static final String NS_DISCO_INFO = "http://jabber.org/protocol/disco#info";
+    public static final String NS_DISCO_ITEMS = "http://jabber.org/protocol/disco#items";
+
+    protected String domain;
+    protected StandInMUCService muc;
+
+    protected ServerSocket serverSocket;
+    protected boolean running = false;
+
+    // username -> Account
+    protected Map accounts = new HashMap();
+    // bare JID -> List of authenticated Sessions
+    protected Map userSessions = new HashMap();
+    // every open Session, authenticated or not
+    protected List allSessions = new ArrayList();
+
+    protected int serial = 0;
+    protected long stanzaCount = 0;
+
+    /**
+     * Creates a stand-in server for the given domain. Call {@link #start()}
+     * to start accepting connections.
+     *
+     * @param domain the server's domain, e.g. "localhost".
+     */
+    public StandInServer(String domain) {
+        this.domain = domain;
+        this.muc = new StandInMUCService(this, "conference." + domain);
+    }
+
+    /**
+     * Runs a stand-in server until the process is killed, for load tools and
+     * clients in other processes. Usage:
+     *
+     * <pre>java org.jivesoftware.smack.test.StandInServer [port [domain]]</pre>
+     *
+     * The port defaults to 5222 and the domain to "localhost".
+     *
+     * @param args the command line arguments.
+     * @throws Exception if the server can't start.
+     */
+    public static void main(String[] args) throws Exception {
+        int port = (args.length > 0) ? Integer.parseInt(args[0]) : 5222;
+        String domain = (args.length > 1) ? args[1] : "localhost";
+        StandInServer server = new StandInServer(domain);
+        server.start(port);
+        System.out.println("Stand-in server for " + domain + " listening on "
+                + server.getHost() + ":" + server.getPort());
+        // The acceptor thread is a daemon, so keep the process alive.
+        Object forever = new Object();
+        synchronized (forever) {
+            forever.wait();
+        }
+    }
+
+    /**
+     * Starts listening on a free loopback port.
+     *
+     * @throws IOException if the port can't be opened.
+     */
+    public void start() throws IOException {
+        start(0);
+    }
+
+    /**
+     * Starts listening on the given loopback port.
+     *
+     * @param port the port, or 0 for any free port.
+     * @throws IOException if the port can't be opened.
+     */
+    public synchronized void start(int port) throws IOException {
+        serverSocket = new ServerSocket(port, 50, InetAddress.getByName(getHost()));
+        running = true;
+        Thread acceptThread = new Thread() {
+            public void run() {
+                acceptConnections();
+            }
+        };
+        acceptThread.setName("Stand-in server acceptor");
+        acceptThread.setDaemon(true);
+        acceptThread.start();
+    }
+
+    /**
+     * Stops listening and closes every connection.
+     */
+    public void stop() {
+        List toClose;
+        synchronized (this) {
+            running = false;
+            toClose = new ArrayList(allSessions);
+        }
+        try {
+            serverSocket.close();
+        }
+        catch (IOException ioe) {
+            // Ignore.
+        }
+        for (Iterator i=toClose.iterator(); i.hasNext(); ) {
+            ((Session)i.next()).close();
+        }
+    }
+
+    public String getHost() {
+        return "127.0.0.1";
+    }
+
+    public int getPort() {
+        return serverSocket.getLocalPort();
+    }
+
+    public String getDomain() {
+        return domain;
+    }
+
+    public String getMUCDomain() {
+        return muc.getDomain();
+    }
+
+    /**
+     * Returns the number of stanzas received from clients so far.
+     *
+     * @return the stanza count.
+     */
+    public synchronized long getStanzaCount() {
+        return stanzaCount;
+    }
+
+    /**
+     * Returns the number of authenticated connections.
+     *
+     * @return the session count.
+     */
+    public synchronized int getSessionCount() {
+        int count = 0;
+        for (Iterator i=userSessions.values().iterator(); i.hasNext(); ) {
+            count += ((List)i.next()).size();
+        }
+        return count;
+    }
+
+    /**
+     * Creates an account, replacing any account with the same name.
+     *
+     * @param username the user name.
+     * @param password the password.
+     */
+    public synchronized void createAccount(String username, String password) {
+        accounts.put(username.toLowerCase(), new Account(username.toLowerCase(), password));
+    }
+
+    public synchronized boolean hasAccount(String username) {
+        return accounts.containsKey(username.toLowerCase());
+    }
+
+    protected void acceptConnections() {
+        while (true) {
+            Socket socket;
+            try {
+                socket = serverSocket.accept();
+            }
+            catch (IOException ioe) {
+                return;
+            }
+            try {
+                Session session = new Session(socket);
+                synchronized (this) {
+                    if (!running) {
+                        socket.close();
+                        return;
+                    }
+                    allSessions.add(session);
+                }
+                session.start();
+            }
+            catch (IOException ioe) {
+                try {
+                    socket.close();
+                }
+                catch (IOException ignore) {
+                    // Ignore.
+                }
+            }
+        }
+    }
+
+    protected synchronized String nextID() {
+        return "standin" + (serial++);
+    }
+
+    /**
+     * Handles one stanza from a connection.
+     */
+    protected synchronized void handleStanza(Session session, StanzaElement stanza) {
+        stanzaCount++;
+        String name = stanza.getName();
+
+        if (!session.authenticated) {
+            // Only login and registration are allowed before authentication.
+            if (name.equals("iq") && (getQuery(stanza, "jabber:iq:auth") != null
+                    || getQuery(stanza, "jabber:iq:register") != null))
+            {
+                handleServerIQ(session, stanza);
+            }
+            else if (!name.equals("presence")) {
+                session.send(errorReply(stanza, 401, "auth", "not-authorized"));
+            }
+            return;
+        }
+
+        stanza.setAttribute("from", session.jid);
+        String to = stanza.getAttribute("to");
+        if (to != null && StringUtils.parseServer(to).equalsIgnoreCase(muc.getDomain())) {
+            if (name.equals("message")) {
+                muc.handleMessage(session, stanza);
+            }
+            else if (name.equals("presence")) {
+                muc.handlePresence(session, stanza);
+            }
+            else if (name.equals("iq")) {
+                muc.handleIQ(session, stanza);
+            }
+            return;
+        }
+
+        if (name.equals("message")) {
+            handleMessage(session, stanza);
+        }
+        else if (name.equals("presence")) {
+            handlePresence(session, stanza);
+        }
+        else if (name.equals("iq")) {
+            if (to == null || to.equalsIgnoreCase(domain)
+                    || (to.equalsIgnoreCase(session.getBareJID())
+                        && getQuery(stanza, NS_DISCO_INFO) == null))
+            {
+                handleServerIQ(session, stanza);
+            }
+            else {
+                routeIQ(session, stanza);
+            }
+        }
+    }
+
+    // -- IQs the server answers itself --------------------------------------
+
+    protected void handleServerIQ(Session session, StanzaElement iq) {
+        String type = iq.getAttribute("type");
+        if ("result".equals(type) || "error".equals(type)) {
+            return;
+        }
+        StanzaElement query = iq.getChild(null);
+        String namespace = (query == null) ? null : query.getNamespace();
+
+        if ("jabber:iq:auth".equals(namespace)) {
+            handleAuth(session, iq, query);
+        }
+        else if ("jabber:iq:register".equals(namespace)) {
+            handleRegister(session, iq, query);
+        }
+        else if ("jabber:iq:roster".equals(namespace)) {
+            handleRoster(session, iq, query);
+        }
+        else if (NS_DISCO_INFO.equals(namespace) && "get".equals(type)) {
+            StanzaElement info = new StanzaElement("query", NS_DISCO_INFO);
+            info.addChild(new StanzaElement("identity")
+                .setAttribute("category", "server").setAttribute("type", "im")
+                .setAttribute("name", "Stand-in server"));
+            String[] features = { NS_DISCO_INFO, NS_DISCO_ITEMS, "jabber:iq:auth",
+                "jabber:iq:register", "jabber:iq:roster" };
+            for (int i=0; i<features.length; i++) {
+                info.addChild(new StanzaElement("feature").setAttribute("var", features[i]));
+            }
+            session.send(resultReply(iq, info));
+        }
+        else if (NS_DISCO_ITEMS.equals(namespace) && "get".equals(type)) {
+            StanzaElement items = new StanzaElement("query", NS_DISCO_ITEMS);
+            items.addChild(new StanzaElement("item")
+                .setAttribute("jid", muc.getDomain()).setAttribute("name", "Chat rooms"));
+            session.send(resultReply(iq, items));
+        }
+        else {
+            session.send(errorReply(iq, 503, "cancel", "service-unavailable"));
+        }
+    }
+
+    protected void handleAuth(Session session, StanzaElement iq, StanzaElement query) {
+        String username = query.getChildText("username");
+        if ("get".equals(iq.getAttribute("type"))) {
+            StanzaElement fields = new StanzaElement("query", "jabber:iq:auth");
+            fields.addChild("username", (username == null) ? "" : username);
+            fields.addChild(new StanzaElement("password"));
+            fields.addChild(new StanzaElement("resource"));
+            session.send(resultReply(iq, fields));
+            return;
+        }
+        if (session.authenticated) {
+            session.send(errorReply(iq, 400, "modify", "bad-request"));
+            return;
+        }
+
+        String resource = query.getChildText("resource");
+        Account account;
+        if (username == null) {
+            // Anonymous login. Make up a throwaway account.
+            username = "anon" + (serial++);
+            account = new Account(username, null);
+            account.anonymous = true;
+            accounts.put(username, account);
+            if (resource == null) {
+                resource = "anonymous";
+            }
+        }
+        else {
+            account = (Account)accounts.get(username.toLowerCase());
+            String password = query.getChildText("password");
+            if (account == null || account.password == null
+                    || !account.password.equals(password))
+            {
+                session.send(errorReply(iq, 401, "auth", "not-authorized"));
+                return;
+            }
+            if (resource == null || resource.length() == 0) {
+                session.send(errorReply(iq, 406, "modify", "not-acceptable"));
+                return;
+            }
+        }
+
+        String jid = account.username + "@" + domain + "/" + resource;
+        Session old = getSession(jid);
+        if (old != null) {
+            // The new login replaces the old one.
+            sessionClosed(old);
+            old.close();
+        }
+
+        session.account = account;
+        session.jid = jid;
+        session.authenticated = true;
+        List list = (List)userSessions.get(session.getBareJID());
+        if (list == null) {
+            list = new ArrayList();
+            userSessions.put(session.getBareJID(), list);
+        }
+        list.add(session);
+
+        StanzaElement reply = new StanzaElement("iq")
+            .setAttribute("type", "result").setAttribute("id", iq.getAttribute("id"))
+            .setAttribute("to", jid);
+        session.send(reply);
+    }
+
+    protected void handleRegister(Session session, StanzaElement iq, StanzaElement query) {
+        if ("get".equals(iq.getAttribute("type"))) {
+            StanzaElement fields = new StanzaElement("query", "jabber:iq:register");
+            fields.addChild("instructions", "Choose a username and password.");
+            fields.addChild(new StanzaElement("username"));
+            fields.addChild(new StanzaElement("password"));
+            session.send(resultReply(iq, fields));
+            return;
+        }
+
+        if (query.getChild("remove") != null) {
+            if (!session.authenticated || session.account.anonymous) {
+                session.send(errorReply(iq, 401, "auth", "not-authorized"));
+                return;
+            }
+            session.send(resultReply(iq, null));
+            removeAccount(session.account);
+            return;
+        }
+
+        String username = query.getChildText("username");
+        String password = query.getChildText("password");
+        if (username == null || username.length() == 0 || password == null) {
+            session.send(errorReply(iq, 406, "modify", "not-acceptable"));
+            return;
+        }
+        Account account = (Account)accounts.get(username.toLowerCase());
+        if (account != null) {
+            if (session.authenticated && session.account == account) {
+                // Changing the password.
+                account.password = password;
+                session.send(resultReply(iq, null));
+            }
+            else {
+                session.send(errorReply(iq, 409, "cancel", "conflict"));
+            }
+            return;
+        }
+        createAccount(username, password);
+        session.send(resultReply(iq, null));
+    }
+
+    /**
+     * Deletes an account and takes it off every roster. Its connections stay
+     * open until the client closes them.
+     */
+    protected void removeAccount(Account account) {
+        accounts.remove(account.username);
+        String bare = account.username + "@" + domain;
+        for (Iterator i=accounts.values().iterator(); i.hasNext(); ) {
+            Account other = (Account)i.next();
+            if (other.roster.remove(bare) != null) {
+                StanzaElement item = new StanzaElement("item")
+                    .setAttribute("jid", bare).setAttribute("subscription", "remove");
+                pushRosterItem(other, item);
+            }
+        }
+    }
+
+    protected void handleRoster(Session session, StanzaElement iq, StanzaElement query) {
+        Account account = session.account;
+        if ("get".equals(iq.getAttribute("type"))) {
+            session.interested = true;
+            StanzaElement result = new StanzaElement("query", "jabber:iq:roster");
+            for (Iterator i=account.roster.values().iterator(); i.hasNext(); ) {
+                result.addChild(((RosterItem)i.next()).toElement());
+            }
+            session.send(resultReply(iq, result));
+            return;
+        }
+
+        for (Iterator i=query.getChildren().iterator(); i.hasNext(); ) {
+            StanzaElement itemElement = (StanzaElement)i.next();
+            String jid = itemElement.getAttribute("jid");
+            if (jid == null) {
+                continue;
+            }
+            jid = StringUtils.parseBareAddress(jid).toLowerCase();
+            if ("remove".equals(itemElement.getAttribute("subscription"))) {
+                RosterItem item = (RosterItem)account.roster.remove(jid);
+                if (item != null) {
+                    Account contact = getLocalAccount(jid);
+                    if (contact != null) {
+                        RosterItem back = (RosterItem)contact.roster.get(session.getBareJID());
+                        if (back != null && back.removeSubscription(true, true)) {
+                            rosterItemChanged(contact, back);
+                        }
+                    }
+                    pushRosterItem(account, new StanzaElement("item")
+                        .setAttribute("jid", jid).setAttribute("subscription", "remove"));
+                }
+                continue;
+            }
+            RosterItem item = account.getRosterItem(jid);
+            item.name = itemElement.getAttribute("name");
+            item.groups.clear();
+            for (Iterator j=itemElement.getChildren().iterator(); j.hasNext(); ) {
+                StanzaElement group = (StanzaElement)j.next();
+                if (group.getName().equals("group")) {
+                    item.groups.add(group.getText());
+                }
+            }
+            pushRosterItem(account, item.toElement());
+        }
+        session.send(resultReply(iq, null));
+    }
+
+    /**
+     * Sends a roster push to every connection of the account which has asked
+     * for its roster.
+     */
+    protected void pushRosterItem(Account account, StanzaElement item) {
+        List list = (List)userSessions.get(account.username + "@" + domain);
+        if (list == null) {
+            return;
+        }
+        for (Iterator i=list.iterator(); i.hasNext(); ) {
+            Session session = (Session)i.next();
+            if (session.interested) {
+                StanzaElement push = new StanzaElement("iq")
+                    .setAttribute("type", "set").setAttribute("id", nextID())
+                    .setAttribute("to", session.jid);
+                push.addChild(new StanzaElement("query", "jabber:iq:roster").addChild(item.copy()));
+                session.send(push);
+            }
+        }
+    }
+
+    // -- Routing -------------------------------------------------------------
+
+    protected void handleMessage(Session session, StanzaElement message) {
+        String to = message.getAttribute("to");
+        if (to == null || to.equalsIgnoreCase(domain)) {
+            return;
+        }
+        Session target = getSession(to);
+        if (target == null) {
+            target = getBestSession(StringUtils.parseBareAddress(to));
+        }
+        String type = message.getAttribute("type");
+        Account account = getLocalAccount(to);
+        if (target != null) {
+            target.send(message);
+        }
+        else if (account != null) {
+            // The user is offline. Keep chat and normal messages for later.
+            if (type == null || type.equals("chat") || type.equals("normal")) {
+                account.offlineMessages.add(message);
+            }
+        }
+        else if (!"error".equals(type)) {
+            session.send(errorReply(message, 503, "cancel", "service-unavailable"));
+        }
+    }
+
+    protected void routeIQ(Session session, StanzaElement iq) {
+        String to = iq.getAttribute("to");
+        String type = iq.getAttribute("type");
+        boolean request = "get".equals(type) || "set".equals(type);
+        Session target = getSession(to);
+        if (target != null) {
+            target.send(iq);
+            return;
+        }
+        if (request && StringUtils.parseResource(to).length() == 0
+                && getQuery(iq, NS_DISCO_INFO) != null && getLocalAccount(to) != null)
+        {
+            // The server answers disco for its users' bare JIDs.
+            StanzaElement info = new StanzaElement("query", NS_DISCO_INFO);
+            info.addChild(new StanzaElement("identity")
+                .setAttribute("category", "account").setAttribute("type", "registered"));
+            session.send(resultReply(iq, info));
+            return;
+        }
+        if (request) {
+            session.send(errorReply(iq, 503, "cancel", "service-unavailable"));
+        }
+    }
+
+    protected void handlePresence(Session session, StanzaElement presence) {
+        String to = presence.getAttribute("to");
+        String type = presence.getAttribute("type");
+
+        if (to == null) {
+            if (type == null || type.equals("available")) {
+                boolean initial = !session.available;
+                session.available = true;
+                session.presence = presence;
+                broadcastPresence(session, presence);
+                if (initial) {
+                    sendContactPresence(session);
+                    for (Iterator i=session.account.pendingSubscriptions.iterator(); i.hasNext(); ) {
+                        session.send((StanzaElement)i.next());
+                    }
+                    session.account.pendingSubscriptions.clear();
+                    for (Iterator i=session.account.offlineMessages.iterator(); i.hasNext(); ) {
+                        session.send((StanzaElement)i.next());
+                    }
+                    session.account.offlineMessages.clear();
+                }
+            }
+            else if (type.equals("unavailable")) {
+                if (session.available) {
+                    session.available = false;
+                    session.presence = null;
+                    broadcastPresence(session, presence);
+                }
+                muc.userUnavailable(session.jid);
+            }
+            return;
+        }
+
+        if (type != null && (type.equals("subscribe") || type.equals("subscribed")
+                || type.equals("unsubscribe") || type.equals("unsubscribed")))
+        {
+            handleSubscription(session, presence, type);
+            return;
+        }
+        if ("probe".equals(type)) {
+            return;
+        }
+
+        // Directed presence.
+        Session target = getSession(to);
+        if (target != null) {
+            target.send(presence);
+        }
+        else if (StringUtils.parseResource(to).length() == 0) {
+            List list = (List)userSessions.get(to.toLowerCase());
+            if (list != null) {
+                for (Iterator i=list.iterator(); i.hasNext(); ) {
+                    ((Session)i.next()).send(presence);
+                }
+            }
+        }
+    }
+
+    /**
+     * Sends a connection's presence to each contact subscribed to it, and to
+     * the user's other connections.
+     */
+    protected void broadcastPresence(Session session, StanzaElement presence) {
+        for (Iterator i=session.account.roster.values().iterator(); i.hasNext(); ) {
+            RosterItem item = (RosterItem)i.next();
+            if (item.hasFrom()) {
+                sendToAvailable(item.jid, presence);
+            }
+        }
+        List list = (List)userSessions.get(session.getBareJID());
+        if (list == null) {
+            // That was the user's last connection, closing.
+            return;
+        }
+        for (Iterator i=list.iterator(); i.hasNext(); ) {
+            Session other = (Session)i.next();
+            if (other != session && other.available) {
+                other.send(presence.copy().setAttribute("to", other.jid));
+            }
+        }
+    }
+
+    /**
+     * Sends a newly available connection the presence of every contact it is
+     * subscribed to, and of the user's other connections.
+     */
+    protected void sendContactPresence(Session session) {
+        for (Iterator i=session.account.roster.values().iterator(); i.hasNext(); ) {
+            RosterItem item = (RosterItem)i.next();
+            if (item.hasTo()) {
+                sendPresenceOf(item.jid, session);
+            }
+        }
+        sendPresenceOf(session.getBareJID(), session);
+    }
+
+    /**
+     * Sends the presence of each available connection of the given user to
+     * the given connection.
+     */
+    protected void sendPresenceOf(String bareJID, Session recipient) {
+        List list = (List)userSessions.get(bareJID);
+        if (list == null) {
+            return;
+        }
+        for (Iterator i=list.iterator(); i.hasNext(); ) {
+            Session contact = (Session)i.next();
+            if (contact != recipient && contact.available) {
+                recipient.send(contact.presence.copy().setAttribute("to", recipient.jid));
+            }
+        }
+    }
+
+    protected void handleSubscription(Session session, StanzaElement presence, String type) {
+        String contactJID = StringUtils.parseBareAddress(presence.getAttribute("to")).toLowerCase();
+        String userJID = session.getBareJID();
+        Account account = session.account;
+        Account contact = getLocalAccount(contactJID);
+
+        // Subscription presence carries bare addresses.
+        StanzaElement routed = presence.copy()
+            .setAttribute("from", userJID).setAttribute("to", contactJID);
+
+        if (type.equals("subscribe")) {
+            RosterItem item = account.getRosterItem(contactJID);
+            item.ask = "subscribe";
+            pushRosterItem(account, item.toElement());
+            if (contact != null) {
+                if (!sendToAvailable(contactJID, routed)) {
+                    contact.pendingSubscriptions.add(routed);
+                }
+            }
+        }
+        else if (type.equals("subscribed")) {
+            RosterItem item = account.getRosterItem(contactJID);
+            if (item.addSubscription(false, true)) {
+                pushRosterItem(account, item.toElement());
+            }
+            if (contact != null) {
+                RosterItem back = contact.getRosterItem(userJID);
+                back.addSubscription(true, false);
+                back.ask = null;
+                pushRosterItem(contact, back.toElement());
+                sendToAvailable(contactJID, routed);
+                // The new subscriber gets our current presence.
+                List list = (List)userSessions.get(contactJID);
+                if (list != null) {
+                    for (Iterator i=list.iterator(); i.hasNext(); ) {
+                        sendPresenceOf(userJID, (Session)i.next());
+                    }
+                }
+            }
+        }
+        else if (type.equals("unsubscribe")) {
+            RosterItem item = (RosterItem)account.roster.get(contactJID);
+            if (item != null) {
+                item.removeSubscription(true, false);
+                item.ask = null;
+                rosterItemChanged(account, item);
+            }
+            if (contact != null) {
+                RosterItem back = (RosterItem)contact.roster.get(userJID);
+                if (back != null && back.removeSubscription(false, true)) {
+                    rosterItemChanged(contact, back);
+                }
+                sendToAvailable(contactJID, routed);
+            }
+        }
+        else if (type.equals("unsubscribed")) {
+            RosterItem item = (RosterItem)account.roster.get(contactJID);
+            if (item != null && item.removeSubscription(false, true)) {
+                rosterItemChanged(account, item);
+            }
+            if (contact != null) {
+                RosterItem back = (RosterItem)contact.roster.get(userJID);
+                if (back != null) {
+                    back.removeSubscription(true, false);
+                    back.ask = null;
+                    rosterItemChanged(contact, back);
+                }
+                sendToAvailable(contactJID, routed);
+            }
+        }
+    }
+
+    /**
+     * Pushes a roster item whose subscription was cancelled. An item left
+     * with no subscription either way is removed, as the Jive server does.
+     */
+    protected void rosterItemChanged(Account account, RosterItem item) {
+        if (!item.to && !item.from && item.ask == null) {
+            account.roster.remove(item.jid);
+            pushRosterItem(account, new StanzaElement("item")
+                .setAttribute("jid", item.jid).setAttribute("subscription", "remove"));
+        }
+        else {
+            pushRosterItem(account, item.toElement());
+        }
+    }
+
+    /**
+     * Sends a stanza to every available connection of a user.
+     *
+     * @return true if there was at least one.
+     */
+    protected boolean sendToAvailable(String bareJID, StanzaElement stanza) {
+        List list = (List)userSessions.get(bareJID);
+        boolean sent = false;
+        if (list != null) {
+            for (Iterator i=list.iterator(); i.hasNext(); ) {
+                Session session = (Session)i.next();
+                if (session.available) {
+                    session.send(stanza.copy().setAttribute("to", session.jid));
+                    sent = true;
+                }
+            }
+        }
+        return sent;
+    }
+
+    /**
+     * Delivers a stanza to the connection with the given full JID, if there
+     * is one.
+     *
+     * @return true if it was delivered.
+     */
+    protected boolean deliver(String fullJID, StanzaElement stanza) {
+        Session session = getSession(fullJID);
+        if (session == null) {
+            return false;
+        }
+        session.send(stanza);
+        return true;
+    }
+
+    protected Session getSession(String fullJID) {
+        if (fullJID == null || StringUtils.parseResource(fullJID).length() == 0) {
+            return null;
+        }
+        List list = (List)userSessions.get(StringUtils.parseBareAddress(fullJID).toLowerCase());
+        if (list == null) {
+            return null;
+        }
+        for (Iterator i=list.iterator(); i.hasNext(); ) {
+            Session session = (Session)i.next();
+            if (session.jid.equals(fullJID)) {
+                return session;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Returns the connection a message to a bare JID should go to: the
+     * available one with the highest priority, or null.
+     */
+    protected Session getBestSession(String bareJID) {
+        List list = (List)userSessions.get(bareJID.toLowerCase());
+        Session best = null;
+        if (list != null) {
+            for (Iterator i=list.iterator(); i.hasNext(); ) {
+                Session session = (Session)i.next();
+                if (session.available && session.getPriority() >= 0
+                        && (best == null || session.getPriority() > best.getPriority()))
+                {
+                    best = session;
+                }
+            }
+        }
+        return best;
+    }
+
+    protected Account getLocalAccount(String jid) {
+        if (!StringUtils.parseServer(jid).equalsIgnoreCase(domain)) {
+            return null;
+        }
+        return (Account)accounts.get(StringUtils.parseName(jid).toLowerCase());
+    }
+
+    /**
+     * Forgets a connection which has closed, telling its contacts and rooms
+     * that it has gone.
+     */
+    protected synchronized void sessionClosed(Session session) {
+        if (!allSessions.remove(session)) {
+            return;
+        }
+        if (!session.authenticated) {
+            return;
+        }
+        List list = (List)userSessions.get(session.getBareJID());
+        list.remove(session);
+        if (list.isEmpty()) {
+            userSessions.remove(session.getBareJID());
+        }
+        if (session.available) {
+            session.available = false;
+            StanzaElement presence = new StanzaElement("presence")
+                .setAttribute("type", "unavailable").setAttribute("from", session.jid);
+            broadcastPresence(session, presence);
+        }
+        muc.userUnavailable(session.jid);
+        if (session.account.anonymous) {
+            accounts.remove(session.account.username);
+        }
+    }
+
+    // -- Stanza helpers ------------------------------------------------------
+
+    protected static StanzaElement getQuery(StanzaElement iq, String namespace) {
+        return iq.getChild(null, namespace);
+    }
+
+    /**
+     * Builds the result for an IQ request, with the given child (or none).
+     */
+    protected static StanzaElement resultReply(StanzaElement iq, StanzaElement child) {
+        StanzaElement reply = new StanzaElement("iq")
+            .setAttribute("type", "result").setAttribute("id", iq.getAttribute("id"))
+            .setAttribute("to", iq.getAttribute("from"));
+        if (iq.getAttribute("to") != null) {
+            reply.setAttribute("from", iq.getAttribute("to"));
+        }
+        if (child != null) {
+            reply.addChild(child);
+        }
+        return reply;
+    }
+
+    /**
+     * Builds an error reply to a stanza: the stanza itself, turned around,
+     * with an error element added.
+     */
+    protected static StanzaElement errorReply(StanzaElement stanza, int code, String type,
+            String condition)
+    {
+        StanzaElement reply = stanza.copy();
+        String from = stanza.getAttribute("from");
+        reply.setAttribute("from", stanza.getAttribute("to"));
+        reply.setAttribute("to", from);
+        reply.setAttribute("type", "error");
+        reply.addChild(new StanzaElement("error")
+            .setAttribute("code", String.valueOf(code)).setAttribute("type", type)
+            .addChild(new StanzaElement(condition, NS_STANZAS)));
+        return reply;
+    }
+
+    // -- Data ----------------------------------------------------------------
+
+    protected static class Account {
+        String username;
+        String password;
+        boolean anonymous = false;
+        // bare JID -> RosterItem
+        Map roster = new TreeMap();
+        // subscribe requests waiting for the user to come online
+        List pendingSubscriptions = new ArrayList();
+        // messages waiting for the user to come online
+        List offlineMessages = new ArrayList();
+
+        Account(String username, String password) {
+            this.username = username;
+            this.password = password;
+        }
+
+        RosterItem getRosterItem(String jid) {
+            RosterItem item = (RosterItem)roster.get(jid);
+            if (item == null) {
+                item = new RosterItem(jid);
+                roster.put(jid, item);
+            }
+            return item;
+        }
+    }
+
+    protected static class RosterItem {
+        String jid;
+        String name;
+        List groups = new ArrayList();
+        // We get the contact's presence.
+        boolean to = false;
+        // The contact gets our presence.
+        boolean from = false;
+        String ask;
+
+        RosterItem(String jid) {
+            this.jid = jid;
+        }
+
+        boolean hasTo() {
+            return to;
+        }
+
+        boolean hasFrom() {
+            return from;
+        }
+
+        /** Returns true if anything changed. */
+        boolean addSubscription(boolean addTo, boolean addFrom) {
+            boolean changed = (addTo && !to) || (addFrom && !from);
+            to |= addTo;
+            from |= addFrom;
+            return changed;
+        }
+
+        /** Returns true if anything changed. */
+        boolean removeSubscription(boolean removeTo, boolean removeFrom) {
+            boolean changed = (removeTo && to) || (removeFrom && from);
+            to &= !removeTo;
+            from &= !removeFrom;
+            return changed;
+        }
+
+        StanzaElement toElement() {
+            String subscription = to ? (from ? "both" : "to") : (from ? "from" : "none");
+            StanzaElement item = new StanzaElement("item")
+                .setAttribute("jid", jid).setAttribute("name", name)
+                .setAttribute("subscription", subscription).setAttribute("ask", ask);
+            for (Iterator i=groups.iterator(); i.hasNext(); ) {
+                item.addChild("group", (String)i.next());
+            }
+            return item;
+        }
+    }
+
+    /**
+     * One client connection.
+     */
+    protected class Session {
+
+        Socket socket;
+        Reader reader;
+        Writer writer;
+        XMLStanzaFramer framer = new XMLStanzaFramer();
+        LinkedList outQueue = new LinkedList();
+        boolean closing = false;
+
+        // Guarded by the server lock.
+        Account account;
+        String jid;
+        boolean authenticated = false;
+        boolean available = false;
+        boolean interested = false;
+        StanzaElement presence;
+
+        Session(Socket socket) throws IOException {
+            this.socket = socket;
+            reader = new InputStreamReader(socket.getInputStream(), "UTF-8");
+            writer = new BufferedWriter(new OutputStreamWriter(socket.getOutputStream(), "UTF-8"));
+        }
+
+        void start() {
+            Thread readerThread = new Thread() {
+                public void run() {
+                    readStanzas();
+                }
+            };
+            readerThread.setName("Stand-in server reader");
+            readerThread.setDaemon(true);
+            readerThread.start();
+
+            Thread writerThread = new Thread() {
+                public void run() {
+                    writeStanzas();
+                }
+            };
+            writerThread.setName("Stand-in server writer");
+            writerThread.setDaemon(true);
+            writerThread.start();
+        }
+
+        String getBareJID() {
+            return StringUtils.parseBareAddress(jid);
+        }
+
+        int getPriority() {
+            if (presence == null) {
+                return 0;
+            }
+            try {
+                String priority = presence.getChildText("priority");
+                return (priority == null) ? 0 : Integer.parseInt(priority.trim());
+            }
+            catch (NumberFormatException ex) {
+                return 0;
+            }
+        }
+
+        void send(StanzaElement stanza) {
+            send(stanza.toXML());
+        }
+
+        void send(String xml) {
+            synchronized (outQueue) {
+                if (closing) {
+                    return;
+                }
+                outQueue.addLast(xml);
+                outQueue.notifyAll();
+            }
+        }
+
+        /**
+         * Closes the stream. Anything already queued is written first.
+         */
+        void close() {
+            synchronized (outQueue) {
+                if (closing) {
+                    return;
+                }
+                outQueue.addLast("</stream:stream>");
+                closing = true;
+                outQueue.notifyAll();
+            }
+        }
+
+        void readStanzas() {
+            char[] buf = new char[8192];
+            try {
+                int count;
+                while ((count = reader.read(buf, 0, buf.length)) > 0) {
+                    framer.append(buf, 0, count);
+                    String text;
+                    while ((text = framer.nextElement()) != null) {
+                        int type = framer.getElementType();
+                        if (type == XMLStanzaFramer.STREAM_OPEN) {
+                            send("<?xml version='1.0'?><stream:stream xmlns='jabber:client'"
+                                + " xmlns:stream='http://etherx.jabber.org/streams'"
+                                + " id='" + nextID() + "' from='" + domain + "'>");
+                        }
+                        else if (type == XMLStanzaFramer.STREAM_CLOSE) {
+                            sessionClosed(this);
+                            close();
+                            return;
+                        }
+                        else {
+                            handleStanza(this, StanzaElement.parse(text));
+                        }
+                    }
+                }
+            }
+            catch (Exception e) {
+                // Fall through and close.
+            }
+            sessionClosed(this);
+            close();
+        }
+
+        void writeStanzas() {
+            try {
+                while (true) {
+                    String xml;
+                    synchronized (outQueue) {
+                        while (outQueue.isEmpty()) {
+                            if (closing) {
+                                break;
+                            }
+                            outQueue.wait();
+                        }
+                        if (outQueue.isEmpty()) {
+                            break;
+                        }
+                        xml = (String)outQueue.removeFirst();
+                    }
+                    writer.write(xml);
+                    synchronized (outQueue) {
+                        if (!outQueue.isEmpty()) {
+                            continue;
+                        }
+                    }
+                    writer.flush();
+                }
+            }
+            catch (Exception e) {
+                // Fall through and close.
+            }
+            synchronized (outQueue) {
+                closing = true;
+                outQueue.clear();
+            }
+            try {
+                socket.close();
+            }
+            catch (IOException ioe) {
+                // Ignore.
+            }
+        }
+    }
+}
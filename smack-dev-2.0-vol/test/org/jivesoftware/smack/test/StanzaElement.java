@@ -0,0 +1,347 @@
+/**
+ * $RCSfile$
+ * $Revision$
+ * $Date$
+ *
+ * Copyright (C) 2002-2003 Jive Software. All rights reserved.
+ * ====================================================================
+ * The Jive Software License (based on Apache Software License, Version 1.1)
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in
+ *    the documentation and/or other materials provided with the
+ *    distribution.
+ *
+ * 3. The end-user documentation included with the redistribution,
+ *    if any, must include the following acknowledgment:
+ *       "This product includes software developed by
+ *        Jive Software (http://www.jivesoftware.com)."
+ *    Alternately, this acknowledgment may appear in the software itself,
+ *    if and wherever such third-party acknowledgments normally appear.
+ *
+ * 4. The names "Smack" and "Jive Software" must not be used to
+ *    endorse or promote products derived from this software without
+ *    prior written permission. For written permission, please
+ *    contact webmaster@jivesoftware.com.
+ *
+ * 5. Products derived from this software may not be called "Smack",
+ *    nor may "Smack" appear in their name, without prior written
+ *    permission of Jive Software.
+ *
+ * THIS SOFTWARE IS PROVIDED ``AS IS'' AND ANY EXPRESSED OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ * OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED.  IN NO EVENT SHALL JIVE SOFTWARE OR
+ * ITS CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+ * LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF
+ * USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT
+ * OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF
+ * SUCH DAMAGE.
+ * ====================================================================
+ */
+
+package org.jivesoftware.smack.test;
+
+import java.io.IOException;
+import java.io.StringReader;
+import java.util.*;
+
+import org.jivesoftware.smack.util.StringUtils;
+import org.xmlpull.mxp1.MXParser;
+import org.xmlpull.v1.XmlPullParser;
+import org.xmlpull.v1.XmlPullParserException;
+
+/**
+ * A small, mutable XML element, used by {@link StandInServer} to take stanzas
+ * apart, change their addressing and write them out again. Namespace
+ * declarations are kept as ordinary attributes, so an element is written
+ * back out the way it came in.
+ */
+public class StanzaElement {
+
+    private String name;
+    private List attributeNames = new ArrayList();
+    private Map attributes = new HashMap();
+    // Child elements and text strings, in document order.
+    private List content = new ArrayList();
+
+    public StanzaElement(String name) {
+        this.name = name;
+    }
+
+    /**
+     * Creates an element with an <tt>xmlns</tt> attribute.
+     *
+     * @param name the element name.
+     * @param namespace the namespace.
+     */
+    public StanzaElement(String name, String namespace) {
+        this(name);
+        setAttribute("xmlns", namespace);
+    }
+
+    /**
+     * Parses one complete element.
+     *
+     * @param xml the element's text.
+     * @return the element.
+     * @throws XmlPullParserException if the text is not well-formed.
+     */
+    public static StanzaElement parse(String xml) throws XmlPullParserException {
+        XmlPullParser parser = new MXParser();
+        parser.setInput(new StringReader(xml));
+        try {
+            int eventType = parser.getEventType();
+            while (eventType != XmlPullParser.START_TAG) {
+                eventType = parser.next();
+            }
+            return parse(parser);
+        }
+        catch (IOException ioe) {
+            // Can't happen with a StringReader.
+            throw new XmlPullParserException(ioe.toString());
+        }
+    }
+
+    private static StanzaElement parse(XmlPullParser parser)
+            throws XmlPullParserException, IOException
+    {
+        StanzaElement element = new StanzaElement(parser.getName());
+        for (int i=0; i<parser.getAttributeCount(); i++) {
+            element.setAttribute(parser.getAttributeName(i), parser.getAttributeValue(i));
+        }
+        while (true) {
+            int eventType = parser.next();
+            if (eventType == XmlPullParser.START_TAG) {
+                element.addChild(parse(parser));
+            }
+            else if (eventType == XmlPullParser.TEXT) {
+                element.addText(parser.getText());
+            }
+            else if (eventType == XmlPullParser.END_TAG) {
+                return element;
+            }
+            else if (eventType == XmlPullParser.END_DOCUMENT) {
+                throw new XmlPullParserException("Unexpected end of element " + element.name);
+            }
+        }
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public String getAttribute(String attrName) {
+        return (String)attributes.get(attrName);
+    }
+
+    /**
+     * Sets an attribute, or removes it if the value is null.
+     *
+     * @param attrName the attribute name.
+     * @param value the value, or null.
+     * @return this element.
+     */
+    public StanzaElement setAttribute(String attrName, String value) {
+        if (value == null) {
+            attributes.remove(attrName);
+            attributeNames.remove(attrName);
+        }
+        else {
+            if (!attributes.containsKey(attrName)) {
+                attributeNames.add(attrName);
+            }
+            attributes.put(attrName, value);
+        }
+        return this;
+    }
+
+    public String getNamespace() {
+        return getAttribute("xmlns");
+    }
+
+    /**
+     * Returns the first child element with the given name, or null.
+     *
+     * @param childName the element name.
+     * @return the child, or null.
+     */
+    public StanzaElement getChild(String childName) {
+        return getChild(childName, null);
+    }
+
+    /**
+     * Returns the first child element with the given name and namespace, or
+     * null. A null name or namespace matches anything.
+     *
+     * @param childName the element name, or null.
+     * @param namespace the namespace, or null.
+     * @return the child, or null.
+     */
+    public StanzaElement getChild(String childName, String namespace) {
+        for (int i=0; i<content.size(); i++) {
+            Object obj = content.get(i);
+            if (obj instanceof StanzaElement) {
+                StanzaElement child = (StanzaElement)obj;
+                if ((childName == null || childName.equals(child.name))
+                        && (namespace == null || namespace.equals(child.getNamespace())))
+                {
+                    return child;
+                }
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Returns the child elements, in document order.
+     *
+     * @return a List of StanzaElement.
+     */
+    public List getChildren() {
+        List children = new ArrayList();
+        for (int i=0; i<content.size(); i++) {
+            if (content.get(i) instanceof StanzaElement) {
+                children.add(content.get(i));
+            }
+        }
+        return children;
+    }
+
+    /**
+     * Returns the text of the first child element with the given name, or
+     * null if there is no such child.
+     *
+     * @param childName the element name.
+     * @return the child's text, or null.
+     */
+    public String getChildText(String childName) {
+        StanzaElement child = getChild(childName);
+        return (child == null) ? null : child.getText();
+    }
+
+    /**
+     * Returns all the text directly inside this element.
+     *
+     * @return the text.
+     */
+    public String getText() {
+        StringBuffer buf = new StringBuffer();
+        for (int i=0; i<content.size(); i++) {
+            if (content.get(i) instanceof String) {
+                buf.append(content.get(i));
+            }
+        }
+        return buf.toString();
+    }
+
+    public StanzaElement addChild(StanzaElement child) {
+        content.add(child);
+        return this;
+    }
+
+    /**
+     * Adds a child element with the given name and text, and returns this
+     * element.
+     *
+     * @param childName the child element name.
+     * @param text the child's text.
+     * @return this element.
+     */
+    public StanzaElement addChild(String childName, String text) {
+        return addChild(new StanzaElement(childName).addText(text));
+    }
+
+    public StanzaElement addText(String text) {
+        content.add(text);
+        return this;
+    }
+
+    /**
+     * Removes every child element with the given name and namespace. A null
+     * namespace matches anything.
+     *
+     * @param childName the element name.
+     * @param namespace the namespace, or null.
+     */
+    public void removeChildren(String childName, String namespace) {
+        for (Iterator i=content.iterator(); i.hasNext(); ) {
+            Object obj = i.next();
+            if (obj instanceof StanzaElement) {
+                StanzaElement child = (StanzaElement)obj;
+                if (childName.equals(child.name)
+                        && (namespace == null || namespace.equals(child.getNamespace())))
+                {
+                    i.remove();
+                }
+            }
+        }
+    }
+
+    /**
+     * Returns a deep copy of this element.
+     *
+     * @return the copy.
+     */
+    public StanzaElement copy() {
+        StanzaElement element = new StanzaElement(name);
+        for (int i=0; i<attributeNames.size(); i++) {
+            String attrName = (String)attributeNames.get(i);
+            element.setAttribute(attrName, getAttribute(attrName));
+        }
+        for (int i=0; i<content.size(); i++) {
+            Object obj = content.get(i);
+            if (obj instanceof StanzaElement) {
+                element.content.add(((StanzaElement)obj).copy());
+            }
+            else {
+                element.content.add(obj);
+            }
+        }
+        return element;
+    }
+
+    public String toXML() {
+        StringBuffer buf = new StringBuffer();
+        appendXML(buf);
+        return buf.toString();
+    }
+
+    private void appendXML(StringBuffer buf) {
+        buf.append('<').append(name);
+        for (int i=0; i<attributeNames.size(); i++) {
+            String attrName = (String)attributeNames.get(i);
+            buf.append(' ').append(attrName).append("=\"");
+            buf.append(StringUtils.escapeForXML(getAttribute(attrName))).append('"');
+        }
+        if (content.isEmpty()) {
+            buf.append("/>");
+            return;
+        }
+        buf.append('>');
+        for (int i=0; i<content.size(); i++) {
+            Object obj = content.get(i);
+            if (obj instanceof StanzaElement) {
+                ((StanzaElement)obj).appendXML(buf);
+            }
+            else {
+                buf.append(StringUtils.escapeForXML((String)obj));
+            }
+        }
+        buf.append("</").append(name).append('>');
+    }
+
+    public String toString() {
+        return toXML();
+    }
+}
@@ -0,0 +1,161 @@
+/**
+ * $RCSfile$
+ * $Revision$
+ * $Date$
+ *
+ * Copyright (C) 2002-2003 Jive Software. All rights reserved.
+ * ====================================================================
+ * The Jive Software License (based on Apache Software License, Version 1.1)
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in
+ *    the documentation and/or other materials provided with the
+ *    distribution.
+ *
+ * 3. The end-user documentation included with the redistribution,
+ *    if any, must include the following acknowledgment:
+ *       "This product includes software developed by
+ *        Jive Software (http://www.jivesoftware.com)."
+ *    Alternately, this acknowledgment may appear in the software itself,
+ *    if and wherever such third-party acknowledgments normally appear.
+ *
+ * 4. The names "Smack" and "Jive Software" must not be used to
+ *    endorse or promote products derived from this software without
+ *    prior written permission. For written permission, please
+ *    contact webmaster@jivesoftware.com.
+ *
+ * 5. Products derived from this software may not be called "Smack",
+ *    nor may "Smack" appear in their name, without prior written
+ *    permission of Jive Software.
+ *
+ * THIS SOFTWARE IS PROVIDED ``AS IS'' AND ANY EXPRESSED OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ * OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED.  IN NO EVENT SHALL JIVE SOFTWARE OR
+ * ITS CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+ * LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF
+ * USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT
+ * OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF
+ * SUCH DAMAGE.
+ * ====================================================================
+ */
+
+package org.jivesoftware.smack.util;
+
+import junit.framework.TestCase;
+
+/**
+ * A test case for the DNSUtil class, using a stub resolver.
+ */
+public class DNSUtilTest extends TestCase {
+
+    /**
+     * A resolver that answers from fixed data and counts its lookups.
+     */
+    private static class StubResolver implements DNSUtil.Resolver {
+        String name;
+        String[] records;
+        int lookups = 0;
+
+        StubResolver(String name, String[] records) {
+            this.name = name;
+            this.records = records;
+        }
+
+        public String[] lookupSRV(String lookupName) {
+            lookups++;
+            if (lookupName.equals(name)) {
+                return records;
+            }
+            return null;
+        }
+    }
+
+    protected void tearDown() throws Exception {
+        DNSUtil.setResolver(null);
+        super.tearDown();
+    }
+
+    public void testFallback() {
+        DNSUtil.setResolver(new StubResolver("nothing", null));
+        DNSUtil.HostAddress[] addresses = DNSUtil.resolveXMPPDomainCandidates("example.com");
+        assertEquals(1, addresses.length);
+        assertEquals("example.com", addresses[0].getHost());
+        assertEquals(5222, addresses[0].getPort());
+        assertEquals(5269, DNSUtil.resolveXMPPServerDomain("example.com").getPort());
+    }
+
+    public void testPriorityOrder() {
+        DNSUtil.setResolver(new StubResolver("_xmpp-client._tcp.example.com",
+                new String[] {
+                    "20 0 5222 c.example.com.",
+                    "10 0 5223 a.example.com.",
+                    "30 0 5224 d.example.com.",
+                    "15 0 5225 b.example.com.",
+                }));
+        for (int i=0; i<20; i++) {
+            DNSUtil.HostAddress[] addresses = DNSUtil.resolveXMPPDomainCandidates("example.com");
+            assertEquals(4, addresses.length);
+            assertEquals("a.example.com", addresses[0].getHost());
+            assertEquals(5223, addresses[0].getPort());
+            assertEquals("b.example.com", addresses[1].getHost());
+            assertEquals("c.example.com", addresses[2].getHost());
+            assertEquals("d.example.com", addresses[3].getHost());
+        }
+        assertEquals("a.example.com", DNSUtil.resolveXMPPDomain("example.com").getHost());
+    }
+
+    public void testOldStyleName() {
+        DNSUtil.setResolver(new StubResolver("_jabber._tcp.example.com",
+                new String[] { "0 0 5222 old.example.com." }));
+        assertEquals("old.example.com", DNSUtil.resolveXMPPDomain("example.com").getHost());
+    }
+
+    public void testWeights() {
+        DNSUtil.setResolver(new StubResolver("_xmpp-client._tcp.example.com",
+                new String[] {
+                    "10 1 5222 light.example.com.",
+                    "10 99 5222 heavy.example.com.",
+                    "20 50 5222 backup.example.com.",
+                }));
+        int heavyFirst = 0;
+        for (int i=0; i<200; i++) {
+            DNSUtil.HostAddress[] addresses = DNSUtil.resolveXMPPDomainCandidates("example.com");
+            assertEquals(3, addresses.length);
+            assertEquals("backup.example.com", addresses[2].getHost());
+            if (addresses[0].getHost().equals("heavy.example.com")) {
+                heavyFirst++;
+            }
+        }
+        assertTrue("Weighted record should usually come first", heavyFirst > 150);
+    }
+
+    public void testBadAndEmptyRecords() {
+        DNSUtil.setResolver(new StubResolver("_xmpp-client._tcp.example.com",
+                new String[] { "garbage", "0 0 0 .", "5 0 5222 good.example.com." }));
+        DNSUtil.HostAddress[] addresses = DNSUtil.resolveXMPPDomainCandidates("example.com");
+        assertEquals(1, addresses.length);
+        assertEquals("good.example.com", addresses[0].getHost());
+    }
+
+    public void testCache() {
+        StubResolver stub = new StubResolver("_xmpp-client._tcp.example.com",
+                new String[] { "0 0 5222 a.example.com." });
+        DNSUtil.setResolver(stub);
+        DNSUtil.resolveXMPPDomain("example.com");
+        int lookups = stub.lookups;
+        DNSUtil.resolveXMPPDomain("example.com");
+        DNSUtil.resolveXMPPDomain("example.com");
+        assertEquals(lookups, stub.lookups);
+    }
+}
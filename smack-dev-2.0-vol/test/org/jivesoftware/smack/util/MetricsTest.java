@@ -0,0 +1,151 @@
+/**
+ * $RCSfile$
+ * $Revision$
+ * $Date$
+ *
+ * Copyright (C) 2002-2003 Jive Software. All rights reserved.
+ * ====================================================================
+ * The Jive Software License (based on Apache Software License, Version 1.1)
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in
+ *    the documentation and/or other materials provided with the
+ *    distribution.
+ *
+ * 3. The end-user documentation included with the redistribution,
+ *    if any, must include the following acknowledgment:
+ *       "This product includes software developed by
+ *        Jive Software (http://www.jivesoftware.com)."
+ *    Alternately, this acknowledgment may appear in the software itself,
+ *    if and wherever such third-party acknowledgments normally appear.
+ *
+ * 4. The names "Smack" and "Jive Software" must not be used to
+ *    endorse or promote products derived from this software without
+ *    prior written permission. For written permission, please
+ *    contact webmaster@jivesoftware.com.
+ *
+ * 5. Products derived from this software may not be called "Smack",
+ *    nor may "Smack" appear in their name, without prior written
+ *    permission of Jive Software.
+ *
+ * THIS SOFTWARE IS PROVIDED ``AS IS'' AND ANY EXPRESSED OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ * OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED.  IN NO EVENT SHALL JIVE SOFTWARE OR
+ * ITS CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+ * LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF
+ * USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT
+ * OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF
+ * SUCH DAMAGE.
+ * ====================================================================
+ */
+
+package org.jivesoftware.smack.util;
+
+import java.io.*;
+
+import junit.framework.TestCase;
+
+/**
+ * A test case for the Metrics class.
+ */
+public class MetricsTest extends TestCase {
+
+    public void testCounter() {
+        Metrics.Counter counter = Metrics.getCounter("test.counter");
+        counter.reset();
+        counter.increment();
+        counter.add(4);
+        assertEquals(5, counter.getCount());
+        assertSame(counter, Metrics.getCounter("test.counter"));
+        counter.reset();
+        assertEquals(0, counter.getCount());
+    }
+
+    public void testLevel() {
+        Metrics.Counter level = Metrics.getLevel("test.level");
+        level.increment();
+        level.increment();
+        level.increment();
+        level.decrement();
+        level.decrement();
+        assertEquals(1, level.getCount());
+        assertEquals(3, level.getMax());
+        // A level keeps its count; only the maximum starts again.
+        level.reset();
+        assertEquals(1, level.getCount());
+        assertEquals(1, level.getMax());
+        level.decrement();
+    }
+
+    public void testKindMismatch() {
+        Metrics.getCounter("test.kind");
+        try {
+            Metrics.getTiming("test.kind");
+            fail("A counter's name was given to a timing");
+        }
+        catch (IllegalArgumentException e) {
+            // Expected.
+        }
+        try {
+            Metrics.getLevel("test.kind");
+            fail("A counter's name was given to a level");
+        }
+        catch (IllegalArgumentException e) {
+            // Expected.
+        }
+    }
+
+    public void testTiming() {
+        Metrics.Timing timing = Metrics.getTiming("test.timing");
+        timing.reset();
+        assertEquals(0, timing.getPercentile(50));
+        for (int i=0; i<98; i++) {
+            timing.record(3);
+        }
+        timing.record(40);
+        timing.record(700);
+        assertEquals(100, timing.getCount());
+        assertEquals(98*3 + 40 + 700, timing.getTotal());
+        assertEquals(700, timing.getMax());
+        assertEquals(10, timing.getMean());
+        // 3ms is in the 2-5ms bucket.
+        assertEquals(5, timing.getPercentile(50));
+        assertEquals(50, timing.getPercentile(99));
+        assertEquals(700, timing.getPercentile(100));
+    }
+
+    public void testDump() {
+        Metrics.getCounter("test.dump").add(7);
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        Metrics.dump(new PrintStream(bytes));
+        assertTrue(bytes.toString().indexOf("test.dump 7") >= 0);
+    }
+
+    public void testMeteredStreams() throws IOException {
+        Metrics.Counter in = Metrics.getCounter("test.bytes.in");
+        Metrics.Counter out = Metrics.getCounter("test.bytes.out");
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        OutputStream os = new Metrics.MeteredOutputStream(bytes, out);
+        os.write("<presence/>".getBytes());
+        os.write('\n');
+        assertEquals(12, out.getCount());
+
+        InputStream is = new Metrics.MeteredInputStream(
+                new ByteArrayInputStream(bytes.toByteArray()), in);
+        byte[] buf = new byte[5];
+        while (is.read(buf, 0, buf.length) > 0) {
+        }
+        assertEquals(12, in.getCount());
+    }
+}
@@ -0,0 +1,118 @@
+/**
+ * $RCSfile$
+ * $Revision$
+ * $Date$
+ *
+ * Copyright (C) 2002-2003 Jive Software. All rights reserved.
+ * ====================================================================
+ * The Jive Software License (based on Apache Software License, Version 1.1)
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in
+ *    the documentation and/or other materials provided with the
+ *    distribution.
+ *
+ * 3. The end-user documentation included with the redistribution,
+ *    if any, must include the following acknowledgment:
+ *       "This product includes software developed by
+ *        Jive Software (http://www.jivesoftware.com)."
+ *    Alternately, this acknowledgment may appear in the software itself,
+ *    if and wherever such third-party acknowledgments normally appear.
+ *
+ * 4. The names "Smack" and "Jive Software" must not be used to
+ *    endorse or promote products derived from this software without
+ *    prior written permission. For written permission, please
+ *    contact webmaster@jivesoftware.com.
+ *
+ * 5. Products derived from this software may not be called "Smack",
+ *    nor may "Smack" appear in their name, without prior written
+ *    permission of Jive Software.
+ *
+ * THIS SOFTWARE IS PROVIDED ``AS IS'' AND ANY EXPRESSED OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ * OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED.  IN NO EVENT SHALL JIVE SOFTWARE OR
+ * ITS CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+ * LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF
+ * USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT
+ * OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF
+ * SUCH DAMAGE.
+ * ====================================================================
+ */
+
+
+package org.jivesoftware.smack.util;
+
+import java.io.*;
+
+import junit.framework.TestCase;
+import org.xmlpull.v1.XmlPullParser;
+
+/**
+ * A test case for the NameTable and InterningParser classes.
+ */
+public class NameTableTest extends TestCase {
+
+    public void testCodes() {
+        NameTable table = new NameTable(new String[] { "message", "iq", "presence" });
+        assertEquals(1, table.getCode("message"));
+        assertEquals(2, table.getCode(new String("iq")));
+        assertEquals(3, table.getCode("presence"));
+        assertEquals(0, table.getCode("body"));
+        assertEquals(0, table.getCode(""));
+        assertEquals(0, table.getCode(null));
+    }
+
+    public void testGet() {
+        NameTable table = new NameTable(new String[] { "body", "subject" });
+        char[] buf = "<subject>".toCharArray();
+        assertSame("subject", table.get(buf, 1, 7));
+        assertNull(table.get(buf, 1, 6));
+        assertNull(table.get(buf, 0, 0));
+    }
+
+    public void testManyNames() {
+        String[] names = new String[100];
+        for (int i = 0; i < names.length; i++) {
+            names[i] = "name" + i;
+        }
+        NameTable table = new NameTable(names);
+        for (int i = 0; i < names.length; i++) {
+            assertEquals(i + 1, table.getCode("name" + i));
+        }
+        assertEquals(0, table.getCode("name100"));
+    }
+
+    public void testInterningParser() throws Exception {
+        XmlPullParser parser = new InterningParser();
+        parser.setFeature(XmlPullParser.FEATURE_PROCESS_NAMESPACES, true);
+        parser.setInput(new StringReader(
+            "<message type='chat'><body>hi</body>"
+            + "<x xmlns='urn:example:one'/><x xmlns='urn:example:one'/></message>"));
+
+        assertEquals(XmlPullParser.START_TAG, parser.next());
+        assertSame("message", parser.getName());
+        assertSame("type", parser.getAttributeName(0));
+        assertEquals(XmlPullParser.START_TAG, parser.next());
+        assertSame("body", parser.getName());
+        assertEquals("hi", parser.nextText());
+
+        // Names the parser doesn't know are the same from one element to the next.
+        assertEquals(XmlPullParser.START_TAG, parser.next());
+        String namespace = parser.getNamespace();
+        assertEquals("urn:example:one", namespace);
+        parser.next();
+        assertEquals(XmlPullParser.START_TAG, parser.next());
+        assertSame(namespace, parser.getNamespace());
+    }
+}
@@ -0,0 +1,181 @@
+/**
+ * $RCSfile$
+ * $Revision$
+ * $Date$
+ *
+ * Copyright (C) 2002-2003 Jive Software. All rights reserved.
+ * ====================================================================
+ * The Jive Software License (based on Apache Software License, Version 1.1)
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in
+ *    the documentation and/or other materials provided with the
+ *    distribution.
+ *
+ * 3. The end-user documentation included with the redistribution,
+ *    if any, must include the following acknowledgment:
+ *       "This product includes software developed by
+ *        Jive Software (http://www.jivesoftware.com)."
+ *    Alternately, this acknowledgment may appear in the software itself,
+ *    if and wherever such third-party acknowledgments normally appear.
+ *
+ * 4. The names "Smack" and "Jive Software" must not be used to
+ *    endorse or promote products derived from this software without
+ *    prior written permission. For written permission, please
+ *    contact webmaster@jivesoftware.com.
+ *
+ * 5. Products derived from this software may not be called "Smack",
+ *    nor may "Smack" appear in their name, without prior written
+ *    permission of Jive Software.
+ *
+ * THIS SOFTWARE IS PROVIDED ``AS IS'' AND ANY EXPRESSED OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ * OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED.  IN NO EVENT SHALL JIVE SOFTWARE OR
+ * ITS CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+ * LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF
+ * USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT
+ * OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF
+ * SUCH DAMAGE.
+ * ====================================================================
+ */
+
+package org.jivesoftware.smack.util;
+
+import java.io.IOException;
+import java.net.ServerSocket;
+import java.net.Socket;
+
+import junit.framework.TestCase;
+
+/**
+ * A test case for the SocketConnector class. Connects to listening sockets on the
+ * loopback interface.
+ */
+public class SocketConnectorTest extends TestCase {
+
+    /**
+     * Returns a loopback port with nothing listening on it.
+     */
+    private int deadPort() throws IOException {
+        ServerSocket server = new ServerSocket(0);
+        int port = server.getLocalPort();
+        server.close();
+        return port;
+    }
+
+    private DNSUtil.HostAddress[] resolve(String[] records) {
+        DNSUtil.setResolver(new StubResolver(records));
+        try {
+            return DNSUtil.resolveXMPPDomainCandidates("example.com");
+        }
+        finally {
+            DNSUtil.setResolver(null);
+        }
+    }
+
+    private static class StubResolver implements DNSUtil.Resolver {
+        String[] records;
+
+        StubResolver(String[] records) {
+            this.records = records;
+        }
+
+        public String[] lookupSRV(String name) {
+            if (name.startsWith("_xmpp-client.")) {
+                return records;
+            }
+            return null;
+        }
+    }
+
+    public void testFirstCandidateWins() throws Exception {
+        ServerSocket first = new ServerSocket(0);
+        ServerSocket second = new ServerSocket(0);
+        try {
+            DNSUtil.HostAddress[] addresses = resolve(new String[] {
+                    "1 0 " + first.getLocalPort() + " 127.0.0.1",
+                    "2 0 " + second.getLocalPort() + " 127.0.0.1" });
+            SocketConnector connector = new SocketConnector(addresses, 1000, 5000);
+            Socket socket = connector.connect();
+            assertTrue(socket.isConnected());
+            assertEquals(first.getLocalPort(), connector.getWinningAddress().getPort());
+            socket.close();
+        }
+        finally {
+            first.close();
+            second.close();
+        }
+    }
+
+    public void testFailedCandidateSkipped() throws Exception {
+        ServerSocket live = new ServerSocket(0);
+        try {
+            DNSUtil.HostAddress[] addresses = resolve(new String[] {
+                    "1 0 " + deadPort() + " 127.0.0.1",
+                    "2 0 " + live.getLocalPort() + " 127.0.0.1" });
+            // The stagger is long, so a quick connect means the refused attempt
+            // started the next one without waiting.
+            long start = System.currentTimeMillis();
+            SocketConnector connector = new SocketConnector(addresses, 10000, 5000);
+            Socket socket = connector.connect();
+            assertTrue(System.currentTimeMillis() - start < 5000);
+            assertEquals(live.getLocalPort(), connector.getWinningAddress().getPort());
+            socket.close();
+        }
+        finally {
+            live.close();
+        }
+    }
+
+    public void testAllFail() throws Exception {
+        DNSUtil.HostAddress[] addresses = resolve(new String[] {
+                "1 0 " + deadPort() + " 127.0.0.1",
+                "2 0 " + deadPort() + " 127.0.0.1" });
+        SocketConnector connector = new SocketConnector(addresses, 100, 5000);
+        try {
+            connector.connect();
+            fail("Should have thrown IOException");
+        }
+        catch (IOException e) {
+            assertNull(connector.getWinningAddress());
+        }
+    }
+
+    /**
+     * An interrupted connect gives up, and leaves the thread's interrupt
+     * status set for the caller to see.
+     */
+    public void testInterruptKept() throws Exception {
+        ServerSocket live = new ServerSocket(0);
+        try {
+            DNSUtil.HostAddress[] addresses = resolve(new String[] {
+                    "1 0 " + live.getLocalPort() + " 127.0.0.1",
+                    "2 0 " + live.getLocalPort() + " 127.0.0.1" });
+            SocketConnector connector = new SocketConnector(addresses, 10000, 5000);
+            // Already interrupted, so the first wait for an attempt throws.
+            Thread.currentThread().interrupt();
+            try {
+                connector.connect();
+                fail("Should have thrown IOException");
+            }
+            catch (IOException e) {
+                assertTrue(Thread.interrupted());
+            }
+        }
+        finally {
+            Thread.interrupted();
+            live.close();
+        }
+    }
+}
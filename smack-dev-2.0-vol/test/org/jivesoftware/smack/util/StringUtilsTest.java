@@ -52,6 +52,9 @@
 
 package org.jivesoftware.smack.util;
 
+import java.io.StringWriter;
+import java.util.Random;
+
 import junit.framework.TestCase;
 
 /**
@@ -93,6 +96,30 @@ public class StringUtilsTest extends TestCase {
 
         input = "&";
         assertEquals("&amp;", StringUtils.escapeForXML(input));
+
+        // Character references are left alone.
+        input = "&#235; <";
+        assertEquals("&#235; &lt;", StringUtils.escapeForXML(input));
+
+        // A string with nothing to escape comes back as it is.
+        input = "nothing to see here, it's all fine";
+        assertSame(input, StringUtils.escapeForXML(input));
+    }
+
+    public void testEscapeForXMLAppend() throws Exception {
+        String input = "> of me & you<";
+        String output = "&gt; of me &amp; you&lt;";
+
+        StringBuffer buf = new StringBuffer("x");
+        StringUtils.escapeForXML(input, buf);
+        StringUtils.escapeForXML("y", buf);
+        StringUtils.escapeForXML(null, buf);
+        assertEquals("x" + output + "y", buf.toString());
+
+        StringWriter writer = new StringWriter();
+        StringUtils.escapeForXML(input, writer);
+        StringUtils.escapeForXML("\"&#235;\"", writer);
+        assertEquals(output + "&quot;&#235;&quot;", writer.toString());
     }
 
     public void testHash() {
@@ -178,6 +205,60 @@ public class StringUtilsTest extends TestCase {
         assertEquals(StringUtils.encodeBase64(input), output);
     }
 
+    public void testBase64RoundTrip() {
+        Random random = new Random(42);
+        for (int len = 0; len < 40; len++) {
+            byte[] data = new byte[len];
+            random.nextBytes(data);
+            String encoded = StringUtils.encodeBase64(data);
+            assertEquals(((len + 2) / 3) * 4, encoded.length());
+
+            StringBuffer buf = new StringBuffer("<base64>");
+            StringUtils.encodeBase64(data, buf);
+            assertEquals("<base64>" + encoded, buf.toString());
+
+            byte[] decoded = StringUtils.decodeBase64(encoded);
+            assertEquals(len, decoded.length);
+            for (int i = 0; i < len; i++) {
+                assertEquals(data[i], decoded[i]);
+            }
+        }
+    }
+
+    public void testDecodeBase64Bytes() throws Exception {
+        assertEquals(0, StringUtils.decodeBase64("").length);
+        assertEquals("foo bar 123",
+            new String(StringUtils.decodeBase64("Zm9vIGJhciAxMjM="), "ISO-8859-1"));
+        assertEquals("=", new String(StringUtils.decodeBase64("PQ=="), "ISO-8859-1"));
+        // Line breaks, as in a vCard photo, are skipped.
+        assertEquals("foo bar 123",
+            new String(StringUtils.decodeBase64("Zm9vIGJh\r\nciAx\nMjM="), "ISO-8859-1"));
+        assertEquals("foo bar 123",
+            StringUtils.decodeBase64("Zm9vIGJhciAxMjM=".getBytes("ISO-8859-1")));
+    }
+
+    public void testHashThreads() throws Exception {
+        final String expected = StringUtils.hash("admin");
+        final boolean[] failed = new boolean[1];
+        Thread[] threads = new Thread[4];
+        for (int i = 0; i < threads.length; i++) {
+            threads[i] = new Thread() {
+                public void run() {
+                    for (int j = 0; j < 1000; j++) {
+                        if (!expected.equals(StringUtils.hash("admin"))) {
+                            failed[0] = true;
+                        }
+                    }
+                }
+            };
+            threads[i].start();
+        }
+        for (int i = 0; i < threads.length; i++) {
+            threads[i].join();
+        }
+        assertFalse(failed[0]);
+    }
+
     /***
      * This method tests 2 StringUtil methods - decodeBase64(String) and decodeBase64(byte[]).
      */
@@ -0,0 +1,198 @@
+/**
+ * $RCSfile$
+ * $Revision$
+ * $Date$
+ *
+ * Copyright (C) 2002-2003 Jive Software. All rights reserved.
+ * ====================================================================
+ * The Jive Software License (based on Apache Software License, Version 1.1)
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in
+ *    the documentation and/or other materials provided with the
+ *    distribution.
+ *
+ * 3. The end-user documentation included with the redistribution,
+ *    if any, must include the following acknowledgment:
+ *       "This product includes software developed by
+ *        Jive Software (http://www.jivesoftware.com)."
+ *    Alternately, this acknowledgment may appear in the software itself,
+ *    if and wherever such third-party acknowledgments normally appear.
+ *
+ * 4. The names "Smack" and "Jive Software" must not be used to
+ *    endorse or promote products derived from this software without
+ *    prior written permission. For written permission, please
+ *    contact webmaster@jivesoftware.com.
+ *
+ * 5. Products derived from this software may not be called "Smack",
+ *    nor may "Smack" appear in their name, without prior written
+ *    permission of Jive Software.
+ *
+ * THIS SOFTWARE IS PROVIDED ``AS IS'' AND ANY EXPRESSED OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ * OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED.  IN NO EVENT SHALL JIVE SOFTWARE OR
+ * ITS CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+ * LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF
+ * USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT
+ * OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF
+ * SUCH DAMAGE.
+ * ====================================================================
+ */
+
+
+package org.jivesoftware.smack.util;
+
+import java.io.*;
+
+import junit.framework.TestCase;
+
+/**
+ * A test case for the TrafficRecorder class.
+ */
+public class TrafficRecorderTest extends TestCase {
+
+    private static final String SASL = "urn:ietf:params:xml:ns:xmpp-sasl";
+
+    public void testRecordsTraffic() throws IOException {
+        String[] chunks = {
+            "<message to='a@b'><body>Hello</body></message>",
+            "<presence/>",
+            "<iq type='result' id='1'/>"
+        };
+        String log = record(chunks);
+        TrafficLog reader = new TrafficLog(new StringReader(log));
+        assertEquals("example.com", reader.getServiceName());
+        for (int i = 0; i < chunks.length; i++) {
+            TrafficLog.Record record = reader.next();
+            assertEquals(TrafficRecorder.OUTBOUND, record.type);
+            assertEquals(chunks[i], record.text);
+        }
+        assertNull(reader.next());
+    }
+
+    public void testSASLRedacted() throws IOException {
+        String log = record(new String[] {
+            "<auth mechanism=\"PLAIN\" xmlns=\"" + SASL + "\">AGpvZQBzZWNyZXQ=</auth>",
+            "<response xmlns=\"" + SASL + "\">dXNlcm5hbWU9ImpvZSIs</response>",
+            "<auth mechanism=\"ANONYMOUS\" xmlns=\"" + SASL + "\"/>"
+        });
+        assertEquals("<auth mechanism=\"PLAIN\" xmlns=\"" + SASL + "\">"
+                + TrafficRecorder.REDACTED + "</auth>"
+                + "<response xmlns=\"" + SASL + "\">"
+                + TrafficRecorder.REDACTED + "</response>"
+                + "<auth mechanism=\"ANONYMOUS\" xmlns=\"" + SASL + "\"/>",
+                outbound(log));
+        assertEquals(-1, log.indexOf("AGpvZQBzZWNyZXQ="));
+        assertEquals(-1, log.indexOf("dXNlcm5hbWU9ImpvZSIs"));
+    }
+
+    public void testIQAuthRedacted() throws IOException {
+        String log = record(new String[] {
+            "<iq type=\"set\" id=\"a1\"><query xmlns=\"jabber:iq:auth\">"
+                + "<username>joe</username><password>s3cret</password>"
+                + "<resource>Home</resource></query></iq>",
+            "<iq type=\"set\" id=\"a2\"><query xmlns=\"jabber:iq:auth\">"
+                + "<username>joe</username><digest>48fc78be9ec8f86d</digest>"
+                + "</query></iq>",
+            "<iq type=\"get\" id=\"a3\"><query xmlns=\"jabber:iq:auth\">"
+                + "<password/></query></iq>"
+        });
+        assertEquals("<iq type=\"set\" id=\"a1\"><query xmlns=\"jabber:iq:auth\">"
+                + "<username>joe</username><password>" + TrafficRecorder.REDACTED
+                + "</password><resource>Home</resource></query></iq>"
+                + "<iq type=\"set\" id=\"a2\"><query xmlns=\"jabber:iq:auth\">"
+                + "<username>joe</username><digest>" + TrafficRecorder.REDACTED
+                + "</digest></query></iq>"
+                + "<iq type=\"get\" id=\"a3\"><query xmlns=\"jabber:iq:auth\">"
+                + "<password/></query></iq>",
+                outbound(log));
+    }
+
+    /**
+     * A credential split between chunks, down to one character at a time,
+     * is still left out.
+     */
+    public void testSplitChunks() throws IOException {
+        String stanza = "<iq type=\"set\" id=\"a1\"><query xmlns=\"jabber:iq:auth\">"
+            + "<password>s3cret</password></query></iq>"
+            + "<auth mechanism=\"PLAIN\" xmlns=\"" + SASL + "\">AGpvZQBzZWNyZXQ=</auth>";
+        String expected = "<iq type=\"set\" id=\"a1\"><query xmlns=\"jabber:iq:auth\">"
+            + "<password>" + TrafficRecorder.REDACTED + "</password></query></iq>"
+            + "<auth mechanism=\"PLAIN\" xmlns=\"" + SASL + "\">"
+            + TrafficRecorder.REDACTED + "</auth>";
+
+        for (int size = 1; size <= 16; size++) {
+            String[] chunks = new String[(stanza.length() + size - 1) / size];
+            for (int i = 0; i < chunks.length; i++) {
+                int start = i * size;
+                chunks[i] = stanza.substring(start, Math.min(start + size, stanza.length()));
+            }
+            String log = record(chunks);
+            assertEquals(expected, outbound(log));
+            assertEquals(-1, log.indexOf("s3cret"));
+        }
+
+        // Through the wrapped writer, a character at a time.
+        StringWriter out = new StringWriter();
+        TrafficRecorder recorder = new TrafficRecorder(out, "example.com");
+        Writer writer = recorder.wrapWriter(new StringWriter());
+        for (int i = 0; i < stanza.length(); i++) {
+            writer.write(stanza.charAt(i));
+        }
+        recorder.close();
+        assertEquals(expected, outbound(out.toString()));
+    }
+
+    /**
+     * Inbound and outbound traffic are redacted separately, so a credential
+     * being written doesn't swallow traffic read at the same time.
+     */
+    public void testDirectionsSeparate() throws IOException {
+        StringWriter out = new StringWriter();
+        TrafficRecorder recorder = new TrafficRecorder(out, "example.com");
+        recorder.record(TrafficRecorder.OUTBOUND, "<password>s3", 0, 12);
+        recorder.record(TrafficRecorder.INBOUND, "<presence/>", 0, 11);
+        recorder.record(TrafficRecorder.OUTBOUND, "cret</password>", 0, 15);
+        recorder.close();
+
+        TrafficLog reader = new TrafficLog(new StringReader(out.toString()));
+        assertEquals("<password>" + TrafficRecorder.REDACTED, reader.next().text);
+        assertEquals("<presence/>", reader.next().text);
+        assertEquals("</password>", reader.next().text);
+        assertNull(reader.next());
+    }
+
+    private static String record(String[] chunks) throws IOException {
+        StringWriter out = new StringWriter();
+        TrafficRecorder recorder = new TrafficRecorder(out, "example.com");
+        for (int i = 0; i < chunks.length; i++) {
+            char[] chars = chunks[i].toCharArray();
+            recorder.record(TrafficRecorder.OUTBOUND, chars, 0, chars.length);
+        }
+        recorder.close();
+        return out.toString();
+    }
+
+    private static String outbound(String log) throws IOException {
+        TrafficLog reader = new TrafficLog(new StringReader(log));
+        StringBuffer buf = new StringBuffer();
+        TrafficLog.Record record;
+        while ((record = reader.next()) != null) {
+            if (record.type == TrafficRecorder.OUTBOUND) {
+                buf.append(record.text);
+            }
+        }
+        return buf.toString();
+    }
+}
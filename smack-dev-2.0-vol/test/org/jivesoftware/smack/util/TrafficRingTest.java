@@ -0,0 +1,139 @@
+/**
+ * $RCSfile$
+ * $Revision$
+ * $Date$
+ *
+ * Copyright (C) 2002-2003 Jive Software. All rights reserved.
+ * ====================================================================
+ * The Jive Software License (based on Apache Software License, Version 1.1)
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in
+ *    the documentation and/or other materials provided with the
+ *    distribution.
+ *
+ * 3. The end-user documentation included with the redistribution,
+ *    if any, must include the following acknowledgment:
+ *       "This product includes software developed by
+ *        Jive Software (http://www.jivesoftware.com)."
+ *    Alternately, this acknowledgment may appear in the software itself,
+ *    if and wherever such third-party acknowledgments normally appear.
+ *
+ * 4. The names "Smack" and "Jive Software" must not be used to
+ *    endorse or promote products derived from this software without
+ *    prior written permission. For written permission, please
+ *    contact webmaster@jivesoftware.com.
+ *
+ * 5. Products derived from this software may not be called "Smack",
+ *    nor may "Smack" appear in their name, without prior written
+ *    permission of Jive Software.
+ *
+ * THIS SOFTWARE IS PROVIDED ``AS IS'' AND ANY EXPRESSED OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ * OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED.  IN NO EVENT SHALL JIVE SOFTWARE OR
+ * ITS CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+ * LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF
+ * USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT
+ * OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF
+ * SUCH DAMAGE.
+ * ====================================================================
+ */
+
+
+package org.jivesoftware.smack.util;
+
+import java.io.*;
+import java.util.*;
+
+import junit.framework.TestCase;
+
+/**
+ * A test case for the TrafficRing class.
+ */
+public class TrafficRingTest extends TestCase {
+
+    public void testReadAndWrite() throws IOException {
+        TrafficRing ring = new TrafficRing(100, 10);
+        Reader reader = ring.wrapReader(new StringReader("<stream>"));
+        char[] buf = new char[20];
+        assertEquals(8, reader.read(buf, 0, buf.length));
+        Writer writer = ring.wrapWriter(new StringWriter());
+        writer.write("<presence/>");
+
+        List records = new ArrayList();
+        assertEquals(2, ring.getRecords(0, records));
+        assertEquals(2, records.size());
+        TrafficLog.Record record = (TrafficLog.Record)records.get(0);
+        assertEquals(TrafficRing.INBOUND, record.type);
+        assertEquals("<stream>", record.text);
+        record = (TrafficLog.Record)records.get(1);
+        assertEquals(TrafficRing.OUTBOUND, record.type);
+        assertEquals("<presence/>", record.text);
+
+        // Only newer records are returned.
+        records.clear();
+        assertEquals(2, ring.getRecords(2, records));
+        assertEquals(0, records.size());
+    }
+
+    public void testOverwrite() {
+        TrafficRing ring = new TrafficRing(10, 100);
+        ring.record(TrafficRing.INBOUND, "abcdef", 0, 6);
+        ring.record(TrafficRing.INBOUND, "ghij", 0, 4);
+        ring.record(TrafficRing.INBOUND, "klm", 0, 3);
+        // The first record was partly overwritten, so it is gone.
+        assertEquals(1, ring.getFirstSequence());
+        List records = new ArrayList();
+        assertEquals(3, ring.getRecords(0, records));
+        assertEquals(2, records.size());
+        assertEquals("ghij", ((TrafficLog.Record)records.get(0)).text);
+        // This one wrapped around the end of the buffer.
+        assertEquals("klm", ((TrafficLog.Record)records.get(1)).text);
+
+        // Only the end of a chunk longer than the buffer is kept.
+        ring.record(TrafficRing.OUTBOUND, "0123456789abc".toCharArray(), 0, 13);
+        records.clear();
+        assertEquals(4, ring.getRecords(0, records));
+        assertEquals(1, records.size());
+        assertEquals("3456789abc", ((TrafficLog.Record)records.get(0)).text);
+    }
+
+    public void testRecordLimit() {
+        TrafficRing ring = new TrafficRing(100, 3);
+        for (int i = 0; i < 5; i++) {
+            ring.record(TrafficRing.INBOUND, "x" + i, 0, 2);
+        }
+        assertEquals(5, ring.getSequence());
+        assertEquals(2, ring.getFirstSequence());
+        List records = new ArrayList();
+        ring.getRecords(0, records);
+        assertEquals(3, records.size());
+        assertEquals("x2", ((TrafficLog.Record)records.get(0)).text);
+    }
+
+    public void testClearAndClose() {
+        TrafficRing ring = new TrafficRing(100, 10);
+        ring.record(TrafficRing.INBOUND, "one", 0, 3);
+        ring.clear();
+        List records = new ArrayList();
+        assertEquals(1, ring.getRecords(0, records));
+        assertEquals(0, records.size());
+        ring.record(TrafficRing.INBOUND, "two", 0, 3);
+        ring.close();
+        ring.record(TrafficRing.INBOUND, "three", 0, 5);
+        assertEquals(2, ring.getRecords(0, records));
+        assertEquals(1, records.size());
+        assertEquals("two", ((TrafficLog.Record)records.get(0)).text);
+    }
+}
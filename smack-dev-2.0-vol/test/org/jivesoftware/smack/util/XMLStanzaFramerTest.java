@@ -0,0 +1,156 @@
+/**
+ * $RCSfile$
+ * $Revision$
+ * $Date$
+ *
+ * Copyright (C) 2002-2003 Jive Software. All rights reserved.
+ * ====================================================================
+ * The Jive Software License (based on Apache Software License, Version 1.1)
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in
+ *    the documentation and/or other materials provided with the
+ *    distribution.
+ *
+ * 3. The end-user documentation included with the redistribution,
+ *    if any, must include the following acknowledgment:
+ *       "This product includes software developed by
+ *        Jive Software (http://www.jivesoftware.com)."
+ *    Alternately, this acknowledgment may appear in the software itself,
+ *    if and wherever such third-party acknowledgments normally appear.
+ *
+ * 4. The names "Smack" and "Jive Software" must not be used to
+ *    endorse or promote products derived from this software without
+ *    prior written permission. For written permission, please
+ *    contact webmaster@jivesoftware.com.
+ *
+ * 5. Products derived from this software may not be called "Smack",
+ *    nor may "Smack" appear in their name, without prior written
+ *    permission of Jive Software.
+ *
+ * THIS SOFTWARE IS PROVIDED ``AS IS'' AND ANY EXPRESSED OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ * OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED.  IN NO EVENT SHALL JIVE SOFTWARE OR
+ * ITS CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+ * LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF
+ * USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT
+ * OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF
+ * SUCH DAMAGE.
+ * ====================================================================
+ */
+
+package org.jivesoftware.smack.util;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import junit.framework.TestCase;
+
+/**
+ * A test case for the XMLStanzaFramer class.
+ */
+public class XMLStanzaFramerTest extends TestCase {
+
+    private static final String HEADER =
+            "<stream:stream xmlns='jabber:client' "
+            + "xmlns:stream='http://etherx.jabber.org/streams' id='c2s' from='a.b'>";
+
+    private static final String[] STANZAS = {
+        "<message to='x@y' type=\"chat\"><body>1 &lt; 2 > 0</body></message>",
+        "<presence/>",
+        "<iq id='a>b' type='get'><query xmlns='jabber:iq:roster'/></iq>",
+        "<message><body><![CDATA[</message> <fake>]]></body><!-- </message> --></message>",
+        "<stream:features><starttls xmlns='urn:ietf:params:xml:ns:xmpp-tls'/></stream:features>",
+        "<message><body>\u00e9\u4e2d</body><x><x><x/></x></x></message>",
+    };
+
+    /**
+     * Feeds the whole stream to a framer in chunks of the given size, and
+     * returns the elements as "type:text" strings.
+     */
+    private List frame(String stream, int chunk) {
+        XMLStanzaFramer framer = new XMLStanzaFramer();
+        List result = new ArrayList();
+        char[] chars = stream.toCharArray();
+        for (int i=0; i<chars.length; i+=chunk) {
+            framer.append(chars, i, Math.min(chunk, chars.length - i));
+            String element;
+            while ((element = framer.nextElement()) != null) {
+                result.add(framer.getElementType() + ":" + element);
+            }
+        }
+        return result;
+    }
+
+    private String wholeStream() {
+        StringBuffer buf = new StringBuffer();
+        buf.append("<?xml version='1.0'?>").append(HEADER);
+        for (int i=0; i<STANZAS.length; i++) {
+            buf.append(" \n").append(STANZAS[i]);
+        }
+        buf.append(" </stream:stream>");
+        return buf.toString();
+    }
+
+    public void testWholeAndPartialReads() {
+        String stream = wholeStream();
+        int[] chunks = { stream.length(), 1, 2, 3, 7, 64 };
+        for (int c=0; c<chunks.length; c++) {
+            List elements = frame(stream, chunks[c]);
+            assertEquals("chunk " + chunks[c], STANZAS.length + 2, elements.size());
+            assertEquals(XMLStanzaFramer.STREAM_OPEN + ":" + HEADER, elements.get(0));
+            for (int i=0; i<STANZAS.length; i++) {
+                assertEquals("chunk " + chunks[c],
+                        XMLStanzaFramer.STANZA + ":" + STANZAS[i], elements.get(i+1));
+            }
+            assertEquals(XMLStanzaFramer.STREAM_CLOSE + ":</stream:stream>",
+                    elements.get(STANZAS.length + 1));
+        }
+    }
+
+    public void testStreamRestart() {
+        String stream = HEADER + "<success xmlns='urn:ietf:params:xml:ns:xmpp-sasl'/>"
+                + "<?xml version='1.0'?>" + HEADER + "<presence/>";
+        List elements = frame(stream, 5);
+        assertEquals(4, elements.size());
+        assertEquals(XMLStanzaFramer.STREAM_OPEN + ":" + HEADER, elements.get(2));
+        assertEquals(XMLStanzaFramer.STANZA + ":<presence/>", elements.get(3));
+    }
+
+    public void testIncomplete() {
+        XMLStanzaFramer framer = new XMLStanzaFramer();
+        framer.append(HEADER + "<message><body>hel");
+        assertEquals(HEADER, framer.nextElement());
+        assertNull(framer.nextElement());
+        assertEquals(XMLStanzaFramer.NONE, framer.getElementType());
+        framer.append("lo</body></message>");
+        assertEquals("<message><body>hello</body></message>", framer.nextElement());
+    }
+
+    public void testLargeStanzaCompaction() {
+        XMLStanzaFramer framer = new XMLStanzaFramer();
+        framer.append(HEADER);
+        assertNotNull(framer.nextElement());
+        StringBuffer body = new StringBuffer();
+        for (int i=0; i<2000; i++) {
+            body.append("0123456789");
+        }
+        for (int i=0; i<10; i++) {
+            String stanza = "<message><body>" + body + "</body></message>";
+            framer.append(stanza + " ");
+            assertEquals(stanza, framer.nextElement());
+        }
+        assertTrue(framer.getBufferedLength() < 4096);
+    }
+}